@@ -6,13 +6,24 @@
 package com.todoroo.andlib.data;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.todoroo.andlib.data.Property.PropertyVisitor;
@@ -108,6 +119,284 @@ abstract public class AbstractDatabase {
         }
     }
 
+    /**
+     * Notifies listeners of a write, or defers the notification until the
+     * current transaction commits
+     */
+    private void notifyDatabaseUpdated(DatabaseChange change) {
+        if(!changeListeners.isEmpty())
+            pendingChanges.add(change);
+        if(transactionDepth > 0)
+            updatedInTransaction = true;
+        else {
+            onDatabaseUpdated();
+            publishChanges();
+        }
+    }
+
+    // --- change feed
+
+    /**
+     * Interface for responding to the rows that changed. Unlike
+     * {@link DatabaseUpdateListener}, these listeners are told which
+     * tables, rows and columns were written, so they can refresh only what
+     * is affected.
+     */
+    public interface DatabaseChangeListener {
+        /**
+         * Called on a background thread after writes are committed. A
+         * transaction is published as a single batch, in the order the
+         * writes were made; writes outside a transaction are published one
+         * at a time.
+         *
+         * @param changes
+         */
+        public void onDatabaseChanged(List<DatabaseChange> changes);
+    }
+
+    private final CopyOnWriteArrayList<DatabaseChangeListener> changeListeners =
+        new CopyOnWriteArrayList<DatabaseChangeListener>();
+
+    /** changes made since the last batch was published */
+    private ArrayList<DatabaseChange> pendingChanges = new ArrayList<DatabaseChange>();
+
+    /** delivers batches in order, off the thread that wrote them */
+    private ExecutorService changeDispatcher = null;
+
+    /**
+     * Adds a listener, unless it was already added
+     */
+    public void addChangeListener(DatabaseChangeListener listener) {
+        changeListeners.addIfAbsent(listener);
+    }
+
+    public void removeChangeListener(DatabaseChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Hands the pending changes to the dispatcher thread
+     */
+    private synchronized void publishChanges() {
+        if(pendingChanges.isEmpty())
+            return;
+        final List<DatabaseChange> batch = Collections.unmodifiableList(pendingChanges);
+        pendingChanges = new ArrayList<DatabaseChange>();
+
+        if(changeDispatcher == null)
+            changeDispatcher = Executors.newSingleThreadExecutor();
+        changeDispatcher.execute(new Runnable() {
+            public void run() {
+                for(DatabaseChangeListener listener : changeListeners) {
+                    try {
+                        listener.onDatabaseChanged(batch);
+                    } catch (Exception e) {
+                        Log.e("database-" + getName(), "Error in change listener", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /** where clause that selects a single row by id */
+    public static final String ID_WHERE_CLAUSE = AbstractModel.ID_PROPERTY.name + "=?";
+
+    /**
+     * @return id of the single row a where clause selects by id, or
+     *         {@link AbstractModel#NO_ID} for other clauses
+     */
+    private static long rowIdOf(String whereClause, String[] whereArgs) {
+        if(whereArgs != null && whereArgs.length == 1 &&
+                ID_WHERE_CLAUSE.equals(whereClause)) {
+            try {
+                return Long.parseLong(whereArgs[0]);
+            } catch (NumberFormatException e) {
+                // not a row id
+            }
+        }
+        return AbstractModel.NO_ID;
+    }
+
+    private static Set<String> columnsOf(ContentValues values) {
+        HashSet<String> columns = new HashSet<String>();
+        for(Entry<String, Object> entry : values.valueSet())
+            columns.add(entry.getKey());
+        return columns;
+    }
+
+    // --- transactions
+
+    /** nesting depth of {@link #runInTransaction(Runnable)} calls */
+    private int transactionDepth = 0;
+
+    /** thread running the current transaction, or null */
+    private volatile Thread transactionThread = null;
+
+    /** whether a nested transaction failed */
+    private boolean transactionFailed = false;
+
+    /** whether any rows were written in the current transaction */
+    private boolean updatedInTransaction = false;
+
+    /** callbacks to run once the current transaction commits */
+    private final ArrayList<Runnable> afterCommit = new ArrayList<Runnable>();
+
+    /** callbacks to run if the current transaction is rolled back */
+    private final ArrayList<Runnable> afterRollback = new ArrayList<Runnable>();
+
+    /** compiled insert statements, keyed by table and columns */
+    private final HashMap<String, SQLiteStatement> insertStatements =
+        new HashMap<String, SQLiteStatement>();
+
+    /**
+     * Runs the given writes in a single transaction. Inserts reuse compiled
+     * statements for the duration of the transaction, and
+     * {@link DatabaseUpdateListener}s are notified once at commit instead
+     * of once per row. If the writes throw, the transaction is rolled back
+     * and the exception is rethrown.
+     * <p>
+     * The database is locked for the whole transaction, so keep the writes
+     * free of network access and other slow operations.
+     *
+     * @param writes
+     */
+    public synchronized void runInTransaction(Runnable writes) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        if(transactionDepth++ == 0)
+            transactionThread = Thread.currentThread();
+        boolean success = false;
+        try {
+            writes.run();
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if(!success)
+                transactionFailed = true;
+            if(--transactionDepth == 0)
+                finishTransaction();
+        }
+    }
+
+    /**
+     * Runs the given callback after the current thread's transaction
+     * commits, or right away if this thread is not in a transaction.
+     * Callbacks are dropped if the transaction is rolled back.
+     *
+     * @param callback
+     */
+    public void runAfterCommit(Runnable callback) {
+        if(transactionThread != Thread.currentThread()) {
+            callback.run();
+            return;
+        }
+        synchronized(this) {
+            afterCommit.add(callback);
+        }
+    }
+
+    /**
+     * Runs the given callback if the current thread's transaction is
+     * rolled back, e.g. to undo changes made to models by writes that did
+     * not last. Callbacks run in the reverse order they were added. Does
+     * nothing if this thread is not in a transaction.
+     *
+     * @param callback
+     */
+    public void runAfterRollback(Runnable callback) {
+        if(transactionThread != Thread.currentThread())
+            return;
+        synchronized(this) {
+            afterRollback.add(callback);
+        }
+    }
+
+    /**
+     * @return true if the current thread is in a transaction
+     */
+    public boolean inTransaction() {
+        return transactionThread == Thread.currentThread();
+    }
+
+    private void finishTransaction() {
+        transactionThread = null;
+        for(SQLiteStatement statement : insertStatements.values())
+            statement.close();
+        insertStatements.clear();
+
+        boolean committed = !transactionFailed;
+        boolean updated = updatedInTransaction;
+        Runnable[] callbacks = afterCommit.toArray(new Runnable[afterCommit.size()]);
+        Runnable[] undo = afterRollback.toArray(new Runnable[afterRollback.size()]);
+        transactionFailed = false;
+        updatedInTransaction = false;
+        afterCommit.clear();
+        afterRollback.clear();
+
+        if(!committed) {
+            pendingChanges.clear();
+            for(int i = undo.length - 1; i >= 0; i--)
+                undo[i].run();
+            return;
+        }
+        if(updated)
+            onDatabaseUpdated();
+        publishChanges();
+        for(Runnable callback : callbacks)
+            callback.run();
+    }
+
+    /**
+     * Inserts a row with a compiled statement, compiling it the first time
+     * these columns are inserted into this table in this transaction
+     *
+     * @return row id of the new row, or -1 on error
+     */
+    private long insertCompiled(String table, ContentValues values) {
+        Set<Entry<String, Object>> entries = values.valueSet();
+        StringBuilder columns = new StringBuilder(table).append('(');
+        for(Entry<String, Object> entry : entries)
+            columns.append(entry.getKey()).append(',');
+        columns.setCharAt(columns.length() - 1, ')');
+        String key = columns.toString();
+
+        SQLiteStatement statement = insertStatements.get(key);
+        if(statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(key).append(" VALUES(");
+            for(int i = 0; i < entries.size(); i++)
+                sql.append(i == 0 ? "?" : ",?");
+            sql.append(')');
+            statement = getDatabase().compileStatement(sql.toString());
+            insertStatements.put(key, statement);
+        }
+
+        int index = 1;
+        for(Entry<String, Object> entry : entries)
+            bindValue(statement, index++, entry.getValue());
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e("database-" + getName(), "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if(value == null)
+            statement.bindNull(index);
+        else if(value instanceof Double || value instanceof Float)
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        else if(value instanceof Number)
+            statement.bindLong(index, ((Number) value).longValue());
+        else if(value instanceof Boolean)
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        else if(value instanceof byte[])
+            statement.bindBlob(index, (byte[]) value);
+        else
+            statement.bindString(index, value.toString());
+    }
+
 	// --- internal implementation
 
     @Autowired
@@ -230,8 +519,13 @@ abstract public class AbstractDatabase {
      * @see android.database.sqlite.SQLiteDatabase#insert(String  table, String  nullColumnHack, ContentValues  values)
      */
     public synchronized long insert(String table, String nullColumnHack, ContentValues values) {
-        long result = getDatabase().insert(table, nullColumnHack, values);
-        onDatabaseUpdated();
+        long result;
+        if(transactionDepth > 0 && values.size() > 0)
+            result = insertCompiled(table, values);
+        else
+            result = getDatabase().insert(table, nullColumnHack, values);
+        if(result >= 0)
+            notifyDatabaseUpdated(new DatabaseChange(table, DatabaseChange.INSERT, result, null));
         return result;
     }
 
@@ -240,7 +534,9 @@ abstract public class AbstractDatabase {
      */
     public synchronized int delete(String table, String whereClause, String[] whereArgs) {
         int result = getDatabase().delete(table, whereClause, whereArgs);
-        onDatabaseUpdated();
+        if(result > 0)
+            notifyDatabaseUpdated(new DatabaseChange(table, DatabaseChange.DELETE,
+                    rowIdOf(whereClause, whereArgs), null));
         return result;
     }
 
@@ -249,7 +545,9 @@ abstract public class AbstractDatabase {
      */
     public synchronized int update(String  table, ContentValues  values, String  whereClause, String[] whereArgs) {
         int result = getDatabase().update(table, values, whereClause, whereArgs);
-        onDatabaseUpdated();
+        if(result > 0)
+            notifyDatabaseUpdated(new DatabaseChange(table, DatabaseChange.UPDATE,
+                    rowIdOf(whereClause, whereArgs), columnsOf(values)));
         return result;
     }
 
@@ -10,6 +10,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
 
 import android.content.ContentValues;
 import android.os.Parcel;
@@ -52,6 +54,17 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
     /** Get the default values for this object */
     abstract public ContentValues getDefaultValues();
 
+    /**
+     * Models that return their table here keep values in typed slot arrays
+     * laid out by {@link Table#getSlotLayout()} instead of ContentValues.
+     * Properties outside the table are still stored in ContentValues.
+     *
+     * @return table for slot storage, or null to use ContentValues only
+     */
+    protected Table getSlotTable() {
+        return null;
+    }
+
     // --- data store variables and management
 
     /* Data Source Ordering:
@@ -67,18 +80,57 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
     /** Values from database */
     protected ContentValues values = null;
 
+    /* Slot Storage:
+     *
+     * When getSlotTable() returns a table, values for its properties live in
+     * setSlots and valueSlots, and setValues / values only hold properties
+     * that don't fit in a slot or whose value is null. A column is never in
+     * both a slot and the matching ContentValues, except that once
+     * setValues has been handed out by getSetValues() it mirrors setSlots
+     * until the model is saved.
+     */
+
+    /** Slot layout, or null if this model does not use slot storage */
+    private final SlotLayout slotLayout;
+
+    /** User set values kept in slots */
+    private ValueSlots setSlots = null;
+
+    /** Database values kept in slots */
+    private ValueSlots valueSlots = null;
+
+    /** Whether setValues currently mirrors setSlots */
+    private boolean setValuesSynced = false;
+
+    /** Values that are never saved, e.g. hints for save listeners */
+    private HashMap<String, Object> transitoryData = null;
+
+    protected AbstractModel() {
+        Table slotTable = getSlotTable();
+        slotLayout = slotTable == null ? null : slotTable.getSlotLayout();
+    }
+
     /** Get database-read values for this object */
-    public ContentValues getDatabaseValues() {
-        return values;
+    public synchronized ContentValues getDatabaseValues() {
+        if(valueSlots == null || valueSlots.isEmpty())
+            return values;
+        ContentValues databaseValues = values == null ? new ContentValues() :
+            new ContentValues(values);
+        valueSlots.copyInto(databaseValues);
+        return databaseValues;
     }
 
     /** Get the user-set values for this object */
-    public ContentValues getSetValues() {
+    public synchronized ContentValues getSetValues() {
+        if(setSlots != null && setValues != null && !setValuesSynced) {
+            setSlots.copyInto(setValues);
+            setValuesSynced = true;
+        }
         return setValues;
     }
 
     /** Get a list of all field/value pairs merged across data sources */
-    public ContentValues getMergedValues() {
+    public synchronized ContentValues getMergedValues() {
         ContentValues mergedValues = new ContentValues();
 
         ContentValues defaultValues = getDefaultValues();
@@ -86,8 +138,12 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
             mergedValues.putAll(defaultValues);
         if(values != null)
             mergedValues.putAll(values);
+        if(valueSlots != null)
+            valueSlots.copyInto(mergedValues);
         if(setValues != null)
             mergedValues.putAll(setValues);
+        if(setSlots != null)
+            setSlots.copyInto(mergedValues);
 
         return mergedValues;
     }
@@ -95,16 +151,26 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
     /**
      * Clear all data on this model
      */
-    public void clear() {
+    public synchronized void clear() {
         values = null;
         setValues = null;
+        if(valueSlots != null)
+            valueSlots.clear();
+        if(setSlots != null)
+            setSlots.clear();
+        setValuesSynced = false;
+        transitoryData = null;
     }
 
     /**
      * Transfers all set values into values. This occurs when a task is
      * saved - future saves will not need to write all the data as before.
      */
-    public void markSaved() {
+    public synchronized void markSaved() {
+        if(slotLayout != null) {
+            markSlotsSaved();
+            return;
+        }
         if(values == null)
             values = setValues;
         else if(setValues != null)
@@ -112,6 +178,26 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
         setValues = null;
     }
 
+    private void markSlotsSaved() {
+        if(setValues != null) {
+            for(Entry<String, Object> entry : setValues.valueSet()) {
+                int slot = slotLayout.indexOf(entry.getKey());
+                if(slot >= 0 && setSlots != null && setSlots.contains(slot))
+                    continue;
+                putSlotValue(false, entry.getKey(), entry.getValue());
+            }
+        }
+        if(setSlots != null && !setSlots.isEmpty()) {
+            for(int slot = setSlots.nextSlot(0); slot >= 0; slot = setSlots.nextSlot(slot + 1))
+                if(values != null)
+                    values.remove(slotLayout.properties[slot].name);
+            valueSlots().absorb(setSlots);
+            setSlots.clear();
+        }
+        setValues = null;
+        setValuesSynced = false;
+    }
+
     /**
      * Use merged values to compare two models to each other. Must be of
      * exactly the same class.
@@ -141,12 +227,32 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
             clone.setValues = new ContentValues(setValues);
         if(values != null)
             clone.values = new ContentValues(values);
+        if(setSlots != null)
+            clone.setSlots = setSlots.copy();
+        if(valueSlots != null)
+            clone.valueSlots = valueSlots.copy();
+        if(transitoryData != null)
+            clone.transitoryData = new HashMap<String, Object>(transitoryData);
         return clone;
     }
 
+    /**
+     * Replace the state of this model with that of a clone taken earlier,
+     * e.g. to undo a save that was rolled back. The clone must not be used
+     * afterwards.
+     */
+    synchronized void restore(AbstractModel snapshot) {
+        values = snapshot.values;
+        setValues = snapshot.setValues;
+        setSlots = snapshot.setSlots;
+        valueSlots = snapshot.valueSlots;
+        setValuesSynced = snapshot.setValuesSynced;
+        transitoryData = snapshot.transitoryData;
+    }
+
     /** Check if this model has values that have been changed */
     public boolean isModified() {
-        return setValues.size() > 0;
+        return getSetValues().size() > 0;
     }
 
     // --- data retrieval
@@ -155,29 +261,83 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
      * Reads all properties from the supplied cursor and store
      */
     protected synchronized void readPropertiesFromCursor(TodorooCursor<? extends AbstractModel> cursor) {
-        if (values == null)
+        if (values == null && slotLayout == null)
             values = new ContentValues();
 
         // clears user-set values
         setValues = null;
+        if(setSlots != null)
+            setSlots.clear();
+        setValuesSynced = false;
 
-        for (Property<?> property : cursor.getProperties()) {
+        Property<?>[] properties = cursor.getProperties();
+        int[] slots = slotLayout == null ? null : cursor.getSlotIndexes(slotLayout);
+        for (int i = 0; i < properties.length; i++) {
             try {
-                saver.save(property, values, cursor.get(property));
+                if(slots != null) {
+                    if(slots[i] >= 0) {
+                        readSlotFromCursor(cursor, i, slots[i]);
+                        continue;
+                    }
+                    // read as a different type than its slot, so keep it in values instead
+                    if(slots[i] < -1 && valueSlots != null)
+                        valueSlots.remove(-slots[i] - 2);
+                    if(values == null)
+                        values = new ContentValues();
+                }
+                saver.save(properties[i], values, cursor.get(properties[i]));
             } catch (IllegalArgumentException e) {
                 // underlying cursor may have changed, suppress
             }
         }
     }
 
+    /**
+     * Reads the property at the given cursor position straight into its
+     * database slot
+     */
+    private void readSlotFromCursor(TodorooCursor<?> cursor, int position, int slot) {
+        ValueSlots slots = valueSlots();
+        int column = cursor.getColumnIndexAt(position);
+        switch(slotLayout.kinds[slot]) {
+        case SlotLayout.KIND_LONG:
+            slots.putLong(slot, cursor.getLong(column));
+            break;
+        case SlotLayout.KIND_DOUBLE:
+            slots.putDouble(slot, cursor.getDouble(column));
+            break;
+        default:
+            String value = cursor.getString(column);
+            if(value == null) {
+                // keep the null in values, so the column still counts as read
+                slots.remove(slot);
+                if(values == null)
+                    values = new ContentValues();
+                values.putNull(slotLayout.properties[slot].name);
+                return;
+            }
+            slots.putObject(slot, value);
+        }
+        if(values != null && values.size() > 0)
+            values.remove(slotLayout.properties[slot].name);
+    }
+
     /**
      * Reads the given property. Make sure this model has this property!
      */
     public synchronized <TYPE> TYPE getValue(Property<TYPE> property) {
+        int slot = slotLayout == null ? -1 : slotLayout.indexOf(property);
+
         Object value;
-        if(setValues != null && setValues.containsKey(property.name))
+        if(slot >= 0 && setSlots != null && setSlots.contains(slot))
+            value = setSlots.get(slot, property);
+
+        else if(setValues != null && setValues.containsKey(property.name))
             value = setValues.get(property.name);
 
+        else if(slot >= 0 && valueSlots != null && valueSlots.contains(slot))
+            value = valueSlots.get(slot, property);
+
         else if(values != null && values.containsKey(property.name))
             value = values.get(property.name);
 
@@ -211,7 +371,17 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
      */
     abstract public long getId();
 
-    protected long getIdHelper(LongProperty id) {
+    protected synchronized long getIdHelper(LongProperty id) {
+        if(slotLayout != null) {
+            int slot = slotLayout.indexOf(id);
+            if(slot >= 0 && slotLayout.accepts(slot, id)) {
+                if(setSlots != null && setSlots.contains(slot))
+                    return setSlots.getLong(slot);
+                if(valueSlots != null && valueSlots.contains(slot) &&
+                        (setValues == null || !setValues.containsKey(id.name)))
+                    return valueSlots.getLong(slot);
+            }
+        }
         if(setValues != null && setValues.containsKey(id.name))
             return setValues.getAsLong(id.name);
         else if(values != null && values.containsKey(id.name))
@@ -220,12 +390,14 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
             return NO_ID;
     }
 
-    public void setId(long id) {
+    public synchronized void setId(long id) {
         if (setValues == null)
             setValues = new ContentValues();
 
         if(id == NO_ID)
             clearValue(ID_PROPERTY);
+        else if(slotLayout != null)
+            putSlotValue(true, ID_PROPERTY_NAME, id);
         else
             setValues.put(ID_PROPERTY_NAME, id);
     }
@@ -241,7 +413,13 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
      * @param property
      * @return true if setValues or values contains this property
      */
-    public boolean containsValue(Property<?> property) {
+    public synchronized boolean containsValue(Property<?> property) {
+        if(slotLayout != null) {
+            int slot = slotLayout.indexOf(property);
+            if(slot >= 0 && ((setSlots != null && setSlots.contains(slot)) ||
+                    (valueSlots != null && valueSlots.contains(slot))))
+                return true;
+        }
         if(setValues != null && setValues.containsKey(property.name))
             return true;
         if(values != null && values.containsKey(property.name))
@@ -254,7 +432,16 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
      * @return true if setValues or values contains this property, and the value
      *         stored is not null
      */
-    public boolean containsNonNullValue(Property<?> property) {
+    public synchronized boolean containsNonNullValue(Property<?> property) {
+        if(slotLayout != null) {
+            // slots never hold null values
+            int slot = slotLayout.indexOf(property);
+            if(slot >= 0 && setSlots != null && setSlots.contains(slot))
+                return true;
+            if(slot >= 0 && valueSlots != null && valueSlots.contains(slot) &&
+                    (setValues == null || !setValues.containsKey(property.name)))
+                return true;
+        }
         if(setValues != null && setValues.containsKey(property.name))
             return setValues.get(property.name) != null;
         if(values != null && values.containsKey(property.name))
@@ -296,26 +483,174 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
             TYPE value) {
         if (setValues == null)
             setValues = new ContentValues();
+        if(value == null) {
+            setNullValue(property);
+            return;
+        }
+        if(slotLayout != null) {
+            int slot = slotLayout.indexOf(property);
+            if(slot >= 0) {
+                setSlotValue(slot, property, value);
+                return;
+            }
+        }
         if (!shouldSaveValue(property, value))
             return;
 
         saver.save(property, setValues, value);
     }
 
+    /**
+     * Records an explicit null for the given property, so saving clears
+     * the column. Slots never hold nulls, so the null is kept in setValues
+     */
+    private void setNullValue(Property<?> property) {
+        if(slotLayout != null) {
+            int slot = slotLayout.indexOf(property);
+            if(slot >= 0 && setSlots != null)
+                setSlots.remove(slot);
+        }
+
+        // already null in the database and not changed since
+        if(!setValues.containsKey(property.name) && values != null &&
+                values.containsKey(property.name) && values.get(property.name) == null)
+            return;
+
+        setValues.putNull(property.name);
+    }
+
+    /**
+     * Slot storage version of {@link #setValue(Property, Object)}, with the
+     * same rules as {@link #shouldSaveValue(Property, Object)}
+     */
+    private void setSlotValue(int slot, Property<?> property, Object value) {
+        boolean alreadySet = (setSlots != null && setSlots.contains(slot)) ||
+            (!setValuesSynced && setValues.containsKey(property.name));
+        if(!alreadySet && ((valueSlots != null && valueSlots.contains(slot)) ||
+                (values != null && values.containsKey(property.name)))) {
+            if(value.equals(getValue(property)))
+                return;
+        }
+
+        putSlotValue(true, property.name, value);
+    }
+
+    /**
+     * Stores a value in the set or database layer, in a slot if possible
+     * or in the matching ContentValues otherwise
+     */
+    private void putSlotValue(boolean userSet, String name, Object value) {
+        int slot = slotLayout.indexOf(name);
+        ContentValues store = userSet ? setValues : values;
+        if(slot >= 0 && value != null) {
+            ValueSlots slots = userSet ? setSlots() : valueSlots();
+            if(slots.put(slot, value)) {
+                if(userSet && setValuesSynced)
+                    slots.copyInto(slot, setValues);
+                else if(store != null)
+                    store.remove(name);
+                return;
+            }
+        }
+
+        if(slot >= 0) {
+            ValueSlots slots = userSet ? setSlots : valueSlots;
+            if(slots != null)
+                slots.remove(slot);
+        }
+        if(store == null) {
+            store = new ContentValues();
+            if(userSet)
+                setValues = store;
+            else
+                values = store;
+        }
+        putRawValue(store, name, value);
+    }
+
+    /** Put a value of unknown type into a content values store */
+    static void putRawValue(ContentValues store, String name, Object value) {
+        if(value == null)
+            store.putNull(name);
+        else if(value instanceof String)
+            store.put(name, (String) value);
+        else if(value instanceof Long)
+            store.put(name, (Long) value);
+        else if(value instanceof Integer)
+            store.put(name, (Integer) value);
+        else if(value instanceof Double)
+            store.put(name, (Double) value);
+        else if(value instanceof Float)
+            store.put(name, (Float) value);
+        else if(value instanceof Short)
+            store.put(name, (Short) value);
+        else if(value instanceof Byte)
+            store.put(name, (Byte) value);
+        else if(value instanceof Boolean)
+            store.put(name, (Boolean) value);
+        else if(value instanceof byte[])
+            store.put(name, (byte[]) value);
+        else
+            store.put(name, value.toString());
+    }
+
+    private ValueSlots setSlots() {
+        if(setSlots == null)
+            setSlots = new ValueSlots(slotLayout);
+        return setSlots;
+    }
+
+    private ValueSlots valueSlots() {
+        if(valueSlots == null)
+            valueSlots = new ValueSlots(slotLayout);
+        return valueSlots;
+    }
+
     /**
      * Merges content values with those coming from another source
      */
     public synchronized <TYPE> void mergeWith(ContentValues other) {
         if (setValues == null)
             setValues = new ContentValues();
+        if(slotLayout != null) {
+            for(Entry<String, Object> entry : other.valueSet())
+                putSlotValue(true, entry.getKey(), entry.getValue());
+            return;
+        }
         setValues.putAll(other);
     }
 
+    /**
+     * Stores values as if they had been read from the database with the
+     * rest of this model, keeping values the user has set. Used for
+     * properties read separately, such as deferred properties. Null values
+     * are stored too, so {@link #containsValue(Property)} tells which
+     * properties have been read.
+     */
+    public synchronized void mergeWithDatabaseValues(ContentValues other) {
+        for(Entry<String, Object> entry : other.valueSet()) {
+            if(slotLayout != null) {
+                putSlotValue(false, entry.getKey(), entry.getValue());
+                continue;
+            }
+            if(values == null)
+                values = new ContentValues();
+            putRawValue(values, entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * Clear the key for the given property
      * @param property
      */
     public synchronized void clearValue(Property<?> property) {
+        if(slotLayout != null) {
+            int slot = slotLayout.indexOf(property);
+            if(slot >= 0 && setSlots != null)
+                setSlots.remove(slot);
+            if(slot >= 0 && valueSlots != null)
+                valueSlots.remove(slot);
+        }
         if(setValues != null && setValues.containsKey(property.name))
             setValues.remove(property.name);
         if(values != null && values.containsKey(property.name))
@@ -345,6 +680,39 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
         return (getValue(property) & flag) > 0;
     }
 
+    // --- transitory values
+
+    /**
+     * Attach a value to this model that is not saved to the database.
+     * Listeners receive a copy of the model, so they can read it to learn
+     * about the save that notified them.
+     */
+    public synchronized void putTransitory(String key, Object value) {
+        if(transitoryData == null)
+            transitoryData = new HashMap<String, Object>();
+        transitoryData.put(key, value);
+    }
+
+    /**
+     * @return transitory value for the given key, or null if not set
+     */
+    public synchronized Object getTransitory(String key) {
+        if(transitoryData == null)
+            return null;
+        return transitoryData.get(key);
+    }
+
+    /**
+     * Remove a transitory value
+     *
+     * @return true if it was set
+     */
+    public synchronized boolean checkAndClearTransitory(String key) {
+        if(transitoryData == null)
+            return false;
+        return transitoryData.remove(key) != null;
+    }
+
     // --- property management
 
     /**
@@ -429,9 +797,9 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
     /**
      * {@inheritDoc}
      */
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeParcelable(setValues, 0);
-        dest.writeParcelable(values, 0);
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        dest.writeParcelable(getSetValues(), 0);
+        dest.writeParcelable(getDatabaseValues(), 0);
     }
 
     /**
@@ -466,8 +834,23 @@ public abstract class AbstractModel implements Parcelable, Cloneable {
             } catch (InstantiationException e) {
                 throw new RuntimeException(e);
             }
-            model.setValues = source.readParcelable(ContentValues.class.getClassLoader());
-            model.values = source.readParcelable(ContentValues.class.getClassLoader());
+            ContentValues setValues = source.readParcelable(ContentValues.class.getClassLoader());
+            ContentValues values = source.readParcelable(ContentValues.class.getClassLoader());
+            AbstractModel target = model;
+            if(target.slotLayout == null) {
+                target.setValues = setValues;
+                target.values = values;
+                return model;
+            }
+
+            if(values != null)
+                for(Entry<String, Object> entry : values.valueSet())
+                    target.putSlotValue(false, entry.getKey(), entry.getValue());
+            if(setValues != null) {
+                target.setValues = new ContentValues();
+                for(Entry<String, Object> entry : setValues.valueSet())
+                    target.putSlotValue(true, entry.getKey(), entry.getValue());
+            }
             return model;
         }
 
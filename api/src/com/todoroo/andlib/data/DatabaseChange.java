@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2009, Todoroo Inc
+ * All Rights Reserved
+ * http://www.todoroo.com
+ */
+package com.todoroo.andlib.data;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A write to a table, as published to
+ * {@link AbstractDatabase.DatabaseChangeListener}s
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public final class DatabaseChange {
+
+    public static final int INSERT = 1;
+    public static final int UPDATE = 2;
+    public static final int DELETE = 3;
+
+    /** name of the table written to */
+    public final String table;
+
+    /** {@link #INSERT}, {@link #UPDATE} or {@link #DELETE} */
+    public final int operation;
+
+    /**
+     * id of the row written, or {@link AbstractModel#NO_ID} if the write
+     * matched rows with a criterion and may have touched any number of them
+     */
+    public final long rowId;
+
+    /**
+     * columns written by an update, or null if the whole row was inserted
+     * or deleted
+     */
+    public final Set<String> columns;
+
+    public DatabaseChange(String table, int operation, long rowId, Set<String> columns) {
+        this.table = table;
+        this.operation = operation;
+        this.rowId = rowId;
+        this.columns = columns == null ? null : Collections.unmodifiableSet(columns);
+    }
+
+    /**
+     * @return true if this change is to the given table
+     */
+    public boolean isTo(Table other) {
+        return table.equals(other.name);
+    }
+
+    /**
+     * @return true if the given column may have changed
+     */
+    public boolean affects(Property<?> property) {
+        return columns == null || columns.contains(property.name);
+    }
+
+    /**
+     * @return true if the change was to a single known row
+     */
+    public boolean isSingleRow() {
+        return rowId != AbstractModel.NO_ID;
+    }
+
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+        String name = operation == INSERT ? "insert" : operation == UPDATE ? "update" : "delete";
+        return name + " " + table + (isSingleRow() ? "#" + rowId : "") +
+            (columns == null ? "" : " " + columns);
+    }
+
+}
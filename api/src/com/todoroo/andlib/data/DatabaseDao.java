@@ -8,6 +8,8 @@ package com.todoroo.andlib.data;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -15,6 +17,7 @@ import android.util.Log;
 
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.DependencyInjectionService;
+import com.todoroo.andlib.sql.CompiledQuery;
 import com.todoroo.andlib.sql.Criterion;
 import com.todoroo.andlib.sql.Query;
 
@@ -82,11 +85,26 @@ public class DatabaseDao<TYPE extends AbstractModel> {
         listeners.add(listener);
     }
 
+    public void removeListener(ModelUpdateListener<TYPE> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies listeners of a saved model. Inside a transaction, listeners
+     * are called once the transaction commits, and not at all if it is
+     * rolled back.
+     */
     protected void onModelUpdated(TYPE model) {
-        TYPE modelCopy = (TYPE) model.clone();
-        for(ModelUpdateListener<TYPE> listener : listeners) {
-            listener.onModelUpdated(modelCopy);
-        }
+        if(listeners.isEmpty())
+            return;
+        final TYPE modelCopy = (TYPE) model.clone();
+        database.runAfterCommit(new Runnable() {
+            public void run() {
+                for(ModelUpdateListener<TYPE> listener : listeners) {
+                    listener.onModelUpdated(modelCopy);
+                }
+            }
+        });
     }
 
     // --- dao methods
@@ -98,13 +116,83 @@ public class DatabaseDao<TYPE extends AbstractModel> {
      * @return
      */
     public TodorooCursor<TYPE> query(Query query) {
+        return query(compile(query));
+    }
+
+    /**
+     * Compile a query against this DAO's table. The compiled query can be
+     * run many times with different arguments through
+     * {@link #query(CompiledQuery, Object...)}
+     *
+     * @param query
+     * @return compiled query
+     */
+    public CompiledQuery compile(Query query) {
         query.from(table);
+        return query.compile();
+    }
+
+    /**
+     * Run a compiled query. Arguments are bound to the query's
+     * placeholders, so SQLite can reuse the statement it compiled the
+     * last time a query of this shape was run.
+     *
+     * @param query compiled query
+     * @param args arguments for the placeholders, or none to use the
+     *        values the query was compiled with
+     * @return cursor
+     */
+    public TodorooCursor<TYPE> query(CompiledQuery query, Object... args) {
+        if(args.length > 0)
+            query = query.bind(args);
+        String[] selectionArgs = query.getSelectionArgs();
         if(debug)
-            Log.i("SQL-" + modelClass.getSimpleName(), query.toString()); //$NON-NLS-1$
-        Cursor cursor = database.rawQuery(query.toString(), null);
+            Log.i("SQL-" + modelClass.getSimpleName(), query.getSql() + //$NON-NLS-1$
+                    (selectionArgs == null ? "" : " " + Arrays.toString(selectionArgs))); //$NON-NLS-1$ //$NON-NLS-2$
+        Cursor cursor = database.rawQuery(query.getSql(), selectionArgs);
         return new TodorooCursor<TYPE>(cursor, query.getFields());
     }
 
+    /**
+     * Count the rows returned by several queries with a single statement,
+     * without reading the rows themselves
+     *
+     * @param queries queries against this DAO's table
+     * @return number of rows returned by each query
+     */
+    @SuppressWarnings("nls")
+    public int[] count(Query... queries) {
+        int[] counts = new int[queries.length];
+        if(queries.length == 0)
+            return counts;
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        ArrayList<String> args = new ArrayList<String>();
+        for(int i = 0; i < queries.length; i++) {
+            CompiledQuery compiled = compile(queries[i]);
+            if(i > 0)
+                sql.append(", ");
+            sql.append("(SELECT COUNT(1) FROM (").append(compiled.getSql()).append("))");
+            String[] selectionArgs = compiled.getSelectionArgs();
+            if(selectionArgs != null)
+                args.addAll(Arrays.asList(selectionArgs));
+        }
+
+        String[] selectionArgs = args.isEmpty() ? null : args.toArray(new String[args.size()]);
+        if(debug)
+            Log.i("SQL-" + modelClass.getSimpleName(), sql +
+                    (selectionArgs == null ? "" : " " + Arrays.toString(selectionArgs)));
+        Cursor cursor = database.rawQuery(sql.toString(), selectionArgs);
+        try {
+            cursor.moveToFirst();
+            for(int i = 0; i < counts.length; i++)
+                counts[i] = cursor.getInt(i);
+            return counts;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Construct a query with raw SQL
      *
@@ -158,6 +246,41 @@ public class DatabaseDao<TYPE extends AbstractModel> {
         }
     }
 
+    /**
+     * Reads the deferred properties of the given items in one query. See
+     * {@link Table#getDeferredProperties()}
+     *
+     * @param ids
+     *            ids of items
+     * @return values by id, for
+     *         {@link AbstractModel#mergeWithDatabaseValues(ContentValues)}.
+     *         Null values are included. Items that don't exist are left out
+     */
+    public HashMap<Long, ContentValues> fetchDeferred(Long[] ids) {
+        HashMap<Long, ContentValues> result = new HashMap<Long, ContentValues>(ids.length);
+        Property<?>[] deferred = table.getDeferredProperties();
+        if(ids.length == 0 || deferred.length == 0)
+            return result;
+
+        Property<?>[] properties = new Property<?>[deferred.length + 1];
+        properties[0] = AbstractModel.ID_PROPERTY;
+        System.arraycopy(deferred, 0, properties, 1, deferred.length);
+
+        TodorooCursor<TYPE> cursor = query(Query.select(properties).where(
+                AbstractModel.ID_PROPERTY.in(ids)));
+        try {
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                ContentValues values = new ContentValues(deferred.length);
+                for(Property<?> property : deferred)
+                    AbstractModel.putRawValue(values, property.name, cursor.get(property));
+                result.put(cursor.getLong(0), values);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
     /**
      * Delete the given id
      *
@@ -166,8 +289,8 @@ public class DatabaseDao<TYPE extends AbstractModel> {
      * @return true if delete was successful
      */
     public boolean delete(long id) {
-        return database.delete(table.name,
-                AbstractModel.ID_PROPERTY.eq(id).toString(), null) > 0;
+        return database.delete(table.name, AbstractDatabase.ID_WHERE_CLAUSE,
+                new String[] { Long.toString(id) }) > 0;
     }
 
     /**
@@ -217,6 +340,53 @@ public class DatabaseDao<TYPE extends AbstractModel> {
         }
     }
 
+    /**
+     * Saves all of the given items in a single transaction. Listeners are
+     * notified once the transaction commits. If it is rolled back, the
+     * items are restored to the state they had before the save.
+     *
+     * @param items items to {@link #persist(AbstractModel)}
+     * @return number of items saved successfully
+     */
+    public int saveAll(final Iterable<? extends TYPE> items) {
+        final int[] saved = new int[1];
+        runInTransaction(new Runnable() {
+            public void run() {
+                for(TYPE item : items)
+                    if(persist(item))
+                        saved[0]++;
+            }
+        });
+        return saved[0];
+    }
+
+    /**
+     * Inside a transaction, puts the item back the way it is now if the
+     * transaction is rolled back, so that it does not keep an id or
+     * saved values that never made it to the database
+     */
+    @SuppressWarnings("unchecked")
+    private void restoreOnRollback(final TYPE item) {
+        if(!database.inTransaction())
+            return;
+        final TYPE snapshot = (TYPE) item.clone();
+        database.runAfterRollback(new Runnable() {
+            public void run() {
+                item.restore(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Runs the given writes in a single database transaction
+     *
+     * @see AbstractDatabase#runInTransaction(Runnable)
+     * @param writes
+     */
+    public void runInTransaction(Runnable writes) {
+        database.runInTransaction(writes);
+    }
+
     /**
      * Creates the given item.
      *
@@ -228,6 +398,7 @@ public class DatabaseDao<TYPE extends AbstractModel> {
      * @return returns true on success.
      */
     public boolean createNew(TYPE item) {
+        restoreOnRollback(item);
         item.clearValue(AbstractModel.ID_PROPERTY);
         long newRow = database.insert(table.name,
                 AbstractModel.ID_PROPERTY.name, item.getMergedValues());
@@ -254,8 +425,9 @@ public class DatabaseDao<TYPE extends AbstractModel> {
         ContentValues values = item.getSetValues();
         if(values == null || values.size() == 0) // nothing changed
             return true;
+        restoreOnRollback(item);
         boolean result = database.update(table.name, values,
-                AbstractModel.ID_PROPERTY.eq(item.getId()).toString(), null) > 0;
+                AbstractDatabase.ID_WHERE_CLAUSE, new String[] { Long.toString(item.getId()) }) > 0;
         if(result) {
             onModelUpdated(item);
             item.markSaved();
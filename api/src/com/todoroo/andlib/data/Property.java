@@ -30,6 +30,9 @@ public abstract class Property<TYPE> extends Field implements Cloneable {
     /** The database column name for this property */
     public final String name;
 
+    /** Slot index in the owning table's {@link SlotLayout}, or -1 */
+    int slotIndex = -1;
+
     /**
      * Create a property by table and column name. Uses the default property
      * expression which is derived from default table name
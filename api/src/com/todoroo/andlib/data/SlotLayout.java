@@ -0,0 +1,131 @@
+/**
+ * See the file "LICENSE" for the full license governing this code.
+ */
+package com.todoroo.andlib.data;
+
+import java.util.HashMap;
+
+import com.todoroo.andlib.data.Property.DoubleProperty;
+import com.todoroo.andlib.data.Property.IntegerProperty;
+import com.todoroo.andlib.data.Property.LongProperty;
+import com.todoroo.andlib.data.Property.StringProperty;
+
+/**
+ * SlotLayout assigns every {@link Property} of a {@link Table} a stable
+ * slot index, and every slot an index into a typed storage array. Models
+ * in slot storage mode use this to keep their values in primitive arrays
+ * instead of {@link android.content.ContentValues} maps.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public final class SlotLayout {
+
+    /** slot kind for integer and long properties, stored in a long[] */
+    public static final int KIND_LONG = 0;
+
+    /** slot kind for double properties, stored in a double[] */
+    public static final int KIND_DOUBLE = 1;
+
+    /** slot kind for string properties, stored in an Object[] */
+    public static final int KIND_OBJECT = 2;
+
+    /** slot kind for properties that can't be stored in a slot */
+    public static final int KIND_NONE = -1;
+
+    /** table this layout was built for */
+    final Table table;
+
+    /** properties, indexed by slot */
+    final Property<?>[] properties;
+
+    /** slot kinds, indexed by slot */
+    final int[] kinds;
+
+    /** offset into the typed array for each slot */
+    final int[] offsets;
+
+    /** number of slots of each kind */
+    final int longCount, doubleCount, objectCount;
+
+    /** column name to slot index */
+    private final HashMap<String, Integer> slotsByName;
+
+    SlotLayout(Table table, Property<?>[] properties) {
+        this.table = table;
+        this.properties = properties;
+        this.kinds = new int[properties.length];
+        this.offsets = new int[properties.length];
+        this.slotsByName = new HashMap<String, Integer>(properties.length * 2);
+
+        int longs = 0, doubles = 0, objects = 0;
+        for(int i = 0; i < properties.length; i++) {
+            Property<?> property = properties[i];
+            kinds[i] = kindOf(property);
+            switch(kinds[i]) {
+            case KIND_LONG:
+                offsets[i] = longs++;
+                break;
+            case KIND_DOUBLE:
+                offsets[i] = doubles++;
+                break;
+            default:
+                offsets[i] = objects++;
+            }
+            slotsByName.put(property.name, i);
+            if(property.table == table)
+                property.slotIndex = i;
+        }
+        longCount = longs;
+        doubleCount = doubles;
+        objectCount = objects;
+    }
+
+    /**
+     * @return number of slots in this layout
+     */
+    public int size() {
+        return properties.length;
+    }
+
+    /**
+     * @return slot index for the given property, or -1 if this layout has no
+     *         column with the property's name
+     */
+    public int indexOf(Property<?> property) {
+        if(property.table == table && property.slotIndex >= 0)
+            return property.slotIndex;
+        return indexOf(property.name);
+    }
+
+    /**
+     * @return slot index for the given column name, or -1 if not found
+     */
+    public int indexOf(String columnName) {
+        Integer index = slotsByName.get(columnName);
+        if(index == null)
+            return -1;
+        return index;
+    }
+
+    /**
+     * @return true if values of the given property can be kept in the slot
+     */
+    public boolean accepts(int slot, Property<?> property) {
+        return kinds[slot] == kindOf(property);
+    }
+
+    /**
+     * @return slot kind for the given property type
+     */
+    public static int kindOf(Property<?> property) {
+        if(property instanceof LongProperty || property instanceof IntegerProperty)
+            return KIND_LONG;
+        if(property instanceof StringProperty)
+            return KIND_OBJECT;
+        if(property instanceof DoubleProperty)
+            return KIND_DOUBLE;
+        return KIND_NONE;
+    }
+
+}
@@ -14,6 +14,12 @@ public final class Table extends SqlTable {
     public final String name;
     public final Class<? extends AbstractModel> modelClass;
 
+    /** Lazily built slot layout for models stored in typed slots */
+    private volatile SlotLayout slotLayout = null;
+
+    /** Lazily read list of deferred properties */
+    private volatile Property<?>[] deferredProperties = null;
+
     public Table(String name, Class<? extends AbstractModel> modelClass) {
         this(name, modelClass, null);
     }
@@ -44,6 +50,54 @@ public final class Table extends SqlTable {
         }
     }
 
+    /**
+     * Reads the group of deferred properties from the model class by
+     * reflection. These are large columns that list queries leave out and
+     * that are read separately by id, with
+     * {@link DatabaseDao#fetchDeferred(Long[])}.
+     *
+     * @return deferred properties, or an empty array if there is no model
+     *         class or it has no DEFERRED_PROPERTIES
+     */
+    @SuppressWarnings("nls")
+    public Property<?>[] getDeferredProperties() {
+        Property<?>[] properties = deferredProperties;
+        if(properties == null) {
+            try {
+                if(modelClass == null)
+                    throw new NoSuchFieldException();
+                properties = (Property<?>[])modelClass.getField("DEFERRED_PROPERTIES").get(null);
+            } catch (NoSuchFieldException e) {
+                properties = new Property<?>[0];
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException(e);
+            } catch (SecurityException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            deferredProperties = properties;
+        }
+        return properties;
+    }
+
+    /**
+     * Gets slot layout for the properties of this table, building it the
+     * first time it is requested
+     * @return slot layout
+     */
+    public SlotLayout getSlotLayout() {
+        SlotLayout layout = slotLayout;
+        if(layout == null) {
+            synchronized(this) {
+                if(slotLayout == null)
+                    slotLayout = new SlotLayout(this, getProperties());
+                layout = slotLayout;
+            }
+        }
+        return layout;
+    }
+
     // --- for sql-dsl
 
     /**
@@ -3,12 +3,17 @@
  */
 package com.todoroo.andlib.data;
 
+import java.util.IdentityHashMap;
 import java.util.WeakHashMap;
 
 import android.database.Cursor;
 import android.database.CursorWrapper;
 
+import com.todoroo.andlib.data.Property.DoubleProperty;
+import com.todoroo.andlib.data.Property.IntegerProperty;
+import com.todoroo.andlib.data.Property.LongProperty;
 import com.todoroo.andlib.data.Property.PropertyVisitor;
+import com.todoroo.andlib.data.Property.StringProperty;
 
 /**
  * AstridCursor wraps a cursor and allows users to query for individual
@@ -24,10 +29,24 @@ public class TodorooCursor<TYPE extends AbstractModel> extends CursorWrapper {
     /** Properties read by this cursor */
     private final Property<?>[] properties;
 
+    /** Column index of each property, resolved when the cursor is created.
+     * -1 if the underlying cursor has no such column */
+    private final int[] columnIndexes;
+
+    /** Position of each property in {@link #properties}, by identity */
+    private final IdentityHashMap<Property<?>, Integer> positions;
+
     /** Weakly cache field name to column id references for this cursor.
+     * Only used for properties that were not passed in at construction.
      * Because it's a weak hash map, entire keys can be discarded by GC */
     private final WeakHashMap<String, Integer> columnIndexCache;
 
+    /** Layout that {@link #slotIndexes} was computed for */
+    private SlotLayout slotLayout = null;
+
+    /** Slot index of each property in {@link #slotLayout} */
+    private int[] slotIndexes = null;
+
     /** Property reading visitor */
     private static final CursorReadingVisitor reader = new CursorReadingVisitor();
 
@@ -43,6 +62,14 @@ public class TodorooCursor<TYPE extends AbstractModel> extends CursorWrapper {
 
         this.properties = properties;
         columnIndexCache = new WeakHashMap<String, Integer>();
+
+        columnIndexes = new int[properties.length];
+        positions = new IdentityHashMap<Property<?>, Integer>(properties.length);
+        for(int i = 0; i < properties.length; i++) {
+            columnIndexes[i] = cursor.getColumnIndex(properties[i].name);
+            if(!positions.containsKey(properties[i]))
+                positions.put(properties[i], i);
+        }
     }
 
     /**
@@ -56,6 +83,42 @@ public class TodorooCursor<TYPE extends AbstractModel> extends CursorWrapper {
         return (PROPERTY_TYPE)property.accept(reader, this);
     }
 
+    /**
+     * Get the value for the given property without boxing
+     */
+    public long getLong(LongProperty property) {
+        return getLong(getColumnIndex(property));
+    }
+
+    /**
+     * Get the value for the given property without boxing
+     */
+    public int getInt(IntegerProperty property) {
+        return getInt(getColumnIndex(property));
+    }
+
+    /**
+     * Get the value for the given property without boxing
+     */
+    public double getDouble(DoubleProperty property) {
+        return getDouble(getColumnIndex(property));
+    }
+
+    /**
+     * Get the value for the given property
+     */
+    public String getString(StringProperty property) {
+        return getString(getColumnIndex(property));
+    }
+
+    /**
+     * Reads all properties of the current row into the given model,
+     * replacing any values the user has set on it
+     */
+    public void readInto(AbstractModel model) {
+        model.readPropertiesFromCursor(this);
+    }
+
     /**
      * Gets entire property list
      * @return
@@ -64,6 +127,51 @@ public class TodorooCursor<TYPE extends AbstractModel> extends CursorWrapper {
         return properties;
     }
 
+    /**
+     * Get the column index for the given property. Properties this cursor
+     * was created with are looked up in the precomputed table
+     */
+    public int getColumnIndex(Property<?> property) {
+        Integer position = positions.get(property);
+        if(position != null)
+            return getColumnIndexAt(position);
+        return getColumnIndexFromCache(property.name);
+    }
+
+    /**
+     * Get the column index of the property at the given position in
+     * {@link #getProperties()}
+     *
+     * @throws IllegalArgumentException if the column does not exist
+     */
+    public int getColumnIndexAt(int position) {
+        int index = columnIndexes[position];
+        if(index < 0)
+            throw new IllegalArgumentException("column '" + //$NON-NLS-1$
+                    properties[position].name + "' does not exist"); //$NON-NLS-1$
+        return index;
+    }
+
+    /**
+     * Get slot indexes of this cursor's properties in the given layout,
+     * computed once per layout. Properties without a slot are -1, and
+     * properties whose type doesn't match their slot are -(slot + 2)
+     */
+    synchronized int[] getSlotIndexes(SlotLayout layout) {
+        if(layout != slotLayout) {
+            int[] indexes = new int[properties.length];
+            for(int i = 0; i < properties.length; i++) {
+                int slot = layout.indexOf(properties[i]);
+                if(slot >= 0 && !layout.accepts(slot, properties[i]))
+                    slot = -(slot + 2);
+                indexes[i] = slot;
+            }
+            slotIndexes = indexes;
+            slotLayout = layout;
+        }
+        return slotIndexes;
+    }
+
     /**
      * Use cache to get the column index for the given field name
      */
@@ -87,21 +195,21 @@ public class TodorooCursor<TYPE extends AbstractModel> extends CursorWrapper {
 
         public Object visitDouble(Property<Double> property,
                 TodorooCursor<?> cursor) {
-            return cursor.getDouble(cursor.getColumnIndexFromCache(property.name));
+            return cursor.getDouble(cursor.getColumnIndex(property));
         }
 
         public Object visitInteger(Property<Integer> property,
                 TodorooCursor<?> cursor) {
-            return cursor.getInt(cursor.getColumnIndexFromCache(property.name));
+            return cursor.getInt(cursor.getColumnIndex(property));
         }
 
         public Object visitLong(Property<Long> property, TodorooCursor<?> cursor) {
-            return cursor.getLong(cursor.getColumnIndexFromCache(property.name));
+            return cursor.getLong(cursor.getColumnIndex(property));
         }
 
         public Object visitString(Property<String> property,
                 TodorooCursor<?> cursor) {
-            return cursor.getString(cursor.getColumnIndexFromCache(property.name));
+            return cursor.getString(cursor.getColumnIndex(property));
         }
 
     }
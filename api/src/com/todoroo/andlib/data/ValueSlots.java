@@ -0,0 +1,211 @@
+/**
+ * See the file "LICENSE" for the full license governing this code.
+ */
+package com.todoroo.andlib.data;
+
+import java.util.BitSet;
+
+import android.content.ContentValues;
+
+import com.todoroo.andlib.data.Property.IntegerProperty;
+
+/**
+ * ValueSlots holds one layer of model values (database-read or user-set)
+ * in typed arrays laid out by a {@link SlotLayout}. A bit set tracks which
+ * slots contain a value.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+final class ValueSlots {
+
+    final SlotLayout layout;
+
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+
+    /** slots that hold a value */
+    private final BitSet present;
+
+    ValueSlots(SlotLayout layout) {
+        this.layout = layout;
+        this.longs = new long[layout.longCount];
+        this.doubles = new double[layout.doubleCount];
+        this.objects = new Object[layout.objectCount];
+        this.present = new BitSet(layout.size());
+    }
+
+    private ValueSlots(ValueSlots other) {
+        this.layout = other.layout;
+        this.longs = other.longs.clone();
+        this.doubles = other.doubles.clone();
+        this.objects = other.objects.clone();
+        this.present = (BitSet) other.present.clone();
+    }
+
+    /** @return a deep copy of these slots */
+    ValueSlots copy() {
+        return new ValueSlots(this);
+    }
+
+    boolean contains(int slot) {
+        return present.get(slot);
+    }
+
+    boolean isEmpty() {
+        return present.isEmpty();
+    }
+
+    /** @return first slot with a value at or after the given slot, or -1 */
+    int nextSlot(int from) {
+        return present.nextSetBit(from);
+    }
+
+    long getLong(int slot) {
+        return longs[layout.offsets[slot]];
+    }
+
+    double getDouble(int slot) {
+        return doubles[layout.offsets[slot]];
+    }
+
+    Object getObject(int slot) {
+        return objects[layout.offsets[slot]];
+    }
+
+    /**
+     * Gets the value in the given slot, boxed to the type the given
+     * property expects
+     */
+    Object get(int slot, Property<?> property) {
+        switch(layout.kinds[slot]) {
+        case SlotLayout.KIND_LONG:
+            if(property instanceof IntegerProperty)
+                return Integer.valueOf((int) getLong(slot));
+            return Long.valueOf(getLong(slot));
+        case SlotLayout.KIND_DOUBLE:
+            return Double.valueOf(getDouble(slot));
+        default:
+            return getObject(slot);
+        }
+    }
+
+    void putLong(int slot, long value) {
+        longs[layout.offsets[slot]] = value;
+        present.set(slot);
+    }
+
+    void putDouble(int slot, double value) {
+        doubles[layout.offsets[slot]] = value;
+        present.set(slot);
+    }
+
+    void putObject(int slot, Object value) {
+        objects[layout.offsets[slot]] = value;
+        present.set(slot);
+    }
+
+    /**
+     * Stores a value in the given slot if its type fits the slot. Strings
+     * are parsed into numeric slots once here rather than on every read.
+     *
+     * @return true if the value was stored, false if it needs to be kept
+     *         somewhere else
+     */
+    boolean put(int slot, Object value) {
+        switch(layout.kinds[slot]) {
+        case SlotLayout.KIND_LONG:
+            if(value instanceof Long || value instanceof Integer) {
+                putLong(slot, ((Number) value).longValue());
+                return true;
+            } else if(value instanceof String) {
+                try {
+                    putLong(slot, Long.parseLong((String) value));
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return false;
+        case SlotLayout.KIND_DOUBLE:
+            if(value instanceof Number) {
+                putDouble(slot, ((Number) value).doubleValue());
+                return true;
+            } else if(value instanceof String) {
+                try {
+                    putDouble(slot, Double.parseDouble((String) value));
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return false;
+        default:
+            if(value instanceof String) {
+                putObject(slot, value);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    void remove(int slot) {
+        present.clear(slot);
+        if(layout.kinds[slot] == SlotLayout.KIND_OBJECT)
+            objects[layout.offsets[slot]] = null;
+    }
+
+    void clear() {
+        present.clear();
+        for(int i = 0; i < objects.length; i++)
+            objects[i] = null;
+    }
+
+    /**
+     * Moves all values in the other slots into these slots
+     */
+    void absorb(ValueSlots other) {
+        for(int slot = other.nextSlot(0); slot >= 0; slot = other.nextSlot(slot + 1)) {
+            switch(layout.kinds[slot]) {
+            case SlotLayout.KIND_LONG:
+                putLong(slot, other.getLong(slot));
+                break;
+            case SlotLayout.KIND_DOUBLE:
+                putDouble(slot, other.getDouble(slot));
+                break;
+            default:
+                putObject(slot, other.getObject(slot));
+            }
+        }
+    }
+
+    /**
+     * Writes the value in the given slot into a content values store
+     */
+    void copyInto(int slot, ContentValues store) {
+        Property<?> property = layout.properties[slot];
+        switch(layout.kinds[slot]) {
+        case SlotLayout.KIND_LONG:
+            if(property instanceof IntegerProperty)
+                store.put(property.name, (int) getLong(slot));
+            else
+                store.put(property.name, getLong(slot));
+            break;
+        case SlotLayout.KIND_DOUBLE:
+            store.put(property.name, getDouble(slot));
+            break;
+        default:
+            store.put(property.name, (String) getObject(slot));
+        }
+    }
+
+    /**
+     * Writes all values into a content values store
+     */
+    void copyInto(ContentValues store) {
+        for(int slot = nextSlot(0); slot >= 0; slot = nextSlot(slot + 1))
+            copyInto(slot, store);
+    }
+
+}
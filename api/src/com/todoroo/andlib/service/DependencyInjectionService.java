@@ -1,7 +1,9 @@
 package com.todoroo.andlib.service;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.todoroo.andlib.service.ExceptionService.AndroidLogReporter;
 import com.todoroo.andlib.service.ExceptionService.ErrorReporter;
@@ -16,6 +18,10 @@ import com.todoroo.andlib.service.ExceptionService.ErrorReporter;
  * <p>
  * All errors encountered are handled as warnings, so if dependency injection
  * seems to be failing, check the logs for more information.
+ * <p>
+ * The autowired fields of each class are found by reflection once and
+ * kept, so later injections only set fields. Injections themselves are
+ * resolved on every call, since injectors may change what they provide.
  *
  * @author Tim Su <tim@todoroo.com>
  *
@@ -27,6 +33,14 @@ public class DependencyInjectionService {
      */
     private final LinkedList<AbstractDependencyInjector> injectors = new LinkedList<AbstractDependencyInjector>();
 
+    /**
+     * Autowired fields of each class injected so far, in injection order
+     */
+    private final ConcurrentHashMap<Class<?>, Field[]> plans =
+        new ConcurrentHashMap<Class<?>, Field[]>();
+
+    private static final Field[] NO_FIELDS = new Field[0];
+
     /**
      * Perform dependency injection in the caller object
      *
@@ -35,11 +49,40 @@ public class DependencyInjectionService {
      */
     @SuppressWarnings("nls")
     public void inject(Object caller) {
-        // Traverse through class and all parent classes, looking for
-        // fields declared with the @Autowired annotation and using
-        // dependency injection to set them as appropriate
+        for(Field field : getPlan(caller.getClass())) {
+            try {
+                handleField(caller, field);
+            } catch (IllegalStateException e) {
+                throw new RuntimeException(String.format("Unable to set field '%s' of type '%s'",
+                        field.getName(), field.getType()), e);
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException(String.format("Unable to set field '%s' of type '%s'",
+                                field.getName(), field.getType()), e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(String.format("Unable to set field '%s' of type '%s'",
+                        field.getName(), field.getType()), e);
+            }
+        }
+    }
 
-        Class<?> cls = caller.getClass();
+    /**
+     * Returns the fields to inject for the given class. Reflection is only
+     * done the first time a class is injected.
+     */
+    private Field[] getPlan(Class<?> callerClass) {
+        Field[] plan = plans.get(callerClass);
+        if(plan == null) {
+            plan = buildPlan(callerClass);
+            plans.putIfAbsent(callerClass, plan);
+        }
+        return plan;
+    }
+
+    private Field[] buildPlan(Class<?> callerClass) {
+        // Traverse through class and all parent classes, looking for
+        // fields declared with the @Autowired annotation
+        ArrayList<Field> fields = new ArrayList<Field>();
+        Class<?> cls = callerClass;
         while(cls != null) {
             String packageName = cls.getPackage().getName();
             if(!isQualifiedPackage(packageName))
@@ -48,23 +91,15 @@ public class DependencyInjectionService {
             for(Field field : cls.getDeclaredFields()) {
                 if(field.getAnnotation(Autowired.class) != null) {
                     field.setAccessible(true);
-                    try {
-                        handleField(caller, field);
-                    } catch (IllegalStateException e) {
-                        throw new RuntimeException(String.format("Unable to set field '%s' of type '%s'",
-                                field.getName(), field.getType()), e);
-                    } catch (IllegalArgumentException e) {
-                        throw new RuntimeException(String.format("Unable to set field '%s' of type '%s'",
-                                        field.getName(), field.getType()), e);
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException(String.format("Unable to set field '%s' of type '%s'",
-                                field.getName(), field.getType()), e);
-                    }
+                    fields.add(field);
                 }
             }
 
             cls = cls.getSuperclass();
         }
+        if(fields.isEmpty())
+            return NO_FIELDS;
+        return fields.toArray(new Field[fields.size()]);
     }
 
     @SuppressWarnings("nls")
@@ -80,7 +115,8 @@ public class DependencyInjectionService {
 
     /**
      * This method returns the appropriate dependency object based on the type
-     * that this autowired field accepts
+     * that this autowired field accepts. Injectors are consulted under a
+     * lock, so each class they instantiate is only created once.
      *
      * @param caller
      *            calling object
@@ -88,7 +124,7 @@ public class DependencyInjectionService {
      *            field to inject
      */
     @SuppressWarnings("nls")
-    private synchronized void handleField(Object caller, Field field)
+    private void handleField(Object caller, Field field)
             throws IllegalStateException, IllegalArgumentException,
             IllegalAccessException {
 
@@ -102,11 +138,13 @@ public class DependencyInjectionService {
             return;
         }
 
-        for (AbstractDependencyInjector injector : injectors) {
-            Object injection = injector.getInjection(caller, field);
-            if (injection != null) {
-                field.set(caller, injection);
-                return;
+        synchronized(this) {
+            for (AbstractDependencyInjector injector : injectors) {
+                Object injection = injector.getInjection(caller, field);
+                if (injection != null) {
+                    field.set(caller, injection);
+                    return;
+                }
             }
         }
 
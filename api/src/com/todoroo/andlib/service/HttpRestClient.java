@@ -1,29 +1,36 @@
 package com.todoroo.andlib.service;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.ref.WeakReference;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.params.ConnManagerPNames;
 import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
 
 import android.util.Log;
 
@@ -33,6 +40,10 @@ import android.util.Log;
  * Portions by Praeda:
  * http://senior.ceng.metu.edu.tr/2009/praeda/2009/01/11/a-simple
  * -restful-client-at-android/
+ * <p>
+ * All instances share one pooled client, so connections are kept alive
+ * between requests and requests may run concurrently. Responses are
+ * requested gzip-compressed and decompressed transparently.
  *
  * @author Tim Su <tim@todoroo.com>
  *
@@ -45,10 +56,16 @@ public class HttpRestClient implements RestClient {
 
     private static final int TIMEOUT_MILLIS = 60000;
 
-    private WeakReference<HttpClient> httpClient = null;
+    private static final int MAX_CONNECTIONS = 30;
+
+    private static final String GZIP = "gzip"; //$NON-NLS-1$
+
+    /** client shared by all instances, so its connection pool is kept */
+    private static HttpClient httpClient = null;
 
     protected boolean debug = false;
     private int timeout = TIMEOUT_MILLIS;
+    private boolean compressRequests = false;
 
     public HttpRestClient() {
         DependencyInjectionService.getInstance().inject(this);
@@ -59,79 +76,142 @@ public class HttpRestClient implements RestClient {
         this.timeout = timeout;
     }
 
-    private static String convertStreamToString(InputStream is) {
-        /*
-         * To convert the InputStream to String we use the
-         * BufferedReader.readLine() method. We iterate until the BufferedReader
-         * return null which means there's no more data to read. Each line will
-         * appended to a StringBuilder and returned as String.
+    /**
+     * Reads the body of a response as it arrives
+     *
+     * @param <TYPE> type read from the response
+     */
+    public interface ResponseReader<TYPE> {
+        /**
+         * @param reader decoded response body. It is closed by the client
+         * @param contentLength length of the body in bytes, or a negative
+         *        number if unknown
          */
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is), 16384);
-        StringBuilder sb = new StringBuilder();
+        public TYPE read(Reader reader, long contentLength) throws IOException;
+    }
 
-        String line = null;
-        try {
-            while ((line = reader.readLine()) != null) {
-                sb.append(line + "\n"); //$NON-NLS-1$
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /** Reads the response into a string */
+    private static final ResponseReader<String> STRING_READER = new ResponseReader<String>() {
+        public String read(Reader reader, long contentLength) throws IOException {
+            StringBuilder sb = new StringBuilder(contentLength > 0 &&
+                    contentLength < Integer.MAX_VALUE ? (int)contentLength : 16384);
+            char[] buffer = new char[8192];
+            int read;
+            while((read = reader.read(buffer)) != -1)
+                sb.append(buffer, 0, read);
+            return sb.toString();
         }
+    };
 
-        return sb.toString();
+    /**
+     * Whether posted data should be sent gzip-compressed. The server must
+     * accept compressed request bodies.
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
     }
 
     @SuppressWarnings("nls")
-    private synchronized HttpClient getClient() {
-        if (httpClient == null || httpClient.get() == null) {
+    private static synchronized HttpClient getClient() {
+        if (httpClient == null) {
             SchemeRegistry schemeRegistry = new SchemeRegistry();
             schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
             schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
 
             HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, timeout);
-            HttpConnectionParams.setSoTimeout(params, timeout);
-            params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 30);
-            params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(30));
+            HttpConnectionParams.setConnectionTimeout(params, TIMEOUT_MILLIS);
+            HttpConnectionParams.setSoTimeout(params, TIMEOUT_MILLIS);
+            params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, MAX_CONNECTIONS);
+            params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(MAX_CONNECTIONS));
             params.setParameter(HttpProtocolParams.USE_EXPECT_CONTINUE, false);
             HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
 
             ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
-            HttpClient client = new DefaultHttpClient(cm, params);
-            httpClient = new WeakReference<HttpClient>(client);
-            return client;
-        } else {
-            return httpClient.get();
+            httpClient = new DefaultHttpClient(cm, params);
         }
+        return httpClient;
     }
 
-    private String processHttpResponse(HttpResponse response) throws IOException {
-        int statusCode = response.getStatusLine().getStatusCode();
-        if(statusCode >= HTTP_UNAVAILABLE_START && statusCode <= HTTP_UNAVAILABLE_END) {
-            throw new HttpUnavailableException();
-        } else if(statusCode != HTTP_OK) {
-            throw new HttpErrorException(response.getStatusLine().getStatusCode(),
-                    response.getStatusLine().getReasonPhrase());
-        }
+    /**
+     * Execute the request and hand its response body to the reader. The
+     * connection is released back to the pool once the body is read.
+     */
+    private <TYPE> TYPE execute(HttpRequestBase request, ResponseReader<TYPE> responseReader)
+            throws IOException {
+        HttpConnectionParams.setConnectionTimeout(request.getParams(), timeout);
+        HttpConnectionParams.setSoTimeout(request.getParams(), timeout);
+        request.addHeader("Accept-Encoding", GZIP); //$NON-NLS-1$
 
-        HttpEntity entity = response.getEntity();
+        try {
+            HttpResponse response = getClient().execute(request);
+            HttpEntity entity = response.getEntity();
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode != HTTP_OK) {
+                // release the connection before failing
+                if(entity != null)
+                    entity.consumeContent();
+                if(statusCode >= HTTP_UNAVAILABLE_START && statusCode <= HTTP_UNAVAILABLE_END)
+                    throw new HttpUnavailableException();
+                throw new HttpErrorException(response.getStatusLine().getStatusCode(),
+                        response.getStatusLine().getReasonPhrase());
+            }
+
+            if(entity == null)
+                return null;
 
-        if (entity != null) {
             InputStream contentStream = entity.getContent();
+            long contentLength = entity.getContentLength();
+            Header encoding = entity.getContentEncoding();
+            if(encoding != null && GZIP.equalsIgnoreCase(encoding.getValue())) {
+                contentStream = new GZIPInputStream(contentStream);
+                contentLength = -1;
+            }
+            Reader reader = new InputStreamReader(contentStream, charsetOf(entity));
             try {
-                return convertStreamToString(contentStream);
+                return responseReader.read(reader, contentLength);
             } finally {
-                contentStream.close();
+                reader.close();
+            }
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (Exception e) {
+            request.abort();
+            IOException ioException = new IOException(e.getMessage());
+            ioException.initCause(e);
+            throw ioException;
+        }
+    }
+
+    @SuppressWarnings("nls")
+    private static String charsetOf(HttpEntity entity) {
+        Header contentType = entity.getContentType();
+        if(contentType != null) {
+            for(String part : contentType.getValue().split(";")) {
+                part = part.trim();
+                if(part.toLowerCase().startsWith("charset=")) {
+                    String charset = part.substring("charset=".length()).replace("\"", "");
+                    if(Charset.isSupported(charset))
+                        return charset;
+                }
             }
         }
+        return HTTP.UTF_8;
+    }
 
-        return null;
+    private static HttpEntity compress(HttpEntity data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        try {
+            data.writeTo(gzip);
+        } finally {
+            gzip.close();
+        }
+        ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+        compressed.setContentType(data.getContentType());
+        compressed.setContentEncoding(GZIP);
+        return compressed;
     }
 
     /**
@@ -141,22 +221,24 @@ public class HttpRestClient implements RestClient {
      * @return response, or null if there was no response
      * @throws IOException
      */
-    public synchronized String get(String url) throws IOException {
+    public String get(String url) throws IOException {
+        return get(url, STRING_READER);
+    }
+
+    /**
+     * Issue an HTTP GET for the given URL, handing the response body to
+     * the given reader as it arrives
+     *
+     * @param url url with url-encoded params
+     * @param responseReader
+     * @return what the reader read, or null if there was no response
+     * @throws IOException
+     */
+    public <TYPE> TYPE get(String url, ResponseReader<TYPE> responseReader) throws IOException {
         if(debug)
             Log.d("http-rest-client-get", url); //$NON-NLS-1$
 
-        try {
-            HttpGet httpGet = new HttpGet(url);
-            HttpResponse response = getClient().execute(httpGet);
-
-            return processHttpResponse(response);
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            IOException ioException = new IOException(e.getMessage());
-            ioException.initCause(e);
-            throw ioException;
-        }
+        return execute(new HttpGet(url), responseReader);
     }
 
     /**
@@ -167,23 +249,30 @@ public class HttpRestClient implements RestClient {
      *            url-encoded data
      * @throws IOException
      */
-    public synchronized String post(String url, HttpEntity data) throws IOException {
+    public String post(String url, HttpEntity data) throws IOException {
+        return post(url, data, STRING_READER);
+    }
+
+    /**
+     * Issue an HTTP POST for the given URL, handing the response body to
+     * the given reader as it arrives
+     *
+     * @param url
+     * @param data
+     *            url-encoded data
+     * @param responseReader
+     * @throws IOException
+     */
+    public <TYPE> TYPE post(String url, HttpEntity data, ResponseReader<TYPE> responseReader)
+            throws IOException {
         if(debug)
             Log.d("http-rest-client-post", url + " | " + data); //$NON-NLS-1$ //$NON-NLS-2$
 
-        try {
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setEntity(data);
-            HttpResponse response = getClient().execute(httpPost);
-
-            return processHttpResponse(response);
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            IOException ioException = new IOException(e.getMessage());
-            ioException.initCause(e);
-            throw ioException;
-        }
+        HttpPost httpPost = new HttpPost(url);
+        if(compressRequests && data != null && data.getContentEncoding() == null)
+            data = compress(data);
+        httpPost.setEntity(data);
+        return execute(httpPost, responseReader);
     }
 
 }
@@ -0,0 +1,97 @@
+package com.todoroo.andlib.sql;
+
+import java.util.Arrays;
+
+import com.todoroo.andlib.data.Property;
+
+/**
+ * An immutable, rendered {@link Query}. Literal values are replaced with
+ * '?' placeholders, so queries of the same shape have the same SQL text
+ * and SQLite can reuse its compiled statement for them. Use
+ * {@link #bind(Object...)} to run the same shape with other values.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public final class CompiledQuery {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final String sql;
+    private final Object[] args;
+    private final Property<?>[] fields;
+
+    CompiledQuery(String sql, Object[] args, Property<?>[] fields) {
+        this.sql = sql;
+        this.args = args.length == 0 ? NO_ARGS : args;
+        this.fields = fields;
+    }
+
+    /**
+     * @return SQL with '?' placeholders
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return number of placeholders in this query
+     */
+    public int getArgCount() {
+        return args.length;
+    }
+
+    /**
+     * @return fields returned by this query
+     */
+    public Property<?>[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Create a query with the same SQL but different arguments
+     *
+     * @param newArgs one argument for every placeholder
+     * @return compiled query
+     */
+    @SuppressWarnings("nls")
+    public CompiledQuery bind(Object... newArgs) {
+        if(newArgs.length != args.length)
+            throw new IllegalArgumentException("Expected " + args.length +
+                    " arguments, got " + newArgs.length + " for " + sql);
+        return new CompiledQuery(sql, newArgs.clone(), fields);
+    }
+
+    /**
+     * @return arguments as strings for SQLite, or null if there are none
+     */
+    public String[] getSelectionArgs() {
+        if(args.length == 0)
+            return null;
+        String[] selectionArgs = new String[args.length];
+        for(int i = 0; i < args.length; i++)
+            selectionArgs[i] = args[i] == null ? null : args[i].toString();
+        return selectionArgs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof CompiledQuery))
+            return false;
+        CompiledQuery other = (CompiledQuery) o;
+        return sql.equals(other.sql) && Arrays.equals(args, other.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return sql.hashCode() ^ Arrays.hashCode(args);
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+}
@@ -8,6 +8,8 @@ import static com.todoroo.andlib.sql.SqlConstants.OR;
 import static com.todoroo.andlib.sql.SqlConstants.RIGHT_PARENTHESIS;
 import static com.todoroo.andlib.sql.SqlConstants.SPACE;
 
+import java.util.ArrayList;
+
 public abstract class Criterion {
     protected final Operator operator;
 
@@ -34,9 +36,15 @@ public abstract class Criterion {
 
             @Override
             protected void populate(StringBuilder sb) {
-                sb.append(criterion);
+                populate(sb, null);
+            }
+
+            @Override
+            protected void populate(StringBuilder sb, ArrayList<Object> args) {
+                criterion.appendTo(sb, args);
                 for (Criterion c : criterions) {
-                    sb.append(SPACE).append(AND).append(SPACE).append(c);
+                    sb.append(SPACE).append(AND).append(SPACE);
+                    c.appendTo(sb, args);
                 }
             }
         };
@@ -47,9 +55,15 @@ public abstract class Criterion {
 
             @Override
             protected void populate(StringBuilder sb) {
-                sb.append(criterion);
+                populate(sb, null);
+            }
+
+            @Override
+            protected void populate(StringBuilder sb, ArrayList<Object> args) {
+                criterion.appendTo(sb, args);
                 for (Criterion c : criterions) {
-                    sb.append(SPACE).append(OR).append(SPACE).append(c.toString());
+                    sb.append(SPACE).append(OR).append(SPACE);
+                    c.appendTo(sb, args);
                 }
             }
         };
@@ -70,14 +84,39 @@ public abstract class Criterion {
 
             @Override
             protected void populate(StringBuilder sb) {
+                populate(sb, null);
+            }
+
+            @Override
+            protected void populate(StringBuilder sb, ArrayList<Object> args) {
                 sb.append(NOT).append(SPACE);
-                criterion.populate(sb);
+                criterion.populate(sb, args);
             }
         };
     }
 
     protected abstract void populate(StringBuilder sb);
 
+    /**
+     * Populate SQL, replacing literal values with '?' and adding them to
+     * args where that doesn't change the meaning of the query. Criteria
+     * that don't override this inline their values
+     *
+     * @param args bound arguments, or null to inline all values
+     */
+    protected void populate(StringBuilder sb, ArrayList<Object> args) {
+        populate(sb);
+    }
+
+    /**
+     * Append this criterion in parentheses, binding values into args
+     */
+    void appendTo(StringBuilder sb, ArrayList<Object> args) {
+        sb.append(LEFT_PARENTHESIS);
+        populate(sb, args);
+        sb.append(RIGHT_PARENTHESIS);
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder(LEFT_PARENTHESIS);
@@ -85,6 +85,17 @@ public class Field extends DBObject<Field> {
         return UnaryCriterion.like(this, value, escape);
     }
 
+    /**
+     * Adds the criterion that the field, a full-text table or one of its
+     * columns, must match the given full-text query
+     *
+     * @param query SQLite full-text query
+     * @return the criterion
+     */
+    public Criterion match(String query) {
+        return UnaryCriterion.match(this, query);
+    }
+
     public <T> Criterion in(final T[] value) {
         final Field field = this;
         return new Criterion(Operator.in) {
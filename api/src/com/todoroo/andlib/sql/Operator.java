@@ -23,6 +23,7 @@ public final class Operator {
     public static final Operator exists = new Operator("EXISTS");
     public static final Operator like = new Operator("LIKE");
     public static final Operator in = new Operator("IN");
+    public static final Operator match = new Operator("MATCH");
 
     private static final Map<Operator, Operator> contraryRegistry = new HashMap<Operator, Operator>();
 
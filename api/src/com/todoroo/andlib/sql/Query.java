@@ -30,6 +30,7 @@ public final class Query {
 
     private SqlTable table;
     private String queryTemplate = null;
+    private Object[] templateArgs = NO_ARGS;
     private final ArrayList<Criterion> criterions = new ArrayList<Criterion>();
     private final ArrayList<Field> fields = new ArrayList<Field>();
     private final ArrayList<Join> joins = new ArrayList<Join>();
@@ -39,6 +40,14 @@ public final class Query {
     private int limits = -1;
     private boolean distinct = false;
 
+    /** rendered SQL, cleared when the query changes */
+    private String sql = null;
+
+    /** compiled query, cleared when the query changes */
+    private CompiledQuery compiled = null;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
     private Query(Field... fields) {
         this.fields.addAll(asList(fields));
     }
@@ -54,37 +63,46 @@ public final class Query {
     }
 
     public Query from(SqlTable fromTable) {
+        if(fromTable == table)
+            return this;
         this.table = fromTable;
+        invalidate();
         return this;
     }
 
     public Query join(Join... join) {
         joins.addAll(asList(join));
+        invalidate();
         return this;
     }
 
     public Query where(Criterion criterion) {
         criterions.add(criterion);
+        invalidate();
         return this;
     }
 
     public Query groupBy(Field... groupBy) {
         groupBies.addAll(asList(groupBy));
+        invalidate();
         return this;
     }
 
     public Query orderBy(Order... order) {
         orders.addAll(asList(order));
+        invalidate();
         return this;
     }
 
     public Query limit(int limit) {
         limits = limit;
+        invalidate();
         return this;
     }
 
     public Query appendSelectFields(Property<?>... selectFields) {
         this.fields.addAll(asList(selectFields));
+        invalidate();
         return this;
     }
 
@@ -100,21 +118,52 @@ public final class Query {
 
     @Override
     public String toString() {
+        if(sql == null)
+            sql = render(null);
+        return sql;
+    }
+
+    /**
+     * Render this query with literal values replaced by '?' placeholders.
+     * The result is kept until the query is changed, so queries that are
+     * built once and run many times are only rendered once.
+     *
+     * @return compiled query
+     */
+    public CompiledQuery compile() {
+        if(compiled == null) {
+            ArrayList<Object> args = new ArrayList<Object>();
+            String compiledSql = render(args);
+            compiled = new CompiledQuery(compiledSql, args.toArray(), getFields());
+        }
+        return compiled;
+    }
+
+    private void invalidate() {
+        sql = null;
+        compiled = null;
+    }
+
+    private String render(ArrayList<Object> args) {
         StringBuilder sql = new StringBuilder();
         visitSelectClause(sql);
         visitFromClause(sql);
 
         visitJoinClause(sql);
         if(queryTemplate == null) {
-            visitWhereClause(sql);
-            visitGroupByClause(sql);
+            visitWhereClause(sql, args);
+            visitGroupByClause(sql, args);
             visitOrderByClause(sql);
             visitLimitClause(sql);
         } else {
             if(groupBies.size() > 0 || orders.size() > 0 ||
                     havings.size() > 0)
                 throw new IllegalStateException("Can't have extras AND query template"); //$NON-NLS-1$
-            sql.append(queryTemplate);
+            if(args != null) {
+                sql.append(queryTemplate);
+                args.addAll(asList(templateArgs));
+            } else
+                sql.append(getInlinedTemplate());
         }
 
         return sql.toString();
@@ -132,7 +181,7 @@ public final class Query {
     }
 
     @SuppressWarnings("nls")
-    private void visitGroupByClause(StringBuilder sql) {
+    private void visitGroupByClause(StringBuilder sql, ArrayList<Object> args) {
         if (groupBies.isEmpty()) {
             return;
         }
@@ -146,18 +195,22 @@ public final class Query {
         }
         sql.append("HAVING");
         for (Criterion havingCriterion : havings) {
-            sql.append(SPACE).append(havingCriterion).append(COMMA);
+            sql.append(SPACE);
+            havingCriterion.appendTo(sql, args);
+            sql.append(COMMA);
         }
         sql.deleteCharAt(sql.length() - 1).append(SPACE);
     }
 
-    private void visitWhereClause(StringBuilder sql) {
+    private void visitWhereClause(StringBuilder sql, ArrayList<Object> args) {
         if (criterions.isEmpty()) {
             return;
         }
         sql.append(WHERE);
         for (Criterion criterion : criterions) {
-            sql.append(SPACE).append(criterion).append(SPACE);
+            sql.append(SPACE);
+            criterion.appendTo(sql, args);
+            sql.append(SPACE);
         }
     }
 
@@ -199,6 +252,7 @@ public final class Query {
 
     public Query having(Criterion criterion) {
         this.havings.add(criterion);
+        invalidate();
         return this;
     }
 
@@ -216,10 +270,49 @@ public final class Query {
      * @return query
      */
     public Query withQueryTemplate(String template) {
+        return withQueryTemplate(template, NO_ARGS);
+    }
+
+    /**
+     * Add an SQL query template with '?' arguments (comes after the "from")
+     * @param template
+     * @param args one value for each '?' in the template
+     * @return query
+     */
+    public Query withQueryTemplate(String template, Object... args) {
         queryTemplate = template;
+        templateArgs = args;
+        invalidate();
         return this;
     }
 
+    /**
+     * @return query template with its arguments written out as literals
+     */
+    @SuppressWarnings("nls")
+    private String getInlinedTemplate() {
+        if(templateArgs.length == 0)
+            return queryTemplate;
+        StringBuilder sql = new StringBuilder(queryTemplate.length());
+        boolean inQuotes = false;
+        int arg = 0;
+        for(int i = 0; i < queryTemplate.length(); i++) {
+            char c = queryTemplate.charAt(i);
+            if(c == '\'')
+                inQuotes = !inQuotes;
+            if(c != '?' || inQuotes || arg >= templateArgs.length) {
+                sql.append(c);
+                continue;
+            }
+            Object value = templateArgs[arg++];
+            if(value instanceof String)
+                sql.append('\'').append(UnaryCriterion.sanitize((String) value)).append('\'');
+            else
+                sql.append(value);
+        }
+        return sql.toString();
+    }
+
     /**
      * Parse out properties and run query
      * @param cr
@@ -240,7 +333,7 @@ public final class Query {
         StringBuilder selectionClause = new StringBuilder();
         StringBuilder orderClause = new StringBuilder();
         if(queryTemplate != null) {
-            QueryTemplateHelper.queryForContentResolver(queryTemplate,
+            QueryTemplateHelper.queryForContentResolver(getInlinedTemplate(),
                     selectionClause, orderClause, groupByClause);
         } else {
             if(groupBies.size() > 0) {
@@ -2,6 +2,10 @@ package com.todoroo.andlib.sql;
 
 import static com.todoroo.andlib.sql.SqlConstants.SPACE;
 
+import java.util.ArrayList;
+
+import com.todoroo.andlib.data.Property;
+
 public class UnaryCriterion extends Criterion {
     protected final Field expression;
     protected final Object value;
@@ -14,9 +18,35 @@ public class UnaryCriterion extends Criterion {
 
     @Override
     protected void populate(StringBuilder sb) {
+        populate(sb, null);
+    }
+
+    @Override
+    protected void populate(StringBuilder sb, ArrayList<Object> args) {
         beforePopulateOperator(sb);
         populateOperator(sb);
-        afterPopulateOperator(sb);
+        if(args != null && canBindValue()) {
+            sb.append('?');
+            args.add(value);
+        } else
+            afterPopulateOperator(sb);
+        afterPopulateValue(sb);
+    }
+
+    /**
+     * Bound arguments are passed to SQLite as strings. Strings are always
+     * safe to bind, but numbers only compare correctly against a column,
+     * whose affinity converts the argument back into a number.
+     *
+     * @return true if value can be replaced by a '?' argument
+     */
+    protected boolean canBindValue() {
+        if(value instanceof String)
+            return true;
+        if(value instanceof Long || value instanceof Integer || value instanceof Double)
+            return expression instanceof Property<?> &&
+                ((Property<?>) expression).table != null;
+        return false;
     }
 
     public static Criterion eq(Field expression, Object value) {
@@ -41,6 +71,13 @@ public class UnaryCriterion extends Criterion {
             sb.append(value);
     }
 
+    /**
+     * Called after the value has been populated, inlined or bound
+     */
+    protected void afterPopulateValue(StringBuilder sb) {
+        // nothing by default
+    }
+
     /**
      * Sanitize the given input for SQL
      * @param input
@@ -94,6 +131,15 @@ public class UnaryCriterion extends Criterion {
         };
     }
 
+    public static Criterion match(Field field, String value) {
+        return new UnaryCriterion(field, Operator.match, value) {
+            @Override
+            protected void populateOperator(StringBuilder sb) {
+                sb.append(SPACE).append(operator).append(SPACE);
+            }
+        };
+    }
+
     public static Criterion like(Field field, String value, final String escape) {
         return new UnaryCriterion(field, Operator.like, value) {
             @Override
@@ -102,8 +148,7 @@ public class UnaryCriterion extends Criterion {
             }
             @SuppressWarnings("nls")
             @Override
-            protected void afterPopulateOperator(StringBuilder sb) {
-                super.afterPopulateOperator(sb);
+            protected void afterPopulateValue(StringBuilder sb) {
                 sb.append(SPACE).append("ESCAPE").append(" '").append(sanitize(escape)).append("'");
             }
         };
@@ -5,7 +5,9 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import android.app.Activity;
@@ -38,9 +40,20 @@ import com.todoroo.astrid.api.R;
 
 public class ImageLoader {
 
-    // the simplest in-memory cache implementation. This should be replaced with
-    // something like SoftReference or BitmapOptions.inPurgeable(since 1.6)
-    private final HashMap<String, Uri> cache = new HashMap<String, Uri>();
+    /** maximum number of urls remembered in memory */
+    private static final int MAX_CACHED_URIS = 100;
+
+    // least recently used urls are dropped. The images stay in the cache
+    // directory, so they are found again without a download
+    private final Map<String, Uri> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, Uri>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Uri> eldest) {
+            return size() > MAX_CACHED_URIS;
+        }
+    });
 
     private File cacheDir;
 
@@ -64,8 +77,9 @@ public class ImageLoader {
     final int stub_id = R.drawable.image_placeholder;
 
     public void displayImage(String url, ImageView imageView) {
-        if (cache.containsKey(url))
-            imageView.setImageURI(cache.get(url));
+        Uri uri = cache.get(url);
+        if (uri != null)
+            imageView.setImageURI(uri);
         else {
             queuePhoto(url, imageView);
             imageView.setImageResource(stub_id);
@@ -89,8 +103,7 @@ public class ImageLoader {
 
     private Uri getUri(String url) {
         if(!TextUtils.isEmpty(url) && url.contains("://")) { //$NON-NLS-1$
-            // identify images by hashcode. Not a perfect solution.
-            String filename = String.valueOf(url.hashCode());
+            String filename = AndroidUtilities.md5(url);
             File f = new File(cacheDir, filename);
 
             // from SD cache
@@ -169,7 +182,8 @@ public class ImageLoader {
                             photoToLoad = photosQueue.photosToLoad.pop();
                         }
                         Uri bmp = getUri(photoToLoad.url);
-                        cache.put(photoToLoad.url, bmp);
+                        if(bmp != null)
+                            cache.put(photoToLoad.url, bmp);
                         if (((String) photoToLoad.imageView.getTag()).equals(photoToLoad.url)) {
                             UriDisplayer bd = new UriDisplayer(bmp,
                                     photoToLoad.imageView);
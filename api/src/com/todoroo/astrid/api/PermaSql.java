@@ -3,7 +3,10 @@
  */
 package com.todoroo.astrid.api;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.todoroo.andlib.utility.DateUtilities;
 
@@ -40,26 +43,204 @@ public final class PermaSql {
     /** value to be replaced by approximate end of day next month as long */
     public static final String VALUE_EOD_NEXT_MONTH = "EODM()"; //$NON-NLS-1$
 
+    /** placeholders, in the order of their slot numbers */
+    private static final String[] PLACEHOLDERS = new String[] {
+        VALUE_NOW, VALUE_EOD, VALUE_EOD_YESTERDAY, VALUE_EOD_TOMORROW,
+        VALUE_EOD_DAY_AFTER, VALUE_EOD_NEXT_WEEK, VALUE_EOD_NEXT_MONTH
+    };
+
+    private static final int SLOT_NOW = 0;
+    private static final int SLOT_EOD = 1;
+    private static final int SLOT_EOD_YESTERDAY = 2;
+    private static final int SLOT_EOD_TOMORROW = 3;
+    private static final int SLOT_EOD_DAY_AFTER = 4;
+    private static final int SLOT_EOD_NEXT_WEEK = 5;
+    private static final int SLOT_EOD_NEXT_MONTH = 6;
+
+    /** bound placeholders are cast, since SQLite receives arguments as text */
+    private static final String BOUND_SLOT = "CAST(? AS INTEGER)"; //$NON-NLS-1$
+
+    /** number of parsed templates to keep */
+    private static final int CACHE_SIZE = 64;
+
+    private static final LinkedHashMap<String, Template> templates =
+        new LinkedHashMap<String, Template>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * A string parsed into text fragments and placeholder slots. Parsing
+     * happens once per string, so filling in the placeholders takes a
+     * single pass over the fragments.
+     */
+    public static final class Template {
+
+        /** text between placeholders, one more than there are slots */
+        private final String[] fragments;
+
+        /** placeholder in each slot */
+        private final int[] slots;
+
+        /** whether each slot is inside a quoted SQL string */
+        private final boolean[] quoted;
+
+        /** SQL with a '?' argument for each unquoted placeholder */
+        private final String sql;
+
+        private final int argCount;
+
+        private Template(String value) {
+            ArrayList<String> fragmentList = new ArrayList<String>();
+            ArrayList<Integer> slotList = new ArrayList<Integer>();
+            ArrayList<Boolean> quotedList = new ArrayList<Boolean>();
+            boolean inQuotes = false;
+            int fragmentStart = 0;
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if(c == '\'')
+                    inQuotes = !inQuotes;
+                else if(c == 'N' || c == 'E') {
+                    int slot = placeholderAt(value, i);
+                    if(slot == -1)
+                        continue;
+                    fragmentList.add(value.substring(fragmentStart, i));
+                    slotList.add(slot);
+                    quotedList.add(inQuotes);
+                    i += PLACEHOLDERS[slot].length() - 1;
+                    fragmentStart = i + 1;
+                }
+            }
+            fragmentList.add(value.substring(fragmentStart));
+
+            fragments = fragmentList.toArray(new String[fragmentList.size()]);
+            slots = new int[slotList.size()];
+            quoted = new boolean[slotList.size()];
+            int args = 0;
+            StringBuilder builder = new StringBuilder(value.length());
+            for(int i = 0; i < slots.length; i++) {
+                slots[i] = slotList.get(i);
+                quoted[i] = quotedList.get(i);
+                builder.append(fragments[i]);
+                if(quoted[i])
+                    builder.append(PLACEHOLDERS[slots[i]]);
+                else {
+                    builder.append(BOUND_SLOT);
+                    args++;
+                }
+            }
+            builder.append(fragments[fragments.length - 1]);
+            sql = builder.toString();
+            argCount = args;
+        }
+
+        /**
+         * @return true if the template has placeholders, so its meaning
+         *         changes with the current time
+         */
+        public boolean isTimeDependent() {
+            return slots.length > 0;
+        }
+
+        /**
+         * @return SQL with an argument for each placeholder. It is the same
+         *         every time, so SQLite can reuse its compiled statement.
+         *         Placeholders inside quoted strings can't be arguments, so
+         *         they are filled in with their current values.
+         */
+        public String getSql() {
+            if(argCount == slots.length)
+                return sql;
+            // quoted placeholders can't be bound
+            long[] values = computeValues();
+            StringBuilder builder = new StringBuilder(sql.length());
+            for(int i = 0; i < slots.length; i++) {
+                builder.append(fragments[i]);
+                if(quoted[i])
+                    builder.append(values[slots[i]]);
+                else
+                    builder.append(BOUND_SLOT);
+            }
+            return builder.append(fragments[fragments.length - 1]).toString();
+        }
+
+        /**
+         * @return current values of the placeholders in {@link #getSql()}
+         */
+        public Object[] bindArgs() {
+            long[] values = computeValues();
+            Object[] args = new Object[argCount];
+            for(int i = 0, arg = 0; i < slots.length; i++)
+                if(!quoted[i])
+                    args[arg++] = values[slots[i]];
+            return args;
+        }
+
+        /**
+         * @return the template with its placeholders replaced by their
+         *         current values
+         */
+        public String replace() {
+            if(slots.length == 0)
+                return fragments[0];
+            long[] values = computeValues();
+            StringBuilder builder = new StringBuilder(sql.length());
+            for(int i = 0; i < slots.length; i++)
+                builder.append(fragments[i]).append(values[slots[i]]);
+            return builder.append(fragments[fragments.length - 1]).toString();
+        }
+    }
+
+    /** @return slot of the placeholder starting at the given index, or -1 */
+    private static int placeholderAt(String value, int index) {
+        for(int slot = 0; slot < PLACEHOLDERS.length; slot++)
+            if(value.startsWith(PLACEHOLDERS[slot], index))
+                return slot;
+        return -1;
+    }
+
+    /** @return current value of each placeholder, by slot */
+    @SuppressWarnings("deprecation")
+    private static long[] computeValues() {
+        long[] values = new long[PLACEHOLDERS.length];
+        values[SLOT_NOW] = DateUtilities.now();
+
+        Date date = new Date();
+        date.setHours(23);
+        date.setMinutes(59);
+        date.setSeconds(59);
+        long time = date.getTime() / 1000l * 1000l; // chop milliseconds off
+        values[SLOT_EOD] = time;
+        values[SLOT_EOD_YESTERDAY] = time - DateUtilities.ONE_DAY;
+        values[SLOT_EOD_TOMORROW] = time + DateUtilities.ONE_DAY;
+        values[SLOT_EOD_DAY_AFTER] = time + 2 * DateUtilities.ONE_DAY;
+        values[SLOT_EOD_NEXT_WEEK] = time + 7 * DateUtilities.ONE_DAY;
+        values[SLOT_EOD_NEXT_MONTH] = time + 30 * DateUtilities.ONE_DAY;
+        return values;
+    }
+
+    /**
+     * Parse the given string into a template, or return the template it
+     * was parsed into before
+     */
+    public static Template compile(String value) {
+        synchronized(templates) {
+            Template template = templates.get(value);
+            if(template == null) {
+                template = new Template(value);
+                templates.put(value, template);
+            }
+            return template;
+        }
+    }
+
     /** Replace placeholder strings with actual */
     public static String replacePlaceholders(String value) {
-        if(value.contains(VALUE_NOW))
-            value = value.replace(VALUE_NOW, Long.toString(DateUtilities.now()));
-        if(value.contains(VALUE_EOD) || value.contains(VALUE_EOD_DAY_AFTER) ||
-                value.contains(VALUE_EOD_NEXT_WEEK) || value.contains(VALUE_EOD_TOMORROW) ||
-                value.contains(VALUE_EOD_YESTERDAY) || value.contains(VALUE_EOD_NEXT_MONTH)) {
-            Date date = new Date();
-            date.setHours(23);
-            date.setMinutes(59);
-            date.setSeconds(59);
-            long time = date.getTime() / 1000l * 1000l; // chop milliseconds off
-            value = value.replace(VALUE_EOD_YESTERDAY, Long.toString(time - DateUtilities.ONE_DAY));
-            value = value.replace(VALUE_EOD, Long.toString(time));
-            value = value.replace(VALUE_EOD_TOMORROW, Long.toString(time + DateUtilities.ONE_DAY));
-            value = value.replace(VALUE_EOD_DAY_AFTER, Long.toString(time + 2 * DateUtilities.ONE_DAY));
-            value = value.replace(VALUE_EOD_NEXT_WEEK, Long.toString(time + 7 * DateUtilities.ONE_DAY));
-            value = value.replace(VALUE_EOD_NEXT_MONTH, Long.toString(time + 30 * DateUtilities.ONE_DAY));
-        }
-        return value;
+        return compile(value).replace();
     }
 
 }
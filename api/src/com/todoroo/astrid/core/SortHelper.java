@@ -1,9 +1,13 @@
 package com.todoroo.astrid.core;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import com.todoroo.andlib.sql.Criterion;
 import com.todoroo.andlib.sql.Functions;
 import com.todoroo.andlib.sql.Order;
 import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.api.PermaSql;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.data.TaskApiDao.TaskCriteria;
 
@@ -32,8 +36,28 @@ public class SortHelper {
     /** preference key for sort sort. stored in public prefs */
     public static final String PREF_SORT_SORT = "sort_sort"; //$NON-NLS-1$
 
+    /** twice the current time, as a {@link PermaSql} placeholder */
+    @SuppressWarnings("nls")
+    private static final String TWICE_NOW = "(2*" + PermaSql.VALUE_NOW + ")";
+
+    /** number of adjusted queries to keep */
+    private static final int CACHE_SIZE = 16;
+
+    private static final LinkedHashMap<String, String> adjustedQueries =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
     /**
      * Takes a SQL query, and if there isn't already an order, creates an order.
+     * The order refers to the current time through {@link PermaSql}
+     * placeholders, so the result doesn't change over time and is only
+     * computed once for each query, flags and sort.
      * @param originalSql
      * @param flags
      * @param sort
@@ -41,11 +65,24 @@ public class SortHelper {
      */
     @SuppressWarnings("nls")
     public static String adjustQueryForFlagsAndSort(String originalSql, int flags, int sort) {
-        // sort
         if(originalSql == null)
             originalSql = "";
+        String key = flags + ":" + sort + ":" + originalSql;
+        synchronized(adjustedQueries) {
+            String adjusted = adjustedQueries.get(key);
+            if(adjusted == null) {
+                adjusted = adjust(originalSql, flags, sort);
+                adjustedQueries.put(key, adjusted);
+            }
+            return adjusted;
+        }
+    }
+
+    @SuppressWarnings("nls")
+    private static String adjust(String originalSql, int flags, int sort) {
+        // sort
         if(!originalSql.toUpperCase().contains("ORDER BY")) {
-            Order order = orderForSortType(sort);
+            Order order = orderForSortType(sort, TWICE_NOW);
 
             if((flags & FLAG_REVERSE_SORT) > 0)
                 order = order.reverse();
@@ -68,6 +105,14 @@ public class SortHelper {
 
 
     public static Order orderForSortType(int sortType) {
+        return orderForSortType(sortType, DateUtilities.now() * 2);
+    }
+
+    /**
+     * @param twiceNow twice the current time, or an expression for it
+     */
+    @SuppressWarnings("nls")
+    private static Order orderForSortType(int sortType, Object twiceNow) {
         Order order;
         switch(sortType) {
         case SORT_ALPHA:
@@ -75,20 +120,20 @@ public class SortHelper {
             break;
         case SORT_DUE:
             order = Order.asc(Functions.caseStatement(Task.DUE_DATE.eq(0),
-                    DateUtilities.now()*2, Task.DUE_DATE) + "+" + Task.IMPORTANCE +
+                    twiceNow, Task.DUE_DATE) + "+" + Task.IMPORTANCE +
                     "+3*" + Task.COMPLETION_DATE);
             break;
         case SORT_IMPORTANCE:
-            order = Order.asc(Task.IMPORTANCE + "*" + (2*DateUtilities.now()) + //$NON-NLS-1$
+            order = Order.asc(Task.IMPORTANCE + "*" + twiceNow + //$NON-NLS-1$
                     "+" + Functions.caseStatement(Task.DUE_DATE.eq(0), //$NON-NLS-1$
-                            2 * DateUtilities.now(),
+                            twiceNow,
                             Task.DUE_DATE) + "+8*" + Task.COMPLETION_DATE);
             break;
         case SORT_MODIFIED:
             order = Order.desc(Task.MODIFICATION_DATE);
             break;
         default:
-            order = defaultTaskOrder();
+            order = defaultTaskOrder(twiceNow);
         }
         return order;
     }
@@ -97,10 +142,14 @@ public class SortHelper {
      * Returns SQL task ordering that is astrid's default algorithm
      * @return
      */
-    @SuppressWarnings("nls")
     public static Order defaultTaskOrder() {
+        return defaultTaskOrder(DateUtilities.now() * 2);
+    }
+
+    @SuppressWarnings("nls")
+    private static Order defaultTaskOrder(Object twiceNow) {
         return Order.asc(Functions.caseStatement(Task.DUE_DATE.eq(0),
-                DateUtilities.now() * 2,
+                twiceNow,
                 Task.DUE_DATE) + " + " + (2 * DateUtilities.ONE_DAY) + " * " +
                 Task.IMPORTANCE + " + 2*" + Task.COMPLETION_DATE);
     }
@@ -84,6 +84,11 @@ public class Metadata extends AbstractModel {
         return defaultValues;
     }
 
+    @Override
+    protected Table getSlotTable() {
+        return TABLE;
+    }
+
     // --- data access boilerplate
 
     public Metadata() {
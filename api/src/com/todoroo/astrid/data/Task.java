@@ -163,6 +163,12 @@ public final class Task extends RemoteModel {
     /** List of all properties for this model */
     public static final Property<?>[] PROPERTIES = generateProperties(Task.class);
 
+    /** Large properties that task lists read separately, when rows are shown */
+    public static final Property<?>[] DEFERRED_PROPERTIES = new Property<?>[] {
+        NOTES,
+        DETAILS
+    };
+
     // --- flags
 
     /** whether repeat occurs relative to completion date instead of due date */
@@ -249,6 +255,11 @@ public final class Task extends RemoteModel {
         return defaultValues;
     }
 
+    @Override
+    protected Table getSlotTable() {
+        return TABLE;
+    }
+
     // --- data access boilerplate
 
     public Task() {
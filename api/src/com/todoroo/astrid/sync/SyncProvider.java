@@ -4,10 +4,17 @@
 package com.todoroo.astrid.sync;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.app.Notification;
@@ -132,6 +139,30 @@ public abstract class SyncProvider<TYPE extends SyncContainer> {
     abstract protected void transferIdentifiers(TYPE source,
             TYPE destination);
 
+    /**
+     * Returns an extractor for the remote identifier(s) compared by
+     * {@link #matchTask}. If provided, remote tasks are indexed by key once
+     * per sync instead of being scanned for every locally updated task.
+     *
+     * @return key extractor, or null to match with {@link #matchTask}
+     */
+    protected RemoteKeyExtractor<TYPE> getRemoteKeyExtractor() {
+        return null;
+    }
+
+    /**
+     * Returns the number of remote requests that may be in flight at once
+     * while sending local changes. Providers whose {@link #push},
+     * {@link #create} and {@link #write} are safe to call from several
+     * threads can return more than one, so that sending many changes is
+     * bounded by network parallelism rather than round-trip latency.
+     *
+     * @return maximum concurrent requests, 1 to send changes serially
+     */
+    protected int getMaxConcurrentRequests() {
+        return 1;
+    }
+
     // --- implementation
 
     private final Notification notification;
@@ -232,6 +263,8 @@ public abstract class SyncProvider<TYPE extends SyncContainer> {
 
     protected void readRemotelyUpdated(SyncData<TYPE> data) throws IOException {
         int length;
+        data.clearRemoteIndex();
+
         // Rearrange remoteTasks so completed tasks get synchronized first.
         // This prevents bugs where a repeated task has two copies come down
         // the wire, the new version and the completed old version. The new
@@ -277,70 +310,261 @@ public abstract class SyncProvider<TYPE extends SyncContainer> {
         }
     }
 
-    protected void sendLocallyUpdated(SyncData<TYPE> data) throws IOException {
+    protected void sendLocallyUpdated(final SyncData<TYPE> data) throws IOException {
         int length;
-        length = data.localUpdated.getCount();
-        for(int i = 0; i < length; i++) {
-            data.localUpdated.moveToNext();
-            TYPE local = read(data.localUpdated);
-            try {
+        RemoteKeyExtractor<TYPE> keyExtractor = getRemoteKeyExtractor();
+        if(keyExtractor != null)
+            data.indexRemoteTasks(keyExtractor);
+        final boolean indexed = keyExtractor != null;
+
+        SyncPipeline pipeline = createPipeline();
+        try {
+            length = data.localUpdated.getCount();
+            for(int i = 0; i < length; i++) {
+                data.localUpdated.moveToNext();
+                final TYPE local = read(data.localUpdated);
                 if(local.task == null)
                     continue;
 
-                // if there is a conflict, merge
-                int remoteIndex = matchTask((ArrayList<TYPE>)data.remoteUpdated, local);
-                if(remoteIndex != -1) {
-                    TYPE remote = data.remoteUpdated.get(remoteIndex);
-
-                    remote = push(local, remote);
+                Runnable request = new Runnable() {
+                    public void run() {
+                        try {
+                            // if there is a conflict, merge
+                            int remoteIndex;
+                            TYPE remote = null;
+                            synchronized(data) {
+                                if(indexed)
+                                    remoteIndex = data.findRemoteTask(local);
+                                else
+                                    remoteIndex = matchTask((ArrayList<TYPE>)data.remoteUpdated, local);
+                                if(remoteIndex != -1)
+                                    remote = data.remoteUpdated.get(remoteIndex);
+                            }
+
+                            if(remote != null) {
+                                remote = push(local, remote);
+
+                                // re-read remote task after merge (with local's title)
+                                remote.task.setId(local.task.getId());
+                                synchronized(data) {
+                                    data.setRemoteTask(remoteIndex, remote);
+                                }
+                            } else {
+                                push(local, null);
+                            }
+                        } catch (Exception e) {
+                            handleException("sync-local-updated", e, false); //$NON-NLS-1$
+                        }
+                    }
+                };
 
-                    // re-read remote task after merge (with local's title)
-                    remote.task.setId(local.task.getId());
-                    data.remoteUpdated.set(remoteIndex, remote);
-                } else {
-                    push(local, null);
-                }
-            } catch (Exception e) {
-                handleException("sync-local-updated", e, false); //$NON-NLS-1$
+                if(pipeline == null) {
+                    request.run();
+                    write(local);
+                } else
+                    pipeline.submit(local, request);
             }
-            write(local);
+            if(pipeline != null)
+                pipeline.finish();
+        } finally {
+            if(pipeline != null)
+                pipeline.finishAfterError();
         }
     }
 
-    protected void sendLocallyCreated(SyncData<TYPE> data,
-            HashMap<String, Integer> remoteNewTaskNameMap) throws IOException {
+    protected void sendLocallyCreated(final SyncData<TYPE> data,
+            final HashMap<String, Integer> remoteNewTaskNameMap) throws IOException {
         int length;
-        length = data.localCreated.getCount();
-        for(int i = 0; i < length; i++) {
-            data.localCreated.moveToNext();
-            TYPE local = read(data.localCreated);
-            try {
+        SyncPipeline pipeline = createPipeline();
+        try {
+            length = data.localCreated.getCount();
+            for(int i = 0; i < length; i++) {
+                data.localCreated.moveToNext();
+                final TYPE local = read(data.localCreated);
+
+                Runnable request = new Runnable() {
+                    public void run() {
+                        try {
+                            String taskTitle = local.task.getValue(Task.TITLE);
+
+                            /* If there exists an incoming remote task with the same name and no
+                             * mapping, we don't want to create this on the remote server,
+                             * because user could have synchronized this before. Instead,
+                             * we create a mapping and do an update.
+                             */
+                            int remoteIndex = -1;
+                            TYPE remote = null;
+                            synchronized(data) {
+                                if (remoteNewTaskNameMap.containsKey(taskTitle)) {
+                                    remoteIndex = remoteNewTaskNameMap.remove(taskTitle);
+                                    remote = data.remoteUpdated.get(remoteIndex);
+                                }
+                            }
+
+                            if (remote != null) {
+                                transferIdentifiers(remote, local);
+                                remote = push(local, remote);
+
+                                // re-read remote task after merge, update remote task list
+                                remote.task.setId(local.task.getId());
+                                synchronized(data) {
+                                    data.setRemoteTask(remoteIndex, remote);
+                                }
+
+                            } else {
+                                create(local);
+                            }
+                        } catch (Exception e) {
+                            handleException("sync-local-created", e, false); //$NON-NLS-1$
+                        }
+                    }
+                };
+
+                if(pipeline == null) {
+                    request.run();
+                    write(local);
+                } else
+                    pipeline.submit(local, request);
+            }
+            if(pipeline != null)
+                pipeline.finish();
+        } finally {
+            if(pipeline != null)
+                pipeline.finishAfterError();
+        }
+    }
+
+    /**
+     * @return a pipeline for sending local changes, or null if this provider
+     *         sends them one at a time
+     */
+    private SyncPipeline createPipeline() {
+        int concurrency = getMaxConcurrentRequests();
+        if(concurrency <= 1)
+            return null;
+        return new SyncPipeline(concurrency);
+    }
+
+    /**
+     * Three-stage pipeline for sending local changes. The calling thread
+     * reads local tasks, a fixed pool of threads runs the remote requests,
+     * and a single writer thread saves tasks once their request finishes.
+     * Stages are connected by bounded queues, so a slow stage throttles
+     * the ones before it instead of buffering the whole task list.
+     */
+    private class SyncPipeline {
 
-                String taskTitle = local.task.getValue(Task.TITLE);
+        private final SyncContainer END = new SyncContainer();
 
-                /* If there exists an incoming remote task with the same name and no
-                 * mapping, we don't want to create this on the remote server,
-                 * because user could have synchronized this before. Instead,
-                 * we create a mapping and do an update.
-                 */
-                if (remoteNewTaskNameMap.containsKey(taskTitle)) {
-                    int remoteIndex = remoteNewTaskNameMap.remove(taskTitle);
-                    TYPE remote = data.remoteUpdated.get(remoteIndex);
+        private final ExecutorService requests;
 
-                    transferIdentifiers(remote, local);
-                    remote = push(local, remote);
+        /** bounds requests that are queued or running */
+        private final Semaphore requestPermits;
 
-                    // re-read remote task after merge, update remote task list
-                    remote.task.setId(local.task.getId());
-                    data.remoteUpdated.set(remoteIndex, remote);
+        private final BlockingQueue<SyncContainer> writes;
 
-                } else {
-                    create(local);
+        private final Thread writer;
+
+        private volatile Exception writeError = null;
+
+        /** whether {@link #finish()} was called */
+        private boolean finished = false;
+
+        public SyncPipeline(int concurrency) {
+            requests = Executors.newFixedThreadPool(concurrency);
+            requestPermits = new Semaphore(2 * concurrency);
+            writes = new ArrayBlockingQueue<SyncContainer>(4 * concurrency);
+            writer = new Thread(new Runnable() {
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try {
+                        while(true) {
+                            SyncContainer task = writes.take();
+                            if(task == END)
+                                break;
+                            if(writeError != null)
+                                continue;
+                            try {
+                                write((TYPE) task);
+                            } catch (Exception e) {
+                                writeError = e;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        writeError = new InterruptedIOException();
+                    }
+                }
+            }, "sync-writer"); //$NON-NLS-1$
+            writer.start();
+        }
+
+        /**
+         * Queues the remote request for the given task. Blocks while the
+         * pipeline is full.
+         */
+        public void submit(final TYPE local, final Runnable request) throws IOException {
+            checkWriteError();
+            try {
+                requestPermits.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            requests.execute(new Runnable() {
+                public void run() {
+                    try {
+                        request.run();
+                        writes.put(local);
+                    } catch (InterruptedException e) {
+                        // pipeline is shutting down
+                    } finally {
+                        requestPermits.release();
+                    }
                 }
+            });
+        }
+
+        /**
+         * Waits for all queued requests and writes to finish
+         */
+        public void finish() throws IOException {
+            finished = true;
+            requests.shutdown();
+            try {
+                while(!requests.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // keep waiting - requests time out on their own
+                }
+                writes.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                requests.shutdownNow();
+                writer.interrupt();
+                throw new InterruptedIOException();
+            }
+            checkWriteError();
+        }
+
+        /**
+         * Waits for queued requests and writes to finish if {@link #finish()}
+         * was not reached. Errors are reported rather than thrown, so they
+         * don't hide the error that stopped the calling thread.
+         */
+        public void finishAfterError() {
+            if(finished)
+                return;
+            try {
+                finish();
             } catch (Exception e) {
-                handleException("sync-local-created", e, false); //$NON-NLS-1$
+                exceptionService.reportError("sync-pipeline", e); //$NON-NLS-1$
             }
-            write(local);
+        }
+
+        /** rethrows the first exception thrown by the writer, if any */
+        private void checkWriteError() throws IOException {
+            Exception e = writeError;
+            if(e instanceof IOException)
+                throw (IOException) e;
+            else if(e instanceof RuntimeException)
+                throw (RuntimeException) e;
         }
     }
 
@@ -390,6 +614,20 @@ public abstract class SyncProvider<TYPE extends SyncContainer> {
 
     // --- helper classes
 
+    /**
+     * Extracts the remote identifier(s) of a task container as a single key
+     * with value semantics (a Long, a String, a List of identifiers, ...)
+     *
+     * @param <TYPE>
+     */
+    public interface RemoteKeyExtractor<TYPE> {
+        /**
+         * @return key for the given task, or null if it has no remote
+         *         identifier
+         */
+        public Object getRemoteKey(TYPE task);
+    }
+
     /** data structure builder */
     protected static class SyncData<TYPE extends SyncContainer> {
         public ArrayList<TYPE> remoteUpdated;
@@ -397,6 +635,10 @@ public abstract class SyncProvider<TYPE extends SyncContainer> {
         public TodorooCursor<Task> localCreated;
         public TodorooCursor<Task> localUpdated;
 
+        /** remote key to index in remoteUpdated */
+        private HashMap<Object, Integer> remoteIndex;
+        private RemoteKeyExtractor<TYPE> keyExtractor;
+
         public SyncData(ArrayList<TYPE> remoteUpdated,
                 TodorooCursor<Task> localCreated,
                 TodorooCursor<Task> localUpdated) {
@@ -406,5 +648,57 @@ public abstract class SyncProvider<TYPE extends SyncContainer> {
             this.localUpdated = localUpdated;
         }
 
+        /**
+         * Index remote tasks by key. If several remote tasks have the same
+         * key, the first one is matched.
+         */
+        public void indexRemoteTasks(RemoteKeyExtractor<TYPE> extractor) {
+            keyExtractor = extractor;
+            int length = remoteUpdated.size();
+            remoteIndex = new HashMap<Object, Integer>(length * 2);
+            for(int i = 0; i < length; i++) {
+                Object key = extractor.getRemoteKey(remoteUpdated.get(i));
+                if(key != null && !remoteIndex.containsKey(key))
+                    remoteIndex.put(key, i);
+            }
+        }
+
+        /**
+         * @return index of the remote task with the same key as the given
+         *         task, or -1 if there is none
+         */
+        public int findRemoteTask(TYPE target) {
+            if(remoteIndex == null)
+                throw new IllegalStateException("Remote tasks not indexed"); //$NON-NLS-1$
+            Object key = keyExtractor.getRemoteKey(target);
+            if(key == null)
+                return -1;
+            Integer index = remoteIndex.get(key);
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * Replaces a remote task, keeping the index up to date
+         */
+        public void setRemoteTask(int index, TYPE remote) {
+            TYPE previous = remoteUpdated.set(index, remote);
+            if(remoteIndex == null)
+                return;
+            Object oldKey = keyExtractor.getRemoteKey(previous);
+            if(oldKey != null && Integer.valueOf(index).equals(remoteIndex.get(oldKey)))
+                remoteIndex.remove(oldKey);
+            Object newKey = keyExtractor.getRemoteKey(remote);
+            if(newKey != null && !remoteIndex.containsKey(newKey))
+                remoteIndex.put(newKey, index);
+        }
+
+        /**
+         * Drop the index, e.g. before remote tasks are reordered
+         */
+        public void clearRemoteIndex() {
+            remoteIndex = null;
+            keyExtractor = null;
+        }
+
     }
 }
@@ -0,0 +1,365 @@
+/**
+ * See the file "LICENSE" for the full license governing this code.
+ */
+package com.todoroo.astrid.actfm.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.todoroo.andlib.data.Property.StringProperty;
+import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.service.DependencyInjectionService;
+import com.todoroo.andlib.service.ExceptionService;
+import com.todoroo.andlib.sql.Criterion;
+import com.todoroo.andlib.sql.Order;
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.dao.StoreObjectDao;
+import com.todoroo.astrid.dao.StoreObjectDao.StoreObjectCriteria;
+import com.todoroo.astrid.data.StoreObject;
+
+/**
+ * Persistent outbox of changes waiting to be pushed to Astrid.com. Entries
+ * are {@link StoreObject}s, one per changed item, so they survive process
+ * death. Changes to an item that is already queued are merged into its
+ * entry, so a burst of edits results in a single push. Entries are sent by
+ * one worker thread, and failed pushes are retried with exponential
+ * backoff. An entry is only removed once it has been pushed, so a change
+ * being pushed when the process dies is pushed again after the backoff.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public final class ActFmPushQueue {
+
+    /** type */
+    public static final String TYPE = "actfm-push"; //$NON-NLS-1$
+
+    /** push type and item id, used to find the entry for an item */
+    public static final StringProperty KEY = new StringProperty(StoreObject.TABLE,
+            StoreObject.ITEM.name);
+
+    /** push type */
+    public static final StringProperty PUSH_TYPE = new StringProperty(StoreObject.TABLE,
+            StoreObject.VALUE1.name);
+
+    /** id of the changed item */
+    public static final StringProperty ITEM_ID = new StringProperty(StoreObject.TABLE,
+            StoreObject.VALUE2.name);
+
+    /** comma-separated names of the changed columns */
+    public static final StringProperty COLUMNS = new StringProperty(StoreObject.TABLE,
+            StoreObject.VALUE3.name);
+
+    /** number of failed attempts */
+    public static final StringProperty ATTEMPTS = new StringProperty(StoreObject.TABLE,
+            StoreObject.VALUE4.name);
+
+    /** time the entry is due to be pushed */
+    public static final StringProperty DUE = new StringProperty(StoreObject.TABLE,
+            StoreObject.VALUE5.name);
+
+    /** delay before pushing a change, so edits made together are merged */
+    public static final long PUSH_DELAY = 1000L;
+
+    /** delay before the first retry, doubled for every failure */
+    public static final long INITIAL_RETRY_DELAY = 30 * 1000L;
+
+    /** longest delay between retries */
+    public static final long MAX_RETRY_DELAY = DateUtilities.ONE_HOUR;
+
+    /**
+     * Sends queued changes to the server
+     */
+    public interface PushHandler {
+        /**
+         * @return false if pushing should be postponed, e.g. during a sync
+         */
+        public boolean canPush();
+
+        /**
+         * Push changes to an item
+         *
+         * @param columns names of the changed columns
+         * @return false if the push failed and should be retried
+         */
+        public boolean push(int pushType, long itemId, HashSet<String> columns);
+    }
+
+    @Autowired StoreObjectDao storeObjectDao;
+
+    @Autowired ExceptionService exceptionService;
+
+    private final PushHandler handler;
+
+    /** worker thread, or null if not running */
+    private Thread worker = null;
+
+    /** whether entries changed since the worker last read the queue */
+    private boolean dirty = false;
+
+    /** id of the entry being pushed, or 0 */
+    private long pushingId = 0;
+
+    /** whether the entry being pushed was changed since it was claimed */
+    private boolean pushingChanged = false;
+
+    public ActFmPushQueue(PushHandler handler) {
+        DependencyInjectionService.getInstance().inject(this);
+        this.handler = handler;
+    }
+
+    // --- queue
+
+    /**
+     * Queue changes to an item, merging them with changes already queued
+     *
+     * @param columns names of the changed columns
+     */
+    public void enqueue(int pushType, long itemId, Collection<String> columns) {
+        enqueue(pushType, itemId, columns, 0, DateUtilities.now() + PUSH_DELAY);
+    }
+
+    /**
+     * Queue a change that failed to be pushed
+     *
+     * @param attempts number of failed attempts so far
+     */
+    public void retry(int pushType, long itemId, Collection<String> columns, int attempts) {
+        attempts = Math.max(1, attempts);
+        enqueue(pushType, itemId, columns, attempts, DateUtilities.now() + retryDelay(attempts));
+    }
+
+    /**
+     * @return delay before retrying after the given number of failures
+     */
+    public static long retryDelay(int attempts) {
+        long delay = INITIAL_RETRY_DELAY << Math.min(attempts - 1, 16);
+        return Math.min(delay, MAX_RETRY_DELAY);
+    }
+
+    private synchronized void enqueue(int pushType, long itemId, Collection<String> columns,
+            int attempts, long due) {
+        String key = pushType + ":" + itemId; //$NON-NLS-1$
+        StoreObject entry = fetchEntry(StoreObjectCriteria.byTypeAndItem(TYPE, key));
+        HashSet<String> merged = new HashSet<String>(columns);
+        if(entry == null) {
+            entry = new StoreObject();
+            entry.setValue(StoreObject.TYPE, TYPE);
+            entry.setValue(KEY, key);
+            entry.setValue(PUSH_TYPE, Integer.toString(pushType));
+            entry.setValue(ITEM_ID, Long.toString(itemId));
+        } else {
+            // a queued change is merged. A retry never moves up a push,
+            // and a new change never moves up a pending retry.
+            merged.addAll(getColumns(entry));
+            attempts = Math.max(attempts, getAttempts(entry));
+            // the due time of an entry being pushed is only there in case
+            // the process dies, and doesn't hold back a new change
+            if(entry.getId() != pushingId || pushingChanged)
+                due = Math.max(due, getDue(entry));
+            if(entry.getId() == pushingId)
+                pushingChanged = true;
+        }
+        entry.setValue(COLUMNS, TextUtils.join(",", merged)); //$NON-NLS-1$
+        entry.setValue(ATTEMPTS, Integer.toString(attempts));
+        entry.setValue(DUE, Long.toString(due));
+        storeObjectDao.persist(entry);
+
+        dirty = true;
+        start();
+    }
+
+    /**
+     * Start the worker if it isn't running, or wake it up to look at new
+     * entries
+     */
+    public synchronized void start() {
+        if(worker == null) {
+            dirty = false;
+            worker = new Thread(pushRunnable, "actfm-push"); //$NON-NLS-1$
+            worker.start();
+        } else
+            notifyAll();
+    }
+
+    /**
+     * @return number of queued entries
+     */
+    public int size() {
+        TodorooCursor<StoreObject> cursor = storeObjectDao.query(Query.select(
+                StoreObject.ID).where(StoreObjectCriteria.byType(TYPE)));
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // --- entries
+
+    private StoreObject fetchEntry(Criterion criterion) {
+        TodorooCursor<StoreObject> cursor = storeObjectDao.query(Query.select(
+                StoreObject.PROPERTIES).where(criterion));
+        try {
+            if(cursor.getCount() == 0)
+                return null;
+            cursor.moveToFirst();
+            return new StoreObject(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static HashSet<String> getColumns(StoreObject entry) {
+        HashSet<String> columns = new HashSet<String>();
+        String value = entry.getValue(COLUMNS);
+        if(!TextUtils.isEmpty(value))
+            for(String column : value.split(",")) //$NON-NLS-1$
+                columns.add(column);
+        return columns;
+    }
+
+    private static int getAttempts(StoreObject entry) {
+        return Integer.parseInt(entry.getValue(ATTEMPTS));
+    }
+
+    private static long getDue(StoreObject entry) {
+        return Long.parseLong(entry.getValue(DUE));
+    }
+
+    /**
+     * Mark the entry with the given id as being pushed if it is due. Its
+     * due time is moved to the next retry, so it is pushed again if the
+     * process dies before the push finishes.
+     *
+     * @return entry as it was before it was claimed, or null if it was not
+     *         due or no longer exists
+     */
+    private synchronized StoreObject claim(long id, long now) {
+        StoreObject entry = fetchEntry(StoreObject.ID.eq(id));
+        if(entry == null || getDue(entry) > now)
+            return null;
+        int attempts = getAttempts(entry) + 1;
+        StoreObject inFlight = new StoreObject();
+        inFlight.setId(id);
+        inFlight.setValue(ATTEMPTS, Integer.toString(attempts));
+        inFlight.setValue(DUE, Long.toString(now + retryDelay(attempts)));
+        storeObjectDao.persist(inFlight);
+        pushingId = id;
+        pushingChanged = false;
+        return entry;
+    }
+
+    /**
+     * Remove the entry that was pushed, unless it was changed while it was
+     * pushed, in which case it is kept for the new change
+     */
+    private synchronized void pushed(long id) {
+        if(pushingChanged) {
+            StoreObject entry = new StoreObject();
+            entry.setId(id);
+            entry.setValue(ATTEMPTS, "0"); //$NON-NLS-1$
+            storeObjectDao.persist(entry);
+        } else
+            storeObjectDao.delete(id);
+        pushingId = 0;
+    }
+
+    /**
+     * Queue the entry that failed to be pushed for a retry
+     */
+    private synchronized void failed(int pushType, long itemId, HashSet<String> columns,
+            int attempts) {
+        retry(pushType, itemId, columns, attempts);
+        pushingId = 0;
+    }
+
+    // --- worker
+
+    private final Runnable pushRunnable = new Runnable() {
+        public void run() {
+            while(true) {
+                long nextDue = pushDueEntries();
+                synchronized(ActFmPushQueue.this) {
+                    if(dirty) {
+                        dirty = false;
+                        continue;
+                    }
+                    if(nextDue == Long.MAX_VALUE) {
+                        worker = null;
+                        return;
+                    }
+                    try {
+                        ActFmPushQueue.this.wait(Math.max(1, nextDue - DateUtilities.now()));
+                    } catch (InterruptedException e) {
+                        worker = null;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Push every entry that is due
+     *
+     * @return time the next entry is due, or Long.MAX_VALUE if the queue is
+     *         empty
+     */
+    long pushDueEntries() {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        long nextDue = Long.MAX_VALUE;
+        long now = DateUtilities.now();
+        TodorooCursor<StoreObject> cursor = storeObjectDao.query(Query.select(
+                StoreObject.ID, DUE).where(StoreObjectCriteria.byType(TYPE)).orderBy(
+                        Order.asc(StoreObject.ID)));
+        try {
+            StoreObject entry = new StoreObject();
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                entry.readFromCursor(cursor);
+                long due = getDue(entry);
+                if(due > now)
+                    nextDue = Math.min(nextDue, due);
+                else
+                    ids.add(entry.getId());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for(long id : ids) {
+            if(!handler.canPush())
+                return Math.min(nextDue, DateUtilities.now() + INITIAL_RETRY_DELAY);
+
+            StoreObject entry = claim(id, now);
+            if(entry == null)
+                continue;
+            int pushType = Integer.parseInt(entry.getValue(PUSH_TYPE));
+            long itemId = Long.parseLong(entry.getValue(ITEM_ID));
+            HashSet<String> columns = getColumns(entry);
+            boolean done;
+            try {
+                done = handler.push(pushType, itemId, columns);
+            } catch (RuntimeException e) {
+                Log.e("actfm-push", "Error pushing " + itemId, e); //$NON-NLS-1$ //$NON-NLS-2$
+                exceptionService.reportError("actfm-push", e); //$NON-NLS-1$
+                done = false;
+            }
+            if(done)
+                pushed(id);
+            else {
+                int attempts = getAttempts(entry) + 1;
+                failed(pushType, itemId, columns, attempts);
+                nextDue = Math.min(nextDue, DateUtilities.now() + retryDelay(attempts));
+            }
+        }
+        return nextDue;
+    }
+
+}
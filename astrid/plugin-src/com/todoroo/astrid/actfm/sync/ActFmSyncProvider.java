@@ -273,7 +273,9 @@ public class ActFmSyncProvider extends SyncProvider<ActFmTaskContainer> {
     protected ActFmTaskContainer push(ActFmTaskContainer local, ActFmTaskContainer remote) throws IOException {
         long id = local.task.getValue(Task.REMOTE_ID);
 
-        actFmSyncService.pushTaskOnSave(local.task, local.task.getDatabaseValues());
+        // the whole task is sent, so its tags are too. Repeats completed
+        // during the sync are queued by the save listener and sent after it
+        actFmSyncService.pushTaskOnSave(local.task, local.task.getDatabaseValues(), true, false);
 
         // push unsaved comments
         for(Metadata item : local.metadata) {
@@ -328,6 +330,26 @@ public class ActFmSyncProvider extends SyncProvider<ActFmTaskContainer> {
     // --------------------------------------------------------- misc helpers
     // ----------------------------------------------------------------------
 
+    private static final RemoteKeyExtractor<ActFmTaskContainer> REMOTE_KEY_EXTRACTOR =
+        new RemoteKeyExtractor<ActFmTaskContainer>() {
+        public Object getRemoteKey(ActFmTaskContainer task) {
+            return task.task.getValue(Task.REMOTE_ID);
+        }
+    };
+
+    @Override
+    protected RemoteKeyExtractor<ActFmTaskContainer> getRemoteKeyExtractor() {
+        return REMOTE_KEY_EXTRACTOR;
+    }
+
+    /** act.fm pushes are independent requests, so send several at once */
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    @Override
+    protected int getMaxConcurrentRequests() {
+        return MAX_CONCURRENT_REQUESTS;
+    }
+
     @Override
     protected int matchTask(ArrayList<ActFmTaskContainer> tasks, ActFmTaskContainer target) {
         int length = tasks.size();
@@ -6,12 +6,8 @@ package com.todoroo.astrid.actfm.sync;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
 
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.ByteArrayBody;
@@ -84,56 +80,73 @@ public final class ActFmSyncService {
     @Autowired UpdateDao updateDao;
     @Autowired MetadataDao metadataDao;
 
-    public static final long TIME_BETWEEN_TRIES = 5 * DateUtilities.ONE_MINUTE;
-
     private static final int PUSH_TYPE_TASK = 0;
     private static final int PUSH_TYPE_TAG = 1;
     private static final int PUSH_TYPE_UPDATE = 2;
 
+    /** queued column name recording that tags of the task changed */
+    private static final String PUSH_TAGS_CHANGED = "_tags_changed";
+
+    /** queued column name recording that a repeating task was completed */
+    private static final String PUSH_REPEATED = "_repeated";
+
+    /**
+     * transitory marking a model saved with data from the server, so that
+     * the save is not pushed back. Unlike the global flag, it can not be
+     * consumed by a save on another thread
+     */
+    private static final String SUPPRESS_SYNC = "actfm-suppress-sync";
+
     private String token;
 
+    private final ActFmPushQueue pushQueue;
+
     public ActFmSyncService() {
         DependencyInjectionService.getInstance().inject(this);
-    }
-
-    private class FailedPush {
-        int pushType;
-        long itemId;
+        pushQueue = new ActFmPushQueue(new ActFmPushQueue.PushHandler() {
+            public boolean canPush() {
+                return !actFmPreferenceService.isOngoing();
+            }
 
-        public FailedPush(int pushType, long itemId) {
-            this.pushType = pushType;
-            this.itemId = itemId;
-        }
+            public boolean push(int pushType, long itemId, HashSet<String> columns) {
+                return pushQueued(pushType, itemId, columns);
+            }
+        });
     }
 
-    private final List<FailedPush> failedPushes = Collections.synchronizedList(new LinkedList<FailedPush>());
-    Thread pushRetryThread = null;
-    Runnable pushRetryRunnable;
-
     public void initialize() {
-        initializeRetryRunnable();
-
         taskDao.addListener(new ModelUpdateListener<Task>() {
             @Override
             public void onModelUpdated(final Task model) {
-                if(Flags.checkAndClear(Flags.ACTFM_SUPPRESS_SYNC))
+                if(model.checkAndClearTransitory(SUPPRESS_SYNC) ||
+                        Flags.checkAndClear(Flags.ACTFM_SUPPRESS_SYNC))
                     return;
-                if (actFmPreferenceService.isOngoing())
+
+                // flags are set just before the save, so read them now even
+                // if the save is not pushed, or a later save would take them
+                boolean tagsChanged = Flags.checkAndClear(Flags.TAGS_CHANGED);
+                boolean repeated = Flags.checkAndClear(Flags.ACTFM_REPEATED_TASK);
+
+                HashSet<String> columns = new HashSet<String>();
+                if(tagsChanged)
+                    columns.add(PUSH_TAGS_CHANGED);
+                if(repeated)
+                    columns.add(PUSH_REPEATED);
+                if (actFmPreferenceService.isOngoing()) {
+                    // the sync pushes the values but doesn't know about
+                    // the flags, so they are sent once it is done
+                    if(!columns.isEmpty() && checkForToken())
+                        pushQueue.enqueue(PUSH_TYPE_TASK, model.getId(), columns);
                     return;
+                }
                 final ContentValues setValues = model.getSetValues();
                 if(setValues == null || !checkForToken() || setValues.containsKey(RemoteModel.REMOTE_ID_PROPERTY_NAME))
                     return;
                 if(completedRepeatingTask(model))
                     return;
 
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        // sleep so metadata associated with task is saved
-                        AndroidUtilities.sleepDeep(1000L);
-                        pushTaskOnSave(model, setValues);
-                    }
-                }).start();
+                columns.addAll(setValues.keySet());
+                pushQueue.enqueue(PUSH_TYPE_TASK, model.getId(), columns);
             }
 
             private boolean completedRepeatingTask(Task model) {
@@ -144,7 +157,8 @@ public final class ActFmSyncService {
         updateDao.addListener(new ModelUpdateListener<Update>() {
             @Override
             public void onModelUpdated(final Update model) {
-                if(Flags.checkAndClear(Flags.ACTFM_SUPPRESS_SYNC))
+                if(model.checkAndClearTransitory(SUPPRESS_SYNC) ||
+                        Flags.checkAndClear(Flags.ACTFM_SUPPRESS_SYNC))
                     return;
                 if (actFmPreferenceService.isOngoing())
                     return;
@@ -152,19 +166,15 @@ public final class ActFmSyncService {
                 if(setValues == null || !checkForToken() || model.getValue(Update.REMOTE_ID) > 0)
                     return;
 
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        pushUpdateOnSave(model, setValues, null);
-                    }
-                }).start();
+                pushQueue.enqueue(PUSH_TYPE_UPDATE, model.getId(), setValues.keySet());
             }
         });
 
         tagDataDao.addListener(new ModelUpdateListener<TagData>() {
             @Override
             public void onModelUpdated(final TagData model) {
-                if(Flags.checkAndClear(Flags.ACTFM_SUPPRESS_SYNC))
+                if(model.checkAndClearTransitory(SUPPRESS_SYNC) ||
+                        Flags.checkAndClear(Flags.ACTFM_SUPPRESS_SYNC))
                     return;
                 if (actFmPreferenceService.isOngoing())
                     return;
@@ -172,59 +182,50 @@ public final class ActFmSyncService {
                 if(setValues == null || !checkForToken() || setValues.containsKey(RemoteModel.REMOTE_ID_PROPERTY_NAME))
                     return;
 
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        pushTagDataOnSave(model, setValues);
-                    }
-                }).start();
+                pushQueue.enqueue(PUSH_TYPE_TAG, model.getId(), setValues.keySet());
             }
         });
-    }
 
-    private void initializeRetryRunnable() {
-        pushRetryRunnable = new Runnable() {
-            public void run() {
-                while (true) {
-                    AndroidUtilities.sleepDeep(TIME_BETWEEN_TRIES);
-                    if(failedPushes.isEmpty()) {
-                        synchronized(ActFmSyncService.this) {
-                            pushRetryThread = null;
-                            return;
-                        }
-                    }
-                    if(failedPushes.size() > 0) {
-                        // Copy into a second queue so we don't end up infinitely retrying in the same loop
-                        Queue<FailedPush> toTry = new LinkedList<FailedPush>(failedPushes);
-                        failedPushes.clear();
-                        while(!toTry.isEmpty() && !actFmPreferenceService.isOngoing()) {
-                            FailedPush pushOp = toTry.remove();
-                            switch(pushOp.pushType) {
-                            case PUSH_TYPE_TASK:
-                                pushTask(pushOp.itemId);
-                                break;
-                            case PUSH_TYPE_TAG:
-                                pushTag(pushOp.itemId);
-                                break;
-                            case PUSH_TYPE_UPDATE:
-                                pushUpdate(pushOp.itemId);
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
-        };
+        // send changes queued before the last shutdown
+        pushQueue.start();
     }
 
-    private void addFailedPush(FailedPush fp) {
-        failedPushes.add(fp);
-        synchronized(this) {
-            if(pushRetryThread == null) {
-                pushRetryThread = new Thread(pushRetryRunnable);
-                pushRetryThread.start();
-            }
+    /**
+     * Push an item from the outbox with its current values
+     *
+     * @return false if the push should be retried
+     */
+    private boolean pushQueued(int pushType, long itemId, HashSet<String> columns) {
+        ContentValues values = new ContentValues();
+        for(String column : columns)
+            values.putNull(column);
+
+        switch(pushType) {
+        case PUSH_TYPE_TASK:
+            Task task = taskService.fetchById(itemId, Task.PROPERTIES);
+            if(task == null)
+                return true;
+            return sendTask(task, values, columns.contains(PUSH_TAGS_CHANGED),
+                    columns.contains(PUSH_REPEATED));
+        case PUSH_TYPE_TAG:
+            TagData tagData = tagDataService.fetchById(itemId, TagData.PROPERTIES);
+            if(tagData == null)
+                return true;
+            return sendTagData(tagData, values);
+        case PUSH_TYPE_UPDATE:
+            Update update = updateDao.fetch(itemId, Update.PROPERTIES);
+            if(update == null)
+                return true;
+            return sendUpdate(update, values, null);
         }
+        return true;
+    }
+
+    /**
+     * Queue a push that failed to be retried later
+     */
+    private void retryPush(int pushType, long itemId, ContentValues values) {
+        pushQueue.retry(pushType, itemId, values.keySet(), 1);
     }
 
     // --- data push methods
@@ -233,8 +234,16 @@ public final class ActFmSyncService {
      * Synchronize with server when data changes
      */
     public void pushUpdateOnSave(Update update, ContentValues values, Bitmap imageData) {
+        if(!sendUpdate(update, values, imageData))
+            retryPush(PUSH_TYPE_UPDATE, update.getId(), values);
+    }
+
+    /**
+     * @return false if the push failed and should be retried
+     */
+    private boolean sendUpdate(Update update, ContentValues values, Bitmap imageData) {
         if(!values.containsKey(Update.MESSAGE.name))
-            return;
+            return true;
 
         ArrayList<Object> params = new ArrayList<Object>();
         params.add("message"); params.add(update.getValue(Update.MESSAGE));
@@ -253,7 +262,7 @@ public final class ActFmSyncService {
             picture = buildPictureData(imageData);
         }
         if(!checkForToken())
-            return;
+            return true;
 
         try {
             params.add("token"); params.add(token);
@@ -266,10 +275,10 @@ public final class ActFmSyncService {
             update.setValue(Update.PICTURE, result.optString("picture"));
             updateDao.saveExisting(update);
         } catch (IOException e) {
-            if (notPermanentError(e))
-                addFailedPush(new FailedPush(PUSH_TYPE_UPDATE, update.getId()));
             handleException("task-save", e);
+            return !notPermanentError(e);
         }
+        return true;
     }
 
     private boolean notPermanentError(Exception e) {
@@ -277,16 +286,39 @@ public final class ActFmSyncService {
     }
 
     /**
-     * Synchronize with server when data changes
+     * Synchronize with server when data changes. The global tag and repeat
+     * flags belong to the save listener, since this may run on several sync
+     * threads at once, so the caller says whether they apply.
+     *
+     * @param tagsChanged whether tags of the task need to be sent
+     * @param repeated whether a repeating task was completed
+     */
+    public void pushTaskOnSave(Task task, ContentValues values, boolean tagsChanged,
+            boolean repeated) {
+        if(sendTask(task, values, tagsChanged, repeated))
+            return;
+        HashSet<String> columns = new HashSet<String>(values.keySet());
+        if(tagsChanged)
+            columns.add(PUSH_TAGS_CHANGED);
+        if(repeated)
+            columns.add(PUSH_REPEATED);
+        pushQueue.retry(PUSH_TYPE_TASK, task.getId(), columns, 1);
+    }
+
+    /**
+     * @param tagsChanged whether tags of the task need to be sent
+     * @param repeated whether a repeating task was completed
+     * @return false if the push failed and should be retried
      */
-    public void pushTaskOnSave(Task task, ContentValues values) {
+    private boolean sendTask(Task task, ContentValues values, boolean tagsChanged,
+            boolean repeated) {
         long remoteId;
         if(task.containsValue(Task.REMOTE_ID)) {
             remoteId = task.getValue(Task.REMOTE_ID);
         } else {
             Task taskForRemote = taskService.fetchById(task.getId(), Task.REMOTE_ID);
             if(taskForRemote == null)
-                return;
+                return true;
             remoteId = taskForRemote.getValue(Task.REMOTE_ID);
         }
         boolean newlyCreated = remoteId == 0;
@@ -296,12 +328,12 @@ public final class ActFmSyncService {
         // prevent creation of certain types of tasks
         if(newlyCreated) {
             if(task.getValue(Task.TITLE).length() == 0)
-                return;
+                return true;
             for(int taskTitle : new int[] { R.string.intro_task_1_summary,
                     R.string.intro_task_2_summary, R.string.intro_task_3_summary }) {
                 String title = ContextManager.getString(taskTitle);
                 if(task.getValue(Task.TITLE).equals(title))
-                    return;
+                    return true;
             }
             values = task.getMergedValues();
         }
@@ -319,7 +351,7 @@ public final class ActFmSyncService {
         if(values.containsKey(Task.DELETION_DATE.name)) {
             params.add("deleted_at"); params.add(task.getValue(Task.DELETION_DATE) / 1000L);
         }
-        if(Flags.checkAndClear(Flags.ACTFM_REPEATED_TASK)) {
+        if(repeated) {
             params.add("completed"); params.add(DateUtilities.now() / 1000L);
         } else if(values.containsKey(Task.COMPLETION_DATE.name)) {
             params.add("completed"); params.add(task.getValue(Task.COMPLETION_DATE) / 1000L);
@@ -342,7 +374,7 @@ public final class ActFmSyncService {
             else
                 params.add(task.getValue(Task.USER_ID));
         }
-        if(Flags.checkAndClear(Flags.TAGS_CHANGED) || newlyCreated) {
+        if(tagsChanged || newlyCreated) {
             TodorooCursor<Metadata> cursor = TagService.getInstance().getTags(task.getId());
             try {
                 if(cursor.getCount() == 0) {
@@ -368,13 +400,13 @@ public final class ActFmSyncService {
         }
 
         if(params.size() == 0 || !checkForToken())
-            return;
+            return true;
 
         if(!newlyCreated) {
             params.add("id"); params.add(remoteId);
         } else if(!values.containsKey(Task.TITLE.name)) {
             pushTask(task.getId());
-            return;
+            return true;
         }
 
         try {
@@ -382,15 +414,16 @@ public final class ActFmSyncService {
             JSONObject result = actFmInvoker.invoke("task_save", params.toArray(new Object[params.size()]));
             ArrayList<Metadata> metadata = new ArrayList<Metadata>();
             JsonHelper.taskFromJson(result, task, metadata);
-            Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+            task.putTransitory(SUPPRESS_SYNC, true);
             taskDao.saveExisting(task);
+            task.checkAndClearTransitory(SUPPRESS_SYNC);
         } catch (JSONException e) {
             handleException("task-save-json", e);
         } catch (IOException e) {
-            if (notPermanentError(e))
-                addFailedPush(new FailedPush(PUSH_TYPE_TASK, task.getId()));
             handleException("task-save-io", e);
+            return !notPermanentError(e);
         }
+        return true;
     }
 
     /**
@@ -399,7 +432,7 @@ public final class ActFmSyncService {
      */
     public void pushTask(long taskId) {
         Task task = taskService.fetchById(taskId, Task.PROPERTIES);
-        pushTaskOnSave(task, task.getMergedValues());
+        pushTaskOnSave(task, task.getMergedValues(), true, false);
     }
 
     /**
@@ -434,13 +467,21 @@ public final class ActFmSyncService {
      * @param setValues
      */
     public void pushTagDataOnSave(TagData tagData, ContentValues values) {
+        if(!sendTagData(tagData, values))
+            retryPush(PUSH_TYPE_TAG, tagData.getId(), values);
+    }
+
+    /**
+     * @return false if the push failed and should be retried
+     */
+    private boolean sendTagData(TagData tagData, ContentValues values) {
         long remoteId;
         if(tagData.containsNonNullValue(TagData.REMOTE_ID))
             remoteId = tagData.getValue(TagData.REMOTE_ID);
         else {
             TagData forRemote = tagDataService.fetchById(tagData.getId(), TagData.REMOTE_ID);
             if(forRemote == null)
-                return;
+                return true;
             remoteId = forRemote.getValue(TagData.REMOTE_ID);
         }
         boolean newlyCreated = remoteId == 0;
@@ -489,20 +530,22 @@ public final class ActFmSyncService {
         }
 
         if(params.size() == 0 || !checkForToken())
-            return;
+            return true;
 
         if(!newlyCreated) {
             params.add("id"); params.add(remoteId);
         }
 
         String error = null;
+        boolean done = true;
         try {
             params.add("token"); params.add(token);
             JSONObject result = actFmInvoker.invoke("tag_save", params.toArray(new Object[params.size()]));
             if(newlyCreated) {
                 tagData.setValue(TagData.REMOTE_ID, result.optLong("id"));
-                Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+                tagData.putTransitory(SUPPRESS_SYNC, true);
                 tagDataDao.saveExisting(tagData);
+                tagData.checkAndClearTransitory(SUPPRESS_SYNC);
             }
         } catch (ActFmServiceException e) {
             handleException("tag-save", e);
@@ -516,14 +559,13 @@ public final class ActFmSyncService {
                 handleException("refetch-error-tag", e);
             }
         } catch (IOException e) {
-            addFailedPush(new FailedPush(PUSH_TYPE_TAG, tagData.getId()));
             handleException("tag-save", e);
             error = e.getMessage();
+            done = false;
         }
-        if(!Flags.checkAndClear(Flags.TOAST_ON_SAVE))
-            return;
-
-        toastSuccessOrFailure(error);
+        if(Flags.checkAndClear(Flags.TOAST_ON_SAVE))
+            toastSuccessOrFailure(error);
+        return done;
     }
 
     /**
@@ -561,7 +603,7 @@ public final class ActFmSyncService {
                     JSONObject item = list.getJSONObject(i);
                     readIds(locals, item, remote);
                     JsonHelper.tagFromJson(item, remote);
-                    Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+                    remote.putTransitory(SUPPRESS_SYNC, true);
                     tagDataService.save(remote);
                 }
             }
@@ -597,8 +639,9 @@ public final class ActFmSyncService {
                     "token", token);
 
         JsonHelper.tagFromJson(result, tagData);
-        Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+        tagData.putTransitory(SUPPRESS_SYNC, true);
         tagDataService.save(tagData);
+        tagData.checkAndClearTransitory(SUPPRESS_SYNC);
     }
 
     /**
@@ -619,8 +662,9 @@ public final class ActFmSyncService {
 
         ArrayList<Metadata> metadata = new ArrayList<Metadata>();
         JsonHelper.taskFromJson(result, task, metadata);
-        Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+        task.putTransitory(SUPPRESS_SYNC, true);
         taskService.save(task);
+        task.checkAndClearTransitory(SUPPRESS_SYNC);
         metadataService.synchronizeMetadata(task.getId(), metadata, Metadata.KEY.eq(TagService.KEY));
     }
 
@@ -675,7 +719,7 @@ public final class ActFmSyncService {
                     }
 
 
-                    Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+                    remote.putTransitory(SUPPRESS_SYNC, true);
                     taskService.save(remote);
                     metadataService.synchronizeMetadata(remote.getId(), metadata, MetadataCriteria.withKey(TagService.KEY));
                     remote.clear();
@@ -713,7 +757,7 @@ public final class ActFmSyncService {
                     readIds(locals, item, remote);
                     JsonHelper.updateFromJson(item, remote);
 
-                    Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+                    remote.putTransitory(SUPPRESS_SYNC, true);
                     if(remote.getId() == AbstractModel.NO_ID)
                         updateDao.createNew(remote);
                     else
@@ -748,7 +792,7 @@ public final class ActFmSyncService {
                     readIds(locals, item, remote);
                     JsonHelper.updateFromJson(item, remote);
 
-                    Flags.set(Flags.ACTFM_SUPPRESS_SYNC);
+                    remote.putTransitory(SUPPRESS_SYNC, true);
                     if(remote.getId() == AbstractModel.NO_ID)
                         updateDao.createNew(remote);
                     else
@@ -849,8 +893,8 @@ public final class ActFmSyncService {
             try {
                 HashMap<Long, Long> map = new HashMap<Long, Long>(cursor.getCount());
                 for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    long remoteId = cursor.get(remoteIdProperty);
-                    long localId = cursor.get(localIdProperty);
+                    long remoteId = cursor.getLong(remoteIdProperty);
+                    long localId = cursor.getLong(localIdProperty);
 
                     if(map.containsKey(remoteId))
                         dao.delete(map.get(remoteId));
@@ -49,7 +49,7 @@ public class AlarmDetailExposer extends BroadcastReceiver {
         long nextTime = -1;
         try {
             for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                long time = cursor.get(AlarmFields.TIME);
+                long time = cursor.getLong(AlarmFields.TIME);
                 if(time > DateUtilities.now()) {
                     nextTime = time;
                     break;
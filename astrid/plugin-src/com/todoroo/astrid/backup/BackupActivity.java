@@ -8,6 +8,7 @@ import android.widget.Button;
 
 import com.timsu.astrid.R;
 import com.todoroo.andlib.service.ContextManager;
+import com.todoroo.andlib.utility.Preferences;
 
 public class BackupActivity extends Activity {
 
@@ -60,7 +61,7 @@ public class BackupActivity extends Activity {
                 setResult(RESULT_OK);
                 finish();
             }
-        }, null);
+        }, null, Preferences.getBoolean(R.string.backup_BPr_binary_key, false));
     }
 
 }
@@ -0,0 +1,243 @@
+package com.todoroo.astrid.backup;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.todoroo.andlib.data.Property;
+import com.todoroo.andlib.sql.Criterion;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+
+/**
+ * Helpers for incremental backup chains. A chain is a full snapshot named
+ * like a regular automatic backup, followed by increments that hold the
+ * tasks changed since the previous file of the chain and tombstones for
+ * the tasks that went away. Increments carry the date of their snapshot
+ * in their file name, so a chain can be found from any of its files.
+ * <p>
+ * Metadata has no modification date, so a fingerprint of each task's
+ * metadata is kept from one backup to the next. Tasks whose fingerprint
+ * changed are written again with all of their metadata, which replaces
+ * the metadata restored from earlier files of the chain. This covers
+ * metadata that was updated or deleted without touching its task.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public class BackupChain {
+
+    /** matches increment file names. Group 1 is the snapshot date */
+    private static final Pattern INCREMENT_PATTERN =
+        Pattern.compile("auto\\.([-\\d]+)\\.[-\\d]+\\.inc\\.xml"); //$NON-NLS-1$
+
+    /**
+     * @return true if the given file is an increment of a backup chain
+     */
+    public static boolean isIncrement(File file) {
+        return INCREMENT_PATTERN.matcher(file.getName()).matches();
+    }
+
+    /**
+     * Find the files to replay to restore the given increment: its
+     * snapshot and every increment of the chain up to and including it
+     *
+     * @return files in replay order
+     */
+    public static File[] chainFiles(final File increment) {
+        Matcher matcher = INCREMENT_PATTERN.matcher(increment.getName());
+        if(!matcher.matches())
+            return new File[] { increment };
+        final String base = matcher.group(1);
+        File directory = increment.getAbsoluteFile().getParentFile();
+
+        File[] increments = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                Matcher fileMatcher = INCREMENT_PATTERN.matcher(file.getName());
+                return fileMatcher.matches() && base.equals(fileMatcher.group(1)) &&
+                    file.getName().compareTo(increment.getName()) <= 0;
+            }
+        });
+        if(increments == null)
+            increments = new File[0];
+        Arrays.sort(increments, new Comparator<File>() {
+            public int compare(File file1, File file2) {
+                return file1.getName().compareTo(file2.getName());
+            }
+        });
+
+        File[] result = new File[increments.length + 1];
+        result[0] = new File(directory, String.format(BackupConstants.BACKUP_FILE_NAME, base));
+        System.arraycopy(increments, 0, result, 1, increments.length);
+        return result;
+    }
+
+    /**
+     * Delete increments whose snapshot no longer exists, since they can
+     * not be replayed anymore
+     */
+    public static void deleteOrphanIncrements(File directory) {
+        File[] files = directory.listFiles();
+        if(files == null)
+            return;
+        for(File file : files) {
+            Matcher matcher = INCREMENT_PATTERN.matcher(file.getName());
+            if(!matcher.matches())
+                continue;
+            File base = new File(directory, String.format(BackupConstants.BACKUP_FILE_NAME,
+                    matcher.group(1)));
+            if(!base.exists() && !file.delete())
+                Log.i("astrid-backups", "Unable to delete: " + file); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * @param metadataChanged ids of tasks whose metadata changed, from
+     *        {@link #changedFingerprints(Map, Map)}
+     * @return criterion for tasks that were modified at or after the given
+     *         time or whose metadata changed
+     */
+    public static Criterion changedSince(long since, Long[] metadataChanged) {
+        if(metadataChanged.length == 0)
+            return Task.MODIFICATION_DATE.gt(since - 1);
+        return Criterion.or(Task.MODIFICATION_DATE.gt(since - 1),
+                Task.ID.in(metadataChanged));
+    }
+
+    // --- metadata fingerprints
+
+    /**
+     * Add a metadata item to the fingerprint of its task. Items must be
+     * added in the same order every time, e.g. ordered by id
+     */
+    public static void addFingerprint(Map<Long, Integer> fingerprints, Metadata metadata) {
+        long task = metadata.getValue(Metadata.TASK);
+        Integer hash = fingerprints.get(task);
+        int result = hash == null ? 1 : hash;
+        for(Property<?> property : Metadata.PROPERTIES) {
+            Object value = metadata.getValue(property);
+            result = 31 * result + (value == null ? 0 : value.hashCode());
+        }
+        fingerprints.put(task, result);
+    }
+
+    /**
+     * Encode fingerprints as "task:hash" pairs
+     */
+    public static String encodeFingerprints(Map<Long, Integer> fingerprints) {
+        StringBuilder builder = new StringBuilder();
+        for(Map.Entry<Long, Integer> entry : fingerprints.entrySet()) {
+            if(builder.length() > 0)
+                builder.append(',');
+            builder.append(entry.getKey()).append(':').append(
+                    Integer.toString(entry.getValue(), Character.MAX_RADIX));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decode fingerprints written by {@link #encodeFingerprints(Map)}
+     */
+    public static HashMap<Long, Integer> decodeFingerprints(String encoded) {
+        HashMap<Long, Integer> fingerprints = new HashMap<Long, Integer>();
+        if(TextUtils.isEmpty(encoded))
+            return fingerprints;
+        for(String pair : encoded.split(",")) { //$NON-NLS-1$
+            int colon = pair.indexOf(':');
+            fingerprints.put(Long.parseLong(pair.substring(0, colon)),
+                    Integer.parseInt(pair.substring(colon + 1), Character.MAX_RADIX));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return ids of tasks whose fingerprint differs, including tasks that
+     *         gained or lost all of their metadata
+     */
+    public static Long[] changedFingerprints(Map<Long, Integer> previous,
+            Map<Long, Integer> current) {
+        ArrayList<Long> changed = new ArrayList<Long>();
+        for(Map.Entry<Long, Integer> entry : current.entrySet())
+            if(!entry.getValue().equals(previous.get(entry.getKey())))
+                changed.add(entry.getKey());
+        for(Long task : previous.keySet())
+            if(!current.containsKey(task))
+                changed.add(task);
+        return changed.toArray(new Long[changed.size()]);
+    }
+
+    // --- id sets
+
+    /**
+     * Encode sorted ids as ranges, e.g. "1-5,7,9-12". Task ids are mostly
+     * contiguous, so this stays small even for large task lists
+     */
+    public static String encodeIds(long[] ids) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < ids.length; i++) {
+            int end = i;
+            while(end + 1 < ids.length && ids[end + 1] == ids[end] + 1)
+                end++;
+            if(builder.length() > 0)
+                builder.append(',');
+            builder.append(ids[i]);
+            if(end > i)
+                builder.append('-').append(ids[end]);
+            i = end;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decode ids written by {@link #encodeIds(long[])}
+     *
+     * @return sorted ids
+     */
+    public static long[] decodeIds(String encoded) {
+        if(TextUtils.isEmpty(encoded))
+            return new long[0];
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for(String range : encoded.split(",")) { //$NON-NLS-1$
+            int dash = range.indexOf('-');
+            if(dash < 0) {
+                ids.add(Long.parseLong(range));
+                continue;
+            }
+            long last = Long.parseLong(range.substring(dash + 1));
+            for(long id = Long.parseLong(range.substring(0, dash)); id <= last; id++)
+                ids.add(id);
+        }
+        long[] result = new long[ids.size()];
+        for(int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    /**
+     * @return sorted ids in previous that are not in current
+     */
+    public static long[] removedIds(long[] previous, long[] current) {
+        ArrayList<Long> removed = new ArrayList<Long>();
+        int j = 0;
+        for(long id : previous) {
+            while(j < current.length && current[j] < id)
+                j++;
+            if(j >= current.length || current[j] != id)
+                removed.add(id);
+        }
+        long[] result = new long[removed.size()];
+        for(int i = 0; i < result.length; i++)
+            result[i] = removed.get(i);
+        return result;
+    }
+
+}
@@ -36,6 +36,20 @@ public class BackupConstants {
     /** Tag containing a metadata item */
     public static final String METADATA_TAG = "metadata";
 
+    // --- incremental backup chains
+
+    /** Attribute holding the snapshot date of the chain a file belongs to */
+    public static final String ASTRID_ATTR_CHAIN = "chain";
+
+    /** Attribute holding the time an increment starts from */
+    public static final String ASTRID_ATTR_SINCE = "since";
+
+    /** Attribute holding the id a task has in the backed up database */
+    public static final String TASK_ATTR_BACKUP_ID = "backup_id";
+
+    /** Tag containing a tombstone for a task that no longer exists */
+    public static final String DELETED_TAG = "deleted";
+
     // --- format 1
 
     public static final String TAG_TAG = "tag";
@@ -56,6 +70,12 @@ public class BackupConstants {
 
     public static final String BACKUP_FILE_NAME = "auto.%s.xml";
 
+    public static final String EXPORT_BINARY_FILE_NAME = "user.%s.astb";
+
+    public static final String BACKUP_BINARY_FILE_NAME = "auto.%s.astb";
+
+    public static final String INCREMENT_FILE_NAME = "auto.%s.%s.inc.xml";
+
     // --- methods
 
     /**
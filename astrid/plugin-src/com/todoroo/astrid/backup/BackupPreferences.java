@@ -30,6 +30,21 @@ public class BackupPreferences extends TodorooPreferenceActivity {
 
     static final String PREF_BACKUP_LAST_ERROR = "backupError"; //$NON-NLS-1$
 
+    /** snapshot date of the current backup chain */
+    static final String PREF_BACKUP_CHAIN_BASE = "backupChainBase"; //$NON-NLS-1$
+
+    /** time the last backup of the chain started */
+    static final String PREF_BACKUP_CHAIN_MARK = "backupChainMark"; //$NON-NLS-1$
+
+    /** number of increments written since the snapshot */
+    static final String PREF_BACKUP_CHAIN_LENGTH = "backupChainLength"; //$NON-NLS-1$
+
+    /** encoded ids of the tasks at the last backup of the chain */
+    static final String PREF_BACKUP_CHAIN_IDS = "backupChainIds"; //$NON-NLS-1$
+
+    /** encoded metadata fingerprints of the tasks at the last backup of the chain */
+    static final String PREF_BACKUP_CHAIN_METADATA = "backupChainMetadata"; //$NON-NLS-1$
+
     private int statusColor = Color.BLACK;
 
     @Override
@@ -89,6 +104,24 @@ public class BackupPreferences extends TodorooPreferenceActivity {
                 preference.setSummary(R.string.backup_BPr_auto_enabled);
         }
 
+        // incremental
+        else if (r.getString(R.string.backup_BPr_incremental_key).equals(
+                preference.getKey())) {
+            if (value != null && (Boolean)value)
+                preference.setSummary(R.string.backup_BPr_incremental_enabled);
+            else
+                preference.setSummary(R.string.backup_BPr_incremental_disabled);
+        }
+
+        // binary
+        else if (r.getString(R.string.backup_BPr_binary_key).equals(
+                preference.getKey())) {
+            if (value != null && (Boolean)value)
+                preference.setSummary(R.string.backup_BPr_binary_enabled);
+            else
+                preference.setSummary(R.string.backup_BPr_binary_disabled);
+        }
+
         // status
         else if (r.getString(R.string.backup_BPr_status_key).equals(preference.getKey())) {
             String status;
@@ -36,9 +36,14 @@ public class BackupService extends Service {
      */
     private static final long BACKUP_INTERVAL = AlarmManager.INTERVAL_DAY;
     public static final String BACKUP_ACTION = "backup"; //$NON-NLS-1$
-    public static final String BACKUP_FILE_NAME_REGEX = "auto\\.[-\\d]+\\.xml"; //$NON-NLS-1$
+    public static final String BACKUP_FILE_NAME_REGEX = "auto\\.[-\\d]+\\.(xml|astb)"; //$NON-NLS-1$
     private static final int DAYS_TO_KEEP_BACKUP = 7;
 
+    /**
+     * number of increments written before the next full snapshot
+     */
+    private static final int INCREMENTS_PER_SNAPSHOT = 6;
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -77,8 +82,13 @@ public class BackupService extends Service {
                 Log.e("error-deleting", "Error deleting old backups", e); //$NON-NLS-1$ //$NON-NLS-2$
             }
 
-            TasksXmlExporter.exportTasks(context, true, null,
-                    backupDirectorySetting.getBackupDirectory());
+            File backupDirectory = backupDirectorySetting.getBackupDirectory();
+            if(Preferences.getBoolean(R.string.backup_BPr_incremental_key, false))
+                TasksXmlExporter.exportChain(context, null, backupDirectory,
+                        canWriteIncrement(backupDirectory));
+            else
+                TasksXmlExporter.exportTasks(context, true, null, backupDirectory,
+                        Preferences.getBoolean(R.string.backup_BPr_binary_key, false));
 
         } catch (Exception e) {
             Log.e("error-backup", "Error starting backups", e); //$NON-NLS-1$ //$NON-NLS-2$
@@ -86,6 +96,20 @@ public class BackupService extends Service {
         }
     }
 
+    /**
+     * @return true if the current backup chain can be extended, false if a
+     *         new snapshot is due or the chain's snapshot is gone
+     */
+    private boolean canWriteIncrement(File backupDirectory) {
+        String base = Preferences.getStringValue(BackupPreferences.PREF_BACKUP_CHAIN_BASE);
+        if(base == null || backupDirectory == null)
+            return false;
+        if(Preferences.getInt(BackupPreferences.PREF_BACKUP_CHAIN_LENGTH, 0) >= INCREMENTS_PER_SNAPSHOT)
+            return false;
+        return new File(backupDirectory, String.format(BackupConstants.BACKUP_FILE_NAME,
+                base)).exists();
+    }
+
     public static void scheduleService(Context context) {
         AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         PendingIntent pendingIntent = PendingIntent.getService(context, 0,
@@ -140,6 +164,8 @@ public class BackupService extends Service {
             if(!files[i].delete())
                 Log.i("astrid-backups", "Unable to delete: " + files[i]); //$NON-NLS-1$ //$NON-NLS-2$
         }
+
+        BackupChain.deleteOrphanIncrements(astridDir);
     }
 
     /**
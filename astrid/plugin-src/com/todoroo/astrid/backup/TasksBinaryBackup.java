@@ -0,0 +1,393 @@
+package com.todoroo.astrid.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.todoroo.andlib.data.AbstractModel;
+import com.todoroo.andlib.data.Property;
+import com.todoroo.andlib.data.Property.DoubleProperty;
+import com.todoroo.andlib.data.Property.IntegerProperty;
+import com.todoroo.andlib.data.Property.LongProperty;
+import com.todoroo.andlib.data.Property.StringProperty;
+
+/**
+ * Compact binary backup format. A backup file is laid out as:
+ * <ul>
+ * <li>the magic bytes "ASTB", a format version byte and a flags byte
+ * <li>if {@link #FLAG_DEFLATE} is set, the rest of the file is deflated
+ * <li>the application version as an int
+ * <li>a property dictionary for tasks and one for metadata, each a short
+ * count followed by the name and type of every property
+ * <li>records, each a type byte and an int length followed by the payload.
+ * A metadata record belongs to the task record before it
+ * <li>a {@link #RECORD_END} byte
+ * </ul>
+ * A payload holds one value for every property in the dictionary, in
+ * order, each preceded by a byte telling whether the value is present.
+ * Readers look up properties by name, so columns added or removed in later
+ * versions are skipped rather than misread.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public class TasksBinaryBackup {
+
+    // Do NOT edit these constants! You will break compatibility with old backups
+
+    private static final byte[] MAGIC = { 'A', 'S', 'T', 'B' };
+
+    /** current format version */
+    public static final int FORMAT = 1;
+
+    /** flag indicating the body of the backup is deflated */
+    public static final int FLAG_DEFLATE = 1;
+
+    public static final int RECORD_END = 0;
+    public static final int RECORD_TASK = 1;
+    public static final int RECORD_METADATA = 2;
+
+    private static final byte TYPE_INTEGER = 'I';
+    private static final byte TYPE_LONG = 'L';
+    private static final byte TYPE_DOUBLE = 'D';
+    private static final byte TYPE_STRING = 'S';
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    /**
+     * @return true if the given file starts with the binary backup magic
+     */
+    public static boolean isBinaryBackup(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] header = new byte[MAGIC.length];
+            int read = 0;
+            while(read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if(count < 0)
+                    return false;
+                read += count;
+            }
+            return Arrays.equals(MAGIC, header);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte typeOf(Property<?> property) {
+        if(property instanceof IntegerProperty)
+            return TYPE_INTEGER;
+        if(property instanceof LongProperty)
+            return TYPE_LONG;
+        if(property instanceof DoubleProperty)
+            return TYPE_DOUBLE;
+        if(property instanceof StringProperty)
+            return TYPE_STRING;
+        throw new IllegalArgumentException("Unknown property type " + property); //$NON-NLS-1$
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string. Unlike
+     * {@link DataOutputStream#writeUTF(String)}, this has no 64k limit
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ENCODING);
+    }
+
+    // --- writer
+
+    /**
+     * Writes a binary backup to a stream
+     */
+    public static class Writer {
+
+        private final DeflaterOutputStream deflater;
+        private final DataOutputStream out;
+        private final Property<?>[] taskProperties;
+        private final Property<?>[] metadataProperties;
+
+        /** payload of the record being written */
+        private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(512);
+        private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+        /**
+         * @param output stream to write to. Closed by {@link #close()}
+         * @param deflate whether to compress the backup
+         * @param appVersion application version
+         * @param taskProperties task properties to write
+         * @param metadataProperties metadata properties to write
+         */
+        public Writer(OutputStream output, boolean deflate, int appVersion,
+                Property<?>[] taskProperties, Property<?>[] metadataProperties)
+                throws IOException {
+            this.taskProperties = taskProperties;
+            this.metadataProperties = metadataProperties;
+
+            OutputStream buffered = new BufferedOutputStream(output, BUFFER_SIZE);
+            buffered.write(MAGIC);
+            buffered.write(FORMAT);
+            buffered.write(deflate ? FLAG_DEFLATE : 0);
+            if(deflate) {
+                deflater = new DeflaterOutputStream(buffered,
+                        new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE);
+                out = new DataOutputStream(deflater);
+            } else {
+                deflater = null;
+                out = new DataOutputStream(buffered);
+            }
+
+            out.writeInt(appVersion);
+            writeDictionary(taskProperties);
+            writeDictionary(metadataProperties);
+        }
+
+        private void writeDictionary(Property<?>[] properties) throws IOException {
+            out.writeShort(properties.length);
+            for(Property<?> property : properties) {
+                out.writeUTF(property.name);
+                out.writeByte(typeOf(property));
+            }
+        }
+
+        public void writeTask(AbstractModel task) throws IOException {
+            writeRecord(RECORD_TASK, task, taskProperties);
+        }
+
+        public void writeMetadata(AbstractModel metadata) throws IOException {
+            writeRecord(RECORD_METADATA, metadata, metadataProperties);
+        }
+
+        private void writeRecord(int type, AbstractModel model,
+                Property<?>[] properties) throws IOException {
+            recordBytes.reset();
+            for(Property<?> property : properties) {
+                Object value;
+                try {
+                    value = model.getValue(property);
+                } catch (UnsupportedOperationException e) {
+                    // didn't read this value
+                    value = null;
+                }
+                if(value == null) {
+                    record.writeBoolean(false);
+                    continue;
+                }
+                record.writeBoolean(true);
+                switch(typeOf(property)) {
+                case TYPE_INTEGER:
+                    record.writeInt(((Number) value).intValue());
+                    break;
+                case TYPE_LONG:
+                    record.writeLong(((Number) value).longValue());
+                    break;
+                case TYPE_DOUBLE:
+                    record.writeDouble(((Number) value).doubleValue());
+                    break;
+                default:
+                    writeString(record, value.toString());
+                }
+            }
+            out.writeByte(type);
+            out.writeInt(recordBytes.size());
+            recordBytes.writeTo(out);
+        }
+
+        /**
+         * Finish the backup and close the underlying stream
+         */
+        public void close() throws IOException {
+            out.writeByte(RECORD_END);
+            if(deflater != null)
+                deflater.finish();
+            out.close();
+        }
+    }
+
+    // --- reader
+
+    /**
+     * Reads a binary backup from a stream
+     */
+    public static class Reader {
+
+        private final DataInputStream in;
+        private final int appVersion;
+        private final String[] taskNames, metadataNames;
+        private final byte[] taskTypes, metadataTypes;
+
+        /** current properties for the names in each dictionary */
+        private final Property<?>[] taskProperties, metadataProperties;
+
+        /** type of the record waiting to be read */
+        private int recordType = RECORD_END;
+        private int recordLength = 0;
+        private boolean recordRead = true;
+
+        /**
+         * @param input stream to read from. Closed by {@link #close()}
+         * @param currentTaskProperties task properties to read into
+         * @param currentMetadataProperties metadata properties to read into
+         */
+        @SuppressWarnings("nls")
+        public Reader(InputStream input, Property<?>[] currentTaskProperties,
+                Property<?>[] currentMetadataProperties) throws IOException {
+            InputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+            byte[] header = new byte[MAGIC.length + 2];
+            new DataInputStream(buffered).readFully(header);
+            for(int i = 0; i < MAGIC.length; i++)
+                if(header[i] != MAGIC[i])
+                    throw new IOException("Not an Astrid binary backup");
+            int format = header[MAGIC.length];
+            if(format > FORMAT)
+                throw new IOException("Unsupported binary backup format " + format);
+            int flags = header[MAGIC.length + 1];
+            if((flags & FLAG_DEFLATE) != 0)
+                in = new DataInputStream(new InflaterInputStream(buffered));
+            else
+                in = new DataInputStream(buffered);
+
+            appVersion = in.readInt();
+
+            taskNames = new String[in.readShort()];
+            taskTypes = new byte[taskNames.length];
+            readDictionary(taskNames, taskTypes);
+            metadataNames = new String[in.readShort()];
+            metadataTypes = new byte[metadataNames.length];
+            readDictionary(metadataNames, metadataTypes);
+
+            taskProperties = resolve(taskNames, taskTypes, currentTaskProperties);
+            metadataProperties = resolve(metadataNames, metadataTypes, currentMetadataProperties);
+        }
+
+        private void readDictionary(String[] names, byte[] types) throws IOException {
+            for(int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+                types[i] = in.readByte();
+            }
+        }
+
+        /**
+         * Match dictionary entries to current properties by name and type
+         */
+        private static Property<?>[] resolve(String[] names, byte[] types,
+                Property<?>[] current) {
+            Property<?>[] resolved = new Property<?>[names.length];
+            for(int i = 0; i < names.length; i++) {
+                for(Property<?> property : current) {
+                    if(property.name.equals(names[i]) && typeOf(property) == types[i]) {
+                        resolved[i] = property;
+                        break;
+                    }
+                }
+            }
+            return resolved;
+        }
+
+        /**
+         * @return version of the application that wrote this backup
+         */
+        public int getAppVersion() {
+            return appVersion;
+        }
+
+        /**
+         * Advance to the next record, skipping the current one if it was
+         * not read
+         *
+         * @return type of the next record, or {@link #RECORD_END}
+         */
+        public int next() throws IOException {
+            if(!recordRead)
+                skipFully(recordLength);
+            recordType = in.readByte();
+            if(recordType == RECORD_END)
+                return RECORD_END;
+            recordLength = in.readInt();
+            recordRead = false;
+            return recordType;
+        }
+
+        private void skipFully(int length) throws IOException {
+            while(length > 0) {
+                int skipped = (int) in.skip(length);
+                if(skipped <= 0) {
+                    if(in.read() < 0)
+                        throw new EOFException();
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+        }
+
+        /**
+         * Read the current task record into the given model
+         */
+        public void readTask(AbstractModel task) throws IOException {
+            if(recordType != RECORD_TASK)
+                throw new IllegalStateException("Not a task record: " + recordType); //$NON-NLS-1$
+            readRecord(task, taskTypes, taskProperties);
+        }
+
+        /**
+         * Read the current metadata record into the given model
+         */
+        public void readMetadata(AbstractModel metadata) throws IOException {
+            if(recordType != RECORD_METADATA)
+                throw new IllegalStateException("Not a metadata record: " + recordType); //$NON-NLS-1$
+            readRecord(metadata, metadataTypes, metadataProperties);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readRecord(AbstractModel model, byte[] types,
+                Property<?>[] properties) throws IOException {
+            recordRead = true;
+            for(int i = 0; i < types.length; i++) {
+                if(!in.readBoolean())
+                    continue;
+                Object value;
+                switch(types[i]) {
+                case TYPE_INTEGER:
+                    value = in.readInt();
+                    break;
+                case TYPE_LONG:
+                    value = in.readLong();
+                    break;
+                case TYPE_DOUBLE:
+                    value = in.readDouble();
+                    break;
+                default:
+                    value = readString(in);
+                }
+                if(properties[i] != null)
+                    model.setValue((Property<Object>) properties[i], value);
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
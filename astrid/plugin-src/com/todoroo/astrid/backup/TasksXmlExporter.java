@@ -1,8 +1,12 @@
 package com.todoroo.astrid.backup;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.xmlpull.v1.XmlSerializer;
 
@@ -20,13 +24,13 @@ import com.todoroo.andlib.data.Property;
 import com.todoroo.andlib.data.Property.PropertyVisitor;
 import com.todoroo.andlib.data.TodorooCursor;
 import com.todoroo.andlib.service.ExceptionService;
+import com.todoroo.andlib.sql.Criterion;
 import com.todoroo.andlib.sql.Order;
 import com.todoroo.andlib.sql.Query;
 import com.todoroo.andlib.utility.DateUtilities;
 import com.todoroo.andlib.utility.DialogUtilities;
 import com.todoroo.andlib.utility.Preferences;
 import com.todoroo.astrid.core.PluginServices;
-import com.todoroo.astrid.dao.MetadataDao.MetadataCriteria;
 import com.todoroo.astrid.data.Metadata;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.service.MetadataService;
@@ -47,15 +51,59 @@ public class TasksXmlExporter {
      */
     public static void exportTasks(Context context, boolean isService,
             Runnable runAfterExport, File backupDirectoryOverride) {
+        exportTasks(context, isService, runAfterExport, backupDirectoryOverride,
+                false);
+    }
+
+    /**
+     * Export tasks to the given file format
+     *
+     * @param context context
+     * @param isService if false, displays ui dialogs
+     * @param runAfterExport runnable to run after exporting
+     * @param backupDirectoryOverride new backupdirectory, or null to use default
+     * @param binary if true, writes a {@link TasksBinaryBackup} instead of xml
+     */
+    public static void exportTasks(Context context, boolean isService,
+            Runnable runAfterExport, File backupDirectoryOverride, boolean binary) {
         new TasksXmlExporter(context, isService, runAfterExport,
-                backupDirectoryOverride);
+                backupDirectoryOverride, binary, CHAIN_NONE);
+    }
+
+    /**
+     * Write the next file of the incremental backup chain in the background
+     *
+     * @param context context
+     * @param runAfterExport runnable to run after exporting
+     * @param backupDirectory backup directory
+     * @param increment if true, writes the tasks changed since the last
+     *        backup of the chain. Otherwise writes a snapshot that starts a
+     *        new chain
+     */
+    public static void exportChain(Context context, Runnable runAfterExport,
+            File backupDirectory, boolean increment) {
+        new TasksXmlExporter(context, true, runAfterExport, backupDirectory,
+                false, increment ? CHAIN_INCREMENT : CHAIN_SNAPSHOT);
     }
 
     // --- implementation
 
     private static final int FORMAT = 2;
 
+    /** size of the output buffer */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** number of progress updates posted over the whole export */
+    private static final int PROGRESS_STEPS = 100;
+
+    private static final int CHAIN_NONE = 0;
+    private static final int CHAIN_SNAPSHOT = 1;
+    private static final int CHAIN_INCREMENT = 2;
+
     private final Context context;
+    private final boolean binary;
+    private final int chainMode;
+    private String chainBase;
     private int exportCount = 0;
     private XmlSerializer xml;
     private final TaskService taskService = PluginServices.getTaskService();
@@ -76,8 +124,11 @@ public class TasksXmlExporter {
     }
 
     private TasksXmlExporter(final Context context, final boolean isService,
-            final Runnable runAfterExport, File backupDirectoryOverride) {
+            final Runnable runAfterExport, File backupDirectoryOverride,
+            boolean binary, int chainMode) {
         this.context = context;
+        this.binary = binary;
+        this.chainMode = chainMode;
         this.exportCount = 0;
         this.backupDirectory = backupDirectoryOverride == null ?
                 BackupConstants.defaultExportDirectory() : backupDirectoryOverride;
@@ -104,8 +155,14 @@ public class TasksXmlExporter {
                             isService);
                     int tasks = taskService.countTasks();
 
-                    if(tasks > 0)
-                        doTasksExport(output);
+                    if(chainMode != CHAIN_NONE)
+                        doChainExport(output);
+                    else if(tasks > 0) {
+                        if(binary)
+                            doBinaryExport(output);
+                        else
+                            doTasksExport(output);
+                    }
 
                     Preferences.setLong(BackupPreferences.PREF_BACKUP_LAST_DATE,
                             DateUtilities.now());
@@ -130,68 +187,254 @@ public class TasksXmlExporter {
     }
 
 
-    @SuppressWarnings("nls")
     private void doTasksExport(String output) throws IOException {
+        writeXml(output, Criterion.all, null);
+    }
+
+    /**
+     * Write a snapshot or an increment of the backup chain and move the
+     * chain's high-water mark to the time the export started
+     */
+    private void doChainExport(String output) throws IOException {
+        long mark = DateUtilities.now();
+        long[] ids = readTaskIds();
+        HashMap<Long, Integer> fingerprints = readMetadataFingerprints();
+
+        if(chainMode == CHAIN_INCREMENT) {
+            long since = Preferences.getLong(BackupPreferences.PREF_BACKUP_CHAIN_MARK, 0);
+            long[] previous = BackupChain.decodeIds(Preferences.getStringValue(
+                    BackupPreferences.PREF_BACKUP_CHAIN_IDS));
+            Long[] metadataChanged = BackupChain.changedFingerprints(
+                    BackupChain.decodeFingerprints(Preferences.getStringValue(
+                            BackupPreferences.PREF_BACKUP_CHAIN_METADATA)), fingerprints);
+            writeXml(output, BackupChain.changedSince(since, metadataChanged),
+                    BackupChain.removedIds(previous, ids));
+            Preferences.setInt(BackupPreferences.PREF_BACKUP_CHAIN_LENGTH,
+                    Preferences.getInt(BackupPreferences.PREF_BACKUP_CHAIN_LENGTH, 0) + 1);
+        } else {
+            writeXml(output, Criterion.all, new long[0]);
+            Preferences.setString(BackupPreferences.PREF_BACKUP_CHAIN_BASE, chainBase);
+            Preferences.setInt(BackupPreferences.PREF_BACKUP_CHAIN_LENGTH, 0);
+        }
+
+        Preferences.setLong(BackupPreferences.PREF_BACKUP_CHAIN_MARK, mark);
+        Preferences.setString(BackupPreferences.PREF_BACKUP_CHAIN_IDS,
+                BackupChain.encodeIds(ids));
+        Preferences.setString(BackupPreferences.PREF_BACKUP_CHAIN_METADATA,
+                BackupChain.encodeFingerprints(fingerprints));
+    }
+
+    /**
+     * @return fingerprint of the metadata of each task that has any
+     */
+    private HashMap<Long, Integer> readMetadataFingerprints() {
+        HashMap<Long, Integer> fingerprints = new HashMap<Long, Integer>();
+        TodorooCursor<Metadata> cursor = metadataService.query(Query.select(
+                Metadata.PROPERTIES).orderBy(Order.asc(Metadata.ID)));
+        try {
+            Metadata metadata = new Metadata();
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                metadata.readFromCursor(cursor);
+                BackupChain.addFingerprint(fingerprints, metadata);
+            }
+        } finally {
+            cursor.close();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return ids of all tasks, sorted
+     */
+    private long[] readTaskIds() {
+        TodorooCursor<Task> cursor = taskService.query(Query.select(Task.ID).orderBy(
+                Order.asc(Task.ID)));
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for(int i = 0; i < ids.length; i++) {
+                cursor.moveToNext();
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Write an xml backup
+     *
+     * @param output file name
+     * @param criterion tasks to write
+     * @param deleted if not null, writes a file of the backup chain with
+     *        tombstones for the given task ids
+     */
+    @SuppressWarnings("nls")
+    private void writeXml(String output, Criterion criterion,
+            long[] deleted) throws IOException {
+        final boolean chain = deleted != null;
         File xmlFile = new File(output);
         xmlFile.createNewFile();
-        FileOutputStream fos = new FileOutputStream(xmlFile);
-        xml = Xml.newSerializer();
-        xml.setOutput(fos, BackupConstants.XML_ENCODING);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(xmlFile),
+                BUFFER_SIZE);
+        try {
+            xml = Xml.newSerializer();
+            xml.setOutput(out, BackupConstants.XML_ENCODING);
+
+            xml.startDocument(null, null);
+            xml.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+
+            xml.startTag(null, BackupConstants.ASTRID_TAG);
+            xml.attribute(null, BackupConstants.ASTRID_ATTR_VERSION,
+                    Integer.toString(AstridPreferences.getCurrentVersion()));
+            xml.attribute(null, BackupConstants.ASTRID_ATTR_FORMAT,
+                    Integer.toString(FORMAT));
+            if(chain) {
+                xml.attribute(null, BackupConstants.ASTRID_ATTR_CHAIN, chainBase);
+                if(chainMode == CHAIN_INCREMENT)
+                    xml.attribute(null, BackupConstants.ASTRID_ATTR_SINCE, Long.toString(
+                            Preferences.getLong(BackupPreferences.PREF_BACKUP_CHAIN_MARK, 0)));
+            }
 
-        xml.startDocument(null, null);
-        xml.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            serializeTasks(criterion, new ModelWriter() {
+                public void writeTask(Task task) throws IOException {
+                    xml.startTag(null, BackupConstants.TASK_TAG);
+                    if(chain)
+                        xml.attribute(null, BackupConstants.TASK_ATTR_BACKUP_ID,
+                                Long.toString(task.getId()));
+                    serializeModel(task, Task.PROPERTIES, Task.ID);
+                }
 
-        xml.startTag(null, BackupConstants.ASTRID_TAG);
-        xml.attribute(null, BackupConstants.ASTRID_ATTR_VERSION,
-                Integer.toString(AstridPreferences.getCurrentVersion()));
-        xml.attribute(null, BackupConstants.ASTRID_ATTR_FORMAT,
-                Integer.toString(FORMAT));
+                public void writeMetadata(Metadata metadata) throws IOException {
+                    xml.startTag(null, BackupConstants.METADATA_TAG);
+                    serializeModel(metadata, Metadata.PROPERTIES, Metadata.ID, Metadata.TASK);
+                    xml.endTag(null, BackupConstants.METADATA_TAG);
+                }
 
-        serializeTasks();
+                public void endTask() throws IOException {
+                    xml.endTag(null, BackupConstants.TASK_TAG);
+                }
+            });
 
-        xml.endTag(null, BackupConstants.ASTRID_TAG);
-        xml.endDocument();
-        xml.flush();
-        fos.close();
+            if(chain) {
+                for(long id : deleted) {
+                    xml.startTag(null, BackupConstants.DELETED_TAG);
+                    xml.attribute(null, BackupConstants.TASK_ATTR_BACKUP_ID, Long.toString(id));
+                    xml.endTag(null, BackupConstants.DELETED_TAG);
+                }
+            }
+
+            xml.endTag(null, BackupConstants.ASTRID_TAG);
+            xml.endDocument();
+            xml.flush();
+        } finally {
+            out.close();
+        }
     }
 
-    private void serializeTasks() throws IOException {
+    private void doBinaryExport(String output) throws IOException {
+        File file = new File(output);
+        file.createNewFile();
+        final TasksBinaryBackup.Writer writer = new TasksBinaryBackup.Writer(
+                new FileOutputStream(file), true, AstridPreferences.getCurrentVersion(),
+                exportedProperties(Task.PROPERTIES, Task.ID),
+                exportedProperties(Metadata.PROPERTIES, Metadata.ID, Metadata.TASK));
+        try {
+            serializeTasks(Criterion.all, new ModelWriter() {
+                public void writeTask(Task task) throws IOException {
+                    writer.writeTask(task);
+                }
+
+                public void writeMetadata(Metadata metadata) throws IOException {
+                    writer.writeMetadata(metadata);
+                }
+
+                public void endTask() {
+                    // metadata records belong to the task before them
+                }
+            });
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return properties without the excluded ones
+     */
+    static Property<?>[] exportedProperties(Property<?>[] properties, Property<?>... excludes) {
+        ArrayList<Property<?>> result = new ArrayList<Property<?>>(properties.length);
+        outer: for(Property<?> property : properties) {
+            for(Property<?> exclude : excludes)
+                if(property.name.equals(exclude.name))
+                    continue outer;
+            result.add(property);
+        }
+        return result.toArray(new Property<?>[result.size()]);
+    }
+
+    /**
+     * Writes tasks and metadata in an output format
+     */
+    private interface ModelWriter {
+        public void writeTask(Task task) throws IOException;
+        public void writeMetadata(Metadata metadata) throws IOException;
+        public void endTask() throws IOException;
+    }
+
+    /**
+     * Writes matching tasks and their metadata. Tasks are read ordered by id
+     * and metadata ordered by task, so both cursors are walked once side by
+     * side instead of querying metadata for every task.
+     */
+    private void serializeTasks(Criterion criterion, ModelWriter writer) throws IOException {
+        Criterion metadataCriterion = criterion == Criterion.all ? Criterion.all :
+            Metadata.TASK.in(Query.select(Task.ID).from(Task.TABLE).where(criterion));
         TodorooCursor<Task> cursor = taskService.query(Query.select(
-                Task.PROPERTIES).orderBy(Order.asc(Task.ID)));
+                Task.PROPERTIES).where(criterion).orderBy(Order.asc(Task.ID)));
+        TodorooCursor<Metadata> metadataCursor = metadataService.query(Query.select(
+                Metadata.PROPERTIES).where(metadataCriterion).orderBy(
+                        Order.asc(Metadata.TASK), Order.asc(Metadata.ID)));
         try {
             Task task = new Task();
+            Metadata metadata = new Metadata();
+            metadataCursor.moveToFirst();
+
             int length = cursor.getCount();
+            int progressStep = Math.max(1, length / PROGRESS_STEPS);
             for(int i = 0; i < length; i++) {
                 cursor.moveToNext();
                 task.readFromCursor(cursor);
 
-                setProgress(i, length);
+                if(i % progressStep == 0)
+                    setProgress(i, length);
 
-                xml.startTag(null, BackupConstants.TASK_TAG);
-                serializeModel(task, Task.PROPERTIES, Task.ID);
-                serializeMetadata(task);
-                xml.endTag(null, BackupConstants.TASK_TAG);
+                writer.writeTask(task);
+                serializeMetadata(task.getId(), metadataCursor, metadata, writer);
+                writer.endTask();
                 this.exportCount++;
             }
+            setProgress(length, length);
         } finally {
             cursor.close();
+            metadataCursor.close();
         }
     }
 
-    private synchronized void serializeMetadata(Task task) throws IOException {
-        TodorooCursor<Metadata> cursor = metadataService.query(Query.select(
-                Metadata.PROPERTIES).where(MetadataCriteria.byTask(task.getId())));
-        try {
-            Metadata metadata = new Metadata();
-            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                metadata.readFromCursor(cursor);
-
-                xml.startTag(null, BackupConstants.METADATA_TAG);
-                serializeModel(metadata, Metadata.PROPERTIES, Metadata.ID, Metadata.TASK);
-                xml.endTag(null, BackupConstants.METADATA_TAG);
-            }
-        } finally {
-            cursor.close();
+    /**
+     * Writes the metadata for the given task, advancing the metadata cursor
+     * past it. Metadata for tasks that no longer exist is skipped.
+     */
+    private void serializeMetadata(long taskId, TodorooCursor<Metadata> cursor,
+            Metadata metadata, ModelWriter writer) throws IOException {
+        for(; !cursor.isAfterLast(); cursor.moveToNext()) {
+            long metadataTask = cursor.getLong(Metadata.TASK);
+            if(metadataTask > taskId)
+                break;
+            if(metadataTask < taskId)
+                continue;
+
+            metadata.readFromCursor(cursor);
+            writer.writeMetadata(metadata);
         }
     }
 
@@ -318,12 +561,22 @@ public class TasksXmlExporter {
             // Check for /sdcard/astrid directory. If it doesn't exist, make it.
             if (astridDir.exists() || astridDir.mkdir()) {
                 String fileName;
-                if (isService) {
+                String date = BackupDateUtilities.getDateForExport();
+                if (chainMode == CHAIN_INCREMENT) {
+                    chainBase = Preferences.getStringValue(BackupPreferences.PREF_BACKUP_CHAIN_BASE);
+                    return astridDir.getAbsolutePath() + File.separator +
+                        String.format(BackupConstants.INCREMENT_FILE_NAME, chainBase, date);
+                } else if (chainMode == CHAIN_SNAPSHOT) {
+                    chainBase = date;
                     fileName = BackupConstants.BACKUP_FILE_NAME;
+                } else if (isService) {
+                    fileName = binary ? BackupConstants.BACKUP_BINARY_FILE_NAME :
+                        BackupConstants.BACKUP_FILE_NAME;
                 } else {
-                    fileName = BackupConstants.EXPORT_FILE_NAME;
+                    fileName = binary ? BackupConstants.EXPORT_BINARY_FILE_NAME :
+                        BackupConstants.EXPORT_FILE_NAME;
                 }
-                fileName = String.format(fileName, BackupDateUtilities.getDateForExport());
+                fileName = String.format(fileName, date);
                 return astridDir.getAbsolutePath() + File.separator + fileName;
             } else {
                 // Unable to make the /sdcard/astrid directory.
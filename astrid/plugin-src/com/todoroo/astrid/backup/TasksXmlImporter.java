@@ -1,8 +1,13 @@
 package com.todoroo.astrid.backup;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.StringTokenizer;
 
@@ -59,6 +64,19 @@ public class TasksXmlImporter {
         new TasksXmlImporter(context, input, runAfterImport);
     }
 
+    /**
+     * Import tasks from the given file on the calling thread, without
+     * progress or summary dialogs
+     *
+     * @return number of tasks imported
+     */
+    static int importTasksNow(Context context, String input) throws IOException,
+            XmlPullParserException {
+        TasksXmlImporter importer = new TasksXmlImporter(context, input);
+        importer.importFile();
+        return importer.importCount;
+    }
+
     // --- implementation
 
     private final Handler handler;
@@ -68,6 +86,9 @@ public class TasksXmlImporter {
     private int errorCount = 0;
     private final String input;
 
+    /** ids of tasks in a backup chain, mapped to the ids they were imported as */
+    private final HashMap<Long, Long> backupIds = new HashMap<Long, Long>();
+
     private final Context context;
     private final TaskService taskService = PluginServices.getTaskService();
     private final MetadataService metadataService = PluginServices.getMetadataService();
@@ -76,6 +97,8 @@ public class TasksXmlImporter {
     private final Runnable runAfterImport;
 
     private void setProgressMessage(final String message) {
+        if(progressDialog == null)
+            return;
         handler.post(new Runnable() {
             public void run() {
                 progressDialog.setMessage(message);
@@ -83,6 +106,17 @@ public class TasksXmlImporter {
         });
     }
 
+    /**
+     * Import tasks without any user interface
+     */
+    private TasksXmlImporter(Context context, String input) {
+        this.input = input;
+        this.context = context;
+        this.runAfterImport = null;
+        handler = null;
+        progressDialog = null;
+    }
+
     /**
      * Import tasks.
      * @param runAfterImport optional runnable after import
@@ -119,11 +153,31 @@ public class TasksXmlImporter {
         }).start();
     }
 
-    @SuppressWarnings("nls")
     private void performImport() throws IOException, XmlPullParserException {
+        try {
+            importFile();
+        } finally {
+            onImportFinished();
+        }
+    }
+
+    private void importFile() throws IOException, XmlPullParserException {
+        if(TasksBinaryBackup.isBinaryBackup(new File(input))) {
+            new BinaryTaskImporter();
+            return;
+        }
+
+        // replay an increment on top of its snapshot and the increments before it
+        for(File file : BackupChain.chainFiles(new File(input)))
+            importXml(file);
+    }
+
+    @SuppressWarnings("nls")
+    private void importXml(File file) throws IOException, XmlPullParserException {
         XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
         XmlPullParser xpp = factory.newPullParser();
-        xpp.setInput(new FileReader(input));
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        xpp.setInput(reader);
 
         try {
             while (xpp.next() != XmlPullParser.END_DOCUMENT) {
@@ -148,19 +202,23 @@ public class TasksXmlImporter {
                 }
             }
         } finally {
-            Intent broadcastIntent = new Intent(AstridApiConstants.BROADCAST_EVENT_REFRESH);
-            ContextManager.getContext().sendBroadcast(broadcastIntent, AstridApiConstants.PERMISSION_READ);
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if(progressDialog.isShowing() && context instanceof Activity)
-                       DialogUtilities.dismissDialog((Activity) context, progressDialog);
-                    showSummary();
-                }
-            });
+            reader.close();
         }
     }
 
+    private void onImportFinished() {
+        Intent broadcastIntent = new Intent(AstridApiConstants.BROADCAST_EVENT_REFRESH);
+        ContextManager.getContext().sendBroadcast(broadcastIntent, AstridApiConstants.PERMISSION_READ);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(progressDialog.isShowing() && context instanceof Activity)
+                   DialogUtilities.dismissDialog((Activity) context, progressDialog);
+                showSummary();
+            }
+        });
+    }
+
     private void showSummary() {
         final AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle(R.string.import_summary_title);
@@ -187,17 +245,240 @@ public class TasksXmlImporter {
 
     // --- importers
 
-    // =============================================================== FORMAT2
+    // =============================================================== IMPORT
 
     private static final String FORMAT2 = "2"; //$NON-NLS-1$
-    private class Format2TaskImporter {
+
+    /** number of tasks saved per transaction */
+    private static final int BATCH_SIZE = 500;
+
+    /** number of tasks read between progress updates */
+    private static final int PROGRESS_INTERVAL = 50;
+
+    /**
+     * Base class for importers of formats that hold complete task and
+     * metadata models. Detects duplicate tasks and saves new tasks and
+     * their metadata in transactional batches. Tasks that carry a backup
+     * id already seen earlier in a backup chain update the task imported
+     * for that id.
+     */
+    private class BatchTaskImporter {
+
+        protected Task currentTask = null;
+
+        /** keys of tasks already in the database or in this import, and their ids */
+        private final HashMap<String, Long> existingTasks = new HashMap<String, Long>();
+
+        /** parsed tasks waiting to be saved, their metadata and backup ids */
+        private final ArrayList<Task> pendingTasks = new ArrayList<Task>(BATCH_SIZE);
+        private final ArrayList<ArrayList<Metadata>> pendingMetadata =
+            new ArrayList<ArrayList<Metadata>>(BATCH_SIZE);
+        private final ArrayList<Long> pendingBackupIds = new ArrayList<Long>(BATCH_SIZE);
+
+        /** ids of tasks to remove, from tombstones */
+        private final ArrayList<Long> pendingDeletes = new ArrayList<Long>();
+
+        public BatchTaskImporter() {
+            readExistingTasks();
+        }
+
+        /**
+         * @return key used to detect duplicate tasks
+         */
+        private String taskKey(String title, String created, String dueDate,
+                String completionDate) {
+            return new StringBuilder().append(title).append('\0').append(created).append('\0').
+                append(dueDate).append('\0').append(completionDate).toString();
+        }
+
+        /**
+         * Read keys of all existing tasks in one pass, so that duplicates
+         * can be detected without querying for every imported task
+         */
+        private void readExistingTasks() {
+            TodorooCursor<Task> cursor = taskService.query(Query.select(Task.ID, Task.TITLE,
+                    Task.CREATION_DATE, Task.DUE_DATE, Task.COMPLETION_DATE));
+            try {
+                for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    existingTasks.put(taskKey(cursor.getString(Task.TITLE),
+                            Long.toString(cursor.getLong(Task.CREATION_DATE)),
+                            Long.toString(cursor.getLong(Task.DUE_DATE)),
+                            Long.toString(cursor.getLong(Task.COMPLETION_DATE))),
+                            cursor.getLong(Task.ID));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /** @return value as read from the backup, or null if missing */
+        private String value(Task task, Property<?> property) {
+            if(!task.containsNonNullValue(property))
+                return null;
+            return task.getValue(property).toString();
+        }
+
+        /**
+         * Queue a task read from the backup for saving. Tasks missing a key
+         * field or matching an existing task are skipped. Metadata added
+         * after this belongs to this task.
+         *
+         * @param backupId id of the task in a backup chain, or null
+         */
+        protected void importTask(Task task, Long backupId) {
+            taskCount++;
+            if(taskCount % PROGRESS_INTERVAL == 0)
+                setProgressMessage(context.getString(R.string.import_progress_read,
+                        taskCount));
+            currentTask = null;
+
+            Long localId = backupId == null ? null : backupIds.get(backupId);
+            if(localId == null) {
+                String title = value(task, Task.TITLE);
+                String created = value(task, Task.CREATION_DATE);
+                String dueDate = value(task, Task.DUE_DATE);
+                String completionDate = value(task, Task.COMPLETION_DATE);
+
+                // if we don't have task name or creation date, skip
+                if (created == null || title == null || dueDate == null
+                        || completionDate == null) {
+                    skipCount++;
+                    return;
+                }
+
+                // if the task's name and creation date match an existing task, skip
+                String key = taskKey(title, created, dueDate, completionDate);
+                Long existing = existingTasks.get(key);
+                if(existing != null) {
+                    if(backupId != null && existing != Task.NO_ID)
+                        backupIds.put(backupId, existing);
+                    skipCount++;
+                    return;
+                }
+                existingTasks.put(key, Task.NO_ID);
+                localId = Task.NO_ID;
+            }
+
+            if(pendingTasks.size() >= BATCH_SIZE)
+                savePending();
+            task.setId(localId);
+            currentTask = task;
+            pendingTasks.add(task);
+            pendingMetadata.add(new ArrayList<Metadata>());
+            pendingBackupIds.add(backupId);
+        }
+
+        /**
+         * Queue metadata for the current task, if it is being imported
+         */
+        protected void addMetadata(Metadata metadata) {
+            if(currentTask == null)
+                return;
+            metadata.setId(Metadata.NO_ID);
+            pendingMetadata.get(pendingMetadata.size() - 1).add(metadata);
+        }
+
+        /**
+         * Queue removal of the task imported for the given backup id
+         */
+        protected void deleteTask(long backupId) {
+            Long localId = backupIds.remove(backupId);
+            if(localId != null)
+                pendingDeletes.add(localId);
+        }
+
+        /**
+         * Save parsed tasks and their metadata in one transaction
+         */
+        protected void savePending() {
+            if(pendingTasks.isEmpty() && pendingDeletes.isEmpty())
+                return;
+            setProgressMessage(context.getString(R.string.import_progress_read,
+                    taskCount));
+            final int[] saved = new int[1];
+            final HashMap<Long, Long> newIds = new HashMap<Long, Long>();
+            try {
+                taskService.runInTransaction(new Runnable() {
+                    public void run() {
+                        for(int i = 0; i < pendingTasks.size(); i++) {
+                            Task task = pendingTasks.get(i);
+                            boolean update = task.isSaved();
+                            if(!taskService.save(task))
+                                continue;
+                            saved[0]++;
+                            if(update)
+                                metadataService.deleteWhere(Metadata.TASK.eq(task.getId()));
+                            else if(pendingBackupIds.get(i) != null)
+                                newIds.put(pendingBackupIds.get(i), task.getId());
+                            for(Metadata metadata : pendingMetadata.get(i)) {
+                                metadata.setValue(Metadata.TASK, task.getId());
+                                metadataService.save(metadata);
+                            }
+                        }
+                        for(long id : pendingDeletes) {
+                            metadataService.deleteWhere(Metadata.TASK.eq(id));
+                            taskService.purge(id);
+                        }
+                    }
+                });
+                importCount += saved[0];
+                errorCount += pendingTasks.size() - saved[0];
+                backupIds.putAll(newIds);
+            } catch (RuntimeException e) {
+                // whole batch was rolled back
+                errorCount += pendingTasks.size();
+                Log.e("astrid-importer", "Error saving imported tasks", e); //$NON-NLS-1$
+            } finally {
+                pendingTasks.clear();
+                pendingMetadata.clear();
+                pendingBackupIds.clear();
+                pendingDeletes.clear();
+            }
+        }
+    }
+
+    // =============================================================== BINARY
+
+    private class BinaryTaskImporter extends BatchTaskImporter {
+
+        public BinaryTaskImporter() throws IOException {
+            TasksBinaryBackup.Reader reader = new TasksBinaryBackup.Reader(
+                    new FileInputStream(input), Task.PROPERTIES, Metadata.PROPERTIES);
+            try {
+                int record;
+                while((record = reader.next()) != TasksBinaryBackup.RECORD_END) {
+                    try {
+                        if(record == TasksBinaryBackup.RECORD_TASK) {
+                            Task task = new Task();
+                            reader.readTask(task);
+                            importTask(task, null);
+                        } else if(record == TasksBinaryBackup.RECORD_METADATA && currentTask != null) {
+                            Metadata metadata = new Metadata();
+                            reader.readMetadata(metadata);
+                            addMetadata(metadata);
+                        }
+                    } catch (RuntimeException e) {
+                        errorCount++;
+                        Log.e("astrid-importer", //$NON-NLS-1$
+                                "Caught exception while reading record", e); //$NON-NLS-1$
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            savePending();
+        }
+    }
+
+    // =============================================================== FORMAT2
+
+    private class Format2TaskImporter extends BatchTaskImporter {
 
         private final XmlPullParser xpp;
-        private final Task currentTask = new Task();
-        private final Metadata metadata = new Metadata();
 
         public Format2TaskImporter(XmlPullParser xpp) throws XmlPullParserException, IOException {
             this.xpp = xpp;
+
             while (xpp.next() != XmlPullParser.END_DOCUMENT) {
                 String tag = xpp.getName();
                 if (tag == null || xpp.getEventType() == XmlPullParser.END_TAG)
@@ -210,6 +491,11 @@ public class TasksXmlImporter {
                     } else if (tag.equals(BackupConstants.METADATA_TAG)) {
                         // Process <metadata ... >
                         parseMetadata();
+                    } else if (tag.equals(BackupConstants.DELETED_TAG)) {
+                        // Process <deleted ... >
+                        Long backupId = parseBackupId();
+                        if(backupId != null)
+                            deleteTask(backupId);
                     }
                 } catch (Exception e) {
                     errorCount++;
@@ -218,58 +504,26 @@ public class TasksXmlImporter {
                             xpp.getText(), e);
                 }
             }
+            savePending();
         }
 
         private void parseTask() {
-            taskCount++;
-            setProgressMessage(context.getString(R.string.import_progress_read,
-                    taskCount));
-            currentTask.clear();
-
-            String title = xpp.getAttributeValue(null, Task.TITLE.name);
-            String created = xpp.getAttributeValue(null, Task.CREATION_DATE.name);
-            String dueDate = xpp.getAttributeValue(null, Task.DUE_DATE.name);
-            String completionDate = xpp.getAttributeValue(null, Task.COMPLETION_DATE.name);
-
-            // if we don't have task name or creation date, skip
-            if (created == null || title == null || dueDate == null
-                    || completionDate == null) {
-                skipCount++;
-                return;
-            }
-
-            // if the task's name and creation date match an existing task, skip
-            TodorooCursor<Task> cursor = taskService.query(Query.select(Task.ID).
-                    where(Criterion.and(Task.TITLE.eq(title),
-                            Task.CREATION_DATE.eq(created),
-                            Task.DUE_DATE.eq(dueDate),
-                            Task.COMPLETION_DATE.eq(completionDate))));
-            try {
-                if(cursor.getCount() > 0) {
-                    skipCount++;
-                    return;
-                }
-            } finally {
-                cursor.close();
-            }
-
-            // else, make a new task model and add away.
-            deserializeModel(currentTask, Task.PROPERTIES);
-            currentTask.setId(Task.NO_ID);
+            Task task = new Task();
+            deserializeModel(task, Task.PROPERTIES);
+            importTask(task, parseBackupId());
+        }
 
-            // Save the task to the database.
-            taskService.save(currentTask);
-            importCount++;
+        private Long parseBackupId() {
+            String backupId = xpp.getAttributeValue(null, BackupConstants.TASK_ATTR_BACKUP_ID);
+            return backupId == null ? null : Long.valueOf(backupId);
         }
 
         private void parseMetadata() {
-            if(!currentTask.isSaved())
+            if(currentTask == null)
                 return;
-            metadata.clear();
+            Metadata metadata = new Metadata();
             deserializeModel(metadata, Metadata.PROPERTIES);
-            metadata.setId(Metadata.NO_ID);
-            metadata.setValue(Metadata.TASK, currentTask.getId());
-            metadataService.save(metadata);
+            addMetadata(metadata);
         }
 
         /**
@@ -47,6 +47,7 @@ import com.todoroo.astrid.api.PermaSql;
 import com.todoroo.astrid.api.TextInputCriterion;
 import com.todoroo.astrid.dao.Database;
 import com.todoroo.astrid.dao.TaskDao.TaskCriteria;
+import com.todoroo.astrid.dao.TaskSearchIndex;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.service.StatisticsService;
 
@@ -59,6 +60,7 @@ import com.todoroo.astrid.service.StatisticsService;
 public class CustomFilterActivity extends ListActivity {
 
     private static final String IDENTIFIER_TITLE = "title"; //$NON-NLS-1$
+    private static final String IDENTIFIER_SEARCH = "search"; //$NON-NLS-1$
     private static final String IDENTIFIER_IMPORTANCE = "importance"; //$NON-NLS-1$
     private static final String IDENTIFIER_DUEDATE = "dueDate"; //$NON-NLS-1$
     private static final String IDENTIFIER_UNIVERSE = "active"; //$NON-NLS-1$
@@ -236,6 +238,22 @@ public class CustomFilterActivity extends ListActivity {
                         getString(R.string.CFC_title_contains_name));
             criteria.put(IDENTIFIER_TITLE, criterion);
         }
+
+        // built in criteria: title, notes or tags containing words
+        {
+            CustomFilterCriterion criterion = new TextInputCriterion(
+                    IDENTIFIER_SEARCH,
+                    getString(R.string.CFC_search_text),
+                    Query.select(Task.ID).from(Task.TABLE).where(
+                            Criterion.and(TaskCriteria.activeVisibleMine(),
+                                    Task.ID.in(Query.select(TaskSearchIndex.TASK_ID).
+                                            from(TaskSearchIndex.TABLE).where(
+                                                    TaskSearchIndex.ALL.match("?"))))).toString(),
+                        null, getString(R.string.CFC_search_name), "",
+                        ((BitmapDrawable)r.getDrawable(R.drawable.tango_alpha)).getBitmap(),
+                        getString(R.string.CFC_search_name));
+            criteria.put(IDENTIFIER_SEARCH, criterion);
+        }
     }
 
     @Override
@@ -351,6 +369,15 @@ public class CustomFilterActivity extends ListActivity {
         }
     }
 
+    /**
+     * @return full-text query for the words typed, which never fails to
+     *         parse
+     */
+    private static String searchQueryOf(String value) {
+        String query = TaskSearchIndex.toMatchQuery(value);
+        return query == null ? "" : query;
+    }
+
     @SuppressWarnings("nls")
     void saveAndView() {
         StringBuilder sql = new StringBuilder(" WHERE ");
@@ -361,6 +388,8 @@ public class CustomFilterActivity extends ListActivity {
             String value = instance.getValueFromCriterion();
             if(value == null && instance.criterion.sql != null && instance.criterion.sql.contains("?"))
                 value = "";
+            else if(IDENTIFIER_SEARCH.equals(instance.criterion.identifier))
+                value = searchQueryOf(value);
 
             String title = instance.getTitleFromCriterion();
 
@@ -432,6 +461,8 @@ public class CustomFilterActivity extends ListActivity {
             String value = instance.getValueFromCriterion();
             if(value == null && instance.criterion.sql != null && instance.criterion.sql.contains("?"))
                 value = "";
+            else if(IDENTIFIER_SEARCH.equals(instance.criterion.identifier))
+                value = searchQueryOf(value);
 
             switch(instance.type) {
             case CriterionInstance.TYPE_ADD:
@@ -118,11 +118,10 @@ public final class GtasksMetadataService extends SyncMetadataService<GtasksTaskC
         TodorooCursor<Metadata> cursor = PluginServices.getMetadataService().query(query);
         try {
             for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                long taskId = cursor.get(Metadata.TASK);
-                Metadata metadata = getTaskMetadata(taskId);
-                if(metadata == null)
-                    continue;
-                iterator.processTask(taskId, metadata);
+                // the query reads every metadata column, so there is no need
+                // to fetch each task's metadata again
+                Metadata metadata = new Metadata(cursor);
+                iterator.processTask(metadata.getValue(Metadata.TASK), metadata);
             }
 
         } finally {
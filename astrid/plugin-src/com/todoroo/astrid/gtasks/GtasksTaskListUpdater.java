@@ -128,11 +128,17 @@ public class GtasksTaskListUpdater {
 
     // --- task moving
 
+    /** spacing of order values assigned to moved tasks */
+    static final long ORDER_GAP = 1024;
+
     private static class Node {
         public final long taskId;
         public Node parent;
         public final ArrayList<Node> children = new ArrayList<Node>();
 
+        /** metadata as read from the database */
+        public Metadata metadata;
+
         public Node(long taskId, Node parent) {
             this.taskId = taskId;
             this.parent = parent;
@@ -142,6 +148,11 @@ public class GtasksTaskListUpdater {
     /**
      * Move a task and all its children to the position right above
      * taskIdToMoveto. Will change the indent level to match taskIdToMoveTo.
+     * <p>
+     * Order values have gaps between them, so only the moved tasks get new
+     * order values. When there is no room left between the tasks around
+     * the new position, the neighboring tasks are spread out as well. Only
+     * rows whose order, indent or parent changed are written.
      *
      * @param newTaskId task we will move above. if -1, moves to end of list
      */
@@ -153,56 +164,117 @@ public class GtasksTaskListUpdater {
         if(list == GtasksListService.LIST_NOT_FOUND_OBJECT)
             return;
 
-        Node root = buildTreeModel(list);
-        Node target = findNode(root, targetTaskId);
-
-        if(target != null && target.parent != null) {
-            if(moveBeforeTaskId == -1) {
-                target.parent.children.remove(target);
-                root.children.add(target);
-                target.parent = root;
-            } else {
-                Node sibling = findNode(root, moveBeforeTaskId);
-                if(sibling != null) {
-                    int index = sibling.parent.children.indexOf(sibling);
-                    target.parent.children.remove(target);
-                    sibling.parent.children.add(index, target);
-                    target.parent = sibling.parent;
-                }
-            }
+        HashMap<Long, Node> nodes = new HashMap<Long, Node>();
+        Node root = buildTreeModel(list, nodes);
+        Node target = nodes.get(targetTaskId);
+        if(target == null || target.parent == null)
+            return;
+
+        if(moveBeforeTaskId == -1) {
+            target.parent.children.remove(target);
+            root.children.add(target);
+            target.parent = root;
+        } else {
+            Node sibling = nodes.get(moveBeforeTaskId);
+            if(sibling == null || isInSubtree(sibling, target))
+                return;
+            target.parent.children.remove(target);
+            int index = sibling.parent.children.indexOf(sibling);
+            sibling.parent.children.add(index, target);
+            target.parent = sibling.parent;
         }
 
-        traverseTreeAndWriteValues(root, new AtomicLong(0), -1);
+        ArrayList<Node> sequence = new ArrayList<Node>(nodes.size());
+        flatten(root, sequence);
+        int blockStart = sequence.indexOf(target);
+        int blockEnd = blockStart + countSubtree(target);
+        long[] orders = assignOrders(sequence, blockStart, blockEnd);
+
+        writeChangedValues(root, sequence, orders);
     }
 
-    private void traverseTreeAndWriteValues(Node node, AtomicLong order, int indent) {
-        if(node.taskId != -1) {
-            Metadata metadata = gtasksMetadataService.getTaskMetadata(node.taskId);
-            if(metadata == null)
-                metadata = GtasksMetadata.createEmptyMetadata(node.taskId);
-            metadata.setValue(GtasksMetadata.ORDER, order.getAndIncrement());
-            metadata.setValue(GtasksMetadata.INDENT, indent);
-            metadata.setValue(GtasksMetadata.PARENT_TASK, node.parent.taskId);
-            saveAndUpdateModifiedDate(metadata, node.taskId);
-        }
+    private static boolean isInSubtree(Node node, Node subtree) {
+        for(Node current = node; current != null; current = current.parent)
+            if(current == subtree)
+                return true;
+        return false;
+    }
 
+    private static void flatten(Node node, ArrayList<Node> sequence) {
         for(Node child : node.children) {
-            traverseTreeAndWriteValues(child, order, indent + 1);
+            sequence.add(child);
+            flatten(child, sequence);
         }
     }
 
-    private Node findNode(Node node, long taskId) {
-        if(node.taskId == taskId)
-            return node;
-        for(Node child : node.children) {
-            Node found = findNode(child, taskId);
-            if(found != null)
-                return found;
+    private static int countSubtree(Node node) {
+        int count = 1;
+        for(Node child : node.children)
+            count += countSubtree(child);
+        return count;
+    }
+
+    /**
+     * Compute order values for the tasks of a list after a block of tasks
+     * was moved. Tasks outside the block keep their order unless the block
+     * doesn't fit between its neighbors, in which case the window of tasks
+     * that get new values grows until they fit.
+     *
+     * @param sequence tasks in their new order
+     * @param blockStart index of the first moved task
+     * @param blockEnd index after the last moved task
+     * @return order value for every task in the sequence
+     */
+    static long[] assignOrders(ArrayList<Node> sequence, int blockStart, int blockEnd) {
+        long[] orders = new long[sequence.size()];
+        for(int i = 0; i < orders.length; i++)
+            orders[i] = sequence.get(i).metadata.getValue(GtasksMetadata.ORDER);
+
+        int start = blockStart, end = blockEnd;
+        while(true) {
+            // order values must not go below 0, see iterateThroughList
+            long lower = start > 0 ? orders[start - 1] : -1;
+            int count = end - start;
+            long step;
+            if(end < orders.length)
+                step = (orders[end] - lower) / (count + 1);
+            else
+                step = ORDER_GAP;
+
+            if(step >= 1) {
+                for(int i = start; i < end; i++)
+                    orders[i] = lower + step * (i - start + 1);
+                return orders;
+            }
+
+            // no room: take in the neighbors on both sides
+            if(start > 0)
+                start--;
+            if(end < orders.length)
+                end++;
+        }
+    }
+
+    private void writeChangedValues(Node root, ArrayList<Node> sequence, long[] orders) {
+        for(int i = 0; i < sequence.size(); i++) {
+            Node node = sequence.get(i);
+            Metadata metadata = node.metadata;
+            int indent = 0;
+            for(Node parent = node.parent; parent != root; parent = parent.parent)
+                indent++;
+            long parent = node.parent == root ? Task.NO_ID : node.parent.taskId;
+
+            if(metadata.getValue(GtasksMetadata.ORDER) != orders[i])
+                metadata.setValue(GtasksMetadata.ORDER, orders[i]);
+            if(metadata.getValue(GtasksMetadata.INDENT) != indent)
+                metadata.setValue(GtasksMetadata.INDENT, indent);
+            if(metadata.getValue(GtasksMetadata.PARENT_TASK) != parent)
+                metadata.setValue(GtasksMetadata.PARENT_TASK, parent);
+            saveAndUpdateModifiedDate(metadata, node.taskId);
         }
-        return null;
     }
 
-    private Node buildTreeModel(StoreObject list) {
+    private Node buildTreeModel(StoreObject list, final HashMap<Long, Node> nodes) {
         final Node root = new Node(-1, null);
         final AtomicInteger previoustIndent = new AtomicInteger(-1);
         final AtomicReference<Node> currentNode = new AtomicReference<Node>(root);
@@ -231,6 +303,8 @@ public class GtasksTaskListUpdater {
                     node.children.add(currentNode.get());
                 }
 
+                currentNode.get().metadata = metadata;
+                nodes.put(taskId, currentNode.get());
                 previoustIndent.set(indent);
             }
         });
@@ -267,7 +341,7 @@ public class GtasksTaskListUpdater {
     private final Task taskContainer = new Task();
 
     private void saveAndUpdateModifiedDate(Metadata metadata, long taskId) {
-        if(metadata.getSetValues().size() == 0)
+        if(metadata.getSetValues() == null || metadata.getSetValues().size() == 0)
             return;
         PluginServices.getMetadataService().save(metadata);
         taskContainer.setId(taskId);
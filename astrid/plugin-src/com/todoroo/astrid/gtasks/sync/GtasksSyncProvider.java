@@ -629,6 +629,18 @@ public class GtasksSyncProvider extends SyncProvider<GtasksTaskContainer> {
     // --------------------------------------------------------- misc helpers
     // ----------------------------------------------------------------------
 
+    private static final RemoteKeyExtractor<GtasksTaskContainer> REMOTE_KEY_EXTRACTOR =
+        new RemoteKeyExtractor<GtasksTaskContainer>() {
+        public Object getRemoteKey(GtasksTaskContainer task) {
+            return task.gtaskMetadata.getValue(GtasksMetadata.ID);
+        }
+    };
+
+    @Override
+    protected RemoteKeyExtractor<GtasksTaskContainer> getRemoteKeyExtractor() {
+        return REMOTE_KEY_EXTRACTOR;
+    }
+
     @Override
     protected int matchTask(ArrayList<GtasksTaskContainer> tasks, GtasksTaskContainer target) {
         int length = tasks.size();
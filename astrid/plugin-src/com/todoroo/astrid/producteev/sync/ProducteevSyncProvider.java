@@ -622,6 +622,20 @@ public class ProducteevSyncProvider extends SyncProvider<ProducteevTaskContainer
     // --------------------------------------------------------- misc helpers
     // ----------------------------------------------------------------------
 
+    private static final RemoteKeyExtractor<ProducteevTaskContainer> REMOTE_KEY_EXTRACTOR =
+        new RemoteKeyExtractor<ProducteevTaskContainer>() {
+        public Object getRemoteKey(ProducteevTaskContainer task) {
+            if(!task.pdvTask.containsNonNullValue(ProducteevTask.ID))
+                return null;
+            return task.pdvTask.getValue(ProducteevTask.ID);
+        }
+    };
+
+    @Override
+    protected RemoteKeyExtractor<ProducteevTaskContainer> getRemoteKeyExtractor() {
+        return REMOTE_KEY_EXTRACTOR;
+    }
+
     @Override
     protected int matchTask(ArrayList<ProducteevTaskContainer> tasks, ProducteevTaskContainer target) {
         int length = tasks.size();
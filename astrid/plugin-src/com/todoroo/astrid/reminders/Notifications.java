@@ -1,5 +1,6 @@
 package com.todoroo.astrid.reminders;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 import android.app.Notification;
@@ -41,6 +42,9 @@ public class Notifications extends BroadcastReceiver {
     /** notification type extra */
     public static final String TYPE_KEY = "type"; //$NON-NLS-1$
 
+    /** extra set on the wake-up alarm for reminders in the reminder index */
+    public static final String DUE_REMINDERS_KEY = "due_reminders"; //$NON-NLS-1$
+
     /** preference values */
     public static final int ICON_SET_PINK = 0;
     public static final int ICON_SET_BORING = 1;
@@ -71,9 +75,35 @@ public class Notifications extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         ContextManager.setContext(context);
 
-        long id = intent.getLongExtra(ID_KEY, 0);
-        int type = intent.getIntExtra(TYPE_KEY, (byte) 0);
+        synchronized(Notifications.class) {
+            if(notificationManager == null)
+                notificationManager = new AndroidNotificationManager(context);
+        }
+
+        if(intent.getBooleanExtra(DUE_REMINDERS_KEY, false)) {
+            ReminderService reminderService = ReminderService.getInstance();
+            ArrayList<ReminderIndex.Entry> due = reminderService.pollDueReminders();
+            for(ReminderIndex.Entry entry : due)
+                notify(context, entry.taskId, entry.type);
+            reminderService.reschedulePolled(due);
+        } else {
+            // alarms registered per task by earlier versions
+            long id = intent.getLongExtra(ID_KEY, 0);
+            int type = intent.getIntExtra(TYPE_KEY, (byte) 0);
+            notify(context, id, type);
+        }
+
+        try {
+            VoiceOutputService.getVoiceOutputInstance().onDestroy();
+        } catch (VerifyError e) {
+            // unavailable
+        }
+    }
 
+    /**
+     * Pick a reminder string and show the notification for a task
+     */
+    private void notify(Context context, long id, int type) {
         Resources r = context.getResources();
         String reminder;
 
@@ -89,20 +119,9 @@ public class Notifications extends BroadcastReceiver {
         } else
             reminder = ""; //$NON-NLS-1$
 
-        synchronized(Notifications.class) {
-            if(notificationManager == null)
-                notificationManager = new AndroidNotificationManager(context);
-        }
-
         if(!showTaskNotification(id, type, reminder)) {
             notificationManager.cancel((int)id);
         }
-
-        try {
-            VoiceOutputService.getVoiceOutputInstance().onDestroy();
-        } catch (VerifyError e) {
-            // unavailable
-        }
     }
 
     // --- notification creation
@@ -0,0 +1,257 @@
+package com.todoroo.astrid.reminders;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.todoroo.andlib.data.Property;
+import com.todoroo.astrid.data.Task;
+
+/**
+ * Index of the next reminder of every task, ordered by the time it fires.
+ * Each entry remembers a fingerprint of the reminder-related fields of its
+ * task, so tasks that did not change since they were last scheduled can
+ * be skipped when all reminders are rescheduled.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public class ReminderIndex {
+
+    /** time of entries for tasks without a reminder */
+    public static final long NO_ALARM = Long.MAX_VALUE;
+
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Next reminder of a task
+     */
+    public static class Entry {
+        public final long taskId;
+        public final long time;
+        public final int type;
+
+        /** fingerprint of the task when this entry was computed */
+        final long fingerprint;
+
+        /** time after which the task should be recomputed */
+        final long recheck;
+
+        Entry(long taskId, long time, int type, long fingerprint, long recheck) {
+            this.taskId = taskId;
+            this.time = time;
+            this.type = type;
+            this.fingerprint = fingerprint;
+            this.recheck = recheck;
+        }
+    }
+
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if(a.time != b.time)
+                return a.time < b.time ? -1 : 1;
+            if(a.taskId != b.taskId)
+                return a.taskId < b.taskId ? -1 : 1;
+            return 0;
+        }
+    };
+
+    /** entries by task id */
+    private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    /** entries with a reminder, by time */
+    private final TreeSet<Entry> queue = new TreeSet<Entry>(BY_TIME);
+
+    /**
+     * @return fingerprint of the given properties of a task
+     */
+    public static long fingerprint(Task task, Property<?>[] properties) {
+        long hash = 17;
+        for(Property<?> property : properties) {
+            Object value = task.containsValue(property) ? task.getValue(property) : null;
+            long part;
+            if(value instanceof Number)
+                part = ((Number) value).longValue();
+            else
+                part = value == null ? 0 : value.hashCode();
+            hash = 31 * hash + part;
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the task has an entry computed from the same
+     *         fingerprint that does not need to be rechecked yet
+     */
+    public synchronized boolean isCurrent(long taskId, long fingerprint, long now) {
+        Entry entry = entries.get(taskId);
+        return entry != null && entry.fingerprint == fingerprint && now < entry.recheck;
+    }
+
+    /**
+     * Set the next reminder of a task
+     *
+     * @param time reminder time, or {@link #NO_ALARM}
+     * @param recheck time after which the task should be recomputed
+     * @return true if the earliest reminder changed
+     */
+    public synchronized boolean put(long taskId, long time, int type, long fingerprint,
+            long recheck) {
+        Entry head = first();
+        Entry old = entries.put(taskId, new Entry(taskId, time, type, fingerprint, recheck));
+        if(old != null && old.time != NO_ALARM)
+            queue.remove(old);
+        if(time != NO_ALARM)
+            queue.add(entries.get(taskId));
+        return !sameReminder(head, first());
+    }
+
+    /**
+     * Remove the entry of a task
+     *
+     * @return true if the earliest reminder changed
+     */
+    public synchronized boolean remove(long taskId) {
+        Entry head = first();
+        Entry old = entries.remove(taskId);
+        if(old != null && old.time != NO_ALARM)
+            queue.remove(old);
+        return !sameReminder(head, first());
+    }
+
+    private static boolean sameReminder(Entry a, Entry b) {
+        if(a == null || b == null)
+            return a == b;
+        return a.taskId == b.taskId && a.time == b.time && a.type == b.type;
+    }
+
+    /**
+     * @return entry of the given task, or null
+     */
+    public synchronized Entry get(long taskId) {
+        return entries.get(taskId);
+    }
+
+    /**
+     * @return earliest reminder, or null if there are none
+     */
+    public synchronized Entry first() {
+        return queue.isEmpty() ? null : queue.first();
+    }
+
+    /**
+     * Remove and return all reminders due at the given time. Their tasks
+     * will be recomputed the next time they are scheduled.
+     */
+    public synchronized ArrayList<Entry> pollDue(long now) {
+        ArrayList<Entry> due = new ArrayList<Entry>();
+        while(!queue.isEmpty() && queue.first().time <= now) {
+            Entry entry = queue.first();
+            queue.remove(entry);
+            entries.remove(entry.taskId);
+            due.add(entry);
+        }
+        return due;
+    }
+
+    /**
+     * @return ids of tasks whose entries should be recomputed at the
+     *         given time
+     */
+    public synchronized ArrayList<Long> needingRecheck(long now) {
+        ArrayList<Long> taskIds = new ArrayList<Long>();
+        for(Entry entry : entries.values())
+            if(entry.recheck <= now)
+                taskIds.add(entry.taskId);
+        return taskIds;
+    }
+
+    /**
+     * Remove entries of tasks that are not in the given set
+     */
+    public synchronized void retainAll(Set<Long> taskIds) {
+        for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if(taskIds.contains(entry.taskId))
+                continue;
+            i.remove();
+            if(entry.time != NO_ALARM)
+                queue.remove(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // --- persistence
+
+    /**
+     * Write the index to a file
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for(Entry entry : entries.values()) {
+                out.writeLong(entry.taskId);
+                out.writeLong(entry.time);
+                out.writeInt(entry.type);
+                out.writeLong(entry.fingerprint);
+                out.writeLong(entry.recheck);
+            }
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(file))
+            throw new IOException("Could not write " + file); //$NON-NLS-1$
+    }
+
+    /**
+     * Replace the contents of the index with those of a file. If the file
+     * can't be read, the index is left empty, and every task is computed
+     * the next time all reminders are scheduled.
+     */
+    public synchronized void load(File file) {
+        entries.clear();
+        queue.clear();
+        if(!file.exists())
+            return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if(in.readInt() != FILE_VERSION)
+                    return;
+                int count = in.readInt();
+                for(int i = 0; i < count; i++) {
+                    Entry entry = new Entry(in.readLong(), in.readLong(), in.readInt(),
+                            in.readLong(), in.readLong());
+                    entries.put(entry.taskId, entry);
+                    if(entry.time != NO_ALARM)
+                        queue.add(entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            entries.clear();
+            queue.clear();
+        }
+    }
+
+}
@@ -1,7 +1,16 @@
 package com.todoroo.astrid.reminders;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
@@ -65,18 +74,33 @@ public final class ReminderService  {
 
     static final Random random = new Random();
 
+    /** file the reminder index is kept in */
+    private static final String INDEX_FILE = "reminders.idx"; //$NON-NLS-1$
+
+    /** delay before the index is saved after single tasks are scheduled */
+    private static final long INDEX_SAVE_DELAY = 5000L;
+
     // --- instance variables
 
     @Autowired
     private TaskDao taskDao;
 
-    private AlarmScheduler scheduler = new ReminderAlarmScheduler();
+    private final ReminderIndex index = new ReminderIndex();
+
+    private AlarmScheduler scheduler = new IndexedAlarmScheduler(index,
+            new ReminderAlarmScheduler());
 
     private long now = -1; // For tracking when reminders might be scheduled all at once
 
+    private final ScheduledExecutorService indexSaver = Executors.newSingleThreadScheduledExecutor();
+
+    /** whether a save of the index is scheduled */
+    private final AtomicBoolean indexSavePending = new AtomicBoolean(false);
+
     private ReminderService() {
         DependencyInjectionService.getInstance().inject(this);
         setPreferenceDefaults();
+        index.load(getIndexFile());
     }
 
     // --- singleton
@@ -117,25 +141,129 @@ public final class ReminderService  {
     // --- reminder scheduling logic
 
     /**
-     * Schedules all alarms
+     * Schedules all alarms. When scheduling through the reminder index,
+     * tasks whose reminder fields did not change since they were last
+     * scheduled are skipped, and the wake-up alarm is always registered
+     * again, as it is lost when the device reboots.
      */
     public void scheduleAllAlarms() {
+        IndexedAlarmScheduler indexed = scheduler instanceof IndexedAlarmScheduler ?
+                (IndexedAlarmScheduler) scheduler : null;
+        HashSet<Long> taskIds = new HashSet<Long>();
         TodorooCursor<Task> cursor = getTasksWithReminders(PROPERTIES);
         try {
             Task task = new Task();
             now = DateUtilities.now(); // Before mass scheduling, initialize now variable
+            long start = now;
+            if(indexed != null)
+                indexed.startBatch();
             for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
                 task.readFromCursor(cursor);
+                taskIds.add(task.getId());
+                if(indexed != null && indexed.isCurrent(task, start))
+                    continue;
                 scheduleAlarm(task, false);
             }
+            if(indexed != null)
+                indexed.index.retainAll(taskIds);
         } catch (Exception e) {
             // suppress
         } finally {
             cursor.close();
             now = -1; // Signal done with now variable
+            if(indexed != null)
+                indexed.finishBatch(true);
+        }
+        saveIndex();
+    }
+
+    /**
+     * Remove the reminders that are due from the reminder index, and
+     * recompute the tasks whose entries are due for a recheck. Called when
+     * the wake-up alarm fires.
+     *
+     * @return due reminders
+     */
+    public ArrayList<ReminderIndex.Entry> pollDueReminders() {
+        if(!(scheduler instanceof IndexedAlarmScheduler))
+            return new ArrayList<ReminderIndex.Entry>();
+        IndexedAlarmScheduler indexed = (IndexedAlarmScheduler) scheduler;
+        long time = DateUtilities.now();
+        ArrayList<ReminderIndex.Entry> due = indexed.pollDue(time);
+        rescheduleTasks(indexed, new HashSet<Long>(indexed.index.needingRecheck(time)));
+        saveIndex();
+        return due;
+    }
+
+    /**
+     * Recompute the tasks of polled reminders that were not rescheduled
+     * when their notification was shown, for example because it was
+     * skipped. Called after the due reminders have been shown.
+     */
+    public void reschedulePolled(ArrayList<ReminderIndex.Entry> polled) {
+        if(!(scheduler instanceof IndexedAlarmScheduler))
+            return;
+        IndexedAlarmScheduler indexed = (IndexedAlarmScheduler) scheduler;
+        HashSet<Long> taskIds = new HashSet<Long>();
+        for(ReminderIndex.Entry entry : polled)
+            if(indexed.index.get(entry.taskId) == null)
+                taskIds.add(entry.taskId);
+        rescheduleTasks(indexed, taskIds);
+        saveIndex();
+    }
+
+    /**
+     * Recompute the given tasks with one query, forgetting those that
+     * no longer exist
+     */
+    private void rescheduleTasks(IndexedAlarmScheduler indexed, Set<Long> taskIds) {
+        if(taskIds.isEmpty())
+            return;
+        indexed.startBatch();
+        TodorooCursor<Task> cursor = taskDao.query(Query.select(PROPERTIES).where(
+                Task.ID.in(taskIds.toArray(new Long[taskIds.size()]))));
+        try {
+            Task task = new Task();
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                task.readFromCursor(cursor);
+                taskIds.remove(task.getId());
+                scheduleAlarm(task, false);
+            }
+            for(Long taskId : taskIds)
+                indexed.forget(taskId);
+        } finally {
+            cursor.close();
+            indexed.finishBatch(false);
+        }
+    }
+
+    private static File getIndexFile() {
+        return ContextManager.getContext().getFileStreamPath(INDEX_FILE);
+    }
+
+    private void saveIndex() {
+        try {
+            index.save(getIndexFile());
+        } catch (IOException e) {
+            Log.e("reminders", "Unable to save reminder index", e); //$NON-NLS-1$ //$NON-NLS-2$
         }
     }
 
+    /**
+     * Save the index after a short delay, so that a burst of single-task
+     * updates is written once
+     */
+    private void saveIndexLater() {
+        if(!indexSavePending.compareAndSet(false, true))
+            return;
+        indexSaver.schedule(new Runnable() {
+            public void run() {
+                indexSavePending.set(false);
+                saveIndex();
+            }
+        }, INDEX_SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
     private long getNowValue() {
         // If we're in the midst of mass scheduling, use the prestored now var
         return (now == -1 ? DateUtilities.now() : now);
@@ -149,6 +277,7 @@ public final class ReminderService  {
      */
     public void scheduleAlarm(Task task) {
         scheduleAlarm(task, true);
+        saveIndexLater();
     }
 
     public void clearAllAlarms(Task task) {
@@ -427,37 +556,138 @@ public final class ReminderService  {
         return scheduler;
     }
 
+    /**
+     * Scheduler that records the next reminder of every task in a
+     * {@link ReminderIndex} and only registers one wake-up alarm, for the
+     * earliest reminder, with another scheduler. The wake-up is left alone
+     * when the earliest reminder did not change.
+     */
+    public static class IndexedAlarmScheduler implements AlarmScheduler {
+
+        final ReminderIndex index;
+        private final AlarmScheduler wakeUp;
+
+        /** whether the wake-up is registered at the end of a batch */
+        private boolean batch = false;
+        private boolean headChanged = false;
+
+        /**
+         * @param index index to record reminders in
+         * @param wakeUp scheduler for the wake-up alarm
+         */
+        public IndexedAlarmScheduler(ReminderIndex index, AlarmScheduler wakeUp) {
+            this.index = index;
+            this.wakeUp = wakeUp;
+        }
+
+        public synchronized void createAlarm(Task task, long time, int type) {
+            if(task.getId() == Task.NO_ID)
+                return;
+            long current = DateUtilities.now();
+            boolean changed;
+            if(time == 0 || time == NO_ALARM) {
+                ReminderIndex.Entry entry = index.get(task.getId());
+                if(time == NO_ALARM && entry != null && entry.type != type)
+                    return;
+                if(time == NO_ALARM)
+                    changed = index.remove(task.getId());
+                else
+                    changed = index.put(task.getId(), ReminderIndex.NO_ALARM, type,
+                            ReminderIndex.fingerprint(task, PROPERTIES),
+                            current + DateUtilities.ONE_DAY);
+            } else {
+                changed = index.put(task.getId(), time, type,
+                        ReminderIndex.fingerprint(task, PROPERTIES),
+                        Math.min(time, current + DateUtilities.ONE_DAY));
+            }
+
+            if(batch)
+                headChanged |= changed;
+            else if(changed)
+                registerWakeUp();
+        }
+
+        /**
+         * @return true if the given task is in the index and unchanged
+         */
+        public boolean isCurrent(Task task, long time) {
+            return index.isCurrent(task.getId(), ReminderIndex.fingerprint(task, PROPERTIES),
+                    time);
+        }
+
+        /**
+         * Postpone registering the wake-up until {@link #finishBatch(boolean)}
+         */
+        public synchronized void startBatch() {
+            batch = true;
+            headChanged = false;
+        }
+
+        /**
+         * Register the wake-up if the earliest reminder changed during the
+         * batch, or always if asked to
+         */
+        public synchronized void finishBatch(boolean alwaysRegister) {
+            batch = false;
+            if(headChanged || alwaysRegister)
+                registerWakeUp();
+        }
+
+        /**
+         * Remove the entry of a task that no longer exists
+         */
+        public synchronized void forget(long taskId) {
+            boolean changed = index.remove(taskId);
+            if(batch)
+                headChanged |= changed;
+            else if(changed)
+                registerWakeUp();
+        }
+
+        /**
+         * Remove and return the reminders due at the given time
+         */
+        public synchronized ArrayList<ReminderIndex.Entry> pollDue(long time) {
+            ArrayList<ReminderIndex.Entry> due = index.pollDue(time);
+            if(!due.isEmpty())
+                registerWakeUp();
+            return due;
+        }
+
+        private void registerWakeUp() {
+            ReminderIndex.Entry head = index.first();
+            Task task = new Task();
+            if(head == null) {
+                wakeUp.createAlarm(task, NO_ALARM, 0);
+                return;
+            }
+            task.setId(head.taskId);
+            wakeUp.createAlarm(task, head.time, head.type);
+        }
+    }
+
+    /**
+     * Registers the wake-up alarm that makes {@link Notifications} show
+     * the reminders that are due. There is only one such alarm, so the
+     * task is only used for logging.
+     */
     private static class ReminderAlarmScheduler implements AlarmScheduler {
         /**
-         * Create an alarm for the given task at the given type
+         * Set the wake-up alarm for the given time, or cancel it
          *
          * @param task
          * @param time
          * @param type
-         * @param flags
          */
         @SuppressWarnings("nls")
         public void createAlarm(Task task, long time, int type) {
-            if(task.getId() == Task.NO_ID)
-                return;
             Context context = ContextManager.getContext();
             Intent intent = new Intent(context, Notifications.class);
-            intent.setType(Long.toString(task.getId()));
-            intent.setAction(Integer.toString(type));
-            intent.putExtra(Notifications.ID_KEY, task.getId());
-            intent.putExtra(Notifications.TYPE_KEY, type);
-
-            // calculate the unique requestCode as a combination of the task-id and alarm-type:
-            // concatenate id+type to keep the combo unique
-            String rc = String.format("%d%d", task.getId(), type);
-            int requestCode;
-            try {
-                requestCode = Integer.parseInt(rc);
-            } catch (Exception e) {
-                requestCode = type;
-            }
+            intent.setAction(Notifications.DUE_REMINDERS_KEY);
+            intent.putExtra(Notifications.DUE_REMINDERS_KEY, true);
+
             AlarmManager am = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, requestCode,
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0,
                     intent, 0);
 
             if (time == 0 || time == NO_ALARM)
@@ -467,7 +697,7 @@ public final class ReminderService  {
                     time = DateUtilities.now() + 5000L;
 
                if(Constants.DEBUG)
-                    Log.e("Astrid", "Reminder set for " + new Date(time)+" for (\""+task.getValue(Task.TITLE)+"\" (" + task.getId() + "), " + type +")");
+                    Log.e("Astrid", "Reminder wake-up set for " + new Date(time)+" for (" + task.getId() + ", " + type +")");
                 am.set(AlarmManager.RTC_WAKEUP, time, pendingIntent);
             }
         }
@@ -74,11 +74,8 @@ public class TagFilterExposer extends BroadcastReceiver implements AstridFilterE
         FilterWithUpdate filter = new FilterWithUpdate(tag.tag,
                 title, tagTemplate,
                 contentValues);
-        if(tag.remoteId > 0) {
-            filter.listingTitle += " (" + tag.count + ")";
-            if(tag.count == 0)
-                filter.color = Color.GRAY;
-        }
+        if(tag.remoteId > 0 && tag.count == 0)
+            filter.color = Color.GRAY;
 
         filter.contextMenuLabels = new String[] {
             context.getString(R.string.tag_cm_rename),
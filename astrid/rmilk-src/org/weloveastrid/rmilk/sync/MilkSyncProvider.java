@@ -5,6 +5,7 @@ package org.weloveastrid.rmilk.sync;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -542,6 +543,18 @@ public class MilkSyncProvider extends SyncProvider<MilkTaskContainer> {
     // --------------------------------------------------------- misc helpers
     // ----------------------------------------------------------------------
 
+    private static final RemoteKeyExtractor<MilkTaskContainer> REMOTE_KEY_EXTRACTOR =
+        new RemoteKeyExtractor<MilkTaskContainer>() {
+        public Object getRemoteKey(MilkTaskContainer task) {
+            return Arrays.asList(task.listId, task.taskSeriesId, task.taskId);
+        }
+    };
+
+    @Override
+    protected RemoteKeyExtractor<MilkTaskContainer> getRemoteKeyExtractor() {
+        return REMOTE_KEY_EXTRACTOR;
+    }
+
     @Override
     protected int matchTask(ArrayList<MilkTaskContainer> tasks, MilkTaskContainer target) {
         int length = tasks.size();
@@ -56,8 +56,6 @@ import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.DependencyInjectionService;
 import com.todoroo.andlib.service.ExceptionService;
 import com.todoroo.andlib.service.NotificationManager;
-import com.todoroo.andlib.sql.Functions;
-import com.todoroo.andlib.sql.QueryTemplate;
 import com.todoroo.andlib.utility.AndroidUtilities;
 import com.todoroo.andlib.utility.DateUtilities;
 import com.todoroo.andlib.utility.DialogUtilities;
@@ -76,7 +74,7 @@ import com.todoroo.astrid.api.IntentFilter;
 import com.todoroo.astrid.api.SyncAction;
 import com.todoroo.astrid.core.CustomFilterActivity;
 import com.todoroo.astrid.core.SearchFilter;
-import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.dao.TaskSearchIndex;
 import com.todoroo.astrid.helper.MetadataHelper;
 import com.todoroo.astrid.service.StartupService;
 import com.todoroo.astrid.service.StatisticsConstants;
@@ -179,9 +177,7 @@ public class FilterListActivity extends ExpandableListActivity {
         if (Intent.ACTION_SEARCH.equals(intentAction)) {
             String query = intent.getStringExtra(SearchManager.QUERY).trim();
             Filter filter = new Filter(null, getString(R.string.FLA_search_filter, query),
-                    new QueryTemplate().where(Functions.upper(Task.TITLE).like("%" + //$NON-NLS-1$
-                            query.toUpperCase() + "%")), //$NON-NLS-1$
-                    null);
+                    TaskSearchIndex.searchTemplate(query), null);
             intent = new Intent(FilterListActivity.this, TaskListActivity.class);
             intent.putExtra(TaskListActivity.TOKEN_FILTER, filter);
             startActivity(intent);
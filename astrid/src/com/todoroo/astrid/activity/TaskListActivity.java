@@ -64,8 +64,6 @@ import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.ContextManager;
 import com.todoroo.andlib.service.DependencyInjectionService;
 import com.todoroo.andlib.service.ExceptionService;
-import com.todoroo.andlib.sql.Functions;
-import com.todoroo.andlib.sql.QueryTemplate;
 import com.todoroo.andlib.utility.AndroidUtilities;
 import com.todoroo.andlib.utility.DateUtilities;
 import com.todoroo.andlib.utility.Preferences;
@@ -88,6 +86,7 @@ import com.todoroo.astrid.core.CoreFilterExposer;
 import com.todoroo.astrid.core.SortHelper;
 import com.todoroo.astrid.dao.Database;
 import com.todoroo.astrid.dao.TaskDao.TaskCriteria;
+import com.todoroo.astrid.dao.TaskSearchIndex;
 import com.todoroo.astrid.data.Metadata;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.gcal.GCalHelper;
@@ -285,9 +284,7 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
         if (Intent.ACTION_SEARCH.equals(intentAction)) {
             String query = intent.getStringExtra(SearchManager.QUERY).trim();
             Filter searchFilter = new Filter(null, getString(R.string.FLA_search_filter, query),
-                    new QueryTemplate().where(Functions.upper(Task.TITLE).like("%" + //$NON-NLS-1$
-                            query.toUpperCase() + "%")), //$NON-NLS-1$
-                    null);
+                    TaskSearchIndex.searchTemplate(query), null);
             intent = new Intent(this, TaskListActivity.class);
             intent.putExtra(TaskListActivity.TOKEN_FILTER, searchFilter);
             startActivity(intent);
@@ -574,6 +571,8 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
                 new IntentFilter(AstridApiConstants.BROADCAST_EVENT_REFRESH));
         registerReceiver(syncActionReceiver,
                 new IntentFilter(AstridApiConstants.BROADCAST_SEND_SYNC_ACTIONS));
+        if(taskAdapter != null)
+            database.addChangeListener(taskAdapter.changeListener);
         setUpBackgroundJobs();
 
         if (filter.title.equals(getString(R.string.BFE_Active))) {
@@ -592,6 +591,8 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
         } catch (IllegalArgumentException e) {
             // might not have fully initialized
         }
+        if(taskAdapter != null)
+            database.removeChangeListener(taskAdapter.changeListener);
         backgroundTimer.cancel();
     }
 
@@ -801,6 +802,8 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
         startManagingCursor(currentCursor);
 
         // set up list adapters
+        if(taskAdapter != null)
+            database.removeChangeListener(taskAdapter.changeListener);
         taskAdapter = new TaskAdapter(this, R.layout.task_adapter_row,
                 currentCursor, sqlQueryTemplate, false, new OnCompletedTaskListener() {
             @Override
@@ -810,6 +813,7 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
             }
         });
         setListAdapter(taskAdapter);
+        database.addChangeListener(taskAdapter.changeListener);
         getListView().setOnScrollListener(this);
         registerForContextMenu(getListView());
 
@@ -827,7 +831,7 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
         TodorooCursor<Task> currentCursor = (TodorooCursor<Task>)taskAdapter.getCursor();
         for(int i = 0; i < currentCursor.getCount(); i++) {
             currentCursor.moveToPosition(i);
-            if(currentCursor.get(Task.ID) == withCustomId) {
+            if(currentCursor.getLong(Task.ID) == withCustomId) {
                 getListView().setSelection(i);
                 showHelpPopover();
                 return;
@@ -854,7 +858,7 @@ public class TaskListActivity extends ListActivity implements OnScrollListener,
         // try selecting again
         for(int i = 0; i < currentCursor.getCount(); i++) {
             currentCursor.moveToPosition(i);
-            if(currentCursor.get(Task.ID) == withCustomId) {
+            if(currentCursor.getLong(Task.ID) == withCustomId) {
                 getListView().setSelection(i);
                 showHelpPopover();
                 break;
@@ -6,6 +6,7 @@ package com.todoroo.astrid.adapter;
 import greendroid.widget.AsyncImageView;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -53,7 +54,7 @@ import com.todoroo.astrid.api.FilterCategoryWithNewButton;
 import com.todoroo.astrid.api.FilterListHeader;
 import com.todoroo.astrid.api.FilterListItem;
 import com.todoroo.astrid.api.FilterWithUpdate;
-import com.todoroo.astrid.service.TaskService;
+import com.todoroo.astrid.service.FilterCountService;
 
 public class FilterAdapter extends BaseExpandableListAdapter {
 
@@ -65,7 +66,7 @@ public class FilterAdapter extends BaseExpandableListAdapter {
     // --- instance variables
 
     @Autowired
-    private TaskService taskService;
+    private FilterCountService filterCountService;
 
     /** parent activity */
     protected final Activity activity;
@@ -104,6 +105,13 @@ public class FilterAdapter extends BaseExpandableListAdapter {
     // if new filters are queued (obviously it cannot be garbage collected if it is possible for new filters to
     // be added).
     private final ThreadPoolExecutor filterExecutor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /** filters waiting for their size to be loaded */
+    private final ArrayList<Filter> pendingFilters = new ArrayList<Filter>();
+
+    /** filters whose size was already added to their title */
+    private final IdentityHashMap<Filter, Boolean> countedFilters =
+        new IdentityHashMap<Filter, Boolean>();
     private final Drawable headerBackground;
 
     public FilterAdapter(Activity activity, ExpandableListView listView,
@@ -138,15 +146,42 @@ public class FilterAdapter extends BaseExpandableListAdapter {
     private void offerFilter(final Filter filter) {
         if(selectable && selection == null)
             setSelection(filter);
+
+        // filters offered together are counted together
+        synchronized(pendingFilters) {
+            pendingFilters.add(filter);
+            if(pendingFilters.size() > 1)
+                return;
+        }
         filterExecutor.submit(new Runnable() {
             @Override
             public void run() {
                 try {
-                    if(filter.listingTitle.matches(".* \\(\\d+\\)$")) //$NON-NLS-1$
+                    ArrayList<Filter> filters = new ArrayList<Filter>();
+                    synchronized(pendingFilters) {
+                        for(Filter pending : pendingFilters)
+                            if(!countedFilters.containsKey(pending))
+                                filters.add(pending);
+                        pendingFilters.clear();
+                    }
+                    if(filters.isEmpty())
                         return;
-                    int size = taskService.countTasks(filter);
-                    filter.listingTitle = filter.listingTitle + (" (" + //$NON-NLS-1$
-                        size + ")"); //$NON-NLS-1$
+
+                    // filters are only marked as counted once their size is
+                    // added, so ones that fail are counted again next time
+                    int[] sizes = filterCountService.countTasks(
+                            filters.toArray(new Filter[filters.size()]));
+                    for(int i = 0; i < sizes.length; i++) {
+                        Filter counted = filters.get(i);
+                        if(sizes[i] < 0)
+                            continue;
+                        synchronized(pendingFilters) {
+                            if(countedFilters.put(counted, Boolean.TRUE) != null)
+                                continue;
+                        }
+                        counted.listingTitle = counted.listingTitle + (" (" + //$NON-NLS-1$
+                            sizes[i] + ")"); //$NON-NLS-1$
+                    }
                     activity.runOnUiThread(new Runnable() {
                         public void run() {
                             notifyDataSetInvalidated();
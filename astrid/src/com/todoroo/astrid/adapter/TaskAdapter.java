@@ -6,12 +6,21 @@ import greendroid.widget.QuickActionBar;
 import greendroid.widget.QuickActionWidget;
 import greendroid.widget.QuickActionWidget.OnQuickActionClickListener;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONException;
@@ -19,6 +28,7 @@ import org.json.JSONObject;
 
 import android.app.ListActivity;
 import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -58,6 +68,8 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.timsu.astrid.R;
+import com.todoroo.andlib.data.AbstractDatabase.DatabaseChangeListener;
+import com.todoroo.andlib.data.DatabaseChange;
 import com.todoroo.andlib.data.Property;
 import com.todoroo.andlib.data.TodorooCursor;
 import com.todoroo.andlib.service.Autowired;
@@ -100,7 +112,11 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
 
     // --- other constants
 
-    /** Properties that need to be read from the action item */
+    /**
+     * Properties that need to be read from the action item. Large columns
+     * ({@link Task#DEFERRED_PROPERTIES}) are left out and read by id in the
+     * background as rows are shown
+     */
     public static final Property<?>[] PROPERTIES = new Property<?>[] {
         Task.ID,
         Task.TITLE,
@@ -111,11 +127,9 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         Task.MODIFICATION_DATE,
         Task.HIDE_UNTIL,
         Task.DELETION_DATE,
-        Task.DETAILS,
         Task.ELAPSED_SECONDS,
         Task.TIMER_START,
         Task.RECURRENCE,
-        Task.NOTES,
         Task.USER_ID,
         Task.USER
     };
@@ -141,7 +155,6 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
     public boolean isFling = false;
     private final int resource;
     private final LayoutInflater inflater;
-    private DetailLoaderThread detailLoader;
     private int fontSize;
     protected boolean applyListenersToRowBody = false;
     private long mostRecentlyMade = -1;
@@ -193,11 +206,10 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         displayMetrics = new DisplayMetrics();
         activity.getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
 
-        detailLoader = new DetailLoaderThread();
-        detailLoader.start();
-
         decorationManager = new DecorationManager();
         taskActionManager = new TaskActionManager();
+
+        rowPrefetcher.reset();
     }
 
     /* ======================================================================
@@ -211,6 +223,7 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         }
 
         // perform query
+        rowPrefetcher.setConstraint(constraint);
         TodorooCursor<Task> newCursor = taskService.fetchFiltered(
                 query.get(), constraint, TaskAdapter.PROPERTIES);
         activity.startManagingCursor(newCursor);
@@ -261,12 +274,51 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
 
         Task task = viewHolder.task;
         task.clear();
-        task.readFromCursor(cursor);
+        cursor.readInto(task);
+        rowPrefetcher.fillDeferred(task);
 
         setFieldContentsAndVisibility(view);
         setTaskAppearance(viewHolder, task);
     }
 
+    /**
+     * Binds rows that were already read in the background without moving
+     * the cursor, and starts reading the rows around the position
+     */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        Task prepared = rowPrefetcher.get(position);
+        rowPrefetcher.prefetch(position);
+        if(prepared == null)
+            return super.getView(position, convertView, parent);
+
+        View view = convertView;
+        if(view == null)
+            view = newView(activity, getCursor(), parent);
+        ViewHolder viewHolder = ((ViewHolder)view.getTag());
+
+        // binding changes the task, so the prepared row is kept intact
+        viewHolder.task = (Task) prepared.clone();
+
+        setFieldContentsAndVisibility(view);
+        setTaskAppearance(viewHolder, viewHolder.task);
+        return view;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Task prepared = rowPrefetcher.get(position);
+        if(prepared != null)
+            return prepared.getId();
+        return super.getItemId(position);
+    }
+
+    @Override
+    public void changeCursor(Cursor cursor) {
+        super.changeCursor(cursor);
+        rowPrefetcher.reset();
+    }
+
     /** Helper method to set the visibility based on if there's stuff inside */
     private static void setVisibility(TextView v) {
         if(v.getText().length() > 0)
@@ -513,77 +565,15 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
     // it's best to do this, though, in order to append details to each other
     private final Map<Long, StringBuilder> taskDetailLoader = Collections.synchronizedMap(new HashMap<Long, StringBuilder>(0));
 
-    public class DetailLoaderThread extends Thread {
-        @Override
-        public void run() {
-            // for all of the tasks returned by our cursor, verify details
-            AndroidUtilities.sleepDeep(500L);
-            TodorooCursor<Task> fetchCursor = taskService.fetchFiltered(
-                    query.get(), null, Task.ID, Task.DETAILS, Task.DETAILS_DATE,
-                    Task.MODIFICATION_DATE, Task.COMPLETION_DATE);
-            try {
-                Random random = new Random();
-
-                Task task = new Task();
-                for(fetchCursor.moveToFirst(); !fetchCursor.isAfterLast(); fetchCursor.moveToNext()) {
-                    task.clear();
-                    task.readFromCursor(fetchCursor);
-                    if(task.isCompleted())
-                        continue;
-
-                    if(detailsAreRecentAndUpToDate(task)) {
-                        // even if we are up to date, randomly load a fraction
-                        if(random.nextFloat() < 0.1) {
-                            taskDetailLoader.put(task.getId(),
-                                    new StringBuilder(task.getValue(Task.DETAILS)));
-                            requestNewDetails(task);
-                            if(Constants.DEBUG)
-                                System.err.println("Refreshing details: " + task.getId()); //$NON-NLS-1$
-                        }
-                        continue;
-                    } else if(Constants.DEBUG) {
-                        System.err.println("Forced loading of details: " + task.getId() + //$NON-NLS-1$
-                        		"\n  details: " + new Date(task.getValue(Task.DETAILS_DATE)) + //$NON-NLS-1$
-                        		"\n  modified: " + new Date(task.getValue(Task.MODIFICATION_DATE))); //$NON-NLS-1$
-                    }
-                    addTaskToLoadingArray(task);
-
-                    task.setValue(Task.DETAILS, DETAIL_SEPARATOR);
-                    task.setValue(Task.DETAILS_DATE, DateUtilities.now());
-                    taskService.save(task);
-
-                    requestNewDetails(task);
-                }
-                if(taskDetailLoader.size() > 0) {
-                    activity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyDataSetChanged();
-                        }
-                    });
-                }
-            } catch (Exception e) {
-                // suppress silently
-            } finally {
-                fetchCursor.close();
-            }
-        }
-
-        private boolean detailsAreRecentAndUpToDate(Task task) {
-            return task.getValue(Task.DETAILS_DATE) >= task.getValue(Task.MODIFICATION_DATE) &&
-                !TextUtils.isEmpty(task.getValue(Task.DETAILS));
-        }
-
-        private void addTaskToLoadingArray(Task task) {
-            StringBuilder detailStringBuilder = new StringBuilder();
-            taskDetailLoader.put(task.getId(), detailStringBuilder);
-        }
+    private boolean detailsAreRecentAndUpToDate(Task task) {
+        return task.getValue(Task.DETAILS_DATE) >= task.getValue(Task.MODIFICATION_DATE) &&
+            !TextUtils.isEmpty(task.getValue(Task.DETAILS));
+    }
 
-        private void requestNewDetails(Task task) {
-            Intent broadcastIntent = new Intent(AstridApiConstants.BROADCAST_REQUEST_DETAILS);
-            broadcastIntent.putExtra(AstridApiConstants.EXTRAS_TASK_ID, task.getId());
-            activity.sendOrderedBroadcast(broadcastIntent, AstridApiConstants.PERMISSION_READ);
-        }
+    private void requestNewDetails(Task task) {
+        Intent broadcastIntent = new Intent(AstridApiConstants.BROADCAST_REQUEST_DETAILS);
+        broadcastIntent.putExtra(AstridApiConstants.EXTRAS_TASK_ID, task.getId());
+        activity.sendOrderedBroadcast(broadcastIntent, AstridApiConstants.PERMISSION_READ);
     }
 
     /**
@@ -647,6 +637,328 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         }
     };
 
+    /* ======================================================================
+     * ========================================================= row prefetch
+     * ====================================================================== */
+
+    /** number of rows read at a time */
+    private static final int PAGE_SIZE = 25;
+
+    /** most prepared rows kept */
+    private static final int MAX_PREPARED_ROWS = 150;
+
+    /**
+     * Reads pages of rows around the scroll position into tasks on a
+     * background thread, so rows that are ready bind without touching the
+     * list cursor. It reads its own cursor over the same query, which is
+     * opened again whenever the list cursor changes and closed once there is
+     * nothing left to read, since it is not managed by the activity. Rows
+     * that are read also have their details checked, and new details are
+     * requested from add-ons for rows that need them.
+     * <p>
+     * Deferred properties are read in the same pass, one query per page.
+     * Rows bound straight from the list cursor have theirs read in batches
+     * by task id and are bound again when they arrive.
+     */
+    private class RowPrefetcher {
+
+        /** reads rows, its thread exits when there is nothing to read */
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 1,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+        /** prepared rows by position. UI thread only */
+        private final LinkedHashMap<Integer, Task> rows = new LinkedHashMap<Integer, Task>(
+                MAX_PREPARED_ROWS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Integer, Task> eldest) {
+                if(size() <= MAX_PREPARED_ROWS)
+                    return false;
+                requestedPages.remove(eldest.getKey() / PAGE_SIZE);
+                return true;
+            }
+        };
+
+        /** pages read or being read. UI thread only */
+        private final HashSet<Integer> requestedPages = new HashSet<Integer>();
+
+        /** deferred values of rows bound from the list cursor. UI thread only */
+        private final LinkedHashMap<Long, ContentValues> deferredValues =
+            new LinkedHashMap<Long, ContentValues>(MAX_PREPARED_ROWS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Long, ContentValues> eldest) {
+                return size() > MAX_PREPARED_ROWS;
+            }
+        };
+
+        /** tasks whose deferred values are being read. UI thread only */
+        private final HashSet<Long> requestedDeferred = new HashSet<Long>();
+
+        /** tasks whose deferred values are waiting to be read */
+        private final ArrayList<Long> deferredBatch = new ArrayList<Long>();
+
+        /** incremented whenever the list cursor changes, to drop old reads */
+        private volatile int generation = 0;
+
+        /** set if the background cursor doesn't match the list cursor */
+        private boolean disabled = false;
+
+        /** constraint of the list cursor */
+        private volatile CharSequence constraint = null;
+
+        /** properties of the list cursor */
+        private volatile Property<?>[] properties = null;
+
+        // background cursor, only touched from the executor
+
+        private TodorooCursor<Task> cursor = null;
+        private int cursorGeneration = -1;
+
+        /**
+         * @return row prepared for the given position, or null
+         */
+        public Task get(int position) {
+            if(disabled)
+                return null;
+            return rows.get(position);
+        }
+
+        /**
+         * Start reading the page containing the position and its neighbors
+         */
+        public void prefetch(int position) {
+            if(disabled || properties == null)
+                return;
+            int page = position / PAGE_SIZE;
+            request(page);
+            request(page + 1);
+            if(page > 0)
+                request(page - 1);
+        }
+
+        private void request(final int page) {
+            if(page * PAGE_SIZE >= getCount() || !requestedPages.add(page))
+                return;
+            final int readGeneration = generation;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        readPage(page, readGeneration);
+                    } catch (Exception e) {
+                        // the row will be bound from the list cursor instead
+                        Log.w("astrid", "task-adapter-prefetch", e); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                    // nothing else to read, don't hold the cursor open
+                    if(executor.getQueue().isEmpty())
+                        closeCursor();
+                }
+            });
+        }
+
+        private void readPage(int page, final int readGeneration) {
+            if(readGeneration != generation)
+                return;
+            if(cursor == null || cursorGeneration != readGeneration) {
+                closeCursor();
+                cursor = taskService.fetchFiltered(query.get(), constraint, properties);
+                cursorGeneration = readGeneration;
+            }
+
+            final int start = page * PAGE_SIZE;
+            final int count = cursor.getCount();
+            final ArrayList<Task> tasks = new ArrayList<Task>(PAGE_SIZE);
+            for(int i = start; i < start + PAGE_SIZE && cursor.moveToPosition(i); i++)
+                tasks.add(new Task(cursor));
+            readDeferred(tasks);
+            final boolean requested = checkDetails(tasks);
+
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    if(readGeneration != generation)
+                        return;
+                    // list changed between opening the two cursors
+                    if(count != getCount()) {
+                        disabled = true;
+                        rows.clear();
+                        return;
+                    }
+                    for(int i = 0; i < tasks.size(); i++)
+                        rows.put(start + i, tasks.get(i));
+                    if(requested)
+                        notifyDataSetChanged();
+                }
+            });
+        }
+
+        /**
+         * Read deferred values of a page of tasks
+         */
+        private void readDeferred(ArrayList<Task> tasks) {
+            Long[] ids = new Long[tasks.size()];
+            for(int i = 0; i < ids.length; i++)
+                ids[i] = tasks.get(i).getId();
+            HashMap<Long, ContentValues> values = taskService.fetchDeferred(ids);
+            for(Task task : tasks) {
+                ContentValues taskValues = values.get(task.getId());
+                if(taskValues != null)
+                    task.mergeWithDatabaseValues(taskValues);
+            }
+        }
+
+        /**
+         * Set the deferred values of a task bound from the list cursor if they
+         * have been read, or start reading them
+         */
+        public void fillDeferred(Task task) {
+            long id = task.getId();
+            ContentValues values = deferredValues.get(id);
+            if(values != null) {
+                task.mergeWithDatabaseValues(values);
+                return;
+            }
+            if(!requestedDeferred.add(id))
+                return;
+
+            synchronized(deferredBatch) {
+                deferredBatch.add(id);
+                // a read is already waiting and will include this task
+                if(deferredBatch.size() > 1)
+                    return;
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        readDeferredBatch();
+                    } catch (Exception e) {
+                        Log.w("astrid", "task-adapter-deferred", e); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                }
+            });
+        }
+
+        private void readDeferredBatch() {
+            final Long[] ids;
+            synchronized(deferredBatch) {
+                ids = deferredBatch.toArray(new Long[deferredBatch.size()]);
+                deferredBatch.clear();
+            }
+            final int readGeneration = generation;
+            final HashMap<Long, ContentValues> values = taskService.fetchDeferred(ids);
+
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    if(readGeneration != generation)
+                        return;
+                    for(Long id : ids) {
+                        requestedDeferred.remove(id);
+                        // tasks that are gone get no values, so they are not read again
+                        ContentValues taskValues = values.get(id);
+                        deferredValues.put(id, taskValues == null ? new ContentValues() : taskValues);
+                    }
+                    if(!values.isEmpty())
+                        notifyDataSetChanged();
+                }
+            });
+        }
+
+        /**
+         * Request new details for tasks whose details are out of date, and
+         * for a random fraction of the others
+         *
+         * @return true if any details were requested
+         */
+        private boolean checkDetails(ArrayList<Task> tasks) {
+            boolean requested = false;
+            for(Task task : tasks) {
+                if(task.isCompleted() || taskDetailLoader.containsKey(task.getId()))
+                    continue;
+
+                if(detailsAreRecentAndUpToDate(task)) {
+                    // even if we are up to date, randomly load a fraction
+                    if(random.nextFloat() < 0.1) {
+                        taskDetailLoader.put(task.getId(),
+                                new StringBuilder(task.getValue(Task.DETAILS)));
+                        requestNewDetails(task);
+                        requested = true;
+                        if(Constants.DEBUG)
+                            System.err.println("Refreshing details: " + task.getId()); //$NON-NLS-1$
+                    }
+                    continue;
+                } else if(Constants.DEBUG) {
+                    System.err.println("Forced loading of details: " + task.getId() + //$NON-NLS-1$
+                            "\n  details: " + new Date(task.getValue(Task.DETAILS_DATE)) + //$NON-NLS-1$
+                            "\n  modified: " + new Date(task.getValue(Task.MODIFICATION_DATE))); //$NON-NLS-1$
+                }
+                taskDetailLoader.put(task.getId(), new StringBuilder());
+                requestNewDetails(task);
+                requested = true;
+            }
+            return requested;
+        }
+
+        private void closeCursor() {
+            if(cursor == null)
+                return;
+            cursor.close();
+            cursor = null;
+        }
+
+        /**
+         * Drop all prepared rows and reads, for example because the list
+         * cursor was re-queried
+         */
+        public void reset() {
+            generation++;
+            disabled = false;
+            rows.clear();
+            requestedPages.clear();
+            deferredValues.clear();
+            requestedDeferred.clear();
+
+            Cursor listCursor = getCursor();
+            if(listCursor instanceof TodorooCursor<?>) {
+                Property<?>[] listProperties = ((TodorooCursor<?>) listCursor).getProperties();
+                Property<?>[] readProperties = new Property<?>[listProperties.length + 1];
+                System.arraycopy(listProperties, 0, readProperties, 0, listProperties.length);
+                readProperties[listProperties.length] = Task.DETAILS_DATE;
+                properties = readProperties;
+            } else {
+                properties = null;
+            }
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    closeCursor();
+                }
+            });
+        }
+
+        /**
+         * Drop prepared rows of the given task, so they are bound from the
+         * list cursor
+         */
+        public void remove(long taskId) {
+            for(Iterator<Task> i = rows.values().iterator(); i.hasNext(); )
+                if(i.next().getId() == taskId)
+                    i.remove();
+            deferredValues.remove(taskId);
+        }
+
+        /**
+         * Set the constraint the list cursor was queried with
+         */
+        public void setConstraint(CharSequence constraint) {
+            this.constraint = constraint;
+        }
+    }
+
+    private final Random random = new Random();
+
+    private final RowPrefetcher rowPrefetcher = new RowPrefetcher();
+
     /* ======================================================================
      * ============================================================== add-ons
      * ====================================================================== */
@@ -659,8 +971,7 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         decorationManager.clearCache();
         taskActionManager.clearCache();
         taskDetailLoader.clear();
-        detailLoader = new DetailLoaderThread();
-        detailLoader.start();
+        rowPrefetcher.reset();
     }
 
     /**
@@ -671,8 +982,34 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         decorationManager.clearCache(taskId);
         taskActionManager.clearCache(taskId);
         taskDetailLoader.remove(taskId);
+        rowPrefetcher.remove(taskId);
     }
 
+    /**
+     * Listener that clears the cached details of tasks saved elsewhere, so
+     * only those rows reload them. Register it with the database while the
+     * list is shown.
+     */
+    public final DatabaseChangeListener changeListener = new DatabaseChangeListener() {
+        public void onDatabaseChanged(List<DatabaseChange> changes) {
+            final HashSet<Long> taskIds = new HashSet<Long>();
+            for(DatabaseChange change : changes)
+                if(change.isTo(Task.TABLE) && change.isSingleRow() &&
+                        change.operation == DatabaseChange.UPDATE)
+                    taskIds.add(change.rowId);
+            if(taskIds.isEmpty())
+                return;
+
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    for(Long taskId : taskIds)
+                        flushSpecific(taskId);
+                    notifyDataSetChanged();
+                }
+            });
+        }
+    };
+
     /**
      * AddOnManager for TaskDecorations
      *
@@ -698,6 +1035,12 @@ public class TaskAdapter extends CursorAdapter implements Filterable {
         public boolean request(ViewHolder viewHolder) {
             long taskId = viewHolder.task.getId();
 
+            // decorations depend on notes, so wait until they have been read
+            if(!viewHolder.task.containsValue(Task.NOTES)) {
+                reset(viewHolder, taskId);
+                return false;
+            }
+
             Collection<TaskDecoration> list = initialize(taskId);
             if(list != null) {
                 draw(viewHolder, taskId, list);
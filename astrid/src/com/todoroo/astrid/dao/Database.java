@@ -5,11 +5,14 @@
  */
 package com.todoroo.astrid.dao;
 
+import java.util.List;
+
 import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
 import com.todoroo.andlib.data.AbstractDatabase;
 import com.todoroo.andlib.data.AbstractModel;
+import com.todoroo.andlib.data.DatabaseChange;
 import com.todoroo.andlib.data.Property;
 import com.todoroo.andlib.data.Table;
 import com.todoroo.andlib.service.ContextManager;
@@ -37,7 +40,7 @@ public class Database extends AbstractDatabase {
      * Database version number. This variable must be updated when database
      * tables are updated, as it determines whether a database needs updating.
      */
-    public static final int VERSION = 17;
+    public static final int VERSION = 19;
 
     /**
      * Database name (must be unique)
@@ -60,12 +63,19 @@ public class Database extends AbstractDatabase {
 
     public Database() {
         super();
-        addListener(new DatabaseUpdateListener() {
+        addChangeListener(new DatabaseChangeListener() {
             @Override
-            public void onDatabaseUpdated() {
-                Astrid2TaskProvider.notifyDatabaseModification();
-                Astrid3ContentProvider.notifyDatabaseModification();
-                TasksWidget.updateWidgets(ContextManager.getContext());
+            public void onDatabaseChanged(List<DatabaseChange> changes) {
+                // the legacy provider only shows tasks and their metadata
+                boolean tasksChanged = false;
+                for(DatabaseChange change : changes)
+                    if(change.isTo(Task.TABLE) || change.isTo(Metadata.TABLE))
+                        tasksChanged = true;
+
+                Astrid3ContentProvider.notifyDatabaseModification(changes);
+                if(tasksChanged)
+                    Astrid2TaskProvider.notifyDatabaseModification();
+                TasksWidget.updateWidgets(ContextManager.getContext(), changes);
             }
         });
     }
@@ -129,6 +139,9 @@ public class Database extends AbstractDatabase {
             append(')');
         database.execSQL(sql.toString());
         sql.setLength(0);
+
+        TaskSearchIndex.create(database);
+        UpdateDao.UpdateTags.create(database);
     }
 
     @Override
@@ -226,6 +239,17 @@ public class Database extends AbstractDatabase {
         } catch (SQLiteException e) {
             Log.e("astrid", "db-upgrade-" + oldVersion + "-" + newVersion, e);
         }
+        case 17: try {
+            TaskSearchIndex.create(database);
+        } catch (SQLiteException e) {
+            Log.e("astrid", "db-upgrade-" + oldVersion + "-" + newVersion, e);
+        }
+        case 18: try {
+            UpdateDao.UpdateTags.create(database);
+            UpdateDao.UpdateTags.fill(database);
+        } catch (SQLiteException e) {
+            Log.e("astrid", "db-upgrade-" + oldVersion + "-" + newVersion, e);
+        }
 
         return true;
         }
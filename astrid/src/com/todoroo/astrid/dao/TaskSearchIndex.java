@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2009, Todoroo Inc
+ * All Rights Reserved
+ * http://www.todoroo.com
+ */
+package com.todoroo.astrid.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.todoroo.andlib.data.Table;
+import com.todoroo.andlib.sql.Criterion;
+import com.todoroo.andlib.sql.Field;
+import com.todoroo.andlib.sql.Order;
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.andlib.sql.QueryTemplate;
+import com.todoroo.andlib.sql.UnaryCriterion;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.tags.TagService;
+
+/**
+ * Full-text index over task titles, notes and tags. The index is an FTS3
+ * table whose row ids are task ids. Triggers on the task and metadata
+ * tables keep it up to date, so every write path is covered, including
+ * bulk updates and deletes.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+@SuppressWarnings("nls")
+public final class TaskSearchIndex {
+
+    public static final Table TABLE = new Table("task_search", null);
+
+    /** the whole index, for matching any column */
+    public static final Field ALL = Field.field(TABLE.name);
+
+    /** task id of an index row */
+    public static final Field TASK_ID = Field.field("rowid");
+
+    public static final Field TITLE = Field.field(Task.TITLE.name);
+
+    public static final Field NOTES = Field.field(Task.NOTES.name);
+
+    public static final Field TAGS = Field.field("tags");
+
+    private TaskSearchIndex() {
+        // static methods only
+    }
+
+    // --- queries
+
+    /**
+     * Convert text typed by the user into a full-text query that matches
+     * tasks containing words starting with each of the words typed
+     *
+     * @param text
+     * @return query, or null if the text contains no words
+     */
+    public static String toMatchQuery(String text) {
+        if(text == null)
+            return null;
+        StringBuilder query = new StringBuilder();
+        int wordStart = -1;
+        for(int i = 0; i <= text.length(); i++) {
+            if(i < text.length() && isWordCharacter(text.charAt(i))) {
+                if(wordStart == -1)
+                    wordStart = i;
+                continue;
+            }
+            if(wordStart == -1)
+                continue;
+            if(query.length() > 0)
+                query.append(' ');
+            // lower case so words are never read as AND, OR, NOT or NEAR
+            for(int j = wordStart; j < i; j++) {
+                char c = text.charAt(j);
+                query.append(c < 128 ? Character.toLowerCase(c) : c);
+            }
+            query.append('*');
+            wordStart = -1;
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
+
+    /**
+     * Word characters as read by the FTS3 simple tokenizer, which splits
+     * words on all ASCII characters that aren't letters or digits
+     */
+    private static boolean isWordCharacter(char c) {
+        return c >= 128 || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * @param text text typed by the user
+     * @return criterion for tasks whose title, notes or tags contain words
+     *         starting with each word of the text. Text without words
+     *         matches all tasks
+     */
+    public static Criterion matches(String text) {
+        String query = toMatchQuery(text);
+        if(query == null)
+            return Criterion.all;
+        return Task.ID.in(Query.select(TASK_ID).from(TABLE).where(ALL.match(query)));
+    }
+
+    /**
+     * @param text text typed by the user
+     * @return order that puts tasks whose title matches the text before
+     *         tasks that only match through their notes or tags
+     */
+    public static Order rank(String text) {
+        String query = toMatchQuery(text);
+        if(query == null)
+            return Order.asc(Task.ID);
+        return Order.desc(Task.ID.in(Query.select(TASK_ID).from(TABLE).where(
+                Field.field(TABLE.name + "." + TITLE).match(query))));
+    }
+
+    /**
+     * @param text text typed by the user
+     * @return query template for tasks matching the text, with title
+     *         matches first and recently modified tasks next
+     */
+    public static QueryTemplate searchTemplate(String text) {
+        return new QueryTemplate().where(matches(text)).orderBy(rank(text),
+                Order.desc(Task.MODIFICATION_DATE));
+    }
+
+    // --- maintenance
+
+    /**
+     * Create the index and the triggers that maintain it, filling the index
+     * from existing tasks if it is new
+     */
+    public static void create(SQLiteDatabase database) {
+        boolean exists;
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master " +
+                "WHERE type = 'table' AND name = ?", new String[] { TABLE.name });
+        try {
+            exists = cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+
+        String task = Task.TABLE.name, metadata = Metadata.TABLE.name;
+        String id = Task.ID.name;
+        String columns = "(" + TASK_ID + "," + TITLE + "," + NOTES + "," + TAGS + ")";
+
+        if(!exists) {
+            database.execSQL("CREATE VIRTUAL TABLE " + TABLE.name + " USING fts3(" +
+                    TITLE + "," + NOTES + "," + TAGS + ")");
+            database.execSQL("INSERT INTO " + TABLE.name + columns + " SELECT " +
+                    id + "," + Task.TITLE.name + "," + Task.NOTES.name + "," +
+                    tagsOf(task + "." + id) + " FROM " + task);
+        }
+
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS task_search_insert AFTER INSERT ON " +
+                task + " BEGIN INSERT INTO " + TABLE.name + columns + " VALUES (NEW." + id +
+                ",NEW." + Task.TITLE.name + ",NEW." + Task.NOTES.name + "," +
+                tagsOf("NEW." + id) + "); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS task_search_update AFTER UPDATE OF " +
+                Task.TITLE.name + "," + Task.NOTES.name + " ON " + task + " BEGIN UPDATE " +
+                TABLE.name + " SET " + TITLE + " = NEW." + Task.TITLE.name + "," + NOTES +
+                " = NEW." + Task.NOTES.name + " WHERE " + TASK_ID + " = NEW." + id + "; END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS task_search_delete AFTER DELETE ON " +
+                task + " BEGIN DELETE FROM " + TABLE.name + " WHERE " + TASK_ID +
+                " = OLD." + id + "; END");
+
+        String isTag = "." + Metadata.KEY.name + " = '" + UnaryCriterion.sanitize(TagService.KEY) + "'";
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS task_search_tag_insert AFTER INSERT ON " +
+                metadata + " WHEN NEW" + isTag + " BEGIN " +
+                updateTags("NEW." + Metadata.TASK.name) + " END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS task_search_tag_update AFTER UPDATE ON " +
+                metadata + " WHEN NEW" + isTag + " OR OLD" + isTag + " BEGIN " +
+                updateTags("OLD." + Metadata.TASK.name) +
+                updateTags("NEW." + Metadata.TASK.name) + " END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS task_search_tag_delete AFTER DELETE ON " +
+                metadata + " WHEN OLD" + isTag + " BEGIN " +
+                updateTags("OLD." + Metadata.TASK.name) + " END");
+    }
+
+    /** @return expression for the tags of the task with the given id */
+    private static String tagsOf(String taskId) {
+        return "(SELECT group_concat(" + TagService.TAG.name + ",' ') FROM " +
+            Metadata.TABLE.name + " WHERE " + Metadata.TASK.name + " = " + taskId +
+            " AND " + Metadata.KEY.name + " = '" + UnaryCriterion.sanitize(TagService.KEY) + "')";
+    }
+
+    /** @return statement that reads the tags of the given task again */
+    private static String updateTags(String taskId) {
+        return "UPDATE " + TABLE.name + " SET " + TAGS + " = " + tagsOf(taskId) +
+            " WHERE " + TASK_ID + " = " + taskId + ";";
+    }
+
+}
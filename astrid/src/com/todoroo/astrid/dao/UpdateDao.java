@@ -5,13 +5,29 @@
  */
 package com.todoroo.astrid.dao;
 
+import java.util.ArrayList;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.todoroo.andlib.data.AbstractModel;
 import com.todoroo.andlib.data.DatabaseDao;
+import com.todoroo.andlib.data.Property.LongProperty;
+import com.todoroo.andlib.data.Table;
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.DependencyInjectionService;
+import com.todoroo.andlib.sql.Criterion;
+import com.todoroo.andlib.sql.Query;
 import com.todoroo.astrid.data.Update;
 
 /**
  * Data Access layer for {@link Update}-related operations.
+ * <p>
+ * Updates created and saved through this DAO also keep the
+ * {@link UpdateTags} relation up to date, so updates of a tag are found
+ * through an index instead of by scanning {@link Update#TAGS}.
  *
  * @author Tim Su <tim@todoroo.com>
  *
@@ -27,5 +43,147 @@ public class UpdateDao extends DatabaseDao<Update> {
         setDatabase(database);
     }
 
-}
+    // --- SQL clause generators
+
+    /**
+     * Generates SQL clauses
+     */
+    public static class UpdateCriteria {
+
+        /** Returns all updates of the tag with the given remote id */
+        public static Criterion byTag(long tagRemoteId) {
+            return Update.ID.in(Query.select(UpdateTags.UPDATE).from(UpdateTags.TABLE).
+                    where(UpdateTags.TAG.eq(tagRemoteId)));
+        }
+
+    }
+
+    // --- update to tag relation
+
+    /**
+     * Relation between updates and the remote ids of their tags. Rows are
+     * removed with their update by a trigger.
+     */
+    @SuppressWarnings("nls")
+    public static final class UpdateTags {
+
+        public static final Table TABLE = new Table("update_tags", null);
+
+        /** local id of the update */
+        public static final LongProperty UPDATE = new LongProperty(TABLE, "update_id");
+
+        /** remote id of the tag */
+        public static final LongProperty TAG = new LongProperty(TABLE, "tag_remote_id");
+
+        private UpdateTags() {
+            // static methods only
+        }
 
+        /**
+         * Create the relation, its indices and its trigger
+         */
+        static void create(SQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE.name + "(" +
+                    UPDATE.name + " INTEGER NOT NULL," + TAG.name + " INTEGER NOT NULL," +
+                    "PRIMARY KEY(" + TAG.name + "," + UPDATE.name + "))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS ut_uid ON " + TABLE.name +
+                    "(" + UPDATE.name + ")");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS update_tags_delete AFTER DELETE ON " +
+                    Update.TABLE.name + " BEGIN DELETE FROM " + TABLE.name + " WHERE " +
+                    UPDATE.name + " = OLD." + AbstractModel.ID_PROPERTY_NAME + "; END");
+        }
+
+        /**
+         * Fill the relation from the tags of existing updates
+         */
+        static void fill(SQLiteDatabase database) {
+            SQLiteStatement insert = database.compileStatement("INSERT OR IGNORE INTO " +
+                    TABLE.name + "(" + UPDATE.name + "," + TAG.name + ") VALUES (?,?)");
+            Cursor cursor = database.rawQuery("SELECT " + Update.ID.name + "," +
+                    Update.TAGS.name + " FROM " + Update.TABLE.name, null);
+            try {
+                for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    for(long tag : parseTags(cursor.getString(1))) {
+                        insert.bindLong(1, cursor.getLong(0));
+                        insert.bindLong(2, tag);
+                        insert.executeInsert();
+                    }
+                }
+            } finally {
+                cursor.close();
+                insert.close();
+            }
+        }
+
+        /**
+         * @param tags comma separated list of tag remote ids, as stored in
+         *        {@link Update#TAGS}
+         * @return remote ids
+         */
+        static ArrayList<Long> parseTags(String tags) {
+            ArrayList<Long> result = new ArrayList<Long>();
+            if(tags == null)
+                return result;
+            for(String tag : tags.split(",")) {
+                tag = tag.trim();
+                if(tag.length() == 0)
+                    continue;
+                try {
+                    long id = Long.parseLong(tag);
+                    if(!result.contains(id))
+                        result.add(id);
+                } catch (NumberFormatException e) {
+                    // not a tag id
+                }
+            }
+            return result;
+        }
+    }
+
+    // --- writes
+
+    @Override
+    public boolean createNew(final Update item) {
+        final boolean[] result = new boolean[1];
+        runInTransaction(new Runnable() {
+            public void run() {
+                String tags = item.getValue(Update.TAGS);
+                result[0] = UpdateDao.super.createNew(item);
+                if(result[0])
+                    writeTags(item.getId(), tags);
+            }
+        });
+        return result[0];
+    }
+
+    @Override
+    public boolean saveExisting(final Update item) {
+        ContentValues setValues = item.getSetValues();
+        if(setValues == null || !setValues.containsKey(Update.TAGS.name))
+            return super.saveExisting(item);
+
+        final boolean[] result = new boolean[1];
+        runInTransaction(new Runnable() {
+            public void run() {
+                String tags = item.getValue(Update.TAGS);
+                result[0] = UpdateDao.super.saveExisting(item);
+                if(result[0]) {
+                    database.delete(UpdateTags.TABLE.name, UpdateTags.UPDATE.name + "=?", //$NON-NLS-1$
+                            new String[] { Long.toString(item.getId()) });
+                    writeTags(item.getId(), tags);
+                }
+            }
+        });
+        return result[0];
+    }
+
+    private void writeTags(long updateId, String tags) {
+        ContentValues values = new ContentValues();
+        for(long tag : UpdateTags.parseTags(tags)) {
+            values.put(UpdateTags.UPDATE.name, updateId);
+            values.put(UpdateTags.TAG.name, tag);
+            database.insert(UpdateTags.TABLE.name, null, values);
+        }
+    }
+
+}
@@ -3,6 +3,9 @@
  */
 package com.todoroo.astrid.provider;
 
+import java.util.HashSet;
+import java.util.List;
+
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -16,6 +19,7 @@ import android.text.TextUtils;
 
 import com.todoroo.andlib.data.AbstractDatabase;
 import com.todoroo.andlib.data.AbstractModel;
+import com.todoroo.andlib.data.DatabaseChange;
 import com.todoroo.andlib.data.DatabaseDao;
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.ContextManager;
@@ -380,4 +384,31 @@ public class Astrid3ContentProvider extends ContentProvider {
         cr.notifyChange(Task.CONTENT_URI, null);
     }
 
+    /**
+     * Notify observers of the given changes. Changes to a single task are
+     * sent to that task's uri. Besides observers of that uri, this only
+     * reaches observers of the task table that were registered with
+     * notifyForDescendents set, as the cursors returned by
+     * {@link #query} are. Changes to store objects do not notify task
+     * observers.
+     */
+    public static void notifyDatabaseModification(List<DatabaseChange> changes) {
+        ContentResolver cr = ContextManager.getContext().getContentResolver();
+        HashSet<Uri> uris = new HashSet<Uri>();
+        for(DatabaseChange change : changes) {
+            if(change.isTo(Task.TABLE))
+                uris.add(change.isSingleRow() ? ContentUris.withAppendedId(
+                        Task.CONTENT_URI, change.rowId) : Task.CONTENT_URI);
+            else if(change.isTo(Metadata.TABLE)) {
+                // metadata such as tags is shown as part of its task
+                uris.add(Metadata.CONTENT_URI);
+                uris.add(Task.CONTENT_URI);
+            }
+            else if(change.isTo(StoreObject.TABLE))
+                uris.add(StoreObject.CONTENT_URI);
+        }
+        for(Uri uri : uris)
+            cr.notifyChange(uri, null);
+    }
+
 }
@@ -493,8 +493,8 @@ public class Astrid2To3UpgradeHelper {
             Metadata metadata = new Metadata();
             metadata.setValue(Metadata.KEY, AlarmFields.METADATA_KEY);
             for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                long task = cursor.get(TransitionalAlarm.TASK);
-                long time = cursor.get(TransitionalAlarm.TIME);
+                long task = cursor.getLong(TransitionalAlarm.TASK);
+                long time = cursor.getLong(TransitionalAlarm.TIME);
 
                 metadata.setValue(Metadata.TASK, task);
                 metadata.setValue(AlarmFields.TIME, time);
@@ -0,0 +1,189 @@
+package com.todoroo.astrid.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+import com.todoroo.andlib.data.DatabaseDao.ModelUpdateListener;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.service.DependencyInjectionService;
+import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.api.Filter;
+import com.todoroo.astrid.api.PermaSql;
+import com.todoroo.astrid.dao.MetadataDao;
+import com.todoroo.astrid.dao.TaskDao;
+import com.todoroo.astrid.dao.TaskSearchIndex;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+
+/**
+ * Counts the tasks in filters for the filter list. Counts are cached by
+ * filter query, and stale counts are recomputed together with a single
+ * statement, or one filter at a time if that statement fails. A saved task makes every count stale, while saved metadata
+ * only makes the counts of filters that read the metadata table stale.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public class FilterCountService {
+
+    /** how long counts of filters that depend on the current time are kept */
+    static final long TIME_DEPENDENT_MAX_AGE = DateUtilities.ONE_MINUTE;
+
+    /**
+     * how long other counts are kept, for writes that don't notify DAO
+     * listeners, such as bulk deletes
+     */
+    static final long MAX_AGE = 15 * DateUtilities.ONE_MINUTE;
+
+    /** most filters counted in one statement */
+    private static final int BATCH_SIZE = 50;
+
+    @Autowired TaskService taskService;
+
+    @Autowired TaskDao taskDao;
+
+    @Autowired MetadataDao metadataDao;
+
+    private static class Count {
+        int count;
+        long computed;
+        int taskGeneration;
+        int metadataGeneration;
+        boolean readsMetadata;
+        boolean timeDependent;
+    }
+
+    /** cached counts by filter query */
+    private final HashMap<String, Count> counts = new HashMap<String, Count>();
+
+    /** incremented whenever a task is saved */
+    private int taskGeneration = 0;
+
+    /** incremented whenever metadata is saved */
+    private int metadataGeneration = 0;
+
+    public FilterCountService() {
+        DependencyInjectionService.getInstance().inject(this);
+
+        taskDao.addListener(new ModelUpdateListener<Task>() {
+            public void onModelUpdated(Task model) {
+                synchronized(FilterCountService.this) {
+                    taskGeneration++;
+                }
+            }
+        });
+        metadataDao.addListener(new ModelUpdateListener<Metadata>() {
+            public void onModelUpdated(Metadata model) {
+                synchronized(FilterCountService.this) {
+                    metadataGeneration++;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of tasks in the given filter, or -1 if it could not be
+     *         counted
+     */
+    public int countTasks(Filter filter) {
+        return countTasks(new Filter[] { filter })[0];
+    }
+
+    /**
+     * Count the tasks in several filters. Cached counts are used where they
+     * are still valid, and the others are computed in a single statement.
+     *
+     * @return number of tasks in each filter, or -1 for filters that could
+     *         not be counted
+     */
+    public int[] countTasks(Filter[] filters) {
+        int[] result = new int[filters.length];
+        ArrayList<Integer> stale = new ArrayList<Integer>();
+        int taskGenerationAtStart, metadataGenerationAtStart;
+        synchronized(this) {
+            long now = DateUtilities.now();
+            for(int i = 0; i < filters.length; i++) {
+                Count count = counts.get(filters[i].sqlQuery);
+                if(isValid(count, now))
+                    result[i] = count.count;
+                else
+                    stale.add(i);
+            }
+            taskGenerationAtStart = taskGeneration;
+            metadataGenerationAtStart = metadataGeneration;
+        }
+
+        for(int start = 0; start < stale.size(); start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, stale.size());
+            Filter[] batch = new Filter[end - start];
+            for(int i = start; i < end; i++)
+                batch[i - start] = filters[stale.get(i)];
+            int[] batchCounts;
+            try {
+                batchCounts = taskService.countTasks(batch);
+            } catch (RuntimeException e) {
+                // one bad filter fails the statement, so count them separately
+                batchCounts = countSeparately(batch);
+            }
+
+            synchronized(this) {
+                long now = DateUtilities.now();
+                for(int i = start; i < end; i++) {
+                    Filter filter = filters[stale.get(i)];
+                    if(batchCounts[i - start] < 0) {
+                        result[stale.get(i)] = -1;
+                        continue;
+                    }
+                    Count count = new Count();
+                    count.count = batchCounts[i - start];
+                    count.computed = now;
+                    // a save during the count may or may not be included
+                    count.taskGeneration = taskGenerationAtStart;
+                    count.metadataGeneration = metadataGenerationAtStart;
+                    // the search index holds tags, so it changes with metadata
+                    count.readsMetadata = filter.sqlQuery.contains(Metadata.TABLE.name) ||
+                        filter.sqlQuery.contains(TaskSearchIndex.TABLE.name);
+                    count.timeDependent = PermaSql.compile(filter.sqlQuery).isTimeDependent();
+                    counts.put(filter.sqlQuery, count);
+                    result[stale.get(i)] = count.count;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of tasks in each filter, or -1 for filters that failed
+     */
+    private int[] countSeparately(Filter[] filters) {
+        int[] result = new int[filters.length];
+        for(int i = 0; i < filters.length; i++) {
+            try {
+                result[i] = taskService.countTasks(new Filter[] { filters[i] })[0];
+            } catch (RuntimeException e) {
+                Log.e("filter-count", "Error counting " + filters[i].sqlQuery, e); //$NON-NLS-1$ //$NON-NLS-2$
+                result[i] = -1;
+            }
+        }
+        return result;
+    }
+
+    private boolean isValid(Count count, long now) {
+        if(count == null || count.taskGeneration != taskGeneration)
+            return false;
+        if(count.readsMetadata && count.metadataGeneration != metadataGeneration)
+            return false;
+        long maxAge = count.timeDependent ? TIME_DEPENDENT_MAX_AGE : MAX_AGE;
+        return now - count.computed < maxAge;
+    }
+
+    /**
+     * Forget all cached counts
+     */
+    public synchronized void invalidate() {
+        counts.clear();
+    }
+
+}
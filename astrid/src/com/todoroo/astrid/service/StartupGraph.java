@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2009, Todoroo Inc
+ * All Rights Reserved
+ * http://www.todoroo.com
+ */
+package com.todoroo.astrid.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Graph of startup steps. Each step names the steps it depends on and is
+ * run on a small thread pool as soon as they have finished. The time
+ * taken by each step is recorded.
+ * <p>
+ * Steps that fail are logged and count as finished, so they never hold
+ * back the rest of startup. Slow steps, such as network requests, run one
+ * at a time on a thread of their own, so local steps never wait for a
+ * pool thread they hold.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+@SuppressWarnings("nls")
+public class StartupGraph {
+
+    private static final String TAG = "astrid-startup";
+
+    private final LinkedHashMap<String, Step> steps = new LinkedHashMap<String, Step>();
+
+    private final LinkedHashMap<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    private final int threads;
+
+    private ExecutorService executor = null;
+
+    private ExecutorService slowExecutor = null;
+
+    private CountDownLatch finished = null;
+
+    private long startTime;
+
+    /**
+     * @param threads number of steps that may run at the same time
+     */
+    public StartupGraph(int threads) {
+        this.threads = threads;
+    }
+
+    private class Step implements Runnable {
+        final String name;
+        final Runnable body;
+        final boolean slow;
+        final ArrayList<Step> dependents = new ArrayList<Step>();
+        int waitingFor;
+
+        public Step(String name, Runnable body, boolean slow) {
+            this.name = name;
+            this.body = body;
+            this.slow = slow;
+        }
+
+        public void run() {
+            try {
+                runNow(name, body);
+            } catch (Exception e) {
+                Log.e(TAG, "Startup step " + name + " failed", e);
+            } finally {
+                onFinished(this);
+            }
+        }
+    }
+
+    // --- building
+
+    /**
+     * Add a step. Dependencies must be added before the steps that
+     * depend on them.
+     *
+     * @param name name of the step, used for dependencies and timings
+     * @param body work to do
+     * @param dependencies names of the steps that must finish first
+     */
+    public void add(String name, Runnable body, String... dependencies) {
+        add(name, body, false, dependencies);
+    }
+
+    /**
+     * Add a step that may take long, such as a network request. Slow
+     * steps run one at a time on their own thread.
+     *
+     * @see #add(String, Runnable, String...)
+     */
+    public void addSlow(String name, Runnable body, String... dependencies) {
+        add(name, body, true, dependencies);
+    }
+
+    private synchronized void add(String name, Runnable body, boolean slow,
+            String... dependencies) {
+        if(executor != null)
+            throw new IllegalStateException("Startup graph already started");
+        if(steps.containsKey(name))
+            throw new IllegalArgumentException("Duplicate startup step " + name);
+
+        Step step = new Step(name, body, slow);
+        for(String dependency : dependencies) {
+            Step prerequisite = steps.get(dependency);
+            if(prerequisite == null)
+                throw new IllegalArgumentException("Startup step " + name +
+                        " depends on unknown step " + dependency);
+            prerequisite.dependents.add(step);
+            step.waitingFor++;
+        }
+        steps.put(name, step);
+    }
+
+    // --- running
+
+    /**
+     * Run every step that has no dependencies. The others are run as their
+     * dependencies finish, and the pool is shut down after the last one.
+     */
+    public synchronized void start() {
+        if(executor != null)
+            throw new IllegalStateException("Startup graph already started");
+        startTime = System.currentTimeMillis();
+        finished = new CountDownLatch(steps.size());
+        executor = Executors.newFixedThreadPool(threads);
+        slowExecutor = Executors.newSingleThreadExecutor();
+        for(Step step : steps.values())
+            if(step.waitingFor == 0)
+                execute(step);
+        if(steps.isEmpty()) {
+            executor.shutdown();
+            slowExecutor.shutdown();
+        }
+    }
+
+    private void execute(Step step) {
+        if(step.slow)
+            slowExecutor.execute(step);
+        else
+            executor.execute(step);
+    }
+
+    private synchronized void onFinished(Step step) {
+        for(Step dependent : step.dependents)
+            if(--dependent.waitingFor == 0)
+                execute(dependent);
+        finished.countDown();
+
+        if(finished.getCount() == 0) {
+            executor.shutdown();
+            slowExecutor.shutdown();
+            Log.i(TAG, "Startup steps finished in " + (System.currentTimeMillis() -
+                    startTime) + "ms: " + getTimings());
+        }
+    }
+
+    /**
+     * Run a step on the calling thread, recording its time along with the
+     * steps of the graph. Exceptions are passed on to the caller
+     */
+    public void runNow(String name, Runnable body) {
+        long start = System.currentTimeMillis();
+        try {
+            body.run();
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            synchronized(timings) {
+                timings.put(name, elapsed);
+            }
+        }
+    }
+
+    /**
+     * Wait for all steps of the graph to finish
+     *
+     * @return false if the timeout ran out first
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized(this) {
+            latch = finished;
+        }
+        if(latch == null)
+            throw new IllegalStateException("Startup graph not started");
+        return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return milliseconds taken by each step that has finished, in the
+     *         order they finished
+     */
+    public Map<String, Long> getTimings() {
+        synchronized(timings) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(timings));
+        }
+    }
+
+}
@@ -1,7 +1,9 @@
 package com.todoroo.astrid.service;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.weloveastrid.rmilk.MilkUtilities;
 
@@ -95,6 +97,16 @@ public class StartupService {
      */
     private static boolean hasStartedUp = false;
 
+    /**
+     * number of startup steps that may run in the background at once
+     */
+    private static final int STARTUP_THREADS = 3;
+
+    /**
+     * startup steps of the last startup, for timings
+     */
+    private static StartupGraph startupGraph = null;
+
     /**
      * Call to skip initialization steps (i.e. if only a notification screen is needed)
      */
@@ -110,8 +122,15 @@ public class StartupService {
         // sets up context manager
         ContextManager.setContext(context);
 
-        Crittercism.init(context.getApplicationContext(), Constants.CRITTERCISM_APP_ID,
-                Constants.CRITTERCISM_OATH_KEY, Constants.CRITTERCISM_SECRET);
+        final StartupGraph graph = new StartupGraph(STARTUP_THREADS);
+        startupGraph = graph;
+
+        graph.runNow("crittercism", new Runnable() { //$NON-NLS-1$
+            public void run() {
+                Crittercism.init(context.getApplicationContext(), Constants.CRITTERCISM_APP_ID,
+                        Constants.CRITTERCISM_OATH_KEY, Constants.CRITTERCISM_SECRET);
+            }
+        });
 
         // show notification if reminders are silenced
         if(context instanceof Activity) {
@@ -158,24 +177,50 @@ public class StartupService {
         Log.i("astrid", "Astrid Startup. " + latestSetVersion + //$NON-NLS-1$ //$NON-NLS-2$
                 " => " + version); //$NON-NLS-1$
 
-        databaseRestoreIfEmpty(context);
+        graph.runNow("restore", new Runnable() { //$NON-NLS-1$
+            public void run() {
+                databaseRestoreIfEmpty(context);
+            }
+        });
 
         // invoke upgrade service
         boolean justUpgraded = latestSetVersion != version;
         if(justUpgraded && version > 0) {
             if(latestSetVersion > 0) {
-                upgradeService.performUpgrade(context, latestSetVersion);
+                final int from = latestSetVersion;
+                graph.runNow("upgrade", new Runnable() { //$NON-NLS-1$
+                    public void run() {
+                        upgradeService.performUpgrade(context, from);
+                    }
+                });
             }
             AstridPreferences.setCurrentVersion(version);
         }
-        if(latestSetVersion == 0) {
-            onFirstTime();
-        }
 
-        upgradeService.performSecondaryUpgrade(context);
+        graph.runNow("secondaryUpgrade", new Runnable() { //$NON-NLS-1$
+            public void run() {
+                upgradeService.performSecondaryUpgrade(context);
+            }
+        });
+
+        // perform startup activities in the background, each one as soon
+        // as the steps it needs have finished
+        addBackgroundSteps(graph, context, latestSetVersion == 0);
+        graph.start();
 
-        // perform startup activities in a background thread
-        new Thread(new Runnable() {
+        graph.runNow("preferenceDefaults", new Runnable() { //$NON-NLS-1$
+            public void run() {
+                AstridPreferences.setPreferenceDefaults();
+            }
+        });
+
+        hasStartedUp = true;
+    }
+
+    @SuppressWarnings("nls")
+    private void addBackgroundSteps(StartupGraph graph, final Context context,
+            boolean firstTime) {
+        graph.add("widgets", new Runnable() {
             public void run() {
                 // start widget updating alarm
                 AlarmManager am = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
@@ -184,61 +229,111 @@ public class StartupService {
                         0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
                 am.setInexactRepeating(AlarmManager.RTC, 0,
                         Constants.WIDGET_UPDATE_INTERVAL, pendingIntent);
+            }
+        });
 
+        graph.add("database", new Runnable() {
+            public void run() {
                 database.openForWriting();
+            }
+        });
+
+        graph.add("cleanup", new Runnable() {
+            public void run() {
                 taskService.cleanup();
+            }
+        }, "database");
 
+        graph.add("stopOngoing", new Runnable() {
+            public void run() {
                 // if sync ongoing flag was set, clear it
                 ProducteevUtilities.INSTANCE.stopOngoing();
                 MilkUtilities.INSTANCE.stopOngoing();
                 gtasksPreferenceService.stopOngoing();
                 actFmPreferenceService.stopOngoing();
                 OpencrxCoreUtils.INSTANCE.stopOngoing();
+            }
+        });
 
-                // perform initialization
+        graph.add("reminders", new Runnable() {
+            public void run() {
                 ReminderStartupReceiver.startReminderSchedulingService(context);
+            }
+        }, "database");
+
+        graph.add("backups", new Runnable() {
+            public void run() {
                 BackupService.scheduleService(context);
+            }
+        });
+
+        graph.add("actFm", new Runnable() {
+            public void run() {
                 actFmSyncService.initialize();
+            }
+        }, "database", "stopOngoing");
 
+        graph.add("gtasks", new Runnable() {
+            public void run() {
                 gtasksSyncOnSaveService.initialize();
+            }
+        }, "database", "stopOngoing");
 
+        graph.addSlow("updateMessages", new Runnable() {
+            public void run() {
                 // get and display update messages
                 new UpdateMessageService().processUpdates(context);
+            }
+        });
 
+        graph.addSlow("features", new Runnable() {
+            public void run() {
                 // Check for feature flips
                 featureFlipper.updateFeatures();
             }
-        }).start();
+        });
 
-        AstridPreferences.setPreferenceDefaults();
+        if(firstTime) {
+            graph.add("introTasks", new Runnable() {
+                public void run() {
+                    onFirstTime();
+                }
+            }, "database");
+        }
 
         // check for task killers
-        if(!Constants.OEM)
-            showTaskKillerHelp(context);
+        if(!Constants.OEM) {
+            graph.addSlow("taskKillers", new Runnable() {
+                public void run() {
+                    showTaskKillerHelp(context);
+                }
+            });
+        }
+    }
 
-        hasStartedUp = true;
+    /**
+     * @return milliseconds taken by each step of the last startup, by name
+     */
+    public static Map<String, Long> getStartupTimings() {
+        StartupGraph graph = startupGraph;
+        if(graph == null)
+            return Collections.emptyMap();
+        return graph.getTimings();
     }
 
     /**
-     * Create tasks for first time users
+     * Create tasks for first time users. Called from a startup step
      */
     private void onFirstTime() {
-        final Resources r = ContextManager.getResources();
+        Resources r = ContextManager.getResources();
         try {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    database.openForWriting();
-
-                    if(taskService.countTasks() > 0)
-                        return;
+            if(taskService.countTasks() > 0)
+                return;
 
-                    for(int i = 0; i < INTRO_TASKS.length; i += 3)
-                        addIntroTask(r, INTRO_TASKS[i], INTRO_TASKS[i + 1], INTRO_TASKS[i + 2]);
-                    Preferences.setBoolean(AstridPreferences.P_FIRST_ACTION, true);
-                    Preferences.setBoolean(AstridPreferences.P_FIRST_LIST, true);
-                }
-            }).start();
+            for(int i = 0; i < INTRO_TASKS.length; i += 3)
+                addIntroTask(r, INTRO_TASKS[i], INTRO_TASKS[i + 1], INTRO_TASKS[i + 2]);
+            Preferences.setBoolean(AstridPreferences.P_FIRST_ACTION, true);
+            Preferences.setBoolean(AstridPreferences.P_FIRST_LIST, true);
         } catch (Exception e) {
             exceptionService.reportError("on-first-time", e); //$NON-NLS-1$
         }
@@ -290,12 +385,15 @@ public class StartupService {
     private static final String P_TASK_KILLER_HELP = "taskkiller"; //$NON-NLS-1$
 
     /**
-     * Show task killer helper
+     * Show task killer helper. Called from a startup step: packages are
+     * searched in the background and the dialog is shown on the UI thread
      * @param context
      */
     private static void showTaskKillerHelp(final Context context) {
         if(!Preferences.getBoolean(P_TASK_KILLER_HELP, false))
             return;
+        if(!(context instanceof Activity))
+            return;
 
         // search for task killers. if they exist, show the help!
         PackageManager pm = context.getPackageManager();
@@ -308,8 +406,8 @@ public class StartupService {
                 continue;
             for (String permission : app.requestedPermissions) {
                 if (Manifest.permission.RESTART_PACKAGES.equals(permission)) {
-                    CharSequence appName = app.applicationInfo.loadLabel(pm);
-                    OnClickListener listener = new OnClickListener() {
+                    final CharSequence appName = app.applicationInfo.loadLabel(pm);
+                    final OnClickListener listener = new OnClickListener() {
                         @Override
                         public void onClick(DialogInterface arg0,
                                 int arg1) {
@@ -317,13 +415,17 @@ public class StartupService {
                         }
                     };
 
-                    new AlertDialog.Builder(context)
-                    .setTitle(R.string.DLG_information_title)
-                    .setMessage(context.getString(R.string.task_killer_help,
-                            appName))
-                    .setIcon(android.R.drawable.ic_dialog_alert)
-                    .setPositiveButton(R.string.task_killer_help_ok, listener)
-                    .show();
+                    ((Activity) context).runOnUiThread(new Runnable() {
+                        public void run() {
+                            new AlertDialog.Builder(context)
+                            .setTitle(R.string.DLG_information_title)
+                            .setMessage(context.getString(R.string.task_killer_help,
+                                    appName))
+                            .setIcon(android.R.drawable.ic_dialog_alert)
+                            .setPositiveButton(R.string.task_killer_help_ok, listener)
+                            .show();
+                        }
+                    });
 
                     break outer;
                 }
@@ -9,9 +9,11 @@ import com.todoroo.andlib.sql.Functions;
 import com.todoroo.andlib.sql.Order;
 import com.todoroo.andlib.sql.Query;
 import com.todoroo.astrid.api.PermaSql;
+import com.todoroo.astrid.api.PermaSql.Template;
 import com.todoroo.astrid.dao.TagDataDao;
 import com.todoroo.astrid.dao.TaskDao;
 import com.todoroo.astrid.dao.UpdateDao;
+import com.todoroo.astrid.dao.UpdateDao.UpdateCriteria;
 import com.todoroo.astrid.data.TagData;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.data.Update;
@@ -122,21 +124,20 @@ public class TagDataService {
         } else
             sql = queryTemplate;
 
-        sql = PermaSql.replacePlaceholders(sql);
-
-        return tagDataDao.query(Query.select(properties).withQueryTemplate(sql));
+        Template template = PermaSql.compile(sql);
+        return tagDataDao.query(Query.select(properties).withQueryTemplate(
+                template.getSql(), template.bindArgs()));
     }
 
     /**
      * Get updates for this tagData
      * @return
      */
-    @SuppressWarnings("nls")
     public TodorooCursor<Update> getUpdates(TagData tagData) {
         if(tagData.getValue(Task.REMOTE_ID) < 1)
             return updateDao.query(Query.select(Update.PROPERTIES).where(Criterion.none));
         return updateDao.query(Query.select(Update.PROPERTIES).where(
-                Update.TAGS.like("%," + tagData.getValue(Task.REMOTE_ID) + ",%")).
+                UpdateCriteria.byTag(tagData.getValue(Task.REMOTE_ID))).
                 orderBy(Order.desc(Update.CREATION_DATE)));
     }
 
@@ -149,9 +150,8 @@ public class TagDataService {
         if(tagData.getValue(Task.REMOTE_ID) < 1)
             return null;
 
-        @SuppressWarnings("nls")
         TodorooCursor<Update> updates = updateDao.query(Query.select(Update.PROPERTIES).where(
-                Update.TAGS.like("%," + tagData.getValue(Task.REMOTE_ID) + ",%")).
+                UpdateCriteria.byTag(tagData.getValue(Task.REMOTE_ID))).
                 orderBy(Order.desc(Update.CREATION_DATE)).limit(1));
         try {
             if(updates.getCount() == 0)
@@ -1,6 +1,7 @@
 package com.todoroo.astrid.service;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,15 +14,16 @@ import com.todoroo.andlib.data.TodorooCursor;
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.DependencyInjectionService;
 import com.todoroo.andlib.sql.Criterion;
-import com.todoroo.andlib.sql.Functions;
 import com.todoroo.andlib.sql.Query;
 import com.todoroo.andlib.utility.DateUtilities;
 import com.todoroo.astrid.api.Filter;
 import com.todoroo.astrid.api.PermaSql;
+import com.todoroo.astrid.api.PermaSql.Template;
 import com.todoroo.astrid.dao.MetadataDao;
 import com.todoroo.astrid.dao.MetadataDao.MetadataCriteria;
 import com.todoroo.astrid.dao.TaskDao;
 import com.todoroo.astrid.dao.TaskDao.TaskCriteria;
+import com.todoroo.astrid.dao.TaskSearchIndex;
 import com.todoroo.astrid.data.Metadata;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.gcal.GCalHelper;
@@ -70,6 +72,15 @@ public class TaskService {
         return taskDao.fetch(id, properties);
     }
 
+    /**
+     * Read {@link Task#DEFERRED_PROPERTIES} of several tasks at once
+     * @param ids task ids
+     * @return values by task id, to merge into tasks
+     */
+    public HashMap<Long, ContentValues> fetchDeferred(Long[] ids) {
+        return taskDao.fetchDeferred(ids);
+    }
+
     /**
      * Mark the given task as completed and save it.
      *
@@ -95,6 +106,15 @@ public class TaskService {
         return taskDao.save(item);
     }
 
+    /**
+     * Run the given writes to tasks and metadata in a single transaction
+     *
+     * @param writes
+     */
+    public void runInTransaction(Runnable writes) {
+        taskDao.runInTransaction(writes);
+    }
+
     /**
      * Clone the given task and all its metadata
      *
@@ -204,8 +224,7 @@ public class TaskService {
             Property<?>... properties) {
         Criterion whereConstraint = null;
         if(constraint != null)
-            whereConstraint = Functions.upper(Task.TITLE).like("%" +
-                    constraint.toString().toUpperCase() + "%");
+            whereConstraint = TaskSearchIndex.matches(constraint.toString());
 
         if(queryTemplate == null) {
             if(whereConstraint == null)
@@ -223,9 +242,9 @@ public class TaskService {
         } else
             sql = queryTemplate;
 
-        sql = PermaSql.replacePlaceholders(sql);
-
-        return taskDao.query(Query.select(properties).withQueryTemplate(sql));
+        Template template = PermaSql.compile(sql);
+        return taskDao.query(Query.select(properties).withQueryTemplate(
+                template.getSql(), template.bindArgs()));
     }
 
     /**
@@ -266,7 +285,7 @@ public class TaskService {
         TodorooCursor<Task> cursor = taskDao.rawQuery(selection, selectionArgs, Task.ID);
         try {
             for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                taskValues.setValue(Task.ID, cursor.get(Task.ID));
+                taskValues.setValue(Task.ID, cursor.getLong(Task.ID));
                 taskDao.save(taskValues);
             }
             return cursor.getCount();
@@ -298,24 +317,27 @@ public class TaskService {
      * @return
      */
     public int countTasks() {
-        TodorooCursor<Task> cursor = query(Query.select(Task.ID));
-        try {
-            return cursor.getCount();
-        } finally {
-            cursor.close();
-        }
+        return taskDao.count(Query.select(Task.ID))[0];
     }
 
     /** count tasks in a given filter */
     public int countTasks(Filter filter) {
-        String queryTemplate = PermaSql.replacePlaceholders(filter.sqlQuery);
-        TodorooCursor<Task> cursor = query(Query.select(Task.ID).withQueryTemplate(
-                queryTemplate));
-        try {
-            return cursor.getCount();
-        } finally {
-            cursor.close();
+        return countTasks(new Filter[] { filter })[0];
+    }
+
+    /**
+     * Count tasks in several filters with a single statement
+     *
+     * @return number of tasks in each filter
+     */
+    public int[] countTasks(Filter[] filters) {
+        Query[] queries = new Query[filters.length];
+        for(int i = 0; i < filters.length; i++) {
+            Template template = PermaSql.compile(filters[i].sqlQuery);
+            queries[i] = Query.select(Task.ID).withQueryTemplate(template.getSql(),
+                    template.bindArgs());
         }
+        return taskDao.count(queries);
     }
 
     /**
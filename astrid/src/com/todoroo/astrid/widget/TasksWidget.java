@@ -1,5 +1,7 @@
 package com.todoroo.astrid.widget;
 
+import java.util.List;
+
 import android.app.PendingIntent;
 import android.app.Service;
 import android.appwidget.AppWidgetManager;
@@ -19,7 +21,7 @@ import android.view.WindowManager;
 import android.widget.RemoteViews;
 
 import com.timsu.astrid.R;
-import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.data.DatabaseChange;
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.service.ContextManager;
 import com.todoroo.andlib.service.DependencyInjectionService;
@@ -35,7 +37,6 @@ import com.todoroo.astrid.core.SortHelper;
 import com.todoroo.astrid.dao.Database;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.service.AstridDependencyInjector;
-import com.todoroo.astrid.service.TaskService;
 import com.todoroo.astrid.utility.AstridPreferences;
 import com.todoroo.astrid.utility.Constants;
 
@@ -74,6 +75,18 @@ public class TasksWidget extends AppWidgetProvider {
                 TasksWidget.WidgetUpdateService.class));
     }
 
+    /**
+     * Update widgets whose tasks the given changes could affect. Widgets
+     * are only redrawn if the tasks they show changed.
+     */
+    public static void updateWidgets(Context context, List<DatabaseChange> changes) {
+        if(!WidgetRowCache.getInstance().onDatabaseChanged(changes))
+            return;
+        Intent intent = new Intent(context, TasksWidget.WidgetUpdateService.class);
+        intent.putExtra(WidgetUpdateService.EXTRA_CHANGED_ONLY, true);
+        context.startService(intent);
+    }
+
     /**
      * Update widget with the given id
      * @param id
@@ -96,11 +109,13 @@ public class TasksWidget extends AppWidgetProvider {
 
         public static String EXTRA_WIDGET_ID = "widget_id"; //$NON-NLS-1$
 
+        /** only update widgets whose tasks may have changed */
+        public static String EXTRA_CHANGED_ONLY = "changed_only"; //$NON-NLS-1$
+
         @Autowired
         Database database;
 
-        @Autowired
-        TaskService taskService;
+        private final WidgetRowCache widgetRowCache = WidgetRowCache.getInstance();
 
         @Override
         public void onStart(final Intent intent, int startId) {
@@ -119,15 +134,24 @@ public class TasksWidget extends AppWidgetProvider {
             AppWidgetManager manager = AppWidgetManager.getInstance(this);
 
             int extrasId = AppWidgetManager.INVALID_APPWIDGET_ID;
-            if(intent != null)
+            boolean changedOnly = false;
+            if(intent != null) {
                 extrasId = intent.getIntExtra(EXTRA_WIDGET_ID, extrasId);
+                changedOnly = intent.getBooleanExtra(EXTRA_CHANGED_ONLY, false);
+            }
             if(extrasId == AppWidgetManager.INVALID_APPWIDGET_ID) {
-                for(int id : manager.getAppWidgetIds(thisWidget)) {
-                    RemoteViews updateViews = buildUpdate(this, id);
-                    manager.updateAppWidget(id, updateViews);
+                int[] ids = manager.getAppWidgetIds(thisWidget);
+                widgetRowCache.retainWidgets(ids);
+                for(int id : ids) {
+                    if(changedOnly && !widgetRowCache.isDirty(id))
+                        continue;
+                    RemoteViews updateViews = buildUpdate(this, id, !changedOnly);
+                    if(updateViews != null)
+                        manager.updateAppWidget(id, updateViews);
                 }
             } else {
                 int id = extrasId;
+                widgetRowCache.invalidate(id);
                 RemoteViews updateViews = buildUpdate(this, id);
                 manager.updateAppWidget(id, updateViews);
             }
@@ -140,8 +164,19 @@ public class TasksWidget extends AppWidgetProvider {
             return null;
         }
 
-        @SuppressWarnings("nls")
         public RemoteViews buildUpdate(Context context, int widgetId) {
+            return buildUpdate(context, widgetId, true);
+        }
+
+        /**
+         * Build the views of a widget
+         *
+         * @param force whether to build the views and read tasks of time
+         *        dependent filters again even if nothing changed
+         * @return views, or null if the widget would show what it shows now
+         */
+        @SuppressWarnings("nls")
+        public RemoteViews buildUpdate(Context context, int widgetId, boolean force) {
             DependencyInjectionService.getInstance().inject(this);
 
             RemoteViews views = null;
@@ -151,29 +186,27 @@ public class TasksWidget extends AppWidgetProvider {
 
             int[] textIDs = TEXT_IDS;
             int[] separatorIDs = SEPARATOR_IDS;
-            int numberOfTasks = 5;
+            int numberOfTasks = WidgetRowCache.ROWS;
 
             for(int i = 0; i < textIDs.length; i++)
                 views.setTextViewText(textIDs[i], "");
 
-            TodorooCursor<Task> cursor = null;
             Filter filter = null;
+            StringBuilder rendered = new StringBuilder();
             try {
                 filter = getFilter(widgetId);
                 views.setTextViewText(R.id.widget_title, filter.title);
+                rendered.append(filter.title);
 
                 SharedPreferences publicPrefs = AstridPreferences.getPublicPrefs(this);
                 int flags = publicPrefs.getInt(SortHelper.PREF_SORT_FLAGS, 0);
                 int sort = publicPrefs.getInt(SortHelper.PREF_SORT_SORT, 0);
-                String query = SortHelper.adjustQueryForFlagsAndSort(
-                        filter.sqlQuery, flags, sort).replaceAll("LIMIT \\d+", "") + " LIMIT " + numberOfTasks;
 
                 database.openForReading();
-                cursor = taskService.fetchFiltered(query, null, Task.ID, Task.TITLE, Task.DUE_DATE, Task.COMPLETION_DATE);
-                Task task = new Task();
-                for (int i = 0; i < cursor.getCount() && i < numberOfTasks; i++) {
-                    cursor.moveToPosition(i);
-                    task.readFromCursor(cursor);
+                List<Task> tasks = widgetRowCache.getRows(widgetId, filter.sqlQuery,
+                        flags, sort, force);
+                for (int i = 0; i < tasks.size() && i < numberOfTasks; i++) {
+                    Task task = tasks.get(i);
 
                     String textContent = "";
                     int textColor = Color.WHITE;
@@ -189,18 +222,19 @@ public class TasksWidget extends AppWidgetProvider {
                         views.setViewVisibility(separatorIDs[i-1], View.VISIBLE);
                     views.setTextViewText(textIDs[i], textContent);
                     views.setTextColor(textIDs[i], textColor);
+                    rendered.append('\n').append(textContent).append(' ').append(textColor);
                 }
 
-                for(int i = cursor.getCount() - 1; i < separatorIDs.length; i++) {
+                for(int i = tasks.size() - 1; i < separatorIDs.length; i++) {
                     if(i >= 0)
                         views.setViewVisibility(separatorIDs[i], View.INVISIBLE);
                 }
+
+                if(!widgetRowCache.setRendered(widgetId, rendered.toString()) && !force)
+                    return null;
             } catch (Exception e) {
                 // can happen if database is not ready
                 Log.e("WIDGET-UPDATE", "Error updating widget", e);
-            } finally {
-                if(cursor != null)
-                    cursor.close();
             }
 
             updateForScreenSize(views);
@@ -0,0 +1,273 @@
+package com.todoroo.astrid.widget;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.todoroo.andlib.data.DatabaseChange;
+import com.todoroo.andlib.data.Property;
+import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.service.DependencyInjectionService;
+import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.api.PermaSql;
+import com.todoroo.astrid.core.SortHelper;
+import com.todoroo.astrid.dao.TaskSearchIndex;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.service.TaskService;
+
+/**
+ * Keeps the tasks each widget shows. Task changes only mark the widgets
+ * they could affect, so edits to tasks a widget neither shows nor filters
+ * on don't make it read the database again. The service also remembers
+ * what each widget last rendered, so unchanged widgets are not redrawn.
+ *
+ * @author Tim Su <tim@todoroo.com>
+ *
+ */
+public class WidgetRowCache {
+
+    /** number of tasks a widget shows */
+    public static final int ROWS = 5;
+
+    /** properties read for each row */
+    public static final Property<?>[] PROPERTIES = new Property<?>[] { Task.ID,
+        Task.TITLE, Task.DUE_DATE, Task.COMPLETION_DATE };
+
+    /**
+     * how long rows are kept, for writes that bypass the database change
+     * feed
+     */
+    static final long MAX_AGE = DateUtilities.ONE_HOUR;
+
+    private static final WidgetRowCache instance = new WidgetRowCache();
+
+    public static WidgetRowCache getInstance() {
+        return instance;
+    }
+
+    @Autowired TaskService taskService;
+
+    private boolean injected = false;
+
+    static class Entry {
+        final String filterSql;
+        final int flags;
+        final int sort;
+
+        /** filter query adjusted for sorting and limited to the widget */
+        final String query;
+
+        /** whether the filter uses time placeholders */
+        final boolean timeDependent;
+
+        List<Task> rows = null;
+        final HashSet<Long> ids = new HashSet<Long>();
+        long computed = 0;
+        boolean dirty = true;
+
+        /** what the widget last showed, or null if never rendered */
+        String rendered = null;
+
+        @SuppressWarnings("nls")
+        Entry(String filterSql, int flags, int sort) {
+            this.filterSql = filterSql;
+            this.flags = flags;
+            this.sort = sort;
+            query = SortHelper.adjustQueryForFlagsAndSort(filterSql, flags, sort).
+                replaceAll("LIMIT \\d+", "") + " LIMIT " + ROWS;
+            timeDependent = PermaSql.compile(filterSql).isTimeDependent();
+        }
+
+        boolean matches(String otherSql, int otherFlags, int otherSort) {
+            return filterSql.equals(otherSql) && flags == otherFlags && sort == otherSort;
+        }
+    }
+
+    /** entries by widget id */
+    private final HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+    /** ids of all widgets, or null if not known yet */
+    private int[] widgetIds = null;
+
+    /**
+     * Return the tasks a widget shows, reading them again only if a change
+     * could have affected them
+     *
+     * @param widgetId
+     * @param filterSql widget filter
+     * @param flags sort flags
+     * @param sort sort order
+     * @param refresh whether to read the tasks of filters that depend on
+     *        the current time again
+     * @return tasks to show
+     */
+    public List<Task> getRows(int widgetId, String filterSql, int flags, int sort,
+            boolean refresh) {
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(widgetId);
+            if(entry == null || !entry.matches(filterSql, flags, sort)) {
+                entry = new Entry(filterSql, flags, sort);
+                entries.put(widgetId, entry);
+            }
+            if(isValid(entry, DateUtilities.now(), refresh))
+                return entry.rows;
+            // changes made while reading will mark the entry again
+            entry.dirty = false;
+        }
+
+        ArrayList<Task> rows = new ArrayList<Task>(ROWS);
+        TodorooCursor<Task> cursor = taskService().fetchFiltered(entry.query, null, PROPERTIES);
+        try {
+            for(cursor.moveToFirst(); !cursor.isAfterLast() && rows.size() < ROWS; cursor.moveToNext())
+                rows.add(new Task(cursor));
+        } finally {
+            cursor.close();
+        }
+
+        synchronized(this) {
+            entry.rows = Collections.unmodifiableList(rows);
+            entry.ids.clear();
+            for(Task task : rows)
+                entry.ids.add(task.getId());
+            entry.computed = DateUtilities.now();
+        }
+        return rows;
+    }
+
+    private static boolean isValid(Entry entry, long now, boolean refresh) {
+        if(entry.rows == null || entry.dirty)
+            return false;
+        if(refresh && entry.timeDependent)
+            return false;
+        return now - entry.computed < MAX_AGE;
+    }
+
+    private synchronized TaskService taskService() {
+        if(!injected) {
+            DependencyInjectionService.getInstance().inject(this);
+            injected = true;
+        }
+        return taskService;
+    }
+
+    /**
+     * @return true if the widget's tasks may have changed since they were
+     *         last read
+     */
+    public synchronized boolean isDirty(int widgetId) {
+        Entry entry = entries.get(widgetId);
+        return entry == null || entry.dirty || entry.rows == null ||
+            DateUtilities.now() - entry.computed >= MAX_AGE;
+    }
+
+    /**
+     * Record what a widget shows
+     *
+     * @param widgetId
+     * @param rendered description of the widget's contents
+     * @return true if the widget showed something else before
+     */
+    public synchronized boolean setRendered(int widgetId, String rendered) {
+        Entry entry = entries.get(widgetId);
+        if(entry == null)
+            return true;
+        boolean changed = !rendered.equals(entry.rendered);
+        entry.rendered = rendered;
+        return changed;
+    }
+
+    /**
+     * Forget what the given widget shows, for example when it is configured
+     */
+    public synchronized void invalidate(int widgetId) {
+        entries.remove(widgetId);
+    }
+
+    /**
+     * Drop entries of widgets that no longer exist
+     *
+     * @param ids all widgets
+     */
+    public synchronized void retainWidgets(int[] ids) {
+        HashMap<Integer, Entry> retained = new HashMap<Integer, Entry>();
+        for(int id : ids) {
+            Entry entry = entries.get(id);
+            if(entry != null)
+                retained.put(id, entry);
+        }
+        entries.clear();
+        entries.putAll(retained);
+        widgetIds = ids;
+    }
+
+    /**
+     * Mark the widgets whose tasks the given changes could affect
+     *
+     * @param changes
+     * @return true if any widget should be updated
+     */
+    public synchronized boolean onDatabaseChanged(List<DatabaseChange> changes) {
+        if(widgetIds == null)
+            return true;
+        boolean affected = false;
+        for(int id : widgetIds) {
+            Entry entry = entries.get(id);
+            if(entry == null || entry.dirty) {
+                affected = true;
+                continue;
+            }
+            for(DatabaseChange change : changes) {
+                if(affects(entry, change)) {
+                    entry.dirty = true;
+                    affected = true;
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * @return true if the change could alter the tasks in the entry
+     */
+    static boolean affects(Entry entry, DatabaseChange change) {
+        if(change.isTo(Metadata.TABLE))
+            return entry.query.contains(Metadata.TABLE.name) ||
+                entry.query.contains(TaskSearchIndex.TABLE.name);
+        if(!change.isTo(Task.TABLE))
+            return false;
+        if(!change.isSingleRow())
+            return true;
+
+        boolean shown = entry.ids.contains(change.rowId);
+        switch(change.operation) {
+        case DatabaseChange.INSERT:
+            return true;
+        case DatabaseChange.DELETE:
+            // removing a task below the top rows doesn't change them
+            return shown;
+        default:
+            for(String column : change.columns) {
+                // the filter or sort order reads this column
+                if(entry.query.contains(column))
+                    return true;
+                if(shown && isShown(column))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static boolean isShown(String column) {
+        for(Property<?> property : PROPERTIES)
+            if(property.name.equals(column))
+                return true;
+        return false;
+    }
+
+}
@@ -16,50 +16,322 @@
 package greendroid.image;
 
 import greendroid.app.GDApplication.OnLowMemoryListener;
+import greendroid.util.Config;
 import greendroid.util.GDUtils;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.util.Log;
 
+/**
+ * A two-tier image cache. Decoded bitmaps are kept in memory in an LRU
+ * bounded by their size in bytes. Downloaded images are kept on disk, in
+ * files named after a hash of their url, in an LRU bounded by the total
+ * size of the files. Counters of hits and misses on each tier are kept
+ * for diagnostics.
+ *
+ * @author Cyril Mottier
+ */
 public class ImageCache implements OnLowMemoryListener {
-    
-    private final HashMap<String, SoftReference<Bitmap>> mSoftCache;
-    
+
+    private static final String LOG_TAG = ImageCache.class.getSimpleName();
+
+    /** Name of the disk cache directory, in the application cache directory */
+    private static final String DISK_CACHE_DIR = "images";
+
+    /** Default maximum size of the disk cache */
+    public static final long DEFAULT_DISK_CACHE_SIZE = 5 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final LinkedHashMap<String, Bitmap> mMemoryCache;
+    private final long mMaxMemoryBytes;
+    private long mMemoryBytes;
+
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+    private long mDiskBytes;
+
+    /** Sizes of the files in the disk cache by name, in access order. Read lazily */
+    private LinkedHashMap<String, Long> mDiskEntries;
+
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+
     public ImageCache(Context context) {
-        mSoftCache = new HashMap<String, SoftReference<Bitmap>>();
+        this(new File(context.getCacheDir(), DISK_CACHE_DIR), Runtime.getRuntime().maxMemory() / 8,
+                DEFAULT_DISK_CACHE_SIZE);
         GDUtils.getGDApplication(context).registerOnLowMemoryListener(this);
     }
-    
+
+    /**
+     * @param diskDir The directory the disk cache is kept in
+     * @param maxMemoryBytes The maximum size of the bitmaps kept in memory
+     * @param maxDiskBytes The maximum size of the files kept on disk
+     */
+    public ImageCache(File diskDir, long maxMemoryBytes, long maxDiskBytes) {
+        mMemoryCache = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+        mMaxMemoryBytes = maxMemoryBytes;
+        mDiskDir = diskDir;
+        mMaxDiskBytes = maxDiskBytes;
+    }
+
     public static ImageCache from(Context context) {
         return GDUtils.getImageCache(context);
     }
-    
-    public Bitmap get(String url) {
-        final SoftReference<Bitmap> ref = mSoftCache.get(url);
-        if (ref == null) {
+
+    // --- memory tier
+
+    /**
+     * Return the bitmap for the given url if it is in memory. This never
+     * touches the disk, so it is safe to call from the UI thread.
+     */
+    public synchronized Bitmap get(String url) {
+        final Bitmap bitmap = mMemoryCache.get(url);
+        if (bitmap != null) {
+            mMemoryHits++;
+        }
+        return bitmap;
+    }
+
+    public synchronized void put(String url, Bitmap bitmap) {
+        if (url == null || bitmap == null) {
+            return;
+        }
+        final long size = sizeOf(bitmap);
+        if (size > mMaxMemoryBytes) {
+            return;
+        }
+        final Bitmap previous = mMemoryCache.put(url, bitmap);
+        if (previous != null) {
+            mMemoryBytes -= sizeOf(previous);
+        }
+        mMemoryBytes += size;
+        trimMemory(mMaxMemoryBytes);
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private void trimMemory(long maxBytes) {
+        final Iterator<Bitmap> iterator = mMemoryCache.values().iterator();
+        while (mMemoryBytes > maxBytes && iterator.hasNext()) {
+            mMemoryBytes -= sizeOf(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return The size in bytes of the bitmaps kept in memory
+     */
+    public synchronized long getMemorySize() {
+        return mMemoryBytes;
+    }
+
+    public synchronized void flush() {
+        mMemoryCache.clear();
+        mMemoryBytes = 0;
+    }
+
+    /**
+     * Drop the least recently used half of the memory tier. The disk tier
+     * still has the images, so they come back without a download.
+     */
+    public synchronized void onLowMemoryReceived() {
+        trimMemory(mMemoryBytes / 2);
+    }
+
+    // --- disk tier
+
+    /**
+     * Return the file holding the image for the given url, or null if it is
+     * not on disk. Must not be called from the UI thread.
+     */
+    public File getFile(String url) {
+        final String name = hash(url);
+        final File file = new File(mDiskDir, name);
+        synchronized (this) {
+            readDiskEntries();
+            final Long size = mDiskEntries.get(name);
+            if (size != null && !file.exists()) {
+                // the system cleared the cache directory
+                mDiskEntries.remove(name);
+                mDiskBytes -= size;
+            } else if (size != null) {
+                mDiskHits++;
+                file.setLastModified(System.currentTimeMillis());
+                return file;
+            }
+            mMisses++;
             return null;
         }
-        
-        final Bitmap bitmap = ref.get();
-        if (bitmap == null) {
-            mSoftCache.remove(url);
+    }
+
+    /**
+     * Copy an image to the disk tier, evicting the least recently used
+     * images if it grows too large. The stream is not closed. Must not be
+     * called from the UI thread.
+     *
+     * @return The file holding the image
+     */
+    public File putFile(String url, InputStream in) throws IOException {
+        final String name = hash(url);
+        synchronized (this) {
+            readDiskEntries();
         }
-        
-        return bitmap;
+
+        final File temp = File.createTempFile(name, ".tmp", mDiskDir);
+        final OutputStream out = new FileOutputStream(temp);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+
+        final File file = new File(mDiskDir, name);
+        synchronized (this) {
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to write " + file);
+            }
+            final Long previous = mDiskEntries.put(name, file.length());
+            if (previous != null) {
+                mDiskBytes -= previous;
+            }
+            mDiskBytes += file.length();
+            trimDisk();
+        }
+        return file;
+    }
+
+    /**
+     * @return The size in bytes of the files kept on disk
+     */
+    public synchronized long getDiskSize() {
+        readDiskEntries();
+        return mDiskBytes;
     }
-    
-    public void put(String url, Bitmap bitmap) {
-        mSoftCache.put(url, new SoftReference<Bitmap>(bitmap));
+
+    /**
+     * Read the files of the disk cache, oldest first, and delete leftovers
+     * of interrupted writes
+     */
+    private void readDiskEntries() {
+        if (mDiskEntries != null) {
+            return;
+        }
+        mDiskEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mDiskBytes = 0;
+        if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+            if (Config.GD_ERROR_LOGS_ENABLED) {
+                Log.e(LOG_TAG, "Unable to create " + mDiskDir);
+            }
+            return;
+        }
+
+        final File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File file1, File file2) {
+                final long modified1 = file1.lastModified();
+                final long modified2 = file2.lastModified();
+                return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            mDiskEntries.put(file.getName(), file.length());
+            mDiskBytes += file.length();
+        }
+        trimDisk();
     }
-    
-    public void flush() {
-        mSoftCache.clear();
+
+    private void trimDisk() {
+        final Iterator<Map.Entry<String, Long>> iterator = mDiskEntries.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            new File(mDiskDir, entry.getKey()).delete();
+            mDiskBytes -= entry.getValue();
+            iterator.remove();
+        }
     }
 
-    public void onLowMemoryReceived() {
+    /**
+     * Remove every image from both tiers
+     */
+    public synchronized void clear() {
         flush();
+        readDiskEntries();
+        for (String name : mDiskEntries.keySet()) {
+            new File(mDiskDir, name).delete();
+        }
+        mDiskEntries.clear();
+        mDiskBytes = 0;
+    }
+
+    /**
+     * @return The file name for the given url
+     */
+    static String hash(String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    // --- statistics
+
+    /**
+     * @return The number of images found in memory
+     */
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHits;
+    }
+
+    /**
+     * @return The number of images found on disk
+     */
+    public synchronized int getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    /**
+     * @return The number of images that had to be downloaded
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
     }
 }
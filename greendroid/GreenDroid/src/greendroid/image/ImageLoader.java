@@ -18,9 +18,16 @@ package greendroid.image;
 import greendroid.util.Config;
 import greendroid.util.GDUtils;
 
+import java.io.File;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -37,6 +44,12 @@ import android.util.Log;
  * notified from the current image loading state using the
  * {@link ImageLoaderCallback}.
  * <p>
+ * Images are looked up in the {@link ImageCache} memory tier, then its disk
+ * tier, and only downloaded if both miss. Requests for an url that is
+ * already being loaded with the same processor and options join the
+ * pending load instead of starting another one.
+ * </p>
+ * <p>
  * <em><strong>Note: </strong>You normally don't need to use the {@link ImageLoader}
  * class directly in your application. You'll generally prefer using an
  * {@link ImageRequest} that takes care of the entire loading process.</em>
@@ -65,6 +78,9 @@ public class ImageLoader {
     private static ExecutorService sExecutor;
     private static BitmapFactory.Options sDefaultOptions;
 
+    /** Loads in progress by url */
+    private static final HashMap<String, ImageFetcher> sInFlight = new HashMap<String, ImageFetcher>();
+
     public ImageLoader(Context context) {
         if (sImageCache == null) {
             sImageCache = GDUtils.getImageCache(context);
@@ -90,47 +106,100 @@ public class ImageLoader {
     }
     
     public Future<?> loadImage(String url, ImageLoaderCallback callback, ImageProcessor bitmapProcessor, BitmapFactory.Options options) {
-        return sExecutor.submit(new ImageFetcher(url, callback, bitmapProcessor, options));
+        final ImageHandler handler = new ImageHandler(callback);
+        synchronized (sInFlight) {
+            ImageFetcher fetcher = sInFlight.get(url);
+            if (fetcher == null || fetcher.mBitmapProcessor != bitmapProcessor || fetcher.mOptions != options
+                    || !fetcher.addHandler(handler)) {
+                fetcher = new ImageFetcher(url, handler, bitmapProcessor, options);
+                if (url != null) {
+                    sInFlight.put(url, fetcher);
+                }
+                fetcher.mFuture = sExecutor.submit(fetcher);
+            }
+            return new RequestFuture(fetcher, handler);
+        }
     }
 
     private class ImageFetcher implements Runnable {
 
         private String mUrl;
-        private ImageHandler mHandler;
         private ImageProcessor mBitmapProcessor;
         private BitmapFactory.Options mOptions;
+        private Future<?> mFuture;
+
+        /** Handlers of the requests waiting for this image. Guarded by sInFlight */
+        private final ArrayList<ImageHandler> mHandlers = new ArrayList<ImageHandler>(1);
+        private boolean mStarted;
+        private boolean mFinished;
 
-        public ImageFetcher(String url, ImageLoaderCallback callback, ImageProcessor bitmapProcessor, BitmapFactory.Options options) {
+        public ImageFetcher(String url, ImageHandler handler, ImageProcessor bitmapProcessor, BitmapFactory.Options options) {
             mUrl = url;
-            mHandler = new ImageHandler(url, callback);
+            mHandlers.add(handler);
             mBitmapProcessor = bitmapProcessor;
             mOptions = options;
         }
 
+        /**
+         * @return false if the image was already delivered
+         */
+        private boolean addHandler(ImageHandler handler) {
+            if (mFinished) {
+                return false;
+            }
+            mHandlers.add(handler);
+            if (mStarted) {
+                handler.sendMessage(Message.obtain(handler, ON_START));
+            }
+            return true;
+        }
+
+        /**
+         * Stop waiting for the image, cancelling the load if nobody else
+         * is waiting for it
+         */
+        private void removeHandler(ImageHandler handler) {
+            mHandlers.remove(handler);
+            if (mHandlers.isEmpty() && !mStarted) {
+                mFuture.cancel(false);
+                mFinished = true;
+                if (sInFlight.get(mUrl) == this) {
+                    sInFlight.remove(mUrl);
+                }
+            }
+        }
+
         public void run() {
 
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-            final Handler h = mHandler;
+            synchronized (sInFlight) {
+                mStarted = true;
+                for (ImageHandler h : mHandlers) {
+                    h.sendMessage(Message.obtain(h, ON_START));
+                }
+            }
+
             Bitmap bitmap = null;
             Throwable throwable = null;
 
-            h.sendMessage(Message.obtain(h, ON_START));
-
             try {
 
                 if (TextUtils.isEmpty(mUrl)) {
                     throw new Exception("The given URL cannot be null or empty");
                 }
 
-                // TODO Cyril: Use a AndroidHttpClient?
-                bitmap = BitmapFactory.decodeStream(new URL(mUrl).openStream(), null, (mOptions == null) ? sDefaultOptions : mOptions);
+                bitmap = sImageCache.get(mUrl);
+                if (bitmap == null) {
+                    bitmap = fetch();
 
-                if (mBitmapProcessor != null && bitmap != null) {
-                    final Bitmap processedBitmap = mBitmapProcessor.processImage(bitmap);
-                    if (processedBitmap != null) {
-                        bitmap = processedBitmap;
+                    if (mBitmapProcessor != null && bitmap != null) {
+                        final Bitmap processedBitmap = mBitmapProcessor.processImage(bitmap);
+                        if (processedBitmap != null) {
+                            bitmap = processedBitmap;
+                        }
                     }
+                    sImageCache.put(mUrl, bitmap);
                 }
 
             } catch (Exception e) {
@@ -141,26 +210,98 @@ public class ImageLoader {
                 throwable = e;
             }
 
-            if (bitmap == null) {
-                if (throwable == null) {
-                    // Skia returned a null bitmap ... that's usually because
-                    // the given url wasn't pointing to a valid image
-                    throwable = new Exception("Skia image decoding failed");
+            if (bitmap == null && throwable == null) {
+                // Skia returned a null bitmap ... that's usually because
+                // the given url wasn't pointing to a valid image
+                throwable = new Exception("Skia image decoding failed");
+            }
+
+            synchronized (sInFlight) {
+                mFinished = true;
+                if (sInFlight.get(mUrl) == this) {
+                    sInFlight.remove(mUrl);
+                }
+                for (ImageHandler h : mHandlers) {
+                    if (bitmap == null) {
+                        h.sendMessage(Message.obtain(h, ON_FAIL, throwable));
+                    } else {
+                        h.sendMessage(Message.obtain(h, ON_END, bitmap));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Decode the image from the disk cache, downloading it first if
+         * needed
+         */
+        private Bitmap fetch() throws Exception {
+            final BitmapFactory.Options options = (mOptions == null) ? sDefaultOptions : mOptions;
+            File file = sImageCache.getFile(mUrl);
+            if (file == null) {
+                // TODO Cyril: Use a AndroidHttpClient?
+                final InputStream in = new URL(mUrl).openStream();
+                try {
+                    file = sImageCache.putFile(mUrl, in);
+                } finally {
+                    in.close();
+                }
+            }
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * Future of a single request. Cancelling it only cancels the load if no
+     * other request joined it.
+     */
+    private static class RequestFuture implements Future<Object> {
+
+        private final ImageFetcher mFetcher;
+        private final ImageHandler mHandler;
+        private boolean mCancelled;
+
+        private RequestFuture(ImageFetcher fetcher, ImageHandler handler) {
+            mFetcher = fetcher;
+            mHandler = handler;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (sInFlight) {
+                if (mCancelled || mFetcher.mFinished) {
+                    return false;
                 }
-                h.sendMessage(Message.obtain(h, ON_FAIL, throwable));
-            } else {
-                h.sendMessage(Message.obtain(h, ON_END, bitmap));
+                mCancelled = true;
+                mFetcher.removeHandler(mHandler);
+                return true;
             }
         }
+
+        public boolean isCancelled() {
+            synchronized (sInFlight) {
+                return mCancelled;
+            }
+        }
+
+        public boolean isDone() {
+            return isCancelled() || mFetcher.mFuture.isDone();
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            return mFetcher.mFuture.get();
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            return mFetcher.mFuture.get(timeout, unit);
+        }
     }
 
     private class ImageHandler extends Handler {
 
-        private String mUrl;
         private ImageLoaderCallback mCallback;
 
-        private ImageHandler(String url, ImageLoaderCallback callback) {
-            mUrl = url;
+        private ImageHandler(ImageLoaderCallback callback) {
             mCallback = callback;
         }
 
@@ -184,8 +325,6 @@ public class ImageLoader {
                 case ON_END:
 
                     final Bitmap bitmap = (Bitmap) msg.obj;
-                    sImageCache.put(mUrl, bitmap);
-
                     if (mCallback != null) {
                         mCallback.onImageLoadingEnded(ImageLoader.this, bitmap);
                     }
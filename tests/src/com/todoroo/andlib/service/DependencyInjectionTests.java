@@ -239,4 +239,54 @@ public class DependencyInjectionTests extends AndroidTestCase {
         assertEquals("gotfoo", child.foo);
         assertEquals("hasbar", child.bar);
     }
+
+    public void testInjectorChangesAfterFirstInjection() {
+        DependencyInjectionService service = new DependencyInjectionService();
+        AbstractDependencyInjector fooInjector = new AbstractDependencyInjector() {
+
+            @Override
+            public Object getInjection(Object object, Field field) {
+                if(field.getName().equals("foo"))
+                    return "gotfoo";
+                return null;
+            }
+        };
+        service.addInjector(fooInjector);
+        service.addInjector(
+                new AbstractDependencyInjector() {
+
+                    @Override
+                    public Object getInjection(Object object, Field field) {
+                        if(field.getName().equals("bar"))
+                            return "hasbar";
+                        return null;
+                    }
+                }
+        );
+
+        ChildInjectee child = new ChildInjectee();
+        service.inject(child);
+        assertEquals("gotfoo", child.foo);
+
+        // a later injector takes precedence for new objects
+        service.addInjector(
+                new AbstractDependencyInjector() {
+
+                    @Override
+                    public Object getInjection(Object object, Field field) {
+                        if(field.getName().equals("foo"))
+                            return "newfoo";
+                        return null;
+                    }
+                }
+        );
+        child = new ChildInjectee();
+        service.inject(child);
+        assertEquals("newfoo", child.foo);
+        assertEquals("hasbar", child.bar);
+
+        // injected fields are left alone
+        service.inject(child);
+        assertEquals("newfoo", child.foo);
+    }
 }
@@ -0,0 +1,54 @@
+package com.todoroo.andlib.sql;
+
+import android.test.AndroidTestCase;
+
+import com.todoroo.astrid.data.Task;
+
+public class CompiledQueryTest extends AndroidTestCase {
+
+    public void testColumnValuesAreBound() {
+        Query query = Query.select(Task.ID).from(Task.TABLE).where(Criterion.and(
+                Task.ID.eq(5), Task.TITLE.eq("it's")));
+        CompiledQuery compiled = query.compile();
+        assertFalse(compiled.getSql().contains("5"));
+        assertFalse(compiled.getSql().contains("it"));
+        assertEquals(2, compiled.getArgCount());
+        assertEquals("5", compiled.getSelectionArgs()[0]);
+        assertEquals("it's", compiled.getSelectionArgs()[1]);
+    }
+
+    public void testExpressionNumbersAreInlined() {
+        Query query = Query.select(Task.ID).from(Task.TABLE).where(
+                Functions.cast(Task.DUE_DATE, "LONG").gt(3));
+        CompiledQuery compiled = query.compile();
+        assertEquals(0, compiled.getArgCount());
+        assertNull(compiled.getSelectionArgs());
+        assertEquals(query.toString(), compiled.getSql());
+    }
+
+    public void testLikeWithEscape() {
+        Query query = Query.select(Task.ID).from(Task.TABLE).where(
+                Task.TITLE.eqCaseInsensitive("a_b"));
+        CompiledQuery compiled = query.compile();
+        assertTrue(compiled.getSql().contains("LIKE ? ESCAPE"));
+        assertEquals("a\\_b", compiled.getSelectionArgs()[0]);
+    }
+
+    public void testSameShapeSameSql() {
+        CompiledQuery first = Query.select(Task.ID).from(Task.TABLE).where(
+                Task.ID.eq(1)).compile();
+        CompiledQuery second = Query.select(Task.ID).from(Task.TABLE).where(
+                Task.ID.eq(2)).compile();
+        assertEquals(first.getSql(), second.getSql());
+        assertEquals(second, first.bind(2));
+    }
+
+    public void testCompileIsCachedUntilChanged() {
+        Query query = Query.select(Task.ID).from(Task.TABLE).where(Task.ID.eq(1));
+        CompiledQuery compiled = query.compile();
+        assertSame(compiled, query.compile());
+        query.limit(1);
+        assertNotSame(compiled, query.compile());
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.todoroo.astrid.actfm.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.utility.AndroidUtilities;
+import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.dao.StoreObjectDao;
+import com.todoroo.astrid.dao.StoreObjectDao.StoreObjectCriteria;
+import com.todoroo.astrid.test.DatabaseTestCase;
+
+@SuppressWarnings("nls")
+public class ActFmPushQueueTest extends DatabaseTestCase {
+
+    private static final long WAIT_TIME = ActFmPushQueue.PUSH_DELAY + 500L;
+
+    @Autowired
+    private StoreObjectDao storeObjectDao;
+
+    /** handler that records pushes */
+    private static class RecordingHandler implements ActFmPushQueue.PushHandler {
+        final ArrayList<HashSet<String>> pushes = new ArrayList<HashSet<String>>();
+        final ArrayList<Integer> queuedWhilePushing = new ArrayList<Integer>();
+        ActFmPushQueue queue = null;
+        boolean succeed = true;
+        boolean fail = false;
+
+        public boolean canPush() {
+            return true;
+        }
+
+        public synchronized boolean push(int pushType, long itemId, HashSet<String> columns) {
+            pushes.add(columns);
+            if(queue != null)
+                queuedWhilePushing.add(queue.size());
+            if(fail)
+                throw new RuntimeException("push failed");
+            return succeed;
+        }
+    }
+
+    private RecordingHandler handler;
+    private ActFmPushQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        handler = new RecordingHandler();
+        queue = new ActFmPushQueue(handler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // empty the queue so the worker stops
+        storeObjectDao.deleteWhere(StoreObjectCriteria.byType(ActFmPushQueue.TYPE));
+        queue.start();
+        AndroidUtilities.sleepDeep(100L);
+        super.tearDown();
+    }
+
+    public void testEditsAreCoalesced() {
+        for(int i = 0; i < 10; i++)
+            queue.enqueue(0, 1L, Arrays.asList("column" + (i % 3)));
+        queue.enqueue(0, 2L, Arrays.asList("other"));
+        assertEquals(2, queue.size());
+
+        AndroidUtilities.sleepDeep(WAIT_TIME);
+
+        assertEquals(2, handler.pushes.size());
+        assertEquals(new HashSet<String>(Arrays.asList("column0", "column1", "column2")),
+                handler.pushes.get(0));
+        assertEquals(0, queue.size());
+    }
+
+    public void testFailedPushIsRetriedLater() {
+        handler.succeed = false;
+        queue.enqueue(0, 1L, Arrays.asList("title"));
+
+        AndroidUtilities.sleepDeep(WAIT_TIME);
+
+        // pushed once, then waiting for backoff
+        assertEquals(1, handler.pushes.size());
+        assertEquals(1, queue.size());
+        assertTrue(queue.pushDueEntries() > DateUtilities.now());
+
+        // a new edit is merged without moving up the retry
+        queue.enqueue(0, 1L, Arrays.asList("notes"));
+        assertEquals(1, queue.size());
+        AndroidUtilities.sleepDeep(WAIT_TIME);
+        assertEquals(1, handler.pushes.size());
+    }
+
+    public void testEntryIsKeptUntilPushed() {
+        handler.queue = queue;
+        queue.enqueue(0, 1L, Arrays.asList("title"));
+
+        AndroidUtilities.sleepDeep(WAIT_TIME);
+
+        assertEquals(1, handler.pushes.size());
+        assertEquals(Integer.valueOf(1), handler.queuedWhilePushing.get(0));
+        assertEquals(0, queue.size());
+    }
+
+    public void testPushErrorIsRetriedLater() {
+        handler.fail = true;
+        queue.enqueue(0, 1L, Arrays.asList("title"));
+
+        AndroidUtilities.sleepDeep(WAIT_TIME);
+
+        assertEquals(1, handler.pushes.size());
+        assertEquals(1, queue.size());
+        assertTrue(queue.pushDueEntries() > DateUtilities.now());
+    }
+
+    public void testRetryDelay() {
+        assertEquals(ActFmPushQueue.INITIAL_RETRY_DELAY, ActFmPushQueue.retryDelay(1));
+        assertEquals(2 * ActFmPushQueue.INITIAL_RETRY_DELAY, ActFmPushQueue.retryDelay(2));
+        assertEquals(4 * ActFmPushQueue.INITIAL_RETRY_DELAY, ActFmPushQueue.retryDelay(3));
+        assertEquals(ActFmPushQueue.MAX_RETRY_DELAY, ActFmPushQueue.retryDelay(50));
+    }
+
+}
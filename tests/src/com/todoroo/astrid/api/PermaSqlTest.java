@@ -0,0 +1,63 @@
+package com.todoroo.astrid.api;
+
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.andlib.test.TodorooTestCase;
+import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.api.PermaSql.Template;
+import com.todoroo.astrid.core.SortHelper;
+import com.todoroo.astrid.data.Task;
+
+@SuppressWarnings("nls")
+public class PermaSqlTest extends TodorooTestCase {
+
+    public void testTemplateBindsPlaceholders() {
+        String sql = "WHERE dueDate < EODT() AND hideUntil < NOW()";
+        Template template = PermaSql.compile(sql);
+        assertSame(template, PermaSql.compile(sql));
+        assertTrue(template.isTimeDependent());
+        assertEquals("WHERE dueDate < CAST(? AS INTEGER) AND hideUntil < CAST(? AS INTEGER)",
+                template.getSql());
+
+        long before = DateUtilities.now();
+        Object[] args = template.bindArgs();
+        assertEquals(2, args.length);
+        assertTrue((Long) args[0] > before + DateUtilities.ONE_HOUR * 23);
+        assertTrue((Long) args[1] >= before);
+    }
+
+    public void testQuotedPlaceholdersAreNotBound() {
+        Template template = PermaSql.compile("WHERE title = 'NOW()' AND dueDate < EOD()");
+        assertEquals(1, template.bindArgs().length);
+        assertFalse(template.getSql().contains("NOW()"));
+        assertTrue(template.getSql().endsWith("dueDate < CAST(? AS INTEGER)"));
+    }
+
+    public void testReplacePlaceholders() {
+        String sql = "WHERE importance < 2";
+        assertFalse(PermaSql.compile(sql).isTimeDependent());
+        assertEquals(sql, PermaSql.replacePlaceholders(sql));
+
+        String replaced = PermaSql.replacePlaceholders("EODY() EOD() EODT() EODTT() EODW() EODM()");
+        String[] values = replaced.split(" ");
+        assertEquals(6, values.length);
+        for(int i = 1; i < values.length; i++)
+            assertTrue(Long.parseLong(values[i]) > Long.parseLong(values[i - 1]));
+    }
+
+    public void testQueryInlinesTemplateArguments() {
+        Query query = Query.select(Task.ID).withQueryTemplate(
+                "WHERE title = '?' AND dueDate < ? AND notes = ?", 5L, "it's");
+        assertTrue(query.toString().endsWith(
+                "WHERE title = '?' AND dueDate < 5 AND notes = 'it''s'"));
+        assertEquals(2, query.compile().getArgCount());
+    }
+
+    public void testSortedQueriesDontChangeOverTime() {
+        String sql = "WHERE deleted = 0";
+        String adjusted = SortHelper.adjustQueryForFlagsAndSort(sql, 0, SortHelper.SORT_DUE);
+        assertTrue(adjusted.contains(PermaSql.VALUE_NOW));
+        assertSame(adjusted, SortHelper.adjustQueryForFlagsAndSort(sql, 0, SortHelper.SORT_DUE));
+        assertNotSame(adjusted, SortHelper.adjustQueryForFlagsAndSort(sql, 0, SortHelper.SORT_ALPHA));
+    }
+
+}
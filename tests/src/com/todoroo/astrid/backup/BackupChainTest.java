@@ -0,0 +1,103 @@
+package com.todoroo.astrid.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.test.AndroidTestCase;
+
+import com.todoroo.astrid.data.Metadata;
+
+@SuppressWarnings("nls")
+public class BackupChainTest extends AndroidTestCase {
+
+    public void testEncodeIds() {
+        long[] ids = new long[] { 1, 2, 3, 4, 5, 7, 9, 10, 11, 12, 100 };
+        String encoded = BackupChain.encodeIds(ids);
+        assertEquals("1-5,7,9-12,100", encoded);
+        assertTrue(Arrays.equals(ids, BackupChain.decodeIds(encoded)));
+
+        assertEquals("", BackupChain.encodeIds(new long[0]));
+        assertEquals(0, BackupChain.decodeIds(null).length);
+        assertEquals(0, BackupChain.decodeIds("").length);
+    }
+
+    public void testRemovedIds() {
+        long[] previous = new long[] { 1, 2, 3, 5, 8 };
+        long[] current = new long[] { 2, 3, 4, 8, 9 };
+        assertTrue(Arrays.equals(new long[] { 1, 5 },
+                BackupChain.removedIds(previous, current)));
+        assertEquals(0, BackupChain.removedIds(new long[0], current).length);
+        assertTrue(Arrays.equals(previous, BackupChain.removedIds(previous, new long[0])));
+    }
+
+    private Metadata metadata(long task, long id, String value) {
+        Metadata metadata = new Metadata();
+        metadata.setId(id);
+        metadata.setValue(Metadata.TASK, task);
+        metadata.setValue(Metadata.KEY, "tags-tag");
+        metadata.setValue(Metadata.VALUE1, value);
+        return metadata;
+    }
+
+    public void testFingerprints() {
+        HashMap<Long, Integer> previous = new HashMap<Long, Integer>();
+        BackupChain.addFingerprint(previous, metadata(1, 1, "home"));
+        BackupChain.addFingerprint(previous, metadata(1, 2, "work"));
+        BackupChain.addFingerprint(previous, metadata(2, 3, "home"));
+        BackupChain.addFingerprint(previous, metadata(3, 4, "home"));
+        assertEquals(previous, BackupChain.decodeFingerprints(
+                BackupChain.encodeFingerprints(previous)));
+        assertEquals(0, BackupChain.decodeFingerprints(null).size());
+
+        // task 1 lost a tag, task 2 changed a tag, task 3 lost all metadata
+        HashMap<Long, Integer> current = new HashMap<Long, Integer>();
+        BackupChain.addFingerprint(current, metadata(1, 1, "home"));
+        BackupChain.addFingerprint(current, metadata(2, 3, "away"));
+        BackupChain.addFingerprint(current, metadata(4, 5, "home"));
+        Long[] changed = BackupChain.changedFingerprints(previous, current);
+        Arrays.sort(changed);
+        assertTrue(Arrays.equals(new Long[] { 1L, 2L, 3L, 4L }, changed));
+
+        assertEquals(0, BackupChain.changedFingerprints(current, current).length);
+    }
+
+    public void testChainFiles() throws IOException {
+        File directory = File.createTempFile("chain", Long.toString(System.nanoTime()));
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        try {
+            String[] names = new String[] {
+                "auto.110101-1200.xml",
+                "auto.110101-1200.110102-1200.inc.xml",
+                "auto.110101-1200.110103-1200.inc.xml",
+                "auto.110101-1200.110104-1200.inc.xml",
+                "auto.110105-1200.110106-1200.inc.xml",
+                "user.110101-1200.xml",
+            };
+            for(String name : names)
+                assertTrue(new File(directory, name).createNewFile());
+
+            File[] chain = BackupChain.chainFiles(new File(directory, names[2]));
+            assertEquals(3, chain.length);
+            assertEquals(names[0], chain[0].getName());
+            assertEquals(names[1], chain[1].getName());
+            assertEquals(names[2], chain[2].getName());
+
+            // a snapshot or other backup is imported on its own
+            assertEquals(1, BackupChain.chainFiles(new File(directory, names[0])).length);
+            assertFalse(BackupChain.isIncrement(new File(directory, names[5])));
+
+            // increment without a snapshot is removed
+            BackupChain.deleteOrphanIncrements(directory);
+            assertFalse(new File(directory, names[4]).exists());
+            assertTrue(new File(directory, names[3]).exists());
+        } finally {
+            for(File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.todoroo.astrid.backup;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -10,7 +12,9 @@ import com.timsu.astrid.R;
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.andlib.utility.AndroidUtilities;
 import com.todoroo.astrid.backup.BackupService.BackupDirectorySetting;
+import com.todoroo.astrid.dao.MetadataDao;
 import com.todoroo.astrid.dao.TaskDao;
+import com.todoroo.astrid.data.Metadata;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.test.DatabaseTestCase;
 import com.todoroo.andlib.utility.Preferences;
@@ -24,6 +28,9 @@ public class BackupServiceTests extends DatabaseTestCase {
     @Autowired
     private TaskDao taskDao;
 
+    @Autowired
+    private MetadataDao metadataDao;
+
     BackupDirectorySetting setting = new BackupDirectorySetting() {
         public File getBackupDirectory() {
             return temporaryDirectory;
@@ -95,6 +102,132 @@ public class BackupServiceTests extends DatabaseTestCase {
         }
     }
 
+    /** Test metadata is written inside the task it belongs to */
+    public void testBackupMetadata() throws IOException {
+        Task task = new Task();
+        task.setValue(Task.TITLE, "with metadata");
+        taskDao.createNew(task);
+        for(String value : new String[] { "first", "second" }) {
+            Metadata metadata = new Metadata();
+            metadata.setValue(Metadata.TASK, task.getId());
+            metadata.setValue(Metadata.KEY, "backup-test");
+            metadata.setValue(Metadata.VALUE1, value);
+            metadataDao.persist(metadata);
+        }
+        Metadata orphan = new Metadata();
+        orphan.setValue(Metadata.TASK, task.getId() + 100);
+        orphan.setValue(Metadata.KEY, "backup-test");
+        orphan.setValue(Metadata.VALUE1, "orphan");
+        metadataDao.persist(orphan);
+
+        boolean backupSetting = getBackupSetting();
+        try {
+            setBackupSetting(true);
+            BackupService service = new BackupService();
+            service.setBackupDirectorySetting(setting);
+            service.testBackup(getContext());
+
+            AndroidUtilities.sleepDeep(BACKUP_WAIT_TIME);
+
+            File[] files = temporaryDirectory.listFiles();
+            assertEquals(1, files.length);
+            BufferedReader reader = new BufferedReader(new FileReader(files[0]));
+            StringBuilder contents = new StringBuilder();
+            try {
+                String line;
+                while((line = reader.readLine()) != null)
+                    contents.append(line).append('\n');
+            } finally {
+                reader.close();
+            }
+
+            String xml = contents.toString();
+            int taskStart = xml.indexOf("with metadata");
+            int taskEnd = xml.indexOf("</" + BackupConstants.TASK_TAG, taskStart);
+            assertTrue(taskStart > 0);
+            String taskXml = xml.substring(taskStart, taskEnd);
+            assertTrue(taskXml.indexOf("first") < taskXml.indexOf("second"));
+            assertTrue(taskXml.indexOf("first") > 0);
+            assertFalse(xml.contains("orphan"));
+        } finally {
+            setBackupSetting(backupSetting);
+        }
+    }
+
+    private String readFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        StringBuilder contents = new StringBuilder();
+        try {
+            String line;
+            while((line = reader.readLine()) != null)
+                contents.append(line).append('\n');
+        } finally {
+            reader.close();
+        }
+        return contents.toString();
+    }
+
+    /** Test incremental backups write a snapshot, then only changes */
+    public void testIncrementalBackup() throws IOException {
+        Task deleted = new Task();
+        deleted.setValue(Task.TITLE, "going away");
+        taskDao.createNew(deleted);
+        Task untagged = new Task();
+        untagged.setValue(Task.TITLE, "losing a tag");
+        taskDao.createNew(untagged);
+        Metadata tag = new Metadata();
+        tag.setValue(Metadata.TASK, untagged.getId());
+        tag.setValue(Metadata.KEY, "tags-tag");
+        tag.setValue(Metadata.VALUE1, "errands");
+        metadataDao.persist(tag);
+
+        boolean backupSetting = getBackupSetting();
+        try {
+            setBackupSetting(true);
+            Preferences.setBoolean(R.string.backup_BPr_incremental_key, true);
+            Preferences.clear(BackupPreferences.PREF_BACKUP_CHAIN_BASE);
+
+            BackupService service = new BackupService();
+            service.setBackupDirectorySetting(setting);
+            service.testBackup(getContext());
+            AndroidUtilities.sleepDeep(BACKUP_WAIT_TIME);
+
+            File[] files = temporaryDirectory.listFiles();
+            assertEquals(1, files.length);
+            assertTrue(files[0].getName().matches(BackupService.BACKUP_FILE_NAME_REGEX));
+            String snapshot = readFile(files[0]);
+            assertTrue(snapshot.contains("helicopter"));
+            assertTrue(snapshot.contains(BackupConstants.TASK_ATTR_BACKUP_ID));
+
+            AndroidUtilities.sleepDeep(10L);
+            Task changed = new Task();
+            changed.setValue(Task.TITLE, "changed since snapshot");
+            taskDao.createNew(changed);
+            taskDao.delete(deleted.getId());
+            metadataDao.delete(tag.getId());
+
+            service.testBackup(getContext());
+            AndroidUtilities.sleepDeep(BACKUP_WAIT_TIME);
+
+            files = temporaryDirectory.listFiles();
+            assertEquals(2, files.length);
+            File increment = BackupChain.isIncrement(files[0]) ? files[0] : files[1];
+            assertTrue(BackupChain.isIncrement(increment));
+            assertEquals(2, BackupChain.chainFiles(increment).length);
+
+            String xml = readFile(increment);
+            assertTrue(xml.contains("changed since snapshot"));
+            assertFalse(xml.contains("helicopter"));
+            assertTrue(xml.contains("losing a tag"));
+            assertFalse(xml.contains("errands"));
+            assertTrue(xml.contains("<" + BackupConstants.DELETED_TAG + " " +
+                    BackupConstants.TASK_ATTR_BACKUP_ID + "=\"" + deleted.getId() + "\""));
+        } finally {
+            setBackupSetting(backupSetting);
+            Preferences.setBoolean(R.string.backup_BPr_incremental_key, false);
+        }
+    }
+
     /** Test no backup */
     public void testNoBackup() {
         assertEquals(0, temporaryDirectory.list().length);
@@ -0,0 +1,197 @@
+package com.todoroo.astrid.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.todoroo.andlib.data.Property;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.sql.Criterion;
+import com.todoroo.andlib.utility.Preferences;
+import com.todoroo.astrid.dao.MetadataDao;
+import com.todoroo.astrid.dao.TaskDao;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.test.DatabaseTestCase;
+
+@SuppressWarnings("nls")
+public class BinaryBackupTest extends DatabaseTestCase {
+
+    private static final int TASKS = 2000;
+
+    /** number of tasks written to the database for the benchmark */
+    private static final int BENCHMARK_TASKS = 500;
+
+    @Autowired
+    private TaskDao taskDao;
+
+    @Autowired
+    private MetadataDao metadataDao;
+
+    private static Task task(int i) {
+        Task task = new Task();
+        task.setId(i + 1);
+        task.setValue(Task.TITLE, "task number " + i);
+        task.setValue(Task.NOTES, i % 3 == 0 ? "some notes for task " + i : "");
+        task.setValue(Task.IMPORTANCE, i % 4);
+        task.setValue(Task.CREATION_DATE, 1300000000000L + i * 1000L);
+        task.setValue(Task.MODIFICATION_DATE, 1300000000000L + i * 2000L);
+        task.setValue(Task.DUE_DATE, i % 2 == 0 ? 0L : 1310000000000L + i);
+        task.setValue(Task.COMPLETION_DATE, 0L);
+        task.setValue(Task.DELETION_DATE, 0L);
+        return task;
+    }
+
+    private static Metadata metadata(int i) {
+        Metadata metadata = new Metadata();
+        metadata.setId(i + 1);
+        metadata.setValue(Metadata.TASK, (long) i + 1);
+        metadata.setValue(Metadata.KEY, "tags-tag");
+        metadata.setValue(Metadata.VALUE1, "tag " + (i % 10));
+        return metadata;
+    }
+
+    // --- binary
+
+    private static byte[] exportBinary(boolean deflate) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TasksBinaryBackup.Writer writer = new TasksBinaryBackup.Writer(bytes, deflate, 1,
+                Task.PROPERTIES, Metadata.PROPERTIES);
+        for(int i = 0; i < TASKS; i++) {
+            writer.writeTask(task(i));
+            writer.writeMetadata(metadata(i));
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    // --- tests
+
+    public void testRoundTrip() throws Exception {
+        for(boolean deflate : new boolean[] { false, true }) {
+            TasksBinaryBackup.Reader reader = new TasksBinaryBackup.Reader(
+                    new ByteArrayInputStream(exportBinary(deflate)),
+                    Task.PROPERTIES, Metadata.PROPERTIES);
+            assertEquals(1, reader.getAppVersion());
+            for(int i = 0; i < TASKS; i++) {
+                assertEquals(TasksBinaryBackup.RECORD_TASK, reader.next());
+                Task task = new Task();
+                reader.readTask(task);
+                assertEquals(task(i).getMergedValues(), task.getMergedValues());
+
+                assertEquals(TasksBinaryBackup.RECORD_METADATA, reader.next());
+                Metadata metadata = new Metadata();
+                reader.readMetadata(metadata);
+                assertEquals(metadata(i).getMergedValues(), metadata.getMergedValues());
+            }
+            assertEquals(TasksBinaryBackup.RECORD_END, reader.next());
+            reader.close();
+        }
+    }
+
+    public void testSkipsUnreadAndUnknownFields() throws Exception {
+        // read with a reader that only knows about the task title
+        TasksBinaryBackup.Reader reader = new TasksBinaryBackup.Reader(
+                new ByteArrayInputStream(exportBinary(true)),
+                new Property<?>[] { Task.TITLE }, new Property<?>[0]);
+        int tasks = 0;
+        int record;
+        while((record = reader.next()) != TasksBinaryBackup.RECORD_END) {
+            if(record != TasksBinaryBackup.RECORD_TASK)
+                continue; // metadata is skipped without being read
+            Task task = new Task();
+            reader.readTask(task);
+            assertEquals("task number " + tasks, task.getValue(Task.TITLE));
+            assertFalse(task.containsValue(Task.NOTES));
+            tasks++;
+        }
+        reader.close();
+        assertEquals(TASKS, tasks);
+    }
+
+    // --- benchmark
+
+    /**
+     * Export the database with TasksXmlExporter and wait for it to finish
+     *
+     * @return the backup file
+     */
+    private File export(File directory, boolean binary) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        TasksXmlExporter.exportTasks(getContext(), true, new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        }, directory, binary);
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        String extension = binary ? ".astb" : ".xml";
+        for(File file : directory.listFiles())
+            if(file.getName().endsWith(extension))
+                return file;
+        fail("No backup written");
+        return null;
+    }
+
+    /**
+     * Import a backup with TasksXmlImporter into an empty database
+     */
+    private void importInto(File backup) throws Exception {
+        metadataDao.deleteWhere(Criterion.all);
+        taskDao.deleteWhere(Criterion.all);
+        assertEquals(BENCHMARK_TASKS, TasksXmlImporter.importTasksNow(getContext(),
+                backup.getAbsolutePath()));
+    }
+
+    /**
+     * Compare size and speed of the xml and binary formats, as written and
+     * read by the exporter and importer
+     */
+    public void testBenchmark() throws Exception {
+        for(int i = 0; i < BENCHMARK_TASKS; i++) {
+            Task task = task(i);
+            taskDao.createNew(task);
+            Metadata metadata = metadata(i);
+            metadata.setValue(Metadata.TASK, task.getId());
+            metadataDao.createNew(metadata);
+        }
+
+        long lastBackup = Preferences.getLong(BackupPreferences.PREF_BACKUP_LAST_DATE, 0);
+        File directory = File.createTempFile("benchmark", Long.toString(System.nanoTime()));
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        try {
+            long start = System.currentTimeMillis();
+            File xml = export(directory, false);
+            long xmlWrite = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            File binary = export(directory, true);
+            long binaryWrite = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            importInto(xml);
+            long xmlRead = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            importInto(binary);
+            long binaryRead = System.currentTimeMillis() - start;
+
+            Log.i("backup-benchmark", String.format("%d tasks: xml %d bytes, write %d ms, " +
+                    "read %d ms; binary %d bytes, write %d ms, read %d ms", BENCHMARK_TASKS,
+                    xml.length(), xmlWrite, xmlRead, binary.length(), binaryWrite, binaryRead));
+            assertTrue(binary.length() < xml.length());
+        } finally {
+            for(File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+            Preferences.setLong(BackupPreferences.PREF_BACKUP_LAST_DATE, lastBackup);
+        }
+    }
+
+}
@@ -187,4 +187,27 @@ public class MetadataDaoTests extends DatabaseTestCase {
         cursor.close();
     }
 
+    /**
+     * Test NULL columns read from the database count as read
+     */
+    public void testReadNullValues() throws Exception {
+        Metadata metadata = new Metadata();
+        metadata.setValue(Metadata.TASK, 1L);
+        metadata.setValue(Metadata.KEY, "nulls");
+        metadata.setValue(Metadata.VALUE1, "value");
+        assertTrue(metadataDao.persist(metadata));
+
+        metadata = metadataDao.fetch(metadata.getId(), Metadata.PROPERTIES);
+        assertEquals("value", metadata.getValue(Metadata.VALUE1));
+        assertTrue(metadata.containsValue(Metadata.VALUE2));
+        assertFalse(metadata.containsNonNullValue(Metadata.VALUE2));
+        assertNull(metadata.getValue(Metadata.VALUE2));
+
+        // a later non-null read replaces the null
+        metadata.setValue(Metadata.VALUE2, "second");
+        assertTrue(metadataDao.persist(metadata));
+        metadata = metadataDao.fetch(metadata.getId(), Metadata.PROPERTIES);
+        assertEquals("second", metadata.getValue(Metadata.VALUE2));
+    }
+
 }
\ No newline at end of file
@@ -1,5 +1,18 @@
 package com.todoroo.astrid.dao;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+
+import com.todoroo.andlib.data.AbstractDatabase.DatabaseChangeListener;
+import com.todoroo.andlib.data.DatabaseChange;
+import com.todoroo.andlib.data.DatabaseDao;
+import com.todoroo.andlib.data.DatabaseDao.ModelUpdateListener;
 import com.todoroo.andlib.data.Property;
 import com.todoroo.andlib.data.TodorooCursor;
 import com.todoroo.andlib.service.Autowired;
@@ -221,6 +234,193 @@ public class TaskDaoTests extends DatabaseTestCase {
         cursor.close();
     }
 
-    // TODO check eventing
-}
+    /**
+     * Test reading primitives and whole models from a cursor
+     */
+    public void testCursorReads() throws Exception {
+        Task task = new Task();
+        task.setValue(Task.TITLE, "cursor");
+        task.setValue(Task.IMPORTANCE, Task.IMPORTANCE_MUST_DO);
+        assertTrue(taskDao.save(task));
+
+        TodorooCursor<Task> cursor = taskDao.query(
+                Query.select(Task.ID, Task.TITLE, Task.IMPORTANCE));
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(task.getId(), cursor.getLong(Task.ID));
+            assertEquals(Task.IMPORTANCE_MUST_DO, cursor.getInt(Task.IMPORTANCE));
+            assertEquals("cursor", cursor.getString(Task.TITLE));
+
+            Task read = new Task();
+            cursor.readInto(read);
+            assertEquals(task.getId(), read.getId());
+            assertEquals("cursor", read.getValue(Task.TITLE));
+            assertEquals(Task.IMPORTANCE_MUST_DO, (int) read.getValue(Task.IMPORTANCE));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Test saving many tasks in one transaction
+     */
+    public void testSaveAll() throws Exception {
+        final ArrayList<Task> updated = new ArrayList<Task>();
+        final DatabaseDao<Task> dao = new DatabaseDao<Task>(Task.class, database);
+        dao.addListener(new ModelUpdateListener<Task>() {
+            public void onModelUpdated(Task model) {
+                assertFalse(database.inTransaction());
+                updated.add(model);
+            }
+        });
+
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for(int i = 0; i < 5; i++) {
+            Task task = new Task();
+            task.setValue(Task.TITLE, "batch " + i);
+            tasks.add(task);
+        }
+        assertEquals(5, dao.saveAll(tasks));
+        assertEquals(5, updated.size());
+        for(int i = 0; i < 5; i++) {
+            assertNotSame(Task.NO_ID, tasks.get(i).getId());
+            assertEquals("batch " + i, taskDao.fetch(tasks.get(i).getId(),
+                    TITLES).getValue(Task.TITLE));
+        }
+
+        // update in a batch
+        updated.clear();
+        tasks.get(2).setValue(Task.TITLE, "renamed");
+        assertEquals(5, dao.saveAll(tasks));
+        assertEquals(1, updated.size());
+        assertEquals("renamed", taskDao.fetch(tasks.get(2).getId(),
+                TITLES).getValue(Task.TITLE));
+
+        // failed batches are rolled back and not reported
+        updated.clear();
+        final Task doomed = new Task();
+        doomed.setValue(Task.TITLE, "doomed");
+        final Task edited = tasks.get(3);
+        edited.setValue(Task.TITLE, "edited");
+        try {
+            dao.runInTransaction(new Runnable() {
+                public void run() {
+                    dao.persist(doomed);
+                    dao.persist(edited);
+                    throw new IllegalStateException("rollback");
+                }
+            });
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, updated.size());
+        TodorooCursor<Task> cursor = taskDao.query(Query.select(IDS));
+        assertEquals(5, cursor.getCount());
+        cursor.close();
+
+        // rolled back models are as they were before the save
+        assertFalse(doomed.isSaved());
+        assertEquals("doomed", doomed.getSetValues().getAsString(Task.TITLE.name));
+        assertEquals("edited", edited.getSetValues().getAsString(Task.TITLE.name));
+        assertEquals(2, dao.saveAll(Arrays.asList(doomed, edited)));
+        assertTrue(doomed.isSaved());
+        assertEquals("edited", taskDao.fetch(edited.getId(),
+                TITLES).getValue(Task.TITLE));
+    }
+
+    /**
+     * Test that writes are published with their rows and columns, and that
+     * transactions are published as one batch
+     */
+    public void testChangeFeed() throws Exception {
+        final LinkedBlockingQueue<List<DatabaseChange>> batches =
+            new LinkedBlockingQueue<List<DatabaseChange>>();
+        final Thread[] listenerThread = new Thread[1];
+        DatabaseChangeListener listener = new DatabaseChangeListener() {
+            public void onDatabaseChanged(List<DatabaseChange> changes) {
+                listenerThread[0] = Thread.currentThread();
+                batches.add(changes);
+            }
+        };
+        DatabaseDao<Task> dao = new DatabaseDao<Task>(Task.class, database);
+        database.addChangeListener(listener);
+        try {
+            Task task = new Task();
+            task.setValue(Task.TITLE, "feed");
+            dao.persist(task);
+            List<DatabaseChange> changes = batches.poll(5, TimeUnit.SECONDS);
+            assertNotSame(Thread.currentThread(), listenerThread[0]);
+            assertEquals(1, changes.size());
+            assertEquals(DatabaseChange.INSERT, changes.get(0).operation);
+            assertEquals(task.getId(), changes.get(0).rowId);
+            assertTrue(changes.get(0).isTo(Task.TABLE));
+
+            task.setValue(Task.IMPORTANCE, Task.IMPORTANCE_MUST_DO);
+            dao.persist(task);
+            changes = batches.poll(5, TimeUnit.SECONDS);
+            DatabaseChange update = changes.get(0);
+            assertEquals(DatabaseChange.UPDATE, update.operation);
+            assertEquals(task.getId(), update.rowId);
+            assertTrue(update.affects(Task.IMPORTANCE));
+            assertFalse(update.affects(Task.NOTES));
+
+            ArrayList<Task> tasks = new ArrayList<Task>();
+            for(int i = 0; i < 3; i++) {
+                Task other = new Task();
+                other.setValue(Task.TITLE, "batch " + i);
+                tasks.add(other);
+            }
+            dao.saveAll(tasks);
+            changes = batches.poll(5, TimeUnit.SECONDS);
+            assertEquals(3, changes.size());
+
+            dao.deleteWhere(Task.TITLE.like("batch%"));
+            changes = batches.poll(5, TimeUnit.SECONDS);
+            assertEquals(DatabaseChange.DELETE, changes.get(0).operation);
+            assertFalse(changes.get(0).isSingleRow());
+
+            // nothing matched, so nothing is published
+            dao.deleteWhere(Task.TITLE.like("batch%"));
+            assertNull(batches.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            database.removeChangeListener(listener);
+        }
+    }
 
+    /**
+     * Test reading deferred properties by id
+     */
+    public void testFetchDeferred() throws Exception {
+        Task task = new Task();
+        task.setValue(Task.TITLE, "deferred");
+        task.setValue(Task.NOTES, "long notes");
+        taskDao.save(task);
+
+        TodorooCursor<Task> cursor = taskDao.query(Query.select(Task.ID, Task.TITLE).
+                where(Task.ID.eq(task.getId())));
+        Task listTask;
+        try {
+            cursor.moveToFirst();
+            listTask = new Task(cursor);
+        } finally {
+            cursor.close();
+        }
+        assertFalse(listTask.containsValue(Task.NOTES));
+        assertFalse(listTask.containsValue(Task.DETAILS));
+
+        HashMap<Long, ContentValues> values = taskDao.fetchDeferred(
+                new Long[] { task.getId(), task.getId() + 1000 });
+        assertEquals(1, values.size());
+        listTask.mergeWithDatabaseValues(values.get(task.getId()));
+
+        assertEquals("long notes", listTask.getValue(Task.NOTES));
+        assertTrue(listTask.containsValue(Task.DETAILS));
+        assertEquals("deferred", listTask.getValue(Task.TITLE));
+
+        // deferred values count as read from the database, not as changes
+        ContentValues setValues = listTask.getSetValues();
+        assertTrue(setValues == null || setValues.size() == 0);
+    }
+}
@@ -0,0 +1,111 @@
+package com.todoroo.astrid.dao;
+
+import java.util.ArrayList;
+
+import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.tags.TagService;
+import com.todoroo.astrid.test.DatabaseTestCase;
+
+@SuppressWarnings("nls")
+public class TaskSearchIndexTests extends DatabaseTestCase {
+
+    @Autowired
+    TaskDao taskDao;
+
+    @Autowired
+    MetadataDao metadataDao;
+
+    private Task createTask(String title, String notes) {
+        Task task = new Task();
+        task.setValue(Task.TITLE, title);
+        task.setValue(Task.NOTES, notes);
+        taskDao.save(task);
+        return task;
+    }
+
+    private Metadata addTag(Task task, String tag) {
+        Metadata metadata = new Metadata();
+        metadata.setValue(Metadata.KEY, TagService.KEY);
+        metadata.setValue(Metadata.TASK, task.getId());
+        metadata.setValue(TagService.TAG, tag);
+        metadataDao.persist(metadata);
+        return metadata;
+    }
+
+    private ArrayList<Long> search(String text) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        TodorooCursor<Task> cursor = taskDao.query(Query.select(Task.ID).
+                withQueryTemplate(TaskSearchIndex.searchTemplate(text).toString()));
+        try {
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                ids.add(cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    public void testMatchQuery() {
+        assertEquals("buy* milk*", TaskSearchIndex.toMatchQuery(" Buy  milk!"));
+        assertEquals("don* t*", TaskSearchIndex.toMatchQuery("don't"));
+        assertEquals("or* caf\u00e9s*", TaskSearchIndex.toMatchQuery("OR \"caf\u00e9s\""));
+        assertNull(TaskSearchIndex.toMatchQuery("-- *"));
+        assertNull(TaskSearchIndex.toMatchQuery(null));
+    }
+
+    public void testSearchesTitleNotesAndTags() {
+        Task milk = createTask("buy milk", null);
+        Task bread = createTask("errands", "bread and butter");
+        Task tagged = createTask("call mom", null);
+        addTag(tagged, "family");
+        createTask("nothing", null);
+
+        assertEquals(1, search("milk").size());
+        assertEquals(milk.getId(), (long) search("milk").get(0));
+        assertEquals(bread.getId(), (long) search("butter").get(0));
+        assertEquals(tagged.getId(), (long) search("family").get(0));
+        assertEquals(0, search("cheese").size());
+    }
+
+    public void testPrefixesOfEveryWordMustMatch() {
+        Task milk = createTask("buy milk", null);
+        createTask("buy bread", null);
+
+        assertEquals(2, search("bu").size());
+        assertEquals(1, search("bu mi").size());
+        assertEquals(milk.getId(), (long) search("bu mi").get(0));
+    }
+
+    public void testTitleMatchesComeFirst() {
+        Task notes = createTask("errands", "pick up the dry cleaning");
+        Task title = createTask("dry cleaning", null);
+        notes.setValue(Task.TITLE, "errands today");
+        taskDao.save(notes);
+
+        ArrayList<Long> ids = search("dry");
+        assertEquals(2, ids.size());
+        assertEquals(title.getId(), (long) ids.get(0));
+        assertEquals(notes.getId(), (long) ids.get(1));
+    }
+
+    public void testIndexFollowsChanges() {
+        Task task = createTask("buy milk", null);
+        Metadata tag = addTag(task, "groceries");
+
+        task.setValue(Task.TITLE, "buy bread");
+        taskDao.save(task);
+        assertEquals(0, search("milk").size());
+        assertEquals(1, search("bread").size());
+
+        metadataDao.delete(tag.getId());
+        assertEquals(0, search("groceries").size());
+
+        taskDao.deleteWhere(Task.ID.eq(task.getId()));
+        assertEquals(0, search("bread").size());
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.todoroo.astrid.dao;
+
+import android.database.Cursor;
+
+import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.astrid.dao.UpdateDao.UpdateCriteria;
+import com.todoroo.astrid.dao.UpdateDao.UpdateTags;
+import com.todoroo.astrid.data.Update;
+import com.todoroo.astrid.test.DatabaseTestCase;
+
+@SuppressWarnings("nls")
+public class UpdateDaoTests extends DatabaseTestCase {
+
+    @Autowired
+    UpdateDao updateDao;
+
+    @Autowired
+    Database database;
+
+    private Update createUpdate(String tags) {
+        Update update = new Update();
+        update.setValue(Update.MESSAGE, "hello");
+        update.setValue(Update.TAGS, tags);
+        assertTrue(updateDao.createNew(update));
+        return update;
+    }
+
+    private int countByTag(long tagRemoteId) {
+        TodorooCursor<Update> cursor = updateDao.query(Query.select(Update.ID).
+                where(UpdateCriteria.byTag(tagRemoteId)));
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countRelationRows() {
+        Cursor cursor = database.rawQuery("SELECT * FROM " +
+                UpdateTags.TABLE.name, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testParseTags() {
+        assertEquals(0, UpdateTags.parseTags(null).size());
+        assertEquals(0, UpdateTags.parseTags(",,").size());
+        assertEquals(2, UpdateTags.parseTags(",4,12,4,").size());
+        assertEquals(12L, (long) UpdateTags.parseTags(",4,12,").get(1));
+        assertEquals(1, UpdateTags.parseTags(",x,5,").size());
+    }
+
+    public void testFindsUpdatesByTag() {
+        createUpdate(",4,12,");
+        createUpdate(",12,");
+        createUpdate("");
+
+        assertEquals(1, countByTag(4));
+        assertEquals(2, countByTag(12));
+        assertEquals(0, countByTag(1));
+    }
+
+    public void testRelationFollowsSavesAndDeletes() {
+        Update update = createUpdate(",4,");
+        update.setValue(Update.TAGS, ",5,6,");
+        assertTrue(updateDao.saveExisting(update));
+        assertEquals(0, countByTag(4));
+        assertEquals(1, countByTag(5));
+
+        // saves that don't touch tags leave the relation alone
+        update.setValue(Update.MESSAGE, "edited");
+        assertTrue(updateDao.saveExisting(update));
+        assertEquals(1, countByTag(6));
+
+        updateDao.delete(update.getId());
+        assertEquals(0, countByTag(5));
+        assertEquals(0, countRelationRows());
+    }
+
+}
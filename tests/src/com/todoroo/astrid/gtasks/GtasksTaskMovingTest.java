@@ -5,8 +5,10 @@ import java.util.List;
 
 import com.google.api.services.tasks.model.TaskList;
 import com.google.api.services.tasks.model.TaskLists;
+import com.todoroo.andlib.data.DatabaseDao.ModelUpdateListener;
 import com.todoroo.andlib.service.Autowired;
 import com.todoroo.astrid.core.PluginServices;
+import com.todoroo.astrid.dao.MetadataDao;
 import com.todoroo.astrid.data.Metadata;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.test.DatabaseTestCase;
@@ -17,6 +19,7 @@ public class GtasksTaskMovingTest extends DatabaseTestCase {
     @Autowired private GtasksListService gtasksListService;
     @Autowired private GtasksMetadataService gtasksMetadataService;
     @Autowired private GtasksTaskListUpdater gtasksTaskListUpdater;
+    @Autowired private MetadataDao metadataDao;
 
     private Task A, B, C, D, E, F;
 
@@ -215,21 +218,75 @@ public class GtasksTaskMovingTest extends DatabaseTestCase {
     }
 
 
+    public void testMoveKeepsOrderOfUnaffectedTasks() {
+        givenTasksABCDEF();
+
+        whenTriggerMove(F, E);
+
+        // only the tasks around the new position get new order values
+        thenExpectMetadataOrderValue(A, 0);
+        thenExpectMetadataOrderValue(B, 1);
+        thenExpectMetadataOrderValue(C, 2);
+        thenExpectMetadataOrderAndIndent(E, 5, 0);
+        thenExpectMetadataOrderAndIndent(F, 4, 0);
+    }
+
+    public void testMoveInLargeListWritesOneRow() {
+        Task[] tasks = new Task[1000];
+        for(int i = 0; i < tasks.length; i++)
+            tasks[i] = createTask("task " + i, i * GtasksTaskListUpdater.ORDER_GAP, 0);
+
+        final int[] saves = new int[1];
+        ModelUpdateListener<Metadata> counter = new ModelUpdateListener<Metadata>() {
+            public void onModelUpdated(Metadata model) {
+                saves[0]++;
+            }
+        };
+        metadataDao.addListener(counter);
+        try {
+            whenTriggerMove(tasks[900], tasks[10]);
+        } finally {
+            metadataDao.removeListener(counter);
+        }
+        assertEquals(1, saves[0]);
+
+        thenExpectMetadataOrderAndIndent(tasks[900], 10, 0);
+        thenExpectMetadataOrderAndIndent(tasks[10], 11, 0);
+        for(int i = 0; i < tasks.length; i++)
+            if(i != 900)
+                thenExpectMetadataOrderValue(tasks[i], i * GtasksTaskListUpdater.ORDER_GAP);
+    }
+
     // --- helpers
 
     /** moveTo = null => move to end */
     private void whenTriggerMove(Task target, Task moveTo) {
         gtasksTaskListUpdater.moveTo(target.getId(), moveTo == null ? -1 : moveTo.getId());
-        gtasksTaskListUpdater.debugPrint("1");
     }
 
+    /** order is the position of the task in the list */
     private void thenExpectMetadataOrderAndIndent(Task task, long order, int indent) {
         Metadata metadata = gtasksMetadataService.getTaskMetadata(task.getId());
         assertNotNull("metadata was found", metadata);
-        assertEquals("order", order, metadata.getValue(GtasksMetadata.ORDER).longValue());
+        assertEquals("order", order, positionOf(task));
         assertEquals("indentation", indent, (int)metadata.getValue(GtasksMetadata.INDENT));
     }
 
+    private void thenExpectMetadataOrderValue(Task task, long order) {
+        Metadata metadata = gtasksMetadataService.getTaskMetadata(task.getId());
+        assertEquals("order value", order, metadata.getValue(GtasksMetadata.ORDER).longValue());
+    }
+
+    private int positionOf(Task task) {
+        final List<Long> ids = new ArrayList<Long>();
+        gtasksMetadataService.iterateThroughList("1", new GtasksMetadataService.ListIterator() {
+            public void processTask(long taskId, Metadata metadata) {
+                ids.add(taskId);
+            }
+        }, 0, false);
+        return ids.indexOf(task.getId());
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
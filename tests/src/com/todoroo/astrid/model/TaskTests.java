@@ -71,4 +71,88 @@ public class TaskTests extends DatabaseTestCase {
         assertTrue(task.hasDueDate());
     }
 
+    /** Check that slot storage keeps the ContentValues views in sync */
+    public void testSlotStorageValues() {
+        Task task = new Task();
+        assertNull(task.getSetValues());
+        assertEquals("", task.getValue(Task.TITLE));
+
+        task.setValue(Task.TITLE, "slots");
+        ContentValues setValues = task.getSetValues();
+        assertEquals("slots", setValues.getAsString(Task.TITLE.name));
+
+        // set values handed out keep tracking changes until saved
+        task.setValue(Task.IMPORTANCE, Task.IMPORTANCE_MUST_DO);
+        assertEquals(Task.IMPORTANCE_MUST_DO, (int) setValues.getAsInteger(Task.IMPORTANCE.name));
+
+        ContentValues merge = new ContentValues();
+        merge.put(Task.DUE_DATE.name, "1234");
+        task.mergeWith(merge);
+        assertEquals(1234L, (long) task.getValue(Task.DUE_DATE));
+
+        taskService.save(task);
+        assertTrue(task.getId() > 0);
+        Task clone = (Task) task.clone();
+        task.setValue(Task.TITLE, "changed");
+        assertEquals("slots", clone.getValue(Task.TITLE));
+        assertEquals(task.getValue(Task.DUE_DATE), clone.getValue(Task.DUE_DATE));
+
+        Task fetched = taskService.fetchById(task.getId(), Task.PROPERTIES);
+        assertEquals("slots", fetched.getValue(Task.TITLE));
+        assertEquals(Task.IMPORTANCE_MUST_DO, (int) fetched.getValue(Task.IMPORTANCE));
+        assertEquals(fetched.getMergedValues().getAsLong(Task.DUE_DATE.name),
+                fetched.getValue(Task.DUE_DATE));
+    }
+
+    /** Check that setting null clears a value, including one set before */
+    public void testSetNullValue() {
+        Task task = new Task();
+        task.setValue(Task.TITLE, "nulls");
+        task.setValue(Task.DETAILS, "details");
+        taskService.save(task);
+
+        Task fetched = taskService.fetchById(task.getId(), Task.PROPERTIES);
+        assertEquals("details", fetched.getValue(Task.DETAILS));
+        fetched.setValue(Task.DETAILS, "other");
+        fetched.setValue(Task.DETAILS, null);
+        assertNull(fetched.getValue(Task.DETAILS));
+        assertFalse(fetched.containsNonNullValue(Task.DETAILS));
+        assertTrue(fetched.getSetValues().containsKey(Task.DETAILS.name));
+        assertNull(fetched.getSetValues().get(Task.DETAILS.name));
+        taskService.save(fetched);
+        assertNull(fetched.getValue(Task.DETAILS));
+
+        fetched = taskService.fetchById(task.getId(), Task.PROPERTIES);
+        assertNull(fetched.getValue(Task.DETAILS));
+
+        // significant edits clear cached details
+        fetched.setValue(Task.DETAILS, "details");
+        taskService.save(fetched);
+        fetched.setValue(Task.TITLE, "changed");
+        taskService.save(fetched);
+        fetched = taskService.fetchById(task.getId(), Task.PROPERTIES);
+        assertNull(fetched.getValue(Task.DETAILS));
+    }
+
+    /** Test transitory values are copied with the model but never saved */
+    public void testTransitory() {
+        Task task = new Task();
+        task.setValue(Task.TITLE, "transitory");
+        task.putTransitory("key", true);
+        assertEquals(Boolean.TRUE, task.getTransitory("key"));
+
+        Task copy = (Task) task.clone();
+        assertTrue(copy.checkAndClearTransitory("key"));
+        assertFalse(copy.checkAndClearTransitory("key"));
+        assertEquals(Boolean.TRUE, task.getTransitory("key"));
+
+        taskService.save(task);
+        assertFalse(task.getMergedValues().containsKey("key"));
+        Task fetched = taskService.fetchById(task.getId(), Task.PROPERTIES);
+        assertNull(fetched.getTransitory("key"));
+
+        task.clear();
+        assertNull(task.getTransitory("key"));
+    }
+
 }
@@ -0,0 +1,198 @@
+package com.todoroo.astrid.reminders;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.util.Log;
+
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.utility.DateUtilities;
+import com.todoroo.astrid.dao.TaskDao;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.reminders.ReminderService.AlarmScheduler;
+import com.todoroo.astrid.reminders.ReminderService.IndexedAlarmScheduler;
+import com.todoroo.astrid.test.DatabaseTestCase;
+import com.todoroo.astrid.utility.AstridPreferences;
+
+@SuppressWarnings("nls")
+public class ReminderIndexTest extends DatabaseTestCase {
+
+    private static final int TASKS = 10000;
+
+    @Autowired
+    private TaskDao taskDao;
+
+    private ReminderService service;
+    private AlarmScheduler original;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        service = ReminderService.getInstance();
+        original = service.getScheduler();
+        AstridPreferences.setPreferenceDefaults();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        service.setScheduler(original);
+    }
+
+    /** stand-in for the alarm manager that counts alarms */
+    private static class CountingScheduler implements AlarmScheduler {
+        int alarms = 0;
+        long lastTime = 0;
+
+        public void createAlarm(Task task, long time, int type) {
+            alarms++;
+            lastTime = time;
+        }
+    }
+
+    public void testOrdering() {
+        ReminderIndex index = new ReminderIndex();
+        long now = DateUtilities.now();
+        assertTrue(index.put(1, now + 3000, ReminderService.TYPE_DUE, 0, now + 3000));
+        assertTrue(index.put(2, now + 1000, ReminderService.TYPE_RANDOM, 0, now + 1000));
+        assertFalse(index.put(3, now + 2000, ReminderService.TYPE_DUE, 0, now + 2000));
+        assertFalse(index.put(4, ReminderIndex.NO_ALARM, 0, 0, now + 1000));
+        assertEquals(4, index.size());
+        assertEquals(2, index.first().taskId);
+
+        // moving the earliest reminder changes the head
+        assertTrue(index.put(2, now + 5000, ReminderService.TYPE_RANDOM, 0, now + 5000));
+        assertEquals(3, index.first().taskId);
+
+        ArrayList<ReminderIndex.Entry> due = index.pollDue(now + 3000);
+        assertEquals(2, due.size());
+        assertEquals(3, due.get(0).taskId);
+        assertEquals(1, due.get(1).taskId);
+        assertEquals(2, index.first().taskId);
+        assertEquals(2, index.size());
+
+        assertEquals(0, index.needingRecheck(now).size());
+        assertEquals(2, index.needingRecheck(now + 5000).size());
+
+        HashSet<Long> keep = new HashSet<Long>();
+        keep.add(4L);
+        index.retainAll(keep);
+        assertNull(index.first());
+        assertEquals(1, index.size());
+    }
+
+    public void testPersistence() throws Exception {
+        ReminderIndex index = new ReminderIndex();
+        long now = DateUtilities.now();
+        index.put(1, now + 1000, ReminderService.TYPE_SNOOZE, 42, now + 1000);
+        index.put(2, ReminderIndex.NO_ALARM, 0, 43, now + DateUtilities.ONE_DAY);
+
+        File file = new File(getContext().getFilesDir(), "reminder-index-test");
+        index.save(file);
+        ReminderIndex loaded = new ReminderIndex();
+        loaded.load(file);
+        file.delete();
+
+        assertEquals(2, loaded.size());
+        assertEquals(1, loaded.first().taskId);
+        assertEquals(ReminderService.TYPE_SNOOZE, loaded.first().type);
+        assertTrue(loaded.isCurrent(1, 42, now));
+        assertFalse(loaded.isCurrent(1, 41, now));
+        assertFalse(loaded.isCurrent(1, 42, now + 1000));
+        assertTrue(loaded.isCurrent(2, 43, now));
+    }
+
+    public void testClearingRemovesOnlyMatchingType() {
+        ReminderIndex index = new ReminderIndex();
+        CountingScheduler wakeUp = new CountingScheduler();
+        IndexedAlarmScheduler scheduler = new IndexedAlarmScheduler(index, wakeUp);
+        Task task = new Task();
+        task.setId(1);
+        long time = DateUtilities.now() + DateUtilities.ONE_HOUR;
+
+        scheduler.createAlarm(task, time, ReminderService.TYPE_DUE);
+        assertEquals(1, wakeUp.alarms);
+        assertEquals(time, wakeUp.lastTime);
+
+        scheduler.createAlarm(task, Long.MAX_VALUE, ReminderService.TYPE_SNOOZE);
+        assertEquals(1, index.size());
+        scheduler.createAlarm(task, Long.MAX_VALUE, ReminderService.TYPE_DUE);
+        assertEquals(0, index.size());
+        assertEquals(2, wakeUp.alarms);
+        assertEquals(Long.MAX_VALUE, wakeUp.lastTime);
+    }
+
+    public void testScheduleManyTasks() {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        long now = DateUtilities.now();
+        for(int i = 0; i < TASKS; i++) {
+            Task task = new Task();
+            task.setValue(Task.TITLE, "task " + i);
+            task.setValue(Task.DUE_DATE, Task.createDueDate(Task.URGENCY_SPECIFIC_DAY_TIME,
+                    now + (i + 1) * DateUtilities.ONE_HOUR));
+            task.setValue(Task.REMINDER_FLAGS, Task.NOTIFY_AT_DEADLINE);
+            tasks.add(task);
+        }
+        assertEquals(TASKS, taskDao.saveAll(tasks));
+
+        // one alarm per task
+        CountingScheduler legacy = new CountingScheduler();
+        service.setScheduler(legacy);
+        long start = System.currentTimeMillis();
+        service.scheduleAllAlarms();
+        long legacyTime = System.currentTimeMillis() - start;
+        assertEquals(TASKS, legacy.alarms);
+
+        // one wake-up for the earliest reminder
+        ReminderIndex index = new ReminderIndex();
+        CountingScheduler wakeUp = new CountingScheduler();
+        service.setScheduler(new IndexedAlarmScheduler(index, wakeUp));
+        start = System.currentTimeMillis();
+        service.scheduleAllAlarms();
+        long indexedTime = System.currentTimeMillis() - start;
+        assertEquals(TASKS, index.size());
+        assertEquals(1, wakeUp.alarms);
+
+        // nothing changed, so nothing is recomputed, but the wake-up is
+        // registered again in case the alarm manager lost it
+        start = System.currentTimeMillis();
+        service.scheduleAllAlarms();
+        long unchangedTime = System.currentTimeMillis() - start;
+        assertEquals(TASKS, index.size());
+        assertEquals(2, wakeUp.alarms);
+
+        Log.i("reminder-benchmark", TASKS + " tasks: legacy " + legacyTime + "ms, indexed " +
+                indexedTime + "ms, unchanged " + unchangedTime + "ms");
+    }
+
+    public void testReloadedIndexRegistersWakeUp() throws Exception {
+        long due = DateUtilities.now() + DateUtilities.ONE_DAY;
+        Task task = new Task();
+        task.setValue(Task.TITLE, "reboot");
+        task.setValue(Task.DUE_DATE, Task.createDueDate(Task.URGENCY_SPECIFIC_DAY_TIME, due));
+        task.setValue(Task.REMINDER_FLAGS, Task.NOTIFY_AT_DEADLINE);
+        taskDao.save(task);
+
+        ReminderIndex index = new ReminderIndex();
+        CountingScheduler wakeUp = new CountingScheduler();
+        service.setScheduler(new IndexedAlarmScheduler(index, wakeUp));
+        service.scheduleAllAlarms();
+        assertEquals(1, wakeUp.alarms);
+        long time = wakeUp.lastTime;
+
+        File file = new File(getContext().getFilesDir(), "reminder-index-reboot-test");
+        index.save(file);
+
+        // after a reboot the index is unchanged, but the alarm manager is empty
+        ReminderIndex loaded = new ReminderIndex();
+        loaded.load(file);
+        file.delete();
+        CountingScheduler rebooted = new CountingScheduler();
+        service.setScheduler(new IndexedAlarmScheduler(loaded, rebooted));
+        service.scheduleAllAlarms();
+        assertEquals(1, rebooted.alarms);
+        assertEquals(time, rebooted.lastTime);
+    }
+
+}
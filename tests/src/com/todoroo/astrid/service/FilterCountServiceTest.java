@@ -0,0 +1,106 @@
+package com.todoroo.astrid.service;
+
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.sql.Criterion;
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.andlib.sql.QueryTemplate;
+import com.todoroo.astrid.api.Filter;
+import com.todoroo.astrid.dao.MetadataDao.MetadataCriteria;
+import com.todoroo.astrid.dao.TaskDao;
+import com.todoroo.astrid.dao.TaskDao.TaskCriteria;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.tags.TagService;
+import com.todoroo.astrid.test.DatabaseTestCase;
+
+@SuppressWarnings("nls")
+public class FilterCountServiceTest extends DatabaseTestCase {
+
+    @Autowired
+    private TaskDao taskDao;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    private FilterCountService filterCountService;
+
+    private Filter active, tagged;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        filterCountService = new FilterCountService();
+
+        active = new Filter("active", "active", new QueryTemplate().where(
+                TaskCriteria.isActive()), null);
+        tagged = new Filter("tagged", "tagged", new QueryTemplate().where(
+                Criterion.and(TaskCriteria.isActive(), Task.ID.in(Query.select(Metadata.TASK).
+                        from(Metadata.TABLE).where(MetadataCriteria.withKey(TagService.KEY))))),
+                null);
+    }
+
+    private Task createTask(String title) {
+        Task task = new Task();
+        task.setValue(Task.TITLE, title);
+        taskDao.save(task);
+        return task;
+    }
+
+    private void addTag(Task task, String tag) {
+        Metadata metadata = new Metadata();
+        metadata.setValue(Metadata.KEY, TagService.KEY);
+        metadata.setValue(Metadata.TASK, task.getId());
+        metadata.setValue(TagService.TAG, tag);
+        metadataService.save(metadata);
+    }
+
+    public void testCountsSeveralFiltersAtOnce() {
+        Task a = createTask("a");
+        createTask("b");
+        addTag(a, "tag");
+
+        int[] counts = filterCountService.countTasks(new Filter[] { active, tagged });
+        assertEquals(2, counts[0]);
+        assertEquals(1, counts[1]);
+    }
+
+    public void testBadFilterDoesNotFailOthers() {
+        createTask("a");
+        Filter broken = new Filter("broken", "broken", "WHERE nonexistent = 1", null);
+
+        int[] counts = filterCountService.countTasks(new Filter[] { active, broken });
+        assertEquals(1, counts[0]);
+        assertEquals(-1, counts[1]);
+    }
+
+    public void testCountsAreCachedUntilTasksChange() {
+        Task a = createTask("a");
+        createTask("b");
+        assertEquals(2, filterCountService.countTasks(active));
+
+        // bulk deletes don't notify listeners, so the count is still cached
+        taskDao.deleteWhere(Task.ID.eq(a.getId()));
+        assertEquals(2, filterCountService.countTasks(active));
+
+        createTask("c");
+        assertEquals(2, filterCountService.countTasks(active));
+        filterCountService.invalidate();
+        assertEquals(2, filterCountService.countTasks(active));
+    }
+
+    public void testMetadataOnlyInvalidatesFiltersReadingIt() {
+        Task a = createTask("a");
+        Task b = createTask("b");
+        addTag(a, "tag");
+        assertEquals(2, filterCountService.countTasks(active));
+        assertEquals(1, filterCountService.countTasks(tagged));
+
+        taskDao.deleteWhere(Task.ID.eq(a.getId()));
+        addTag(b, "tag");
+
+        // active doesn't read metadata, so it kept its cached count
+        assertEquals(2, filterCountService.countTasks(active));
+        assertEquals(1, filterCountService.countTasks(tagged));
+    }
+
+}
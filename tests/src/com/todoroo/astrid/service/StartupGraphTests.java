@@ -0,0 +1,124 @@
+package com.todoroo.astrid.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+@SuppressWarnings("nls")
+public class StartupGraphTests extends AndroidTestCase {
+
+    private Runnable record(final List<String> ran, final String name) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                synchronized(ran) {
+                    ran.add(name);
+                }
+            }
+        };
+    }
+
+    public void testStepsRunAfterTheirDependencies() throws Exception {
+        List<String> ran = new ArrayList<String>();
+        StartupGraph graph = new StartupGraph(3);
+        graph.add("database", record(ran, "database"));
+        graph.add("widgets", record(ran, "widgets"));
+        graph.add("cleanup", record(ran, "cleanup"), "database");
+        graph.add("sync", record(ran, "sync"), "database", "widgets");
+        graph.add("last", record(ran, "last"), "cleanup", "sync");
+        graph.start();
+        assertTrue(graph.await(5000));
+
+        assertEquals(5, ran.size());
+        assertTrue(ran.indexOf("database") < ran.indexOf("cleanup"));
+        assertTrue(ran.indexOf("database") < ran.indexOf("sync"));
+        assertTrue(ran.indexOf("widgets") < ran.indexOf("sync"));
+        assertEquals("last", ran.get(4));
+    }
+
+    public void testFailedStepsDoNotBlockOthers() throws Exception {
+        List<String> ran = new ArrayList<String>();
+        StartupGraph graph = new StartupGraph(2);
+        graph.add("broken", new Runnable() {
+            public void run() {
+                throw new RuntimeException("broken");
+            }
+        });
+        graph.add("after", record(ran, "after"), "broken");
+        graph.start();
+        assertTrue(graph.await(5000));
+
+        assertEquals(1, ran.size());
+    }
+
+    public void testRecordsTimings() throws Exception {
+        List<String> ran = new ArrayList<String>();
+        StartupGraph graph = new StartupGraph(2);
+        graph.runNow("inline", record(ran, "inline"));
+        graph.add("background", record(ran, "background"));
+        graph.start();
+        assertTrue(graph.await(5000));
+
+        Map<String, Long> timings = graph.getTimings();
+        assertEquals(2, timings.size());
+        assertTrue(timings.get("inline") >= 0);
+        assertTrue(timings.get("background") >= 0);
+    }
+
+    public void testSlowStepDoesNotDelayLocalSteps() throws Exception {
+        final List<String> ran = new ArrayList<String>();
+        final CountDownLatch network = new CountDownLatch(1);
+        StartupGraph graph = new StartupGraph(1);
+        graph.addSlow("network", new Runnable() {
+            public void run() {
+                try {
+                    network.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                synchronized(ran) {
+                    ran.add("network");
+                }
+            }
+        });
+        graph.add("database", record(ran, "database"));
+        graph.add("reminders", record(ran, "reminders"), "database");
+        graph.start();
+
+        long start = System.currentTimeMillis();
+        while(System.currentTimeMillis() - start < 2000) {
+            synchronized(ran) {
+                if(ran.contains("reminders"))
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized(ran) {
+            assertTrue(ran.contains("reminders"));
+            assertFalse(ran.contains("network"));
+        }
+
+        network.countDown();
+        assertTrue(graph.await(5000));
+        assertEquals("network", ran.get(2));
+    }
+
+    public void testUnknownDependency() {
+        StartupGraph graph = new StartupGraph(1);
+        try {
+            graph.add("step", record(new ArrayList<String>(), "step"), "missing");
+            fail("Added step with unknown dependency");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
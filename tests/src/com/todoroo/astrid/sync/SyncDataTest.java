@@ -0,0 +1,116 @@
+package com.todoroo.astrid.sync;
+
+import java.util.ArrayList;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.sync.SyncProvider.RemoteKeyExtractor;
+import com.todoroo.astrid.sync.SyncProvider.SyncData;
+
+@SuppressWarnings("nls")
+public class SyncDataTest extends AndroidTestCase {
+
+    private static final int ACCOUNT_SIZE = 10000;
+
+    private static final RemoteKeyExtractor<SyncContainer> EXTRACTOR =
+        new RemoteKeyExtractor<SyncContainer>() {
+        public Object getRemoteKey(SyncContainer task) {
+            long remoteId = task.task.getValue(Task.REMOTE_ID);
+            return remoteId == 0 ? null : remoteId;
+        }
+    };
+
+    private static SyncContainer container(long remoteId) {
+        SyncContainer container = new SyncContainer();
+        container.task = new Task();
+        container.task.setValue(Task.REMOTE_ID, remoteId);
+        return container;
+    }
+
+    private static SyncData<SyncContainer> syncData(int size) {
+        ArrayList<SyncContainer> remote = new ArrayList<SyncContainer>(size);
+        for(int i = 0; i < size; i++)
+            remote.add(container(i + 1));
+        return new SyncData<SyncContainer>(remote, null, null);
+    }
+
+    /** linear scan, the way providers implement matchTask */
+    private static int linearMatch(ArrayList<SyncContainer> tasks, SyncContainer target) {
+        int length = tasks.size();
+        for(int i = 0; i < length; i++) {
+            if(tasks.get(i).task.getValue(Task.REMOTE_ID).equals(
+                    target.task.getValue(Task.REMOTE_ID)))
+                return i;
+        }
+        return -1;
+    }
+
+    public void testIndexMatchesLinearScan() {
+        SyncData<SyncContainer> data = syncData(100);
+        data.remoteUpdated.add(container(50)); // duplicate key
+        data.indexRemoteTasks(EXTRACTOR);
+
+        for(long id = 0; id <= 110; id++) {
+            SyncContainer local = container(id);
+            int expected = id == 0 ? -1 : linearMatch(data.remoteUpdated, local);
+            assertEquals(expected, data.findRemoteTask(local));
+        }
+    }
+
+    public void testSetRemoteTaskUpdatesIndex() {
+        SyncData<SyncContainer> data = syncData(10);
+        data.indexRemoteTasks(EXTRACTOR);
+
+        data.setRemoteTask(3, container(1000));
+        assertEquals(3, data.findRemoteTask(container(1000)));
+        assertEquals(-1, data.findRemoteTask(container(4)));
+
+        data.clearRemoteIndex();
+        try {
+            data.findRemoteTask(container(1));
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Compare matching every task of a 10k-task account by index vs by
+     * linear scan. The scan is timed on a sample and extrapolated. Timings
+     * are only logged, the test checks that both find the same tasks.
+     */
+    public void testMatchingBenchmark() {
+        SyncData<SyncContainer> data = syncData(ACCOUNT_SIZE);
+        ArrayList<SyncContainer> locals = new ArrayList<SyncContainer>(ACCOUNT_SIZE);
+        for(int i = ACCOUNT_SIZE; i > 0; i--)
+            locals.add(container(i));
+
+        int[] matches = new int[ACCOUNT_SIZE];
+        long start = System.nanoTime();
+        data.indexRemoteTasks(EXTRACTOR);
+        for(int i = 0; i < ACCOUNT_SIZE; i++)
+            matches[i] = data.findRemoteTask(locals.get(i));
+        long indexed = System.nanoTime() - start;
+
+        int sample = ACCOUNT_SIZE / 20;
+        int[] linearMatches = new int[sample];
+        start = System.nanoTime();
+        for(int i = 0; i < sample; i++)
+            linearMatches[i] = linearMatch(data.remoteUpdated, locals.get(i));
+        long linear = (System.nanoTime() - start) * (ACCOUNT_SIZE / sample);
+
+        Log.i("sync-benchmark", String.format("%d tasks: indexed %d ms, linear ~%d ms",
+                ACCOUNT_SIZE, indexed / 1000000, linear / 1000000));
+
+        for(int i = 0; i < ACCOUNT_SIZE; i++) {
+            assertTrue(matches[i] >= 0);
+            assertEquals(locals.get(i).task.getValue(Task.REMOTE_ID),
+                    data.remoteUpdated.get(matches[i]).task.getValue(Task.REMOTE_ID));
+        }
+        for(int i = 0; i < sample; i++)
+            assertEquals(linearMatches[i], matches[i]);
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.todoroo.astrid.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Activity;
+import android.app.Notification;
+import android.content.Context;
+
+import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.service.Autowired;
+import com.todoroo.andlib.sql.Query;
+import com.todoroo.astrid.dao.TaskDao;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.test.DatabaseTestCase;
+
+public class SyncPipelineTest extends DatabaseTestCase {
+
+    private static final int TASKS = 40;
+
+    @Autowired
+    private TaskDao taskDao;
+
+    /**
+     * Provider that simulates network latency and records how many
+     * requests were in flight at once
+     */
+    private static class LatencySyncProvider extends SyncProvider<SyncContainer> {
+
+        private final int concurrency;
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final AtomicInteger maxInFlight = new AtomicInteger(0);
+        private final List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+
+        public LatencySyncProvider(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        @Override
+        protected int getMaxConcurrentRequests() {
+            return concurrency;
+        }
+
+        @Override
+        protected SyncContainer push(SyncContainer task, SyncContainer remote) throws IOException {
+            int current = inFlight.incrementAndGet();
+            synchronized(maxInFlight) {
+                if(current > maxInFlight.get())
+                    maxInFlight.set(current);
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted"); //$NON-NLS-1$
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return task;
+        }
+
+        @Override
+        protected SyncContainer create(SyncContainer task) throws IOException {
+            return push(task, null);
+        }
+
+        @Override
+        protected SyncContainer read(TodorooCursor<Task> cursor) throws IOException {
+            SyncContainer container = new SyncContainer();
+            container.task = new Task(cursor);
+            return container;
+        }
+
+        @Override
+        protected void write(SyncContainer task) throws IOException {
+            written.add(task.task.getId());
+        }
+
+        @Override
+        protected int matchTask(ArrayList<SyncContainer> tasks, SyncContainer target) {
+            return -1;
+        }
+
+        @Override
+        protected SyncContainer pull(SyncContainer task) throws IOException {
+            return task;
+        }
+
+        @Override
+        protected void transferIdentifiers(SyncContainer source, SyncContainer destination) {
+            // no identifiers
+        }
+
+        @Override
+        protected SyncProviderUtilities getUtilities() {
+            return null;
+        }
+
+        @Override
+        protected void initiateManual(Activity activity) {
+            // not used
+        }
+
+        @Override
+        protected void initiateBackground() {
+            // not used
+        }
+
+        @Override
+        protected int updateNotification(Context context, Notification n) {
+            return 0;
+        }
+    }
+
+    private LatencySyncProvider sendAll(int concurrency) throws IOException {
+        LatencySyncProvider provider = new LatencySyncProvider(concurrency);
+        TodorooCursor<Task> cursor = taskDao.query(Query.select(Task.PROPERTIES));
+        try {
+            provider.sendLocallyUpdated(new SyncProvider.SyncData<SyncContainer>(
+                    new ArrayList<SyncContainer>(), null, cursor));
+        } finally {
+            cursor.close();
+        }
+        return provider;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for(int i = 0; i < TASKS; i++) {
+            Task task = new Task();
+            task.setValue(Task.TITLE, "task " + i); //$NON-NLS-1$
+            taskDao.save(task);
+        }
+    }
+
+    public void testSerialSync() throws Exception {
+        LatencySyncProvider provider = sendAll(1);
+        assertEquals(TASKS, provider.written.size());
+        assertEquals(1, provider.maxInFlight.get());
+    }
+
+    public void testPipelinedSync() throws Exception {
+        long start = System.currentTimeMillis();
+        LatencySyncProvider provider = sendAll(4);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(TASKS, provider.written.size());
+        assertEquals(TASKS, new HashSet<Long>(provider.written).size());
+        assertTrue(provider.maxInFlight.get() > 1);
+        assertTrue(provider.maxInFlight.get() <= 4);
+        assertTrue("took " + elapsed, elapsed < TASKS * 20); //$NON-NLS-1$
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.todoroo.astrid.widget;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import com.todoroo.andlib.data.AbstractModel;
+import com.todoroo.andlib.data.DatabaseChange;
+import com.todoroo.andlib.data.Property;
+import com.todoroo.andlib.sql.QueryTemplate;
+import com.todoroo.andlib.test.TodorooTestCase;
+import com.todoroo.astrid.core.SortHelper;
+import com.todoroo.astrid.dao.TaskDao.TaskCriteria;
+import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.StoreObject;
+import com.todoroo.astrid.data.Task;
+import com.todoroo.astrid.widget.WidgetRowCache.Entry;
+
+@SuppressWarnings("nls")
+public class WidgetRowCacheTest extends TodorooTestCase {
+
+    private static final long SHOWN = 1;
+    private static final long HIDDEN = 2;
+
+    private Entry entry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        entry = new Entry(new QueryTemplate().where(TaskCriteria.isActive()).toString(),
+                0, SortHelper.SORT_ALPHA);
+        entry.ids.add(SHOWN);
+    }
+
+    private static DatabaseChange update(long id, Property<?>... properties) {
+        HashSet<String> columns = new HashSet<String>();
+        for(Property<?> property : properties)
+            columns.add(property.name);
+        return new DatabaseChange(Task.TABLE.name, DatabaseChange.UPDATE, id, columns);
+    }
+
+    public void testUpdates() {
+        // shown columns of shown tasks
+        assertTrue(WidgetRowCache.affects(entry, update(SHOWN, Task.TITLE)));
+        assertTrue(WidgetRowCache.affects(entry, update(SHOWN, Task.DUE_DATE)));
+        assertFalse(WidgetRowCache.affects(entry, update(SHOWN, Task.NOTES)));
+        assertFalse(WidgetRowCache.affects(entry, update(HIDDEN, Task.DUE_DATE)));
+
+        // columns the filter or sort order read, of any task
+        assertTrue(WidgetRowCache.affects(entry, update(HIDDEN, Task.TITLE)));
+        assertTrue(WidgetRowCache.affects(entry, update(HIDDEN, Task.DELETION_DATE)));
+
+        // updates that may touch many rows
+        assertTrue(WidgetRowCache.affects(entry, update(AbstractModel.NO_ID, Task.NOTES)));
+    }
+
+    public void testInsertsAndDeletes() {
+        assertTrue(WidgetRowCache.affects(entry, new DatabaseChange(Task.TABLE.name,
+                DatabaseChange.INSERT, HIDDEN, null)));
+        assertTrue(WidgetRowCache.affects(entry, new DatabaseChange(Task.TABLE.name,
+                DatabaseChange.DELETE, SHOWN, null)));
+        assertFalse(WidgetRowCache.affects(entry, new DatabaseChange(Task.TABLE.name,
+                DatabaseChange.DELETE, HIDDEN, null)));
+    }
+
+    public void testOtherTables() {
+        assertFalse(WidgetRowCache.affects(entry, new DatabaseChange(Metadata.TABLE.name,
+                DatabaseChange.INSERT, 1, null)));
+        assertFalse(WidgetRowCache.affects(entry, new DatabaseChange(StoreObject.TABLE.name,
+                DatabaseChange.INSERT, 1, null)));
+
+        Entry tagged = new Entry("WHERE " + Task.ID + " IN (SELECT " + Metadata.TASK +
+                " FROM " + Metadata.TABLE + ")", 0, 0);
+        assertTrue(WidgetRowCache.affects(tagged, new DatabaseChange(Metadata.TABLE.name,
+                DatabaseChange.INSERT, 1, null)));
+    }
+
+    public void testOnlyAffectedWidgetsAreMarked() {
+        WidgetRowCache cache = new WidgetRowCache();
+        List<DatabaseChange> changes = new ArrayList<DatabaseChange>();
+        changes.add(update(HIDDEN, Task.NOTES));
+
+        // widgets are not known yet
+        assertTrue(cache.onDatabaseChanged(changes));
+        cache.retainWidgets(new int[0]);
+        assertFalse(cache.onDatabaseChanged(changes));
+    }
+
+}
@@ -0,0 +1,68 @@
+package greendroid.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+public class ImageCacheTest extends AndroidTestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(getContext().getCacheDir(), "image-cache-test");
+        new ImageCache(dir, 0, 0).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ImageCache(dir, 0, 0).clear();
+        dir.delete();
+        super.tearDown();
+    }
+
+    private static Bitmap bitmap() {
+        // 10 * 10 * 4 = 400 bytes
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+    }
+
+    public void testMemoryTierEvictsLeastRecentlyUsed() {
+        ImageCache cache = new ImageCache(dir, 1000, 0);
+        cache.put("a", bitmap());
+        cache.put("b", bitmap());
+        assertNotNull(cache.get("a"));
+        cache.put("c", bitmap());
+
+        assertEquals(800, cache.getMemorySize());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(3, cache.getMemoryHitCount());
+
+        cache.onLowMemoryReceived();
+        assertEquals(400, cache.getMemorySize());
+    }
+
+    public void testDiskTierIsBoundedAndSurvivesRestart() throws Exception {
+        ImageCache cache = new ImageCache(dir, 0, 250);
+        assertNull(cache.getFile("http://a"));
+        cache.putFile("http://a", new ByteArrayInputStream(new byte[100]));
+        cache.putFile("http://b", new ByteArrayInputStream(new byte[100]));
+        assertNotNull(cache.getFile("http://a"));
+        cache.putFile("http://c", new ByteArrayInputStream(new byte[100]));
+
+        assertEquals(200, cache.getDiskSize());
+        assertNull(cache.getFile("http://b"));
+        assertEquals(ImageCache.hash("http://a"), cache.getFile("http://a").getName());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getDiskHitCount());
+
+        ImageCache reopened = new ImageCache(dir, 0, 250);
+        assertEquals(200, reopened.getDiskSize());
+        assertNotNull(reopened.getFile("http://c"));
+    }
+
+}